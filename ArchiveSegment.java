@@ -0,0 +1,461 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 帧归档的一个段：一个预先扩展好的数据文件（.seg）加一个内存映射的定长时间索引（.idx）。
+ * <p>
+ * 数据文件里每帧是 “帧头 | JPEG”，帧头为 魔数 'FRM1' (4) | 采集时间 (8) | JPEG 长度 (4)。
+ * 索引文件：
+ * <pre>
+ * 文件头 (32): 魔数 'FIDX' (4) | 版本 (2) | 标志 (2) | 记录数 (4) | 检查点记录数 (4) | 数据末尾 (8) | 创建时间 (8)
+ * 记录   (20): 采集时间 (8) | 帧头在数据文件中的偏移 (8) | JPEG 长度 (4)
+ * </pre>
+ * 一个段内的采集时间单调不减，按时间查找就是对映射的索引做二分。
+ * 写满、超时或遇到更早的时间戳时由 {@link FrameArchive} 换新段；关闭时把两个文件截到实际长度并打上封存标志。
+ * <p>
+ * 写入中的段由 {@link GroupCommitWriter} 按组提交的节奏调用 {@link #sync}，把数据和索引刷到磁盘，
+ * 再把当时的记录数写进文件头作为检查点。进程崩溃后打开没有封存的段时，检查点以前的记录直接采信，
+ * 只从检查点往后按帧头、SOI 和 EOI 逐帧校验数据、重建索引，遇到第一处残缺数据就截断；
+ * 索引文件丢失或损坏时从头扫描数据文件重建。已封存的段不做任何扫描，所以恢复时间只和未封存段的尾部大小有关。
+ * <p>
+ * 写入分两步：{@link #canAppend} 和 {@link #reserve} 由 {@link FrameArchive} 按流加锁后调用，在数据文件里预留位置；
+ * {@link #writeData}、{@link #commit} 和 {@link #sync} 在写盘线程上调用，写完一帧才提交它的索引记录，
+ * 所以查询只看得到已经写进数据文件的帧。后三者和 {@link #seal} 锁住段本身；记录数是 volatile，先写记录再加计数。
+ * 换下来的段也由写盘线程封存，查询可能正好碰上封存，所以 {@link #read} 在数据通道被关掉时改从文件读。
+ * <p>
+ * 一次 {@link #writeData} 失败后段就不再接收帧：{@link #canAppend} 返回 false 让 {@link FrameArchive} 换新段，
+ * 已经排队的帧也不再写。这样已提交的帧在数据文件里始终首尾相接，崩溃恢复的扫描不会停在中间的空洞上，
+ * 丢掉空洞后面已经提交、还没到检查点的帧。
+ * 删除后索引映射保留到段对象被回收，正在查询这个段的线程仍然能按下标读时间；读帧数据会得到 IOException。
+ */
+final class ArchiveSegment {
+
+    static final int FRAME_MAGIC = 0x46524D31; // "FRM1"
+    static final int FRAME_HEADER_BYTES = 16;
+    static final int INDEX_MAGIC = 0x46494458; // "FIDX"
+    static final short INDEX_VERSION = 1;
+    static final int INDEX_HEADER_BYTES = 32;
+    static final int INDEX_RECORD_BYTES = 20;
+    static final int FLAG_SEALED = 1;
+    static final int FLAG_BACKFILL = 1 << 1;
+
+    private static final int OFFSET_FLAGS = 6;
+    private static final int OFFSET_COUNT = 8;
+    private static final int OFFSET_CHECKPOINT = 12;
+    private static final int OFFSET_DATA_END = 16;
+    private static final int OFFSET_CREATED = 24;
+    private static final short JPEG_SOI = (short) 0xFFD8;
+    private static final short JPEG_EOI = (short) 0xFFD9;
+
+    final int number;
+    final File dataFile;
+    final File indexFile;
+    private final boolean backfill;
+    private RandomAccessFile dataRaf;
+    /** 封存时由写盘线程关闭并置 null，查询线程不加锁读 */
+    private volatile FileChannel data;
+    private volatile MappedByteBuffer index;
+    private int capacity;
+    /** 已提交（写进数据文件、有索引记录）的帧 */
+    private volatile int count;
+    /** 已提交的最后一帧的末尾，写盘线程更新，查询和统计线程不加锁读 */
+    private volatile long dataEnd;
+    private volatile long firstTimeMs = Long.MAX_VALUE;
+    private volatile long lastTimeMs = Long.MIN_VALUE;
+    private volatile boolean sealed;
+    /** 有一次写入失败，之后不再写入这个段 */
+    private volatile boolean writeFailed;
+    private volatile boolean deleted;
+    /** 已预留位置的帧（含还在写盘队列里的），只在流的锁里访问 */
+    private int reservedCount;
+    private long reservedEnd;
+    private long reservedFirstTimeMs = Long.MAX_VALUE;
+    private long reservedLastTimeMs = Long.MIN_VALUE;
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+    /** 打开时恢复出的帧数减去文件头记录数：正数是补回的索引记录，负数是截掉的残缺帧 */
+    private int recoveredFrames;
+    private boolean indexRebuilt;
+
+    private ArchiveSegment(int number, File dir, boolean backfill) {
+        this.number = number;
+        this.dataFile = new File(dir, String.format("%08d.seg", number));
+        this.indexFile = new File(dir, String.format("%08d.idx", number));
+        this.backfill = backfill;
+    }
+
+    /** 新建一个可写的段，数据文件预先扩展到 dataBytes，索引最多 indexCapacity 条 */
+    static ArchiveSegment create(File dir, int number, boolean backfill, long dataBytes, int indexCapacity)
+            throws IOException {
+        ArchiveSegment segment = new ArchiveSegment(number, dir, backfill);
+        segment.capacity = indexCapacity;
+        segment.dataRaf = new RandomAccessFile(segment.dataFile, "rw");
+        segment.dataRaf.setLength(dataBytes);
+        segment.data = segment.dataRaf.getChannel();
+        try (RandomAccessFile indexRaf = new RandomAccessFile(segment.indexFile, "rw")) {
+            long indexBytes = INDEX_HEADER_BYTES + (long) indexCapacity * INDEX_RECORD_BYTES;
+            indexRaf.setLength(indexBytes);
+            segment.index = indexRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexBytes);
+        }
+        segment.index.putInt(0, INDEX_MAGIC);
+        segment.index.putShort(4, INDEX_VERSION);
+        segment.index.putShort(OFFSET_FLAGS, (short) (backfill ? FLAG_BACKFILL : 0));
+        segment.index.putInt(OFFSET_COUNT, 0);
+        segment.index.putInt(OFFSET_CHECKPOINT, 0);
+        segment.index.putLong(OFFSET_DATA_END, 0);
+        segment.index.putLong(OFFSET_CREATED, System.currentTimeMillis());
+        return segment;
+    }
+
+    /**
+     * 打开已有的段（只读查询）。没有封存的段（上次没有正常关闭）从检查点往后校验数据、补齐索引后封存；
+     * 索引文件丢失或文件头无效时扫描整个数据文件重建索引。
+     */
+    static ArchiveSegment open(File dir, int number) throws IOException {
+        ArchiveSegment segment;
+        File indexFile = new File(dir, String.format("%08d.idx", number));
+        if (!indexFile.isFile()) {
+            return rebuild(dir, number);
+        }
+        try (RandomAccessFile indexRaf = new RandomAccessFile(indexFile, "rw")) {
+            if (indexRaf.length() < INDEX_HEADER_BYTES) {
+                return rebuild(dir, number);
+            }
+            MappedByteBuffer index = indexRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexRaf.length());
+            if (index.getInt(0) != INDEX_MAGIC || index.getShort(4) != INDEX_VERSION) {
+                return rebuild(dir, number);
+            }
+            int flags = index.getShort(OFFSET_FLAGS);
+            segment = new ArchiveSegment(number, dir, (flags & FLAG_BACKFILL) != 0);
+            segment.index = index;
+            segment.capacity = (int) ((indexRaf.length() - INDEX_HEADER_BYTES) / INDEX_RECORD_BYTES);
+            segment.count = Math.min(index.getInt(OFFSET_COUNT), segment.capacity);
+            segment.dataEnd = index.getLong(OFFSET_DATA_END);
+            segment.sealed = (flags & FLAG_SEALED) != 0;
+        }
+        if (!segment.sealed) {
+            segment.recover();
+        }
+        segment.updateTimeRange();
+        return segment;
+    }
+
+    /** 从检查点往后重新扫描数据文件，索引按扫描结果重写，然后封存 */
+    private void recover() throws IOException {
+        int headerCount = count;
+        int checkpoint = Math.max(0, Math.min(index.getInt(OFFSET_CHECKPOINT), count));
+        long position = checkpoint == 0 ? 0 : offsetAt(checkpoint - 1) + FRAME_HEADER_BYTES + lengthAt(checkpoint - 1);
+        long lastTime = checkpoint == 0 ? Long.MIN_VALUE : timeAt(checkpoint - 1);
+        List<long[]> frames = scanFrames(dataFile, position, lastTime, capacity - checkpoint);
+        count = checkpoint;
+        for (long[] frame : frames) {
+            putRecord(count++, frame[0], frame[1], (int) frame[2]);
+        }
+        dataEnd = frames.isEmpty() ? position : frames.get(frames.size() - 1)[1] + FRAME_HEADER_BYTES + frames.get(frames.size() - 1)[2];
+        index.putLong(OFFSET_DATA_END, dataEnd);
+        index.putInt(OFFSET_COUNT, count);
+        recoveredFrames = count - headerCount;
+        seal();
+    }
+
+    /** 索引文件丢失或损坏：扫描整个数据文件，按实际帧数重写索引文件并封存 */
+    private static ArchiveSegment rebuild(File dir, int number) throws IOException {
+        ArchiveSegment segment = new ArchiveSegment(number, dir, false);
+        if (!segment.dataFile.isFile()) {
+            throw new IOException("数据文件不存在: " + segment.dataFile);
+        }
+        List<long[]> frames = scanFrames(segment.dataFile, 0, Long.MIN_VALUE, Integer.MAX_VALUE);
+        long indexBytes = INDEX_HEADER_BYTES + (long) frames.size() * INDEX_RECORD_BYTES;
+        try (RandomAccessFile indexRaf = new RandomAccessFile(segment.indexFile, "rw")) {
+            indexRaf.setLength(0);
+            indexRaf.setLength(indexBytes);
+            segment.index = indexRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexBytes);
+        }
+        segment.index.putInt(0, INDEX_MAGIC);
+        segment.index.putShort(4, INDEX_VERSION);
+        segment.index.putLong(OFFSET_CREATED, segment.dataFile.lastModified());
+        segment.capacity = frames.size();
+        for (long[] frame : frames) {
+            segment.putRecord(segment.count++, frame[0], frame[1], (int) frame[2]);
+        }
+        if (!frames.isEmpty()) {
+            long[] last = frames.get(frames.size() - 1);
+            segment.dataEnd = last[1] + FRAME_HEADER_BYTES + last[2];
+        }
+        segment.index.putLong(OFFSET_DATA_END, segment.dataEnd);
+        segment.index.putInt(OFFSET_COUNT, segment.count);
+        segment.recoveredFrames = segment.count;
+        segment.indexRebuilt = true;
+        segment.seal();
+        segment.updateTimeRange();
+        return segment;
+    }
+
+    /**
+     * 从 position 开始按帧头逐帧校验：魔数、长度不越界、时间不倒退、JPEG 以 SOI 开头以 EOI 结尾。
+     * 预分配的空白区和写了一半的帧都会在这里停下。
+     *
+     * @return 每个有效帧的 {采集时间, 偏移, 长度}
+     */
+    private static List<long[]> scanFrames(File dataFile, long position, long lastTimeMs, int maxFrames)
+            throws IOException {
+        List<long[]> frames = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(dataFile.toPath())) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+            ByteBuffer marker = ByteBuffer.allocate(2);
+            while (frames.size() < maxFrames && position + FRAME_HEADER_BYTES <= size) {
+                if (!readAt(channel, header, position)) break;
+                long time = header.getLong(4);
+                int length = header.getInt(12);
+                long end = position + FRAME_HEADER_BYTES + length;
+                if (header.getInt(0) != FRAME_MAGIC || length < 4 || end > size || time < lastTimeMs) break;
+                if (!readAt(channel, marker, position + FRAME_HEADER_BYTES) || marker.getShort(0) != JPEG_SOI) break;
+                if (!readAt(channel, marker, end - 2) || marker.getShort(0) != JPEG_EOI) break;
+                frames.add(new long[]{time, position, length});
+                lastTimeMs = time;
+                position = end;
+            }
+        }
+        return frames;
+    }
+
+    private static boolean readAt(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) return false;
+        }
+        return true;
+    }
+
+    private void updateTimeRange() {
+        if (count > 0) {
+            firstTimeMs = timeAt(0);
+            lastTimeMs = timeAt(count - 1);
+        }
+    }
+
+    /** 打开时恢复出的帧数减去文件头记录数；正常封存的段为 0 */
+    int getRecoveredFrames() {
+        return recoveredFrames;
+    }
+
+    boolean isIndexRebuilt() {
+        return indexRebuilt;
+    }
+
+    boolean isBackfill() {
+        return backfill;
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getFirstTimeMs() {
+        return firstTimeMs;
+    }
+
+    long getLastTimeMs() {
+        return lastTimeMs;
+    }
+
+    /** 数据文件实际使用的字节数 */
+    long getDataBytes() {
+        return dataEnd;
+    }
+
+    /** 这一帧能否写入本段：容量、时长和时间顺序都满足（按已预留的帧算） */
+    boolean canAppend(long timeMs, int length, long maxDataBytes, long maxDurationMs) {
+        if (sealed || writeFailed || reservedCount >= capacity) return false;
+        if (reservedCount > 0 && (timeMs < reservedLastTimeMs || timeMs - reservedFirstTimeMs > maxDurationMs)) return false;
+        return reservedCount == 0 || reservedEnd + FRAME_HEADER_BYTES + length <= maxDataBytes;
+    }
+
+    /**
+     * 为一帧预留数据文件里的位置，之后由写盘线程 {@link #writeData} 和 {@link #commit}。
+     * 同一段的帧按预留顺序提交，位置首尾相接。
+     *
+     * @return 帧头在数据文件中的偏移
+     */
+    long reserve(long timeMs, int length) {
+        long position = reservedEnd;
+        reservedEnd = position + FRAME_HEADER_BYTES + length;
+        if (reservedCount++ == 0) reservedFirstTimeMs = timeMs;
+        reservedLastTimeMs = timeMs;
+        pendingWrites.incrementAndGet();
+        return position;
+    }
+
+    /** 已预留、还没有写完（成功或失败）的帧数 */
+    int getPendingWrites() {
+        return pendingWrites.get();
+    }
+
+    /** 一帧写完或写失败后由写盘线程调用 */
+    void onWriteDone() {
+        pendingWrites.decrementAndGet();
+    }
+
+    /**
+     * 从 position 开始一次聚集写入若干个连续的帧（每个缓冲是完整的 “帧头 | JPEG”）。
+     * 失败后这个段标记为写入失败，这批帧和之后排队的帧都不提交。
+     */
+    synchronized void writeData(long position, ByteBuffer[] buffers) throws IOException {
+        if (writeFailed) throw new IOException("段之前写入失败: " + dataFile);
+        if (data == null) throw new IOException("段已封存: " + dataFile);
+        ByteBuffer last = buffers[buffers.length - 1];
+        try {
+            data.position(position);
+            while (last.hasRemaining()) {
+                data.write(buffers);
+            }
+        } catch (IOException e) {
+            writeFailed = true;
+            throw e;
+        }
+    }
+
+    boolean isWriteFailed() {
+        return writeFailed;
+    }
+
+    /** 提交一个已经写进数据文件的帧：先写记录再更新计数和数据末尾，崩溃时最多丢最后一帧 */
+    synchronized void commit(long timeMs, long position, int length) {
+        putRecord(count, timeMs, position, length);
+        dataEnd = position + FRAME_HEADER_BYTES + length;
+        index.putLong(OFFSET_DATA_END, dataEnd);
+        index.putInt(OFFSET_COUNT, count + 1);
+        if (count == 0) firstTimeMs = timeMs;
+        lastTimeMs = timeMs;
+        count++;
+    }
+
+    /** 数据和索引落盘后再推进检查点，检查点以前的记录在崩溃后可以直接采信；已封存的段跳过 */
+    synchronized void sync() throws IOException {
+        if (sealed || data == null) return;
+        int synced = count;
+        data.force(false);
+        index.force();
+        index.putInt(OFFSET_CHECKPOINT, synced);
+    }
+
+    private void putRecord(int i, long timeMs, long offset, int length) {
+        int record = INDEX_HEADER_BYTES + i * INDEX_RECORD_BYTES;
+        index.putLong(record, timeMs);
+        index.putLong(record + 8, offset);
+        index.putInt(record + 16, length);
+    }
+
+    long timeAt(int i) {
+        return index.getLong(INDEX_HEADER_BYTES + i * INDEX_RECORD_BYTES);
+    }
+
+    long offsetAt(int i) {
+        return index.getLong(INDEX_HEADER_BYTES + i * INDEX_RECORD_BYTES + 8);
+    }
+
+    int lengthAt(int i) {
+        return index.getInt(INDEX_HEADER_BYTES + i * INDEX_RECORD_BYTES + 16);
+    }
+
+    /**
+     * 二分查找采集时间不晚于 timeMs 的最后一帧。
+     *
+     * @return 记录下标，全部晚于 timeMs 时返回 -1
+     */
+    int floorIndex(long timeMs) {
+        int low = 0;
+        int high = count - 1;
+        int result = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (timeAt(mid) <= timeMs) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    /** 读出第 i 帧的 JPEG */
+    byte[] read(int i) throws IOException {
+        if (deleted) throw new IOException("段已删除: " + dataFile);
+        byte[] jpeg = new byte[lengthAt(i)];
+        long position = offsetAt(i) + FRAME_HEADER_BYTES;
+        FileChannel live = data;
+        if (live != null) {
+            try {
+                readFully(live, jpeg, position);
+                return jpeg;
+            } catch (ClosedChannelException e) {
+                // 写盘线程刚封存了这个段，改从文件读
+            }
+        }
+        try (FileChannel channel = FileChannel.open(dataFile.toPath())) {
+            readFully(channel, jpeg, position);
+        }
+        return jpeg;
+    }
+
+    private void readFully(FileChannel source, byte[] target, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(target);
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("段数据不完整: " + dataFile);
+            }
+        }
+    }
+
+    /** 停止写入：把数据文件截到实际长度，索引截到实际记录数，打上封存标志 */
+    synchronized void seal() throws IOException {
+        if (sealed) return;
+        if (data != null) {
+            data.force(false);
+            data.close();
+            dataRaf.close();
+            data = null;
+            dataRaf = null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(dataFile, "rw")) {
+            if (raf.length() > dataEnd) {
+                raf.setLength(dataEnd);
+            }
+        }
+        index.putShort(OFFSET_FLAGS, (short) ((backfill ? FLAG_BACKFILL : 0) | FLAG_SEALED));
+        index.putInt(OFFSET_CHECKPOINT, count);
+        index.force();
+        long indexBytes = INDEX_HEADER_BYTES + (long) count * INDEX_RECORD_BYTES;
+        index = remap(indexBytes);
+        capacity = count;
+        sealed = true;
+    }
+
+    private MappedByteBuffer remap(long indexBytes) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+            raf.setLength(indexBytes);
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, indexBytes);
+        }
+    }
+
+    /** 删除段的两个文件（保留期清理时调用） */
+    boolean delete() throws IOException {
+        seal();
+        // 不清空 index：并发的查询可能还在读它，映射随段对象一起被 GC 释放，Linux 上先删文件不影响
+        deleted = true;
+        return dataFile.delete() & indexFile.delete();
+    }
+}
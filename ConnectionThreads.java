@@ -0,0 +1,55 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 每连接一个线程时，用哪种线程跑连接：平台线程（原来的 new Thread）或虚拟线程。
+ * <p>
+ * 虚拟线程来自 JDK 21 的 {@code Executors.newVirtualThreadPerTaskExecutor()}。服务端按 JDK 17 编译，
+ * 所以通过反射获取；运行时的 JDK 不支持时打印提示并退回平台线程，阻塞式读帧的代码两种模式共用。
+ */
+final class ConnectionThreads {
+
+    static final String PLATFORM = "platform";
+    static final String VIRTUAL = "virtual";
+
+    private ConnectionThreads() {
+    }
+
+    /** 运行时的 JDK 是否支持虚拟线程 */
+    static boolean isVirtualSupported() {
+        try {
+            java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param mode       {@link #PLATFORM} 或 {@link #VIRTUAL}
+     * @param namePrefix 平台线程的名字前缀，线程名为 “前缀-序号”
+     * @throws IllegalArgumentException 未知的线程模式
+     */
+    static Executor create(String mode, String namePrefix) {
+        if (VIRTUAL.equals(mode)) {
+            Executor executor = newVirtualExecutor();
+            if (executor != null) {
+                return executor;
+            }
+            System.err.println("当前 JDK (" + System.getProperty("java.version") + ") 不支持虚拟线程（需要 21 及以上），改用平台线程");
+        } else if (!PLATFORM.equals(mode)) {
+            throw new IllegalArgumentException("未知的线程模式: " + mode + "（可选 platform、virtual）");
+        }
+        AtomicInteger counter = new AtomicInteger();
+        return task -> new Thread(task, namePrefix + "-" + counter.incrementAndGet()).start();
+    }
+
+    private static Executor newVirtualExecutor() {
+        try {
+            return (Executor) java.util.concurrent.Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
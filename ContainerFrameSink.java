@@ -0,0 +1,291 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 把每条流的实时帧边收边写进可播放的视频文件：{@code <根目录>/<流标识>/<开始时间>.avi|.mp4}，
+ * 省掉事后用外部工具把散落的 JPEG 拼成视频的那一遍读写。
+ * <ul>
+ * <li>avi：MJPEG-AVI（{@link MjpegAviWriter}），兼容性最好，固定帧率（按实际的平均帧率）</li>
+ * <li>mp4：分片 MP4（{@link FragmentedMp4Writer}），保留真实帧间隔</li>
+ * </ul>
+ * 文件超过 {@link #DEFAULT_MAX_FILE_BYTES} 或连接关闭时换新文件。
+ * 回传的历史帧时间早于已写出的帧，不能插进容器，这里直接跳过（需要时从 {@link FrameArchive} 导出）。
+ * <p>
+ * 用法（自测）: java ContainerFrameSink --selftest
+ */
+public class ContainerFrameSink implements FrameSink, Closeable {
+
+    /** AVI 1.0 只有 32 位长度，播放器普遍只认 1 GB 以内的文件 */
+    public static final long DEFAULT_MAX_FILE_BYTES = 1024L * 1024 * 1024;
+    private static final int DEFAULT_FPS = 30;
+    private static final DateTimeFormatter FILE_TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss_SSS").withZone(ZoneId.systemDefault());
+
+    /** 一个正在写的容器文件 */
+    interface ContainerWriter extends Closeable {
+        void writeFrame(byte[] jpeg, int offset, int length, long captureTimeMs) throws IOException;
+
+        /** 已写出的字节数 */
+        long size();
+
+        File getFile();
+    }
+
+    private final File rootDir;
+    private final String format;
+    private final long maxFileBytes;
+    private final Map<String, ContainerWriter> writers = new ConcurrentHashMap<>();
+
+    /**
+     * @param format avi 或 mp4
+     */
+    public ContainerFrameSink(File rootDir, String format, long maxFileBytes) {
+        if (!"avi".equals(format) && !"mp4".equals(format)) {
+            throw new IllegalArgumentException("不支持的容器格式: " + format + "（可选 avi、mp4）");
+        }
+        this.rootDir = rootDir;
+        this.format = format;
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    @Override
+    public void onFrame(Frame frame) throws IOException {
+        if (frame.backfill) return;
+        String key = frame.stream.key();
+        ContainerWriter writer = writers.get(key);
+        if (writer != null && writer.size() >= maxFileBytes) {
+            closeWriter(key);
+            writer = null;
+        }
+        if (writer == null) {
+            writer = open(frame);
+            writers.put(key, writer);
+        }
+        synchronized (writer) {
+            writer.writeFrame(frame.data, frame.offset, frame.length, frame.captureTimeMs);
+        }
+    }
+
+    private ContainerWriter open(Frame frame) throws IOException {
+        File dir = new File(rootDir, frame.stream.key());
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("无法创建保存目录: " + dir);
+        }
+        int[] size = jpegSize(frame.data, frame.offset, frame.length);
+        int width = size != null ? size[0] : frame.stream.width;
+        int height = size != null ? size[1] : frame.stream.height;
+        int fps = frame.stream.maxFps > 0 ? frame.stream.maxFps : DEFAULT_FPS;
+        File file = new File(dir, FILE_TIME_FORMAT.format(Instant.ofEpochMilli(frame.captureTimeMs)) + "." + format);
+        System.out.println("开始写入 " + file + " (" + width + "x" + height + ")");
+        return "avi".equals(format)
+                ? new MjpegAviWriter(file, width, height, fps)
+                : new FragmentedMp4Writer(file, width, height, fps, FragmentedMp4Writer.DEFAULT_FRAGMENT_MS);
+    }
+
+    @Override
+    public void onStreamClosed(StreamInfo stream) {
+        closeWriter(stream.key());
+    }
+
+    private void closeWriter(String key) {
+        ContainerWriter writer = writers.remove(key);
+        if (writer == null) return;
+        synchronized (writer) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                System.err.println("关闭视频文件失败 (" + writer.getFile() + "): " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (String key : writers.keySet()) {
+            closeWriter(key);
+        }
+    }
+
+    /**
+     * 从 SOF 段读出 JPEG 的宽高。
+     *
+     * @return {宽, 高}，找不到 SOF 时返回 null
+     */
+    static int[] jpegSize(byte[] data, int offset, int length) {
+        int i = offset + 2;
+        int end = offset + length;
+        while (i + 9 <= end) {
+            if ((data[i] & 0xFF) != 0xFF) return null;
+            int marker = data[i + 1] & 0xFF;
+            if (marker == 0xFF) {
+                i++; // 填充字节
+                continue;
+            }
+            int segmentLength = ((data[i + 2] & 0xFF) << 8) | (data[i + 3] & 0xFF);
+            boolean sof = marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+            if (sof) {
+                int height = ((data[i + 5] & 0xFF) << 8) | (data[i + 6] & 0xFF);
+                int width = ((data[i + 7] & 0xFF) << 8) | (data[i + 8] & 0xFF);
+                return new int[]{width, height};
+            }
+            if (marker == 0xDA) return null; // 扫描数据开始了还没有 SOF
+            i += 2 + segmentLength;
+        }
+        return null;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--selftest".equals(args[0])) {
+            System.exit(selfTest("avi") & selfTest("mp4") ? 0 : 1);
+            return;
+        }
+        System.out.println("用法: java ContainerFrameSink --selftest");
+    }
+
+    /**
+     * 自测：写 90 帧，写入过程中按播放器的方式从头扫描文件（AVI 顺着 movi 块，MP4 顺着片段），
+     * 关闭后再按最终结构（AVI 的 idx1、MP4 的全部片段）读出所有帧，与原始 JPEG 逐字节比对。
+     * AVI 还检查文件头里的帧率已经从默认的 30 fps 改成实际的平均帧间隔（2939 ms / 89 ≈ 33022 µs）。
+     */
+    static boolean selfTest(String format) throws Exception {
+        File dir = Files.createTempDirectory("container-sink").toFile();
+        try {
+            List<byte[]> jpegs = SyntheticPhoneClient.renderJpegs(320, 240, "test");
+            StreamInfo stream = StreamInfo.unidentified(12345, "127.0.0.1");
+            ContainerFrameSink sink = new ContainerFrameSink(dir, format, DEFAULT_MAX_FILE_BYTES);
+            List<byte[]> sent = new ArrayList<>();
+            long start = 1_700_000_000_000L;
+            for (int i = 0; i < 90; i++) {
+                byte[] jpeg = jpegs.get(i % jpegs.size());
+                sink.onFrame(new Frame(stream, jpeg, 0, jpeg.length, start + i * 33L + (i % 3), false));
+                sent.add(jpeg);
+            }
+            sink.onFrame(new Frame(stream, jpegs.get(0), 0, jpegs.get(0).length, start, true)); // 回传帧被跳过
+            File[] files = new File(dir, stream.key()).listFiles((d, name) -> name.endsWith("." + format));
+            if (files == null || files.length != 1) {
+                System.err.println(format + ": 期望一个输出文件");
+                return false;
+            }
+            byte[] partial = Files.readAllBytes(files[0].toPath());
+            List<byte[]> whileWriting = "avi".equals(format) ? aviChunks(partial) : mp4Samples(partial);
+            sink.close();
+            byte[] complete = Files.readAllBytes(files[0].toPath());
+            List<byte[]> afterClose = "avi".equals(format) ? aviIndexedFrames(complete) : mp4Samples(complete);
+            // MP4 写入中只能看到已经写出的完整片段（每秒一个）
+            boolean ok = whileWriting.size() >= ("avi".equals(format) ? 90 : 60)
+                    && sameFrames(whileWriting, sent) && afterClose.size() == 90 && sameFrames(afterClose, sent)
+                    && javax.imageio.ImageIO.read(new java.io.ByteArrayInputStream(afterClose.get(89))) != null;
+            if ("avi".equals(format)) {
+                ByteBuffer header = ByteBuffer.wrap(complete).order(ByteOrder.LITTLE_ENDIAN);
+                boolean rate = header.getInt(32) == 33022 && header.getInt(128) == 33022 && header.getInt(132) == 1_000_000;
+                if (!rate) {
+                    System.err.println("avi: 帧率没有按实际帧间隔回填: " + header.getInt(32) + " µs/帧, "
+                            + header.getInt(132) + "/" + header.getInt(128));
+                }
+                ok &= rate;
+            }
+            System.out.printf("%s 自测%s: 写入中可读 %d 帧, 关闭后 %d 帧, 文件 %d KB\n", format, ok ? "通过" : "失败",
+                    whileWriting.size(), afterClose.size(), complete.length / 1024);
+            return ok;
+        } finally {
+            File[] streams = dir.listFiles();
+            for (File streamDir : streams == null ? new File[0] : streams) {
+                File[] files = streamDir.listFiles();
+                for (File file : files == null ? new File[0] : files) {
+                    file.delete();
+                }
+                streamDir.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static boolean sameFrames(List<byte[]> read, List<byte[]> sent) {
+        for (int i = 0; i < read.size(); i++) {
+            if (!Arrays.equals(read.get(i), sent.get(i))) return false;
+        }
+        return true;
+    }
+
+    /** 不看索引，顺着 movi 列表读出所有完整的 '00dc' 块 */
+    private static List<byte[]> aviChunks(byte[] file) {
+        ByteBuffer b = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN);
+        List<byte[]> frames = new ArrayList<>();
+        int i = 224;
+        while (i + 8 <= file.length && b.getInt(i) == fourcc("00dc")) {
+            int length = b.getInt(i + 4);
+            if (i + 8 + length > file.length) break;
+            frames.add(Arrays.copyOfRange(file, i + 8, i + 8 + length));
+            i += 8 + length + (length & 1);
+        }
+        return frames;
+    }
+
+    /** 按 idx1 读帧，并检查文件头里的总帧数 */
+    private static List<byte[]> aviIndexedFrames(byte[] file) {
+        ByteBuffer b = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN);
+        List<byte[]> frames = new ArrayList<>();
+        int moviSize = b.getInt(216);
+        int idx1 = 220 + moviSize;
+        if (b.getInt(4) != file.length - 8 || b.getInt(idx1) != fourcc("idx1")) return frames;
+        int entries = b.getInt(idx1 + 4) / 16;
+        for (int e = 0; e < entries; e++) {
+            int chunk = 220 + b.getInt(idx1 + 8 + e * 16 + 8);
+            int length = b.getInt(idx1 + 8 + e * 16 + 12);
+            frames.add(Arrays.copyOfRange(file, chunk + 8, chunk + 8 + length));
+        }
+        return b.getInt(48) == entries ? frames : new ArrayList<>();
+    }
+
+    private static int fourcc(String code) {
+        return ByteBuffer.wrap(code.getBytes(java.nio.charset.StandardCharsets.US_ASCII)).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    /** 顺着顶层 box 读出每个完整片段里的样本（trun 的 data-offset 相对 moof 开头） */
+    private static List<byte[]> mp4Samples(byte[] file) {
+        ByteBuffer b = ByteBuffer.wrap(file);
+        List<byte[]> samples = new ArrayList<>();
+        int i = 0;
+        while (i + 8 <= file.length) {
+            int size = b.getInt(i);
+            String type = new String(file, i + 4, 4, java.nio.charset.StandardCharsets.US_ASCII);
+            if (size < 8 || i + size > file.length) break;
+            if ("moof".equals(type)) {
+                int trun = indexOf(file, "trun", i, i + size);
+                int count = b.getInt(trun + 12);
+                int data = i + b.getInt(trun + 16);
+                if (data + 0L > file.length) break;
+                for (int s = 0; s < count; s++) {
+                    int length = b.getInt(trun + 20 + s * 8 + 4);
+                    if (data + length > file.length) return samples;
+                    samples.add(Arrays.copyOfRange(file, data, data + length));
+                    data += length;
+                }
+            }
+            i += size;
+        }
+        return samples;
+    }
+
+    private static int indexOf(byte[] file, String type, int from, int to) {
+        byte[] pattern = type.getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+        for (int i = from; i + 4 <= to; i++) {
+            if (file[i] == pattern[0] && file[i + 1] == pattern[1] && file[i + 2] == pattern[2] && file[i + 3] == pattern[3]) {
+                return i - 4;
+            }
+        }
+        return -1;
+    }
+}
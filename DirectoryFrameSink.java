@@ -0,0 +1,54 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把每帧 JPEG 按流分目录保存：{@code <根目录>/<流标识>/<采集时间>_<序号>.jpg}，
+ * 回传的历史帧文件名带 {@code _backfill} 后缀。
+ */
+public class DirectoryFrameSink implements FrameSink {
+
+    private static final DateTimeFormatter FILE_TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss_SSS").withZone(ZoneId.systemDefault());
+
+    private final File rootDir;
+    private final Map<String, AtomicLong> sequences = new ConcurrentHashMap<>();
+
+    public DirectoryFrameSink(File rootDir) {
+        this.rootDir = rootDir;
+    }
+
+    @Override
+    public void onStreamOpened(StreamInfo stream) {
+        File dir = new File(rootDir, stream.key());
+        if (!dir.exists() && !dir.mkdirs()) {
+            System.err.println("无法创建保存目录: " + dir);
+        }
+    }
+
+    @Override
+    public void onFrame(Frame frame) throws IOException {
+        String key = frame.stream.key();
+        long sequence = sequences.computeIfAbsent(key, k -> new AtomicLong()).incrementAndGet();
+        String name = FILE_TIME_FORMAT.format(Instant.ofEpochMilli(frame.captureTimeMs))
+                + "_" + sequence + (frame.backfill ? "_backfill" : "") + ".jpg";
+        File dir = new File(rootDir, key);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("无法创建保存目录: " + dir);
+        }
+        try (FileOutputStream fos = new FileOutputStream(new File(dir, name))) {
+            fos.write(frame.data, frame.offset, frame.length);
+        }
+    }
+
+    @Override
+    public void onStreamClosed(StreamInfo stream) {
+        sequences.remove(stream.key());
+    }
+}
@@ -0,0 +1,240 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 边收边写的分片 MP4（ISO BMFF），样本是原样的 JPEG（'jpeg' 样本描述）。
+ * <pre>
+ * ftyp | moov (mvhd, trak, mvex/trex) | (moof (mfhd, traf (tfhd, tfdt, trun)) | mdat)*
+ * </pre>
+ * moov 里的样本表都是空的，样本全部在片段里；每个片段攒够 {@link #DEFAULT_FRAGMENT_MS} 毫秒的帧后写出，
+ * 内存里最多只有一个片段的 JPEG。每个写完的片段都是自包含的，写入过程中或崩溃留下的文件都能播放到最后一个完整片段。
+ * <p>
+ * 时间刻度为毫秒，样本时长取相邻两帧采集时间之差，保留手机端真实的帧间隔。非线程安全。
+ */
+final class FragmentedMp4Writer implements ContainerFrameSink.ContainerWriter {
+
+    static final long DEFAULT_FRAGMENT_MS = 1000;
+    private static final int TIMESCALE = 1000;
+    private static final int TRACK_ID = 1;
+
+    private final File file;
+    private final FileChannel channel;
+    private final long fragmentMs;
+    private final int defaultDurationMs;
+    private final List<byte[]> samples = new ArrayList<>();
+    private final List<Long> sampleTimes = new ArrayList<>();
+    private long position;
+    private int sequence;
+    private long firstTimeMs = -1;
+    private long lastDecodeTime;
+
+    FragmentedMp4Writer(File file, int width, int height, int fps, long fragmentMs) throws IOException {
+        this.file = file;
+        this.fragmentMs = fragmentMs;
+        this.defaultDurationMs = Math.max(1, 1000 / Math.max(1, fps));
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        Box init = new Box();
+        init.start("ftyp").fourcc("iso6").putInt(0).fourcc("iso6").fourcc("iso5").fourcc("mp41").end();
+        init.start("moov");
+        init.start("mvhd").putInt(0).putInt(0).putInt(0).putInt(TIMESCALE).putInt(0)
+                .putInt(0x00010000).putShort(0x0100).putShort(0).putInt(0).putInt(0)
+                .matrix().zeros(24).putInt(TRACK_ID + 1).end();
+        init.start("trak");
+        init.start("tkhd").putInt(0x00000003).putInt(0).putInt(0).putInt(TRACK_ID).putInt(0).putInt(0)
+                .putInt(0).putInt(0).putShort(0).putShort(0).putShort(0).putShort(0)
+                .matrix().putInt(width << 16).putInt(height << 16).end();
+        init.start("mdia");
+        init.start("mdhd").putInt(0).putInt(0).putInt(0).putInt(TIMESCALE).putInt(0)
+                .putShort(0x55C4).putShort(0).end(); // 语言 und
+        init.start("hdlr").putInt(0).putInt(0).fourcc("vide").zeros(12).string("VideoHandler").end();
+        init.start("minf");
+        init.start("vmhd").putInt(0x00000001).zeros(8).end();
+        init.start("dinf").start("dref").putInt(0).putInt(1).start("url ").putInt(0x00000001).end().end().end();
+        init.start("stbl");
+        init.start("stsd").putInt(0).putInt(1);
+        init.start("jpeg").zeros(6).putShort(1).zeros(16).putShort(width).putShort(height)
+                .putInt(0x00480000).putInt(0x00480000).putInt(0).putShort(1).zeros(32)
+                .putShort(0x0018).putShort(0xFFFF).end();
+        init.end();
+        init.start("stts").putInt(0).putInt(0).end();
+        init.start("stsc").putInt(0).putInt(0).end();
+        init.start("stsz").putInt(0).putInt(0).putInt(0).end();
+        init.start("stco").putInt(0).putInt(0).end();
+        init.end().end().end().end(); // stbl minf mdia trak
+        init.start("mvex").start("trex").putInt(0).putInt(TRACK_ID).putInt(1).putInt(0).putInt(0).putInt(0)
+                .end().end();
+        init.end(); // moov
+        write(init.toBuffer());
+    }
+
+    @Override
+    public void writeFrame(byte[] jpeg, int offset, int length, long captureTimeMs) throws IOException {
+        if (firstTimeMs < 0) {
+            firstTimeMs = captureTimeMs;
+        }
+        if (!samples.isEmpty() && captureTimeMs - sampleTimes.get(0) >= fragmentMs) {
+            flushFragment(captureTimeMs);
+        }
+        byte[] copy = new byte[length];
+        System.arraycopy(jpeg, offset, copy, 0, length);
+        samples.add(copy);
+        sampleTimes.add(captureTimeMs);
+    }
+
+    /**
+     * 写出当前片段。nextTimeMs 是下一帧的采集时间，用来算最后一个样本的时长；关闭时没有下一帧传 -1。
+     */
+    private void flushFragment(long nextTimeMs) throws IOException {
+        int count = samples.size();
+        long mdatBytes = 8;
+        for (byte[] sample : samples) {
+            mdatBytes += sample.length;
+        }
+        Box moof = new Box();
+        moof.start("moof");
+        moof.start("mfhd").putInt(0).putInt(++sequence).end();
+        moof.start("traf");
+        moof.start("tfhd").putInt(0x00020000).putInt(TRACK_ID).end(); // default-base-is-moof
+        moof.start("tfdt").putInt(0x01000000).putLong(lastDecodeTime).end();
+        moof.start("trun").putInt(0x00000301).putInt(count); // data-offset, 时长, 大小
+        int dataOffsetAt = moof.position();
+        moof.putInt(0);
+        for (int i = 0; i < count; i++) {
+            long next = i + 1 < count ? sampleTimes.get(i + 1) : nextTimeMs;
+            int duration = next < 0 ? defaultDurationMs : (int) Math.max(1, next - sampleTimes.get(i));
+            moof.putInt(duration).putInt(samples.get(i).length);
+            lastDecodeTime += duration;
+        }
+        moof.end().end().end(); // trun traf moof
+        ByteBuffer header = moof.toBuffer();
+        header.putInt(dataOffsetAt, header.remaining() + 8);
+        ByteBuffer[] buffers = new ByteBuffer[count + 2];
+        buffers[0] = header;
+        buffers[1] = ByteBuffer.allocate(8).putInt((int) mdatBytes).put("mdat".getBytes(StandardCharsets.US_ASCII)).flip();
+        for (int i = 0; i < count; i++) {
+            buffers[i + 2] = ByteBuffer.wrap(samples.get(i));
+        }
+        long total = header.remaining() + mdatBytes;
+        for (long written = 0; written < total; ) {
+            channel.position(position + written);
+            written += channel.write(buffers);
+        }
+        position += total;
+        samples.clear();
+        sampleTimes.clear();
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    @Override
+    public long size() {
+        return position;
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!samples.isEmpty()) {
+                flushFragment(-1);
+            }
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /** 按顺序拼 box 的小工具，start/end 成对使用，end 时回填长度 */
+    private static final class Box {
+        private ByteBuffer buffer = ByteBuffer.allocate(1024);
+        private final List<Integer> starts = new ArrayList<>();
+
+        Box start(String type) {
+            starts.add(buffer.position());
+            return putInt(0).fourcc(type);
+        }
+
+        Box end() {
+            int start = starts.remove(starts.size() - 1);
+            buffer.putInt(start, buffer.position() - start);
+            return this;
+        }
+
+        int position() {
+            return buffer.position();
+        }
+
+        Box fourcc(String code) {
+            ensure(4);
+            buffer.put(code.getBytes(StandardCharsets.US_ASCII));
+            return this;
+        }
+
+        Box putInt(int value) {
+            ensure(4);
+            buffer.putInt(value);
+            return this;
+        }
+
+        Box putLong(long value) {
+            ensure(8);
+            buffer.putLong(value);
+            return this;
+        }
+
+        Box putShort(int value) {
+            ensure(2);
+            buffer.putShort((short) value);
+            return this;
+        }
+
+        Box zeros(int count) {
+            ensure(count);
+            buffer.put(new byte[count]);
+            return this;
+        }
+
+        /** 以 0 结尾的 UTF-8 字符串 */
+        Box string(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ensure(bytes.length + 1);
+            buffer.put(bytes).put((byte) 0);
+            return this;
+        }
+
+        /** 单位变换矩阵 */
+        Box matrix() {
+            return putInt(0x00010000).putInt(0).putInt(0)
+                    .putInt(0).putInt(0x00010000).putInt(0)
+                    .putInt(0).putInt(0).putInt(0x40000000);
+        }
+
+        private void ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+
+        ByteBuffer toBuffer() {
+            return buffer.duplicate().flip();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * 交给 {@link FrameSink} 的一帧完整 JPEG。
+ * <p>
+ * data 可能来自 {@link FrameBufferPool}，只在 {@link FrameSink#onFrame(Frame)} 调用期间有效；
+ * 需要保留的接收端必须自己复制 [offset, offset + length) 这一段（没有引用计数，不能跨接收端共享，
+ * 参见 {@link SlabAllocator}）。
+ */
+public final class Frame {
+
+    public final StreamInfo stream;
+    public final byte[] data;
+    public final int offset;
+    public final int length;
+    /** 采集时间 (epoch 毫秒)；实时帧没有携带时间，用接收时间代替 */
+    public final long captureTimeMs;
+    /** 是否是断线期间缓冲、重连后回传的历史帧 */
+    public final boolean backfill;
+
+    public Frame(StreamInfo stream, byte[] data, int offset, int length, long captureTimeMs, boolean backfill) {
+        this.stream = stream;
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+        this.captureTimeMs = captureTimeMs;
+        this.backfill = backfill;
+    }
+
+    /** 复制出独立的 JPEG 字节 */
+    public byte[] copyJpeg() {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        return copy;
+    }
+}
@@ -0,0 +1,654 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * 只追加的分段帧归档：每条流一个目录，帧按顺序写进大的预分配段文件，
+ * 每个段带一个内存映射的定长时间索引（见 {@link ArchiveSegment}），按时间查帧是 O(log n)。
+ * <pre>
+ * &lt;根目录&gt;/&lt;流标识&gt;/00000001.seg
+ *                     /00000001.idx
+ * </pre>
+ * 实时帧和回传的历史帧各写各的段，保证每个段内时间单调；段写满、超过最长时长或时间倒退时换新段。
+ * 换下来的段交给写盘线程，写完排队的帧后由它封存，{@link #append} 不等磁盘。
+ * 保留期清理（还没封存的段不删）删掉最后一帧早于保留期的段，以及超出每流容量上限的最旧的段。
+ * 换段时清理这条流；连接关闭时把它的写入段交给写盘线程封存并清理；另外每 {@link #RETENTION_CHECK_INTERVAL_MS}
+ * 由后台线程清理所有流，已经不再发帧的流也会按期删掉。
+ * 启动时并行打开已有的段，崩溃留下的未封存段按检查点恢复（见 {@link ArchiveSegment}）。
+ * <p>
+ * 写入是异步的：{@link #append} 只在段里预留位置、把帧放进 {@link GroupCommitWriter} 的队列，
+ * 由写盘线程把所有流的帧成批写出、按组提交 fsync；帧写完以后才查得到。队列满时丢帧并计数（{@link #getDroppedFrames}）。
+ * <p>
+ * 用法（自测）: java FrameArchive --selftest
+ */
+public class FrameArchive implements FrameSink, Closeable {
+
+    public static final long DEFAULT_SEGMENT_BYTES = 256L * 1024 * 1024;
+    public static final long DEFAULT_SEGMENT_DURATION_MS = 10L * 60 * 1000;
+    /** 30 fps 下 10 分钟是 18000 帧，留足余量 */
+    private static final int DEFAULT_INDEX_CAPACITY = 65536;
+    static final long RETENTION_CHECK_INTERVAL_MS = 60_000;
+
+    private final File rootDir;
+    private final long segmentBytes;
+    private final long segmentDurationMs;
+    private final int indexCapacity;
+    private final long retentionMs;
+    private final long maxBytesPerStream;
+    private final Map<String, StreamArchive> streams = new ConcurrentHashMap<>();
+    private final GroupCommitWriter writer;
+    /** 定时清理线程，没有配置保留期和容量上限时为 null */
+    private final Thread retentionThread;
+
+    /**
+     * @param retentionMs       每条流保留多久的帧，0 表示不按时间清理
+     * @param maxBytesPerStream 每条流最多占用多少字节，0 表示不限
+     */
+    public FrameArchive(File rootDir, long segmentBytes, long segmentDurationMs, long retentionMs, long maxBytesPerStream) {
+        this(rootDir, segmentBytes, segmentDurationMs, retentionMs, maxBytesPerStream,
+                GroupCommitWriter.DEFAULT_SYNC_INTERVAL_MS, GroupCommitWriter.DEFAULT_SYNC_BYTES,
+                GroupCommitWriter.DEFAULT_MAX_QUEUE_BYTES);
+    }
+
+    /**
+     * @param syncIntervalMs 写盘线程距上次 fsync 多久后再同步，0 表示不按时间
+     * @param syncBytes      写入多少字节后同步，0 表示不按字节数；两个都为 0 时只在封存段时同步
+     * @param maxQueueBytes  写盘队列上限，超过后丢帧
+     */
+    public FrameArchive(File rootDir, long segmentBytes, long segmentDurationMs, long retentionMs, long maxBytesPerStream,
+                        long syncIntervalMs, long syncBytes, long maxQueueBytes) {
+        this(rootDir, segmentBytes, segmentDurationMs, DEFAULT_INDEX_CAPACITY, retentionMs, maxBytesPerStream,
+                syncIntervalMs, syncBytes, maxQueueBytes);
+    }
+
+    FrameArchive(File rootDir, long segmentBytes, long segmentDurationMs, int indexCapacity,
+                 long retentionMs, long maxBytesPerStream, long syncIntervalMs, long syncBytes, long maxQueueBytes) {
+        this.rootDir = rootDir;
+        this.segmentBytes = segmentBytes;
+        this.segmentDurationMs = segmentDurationMs;
+        this.indexCapacity = indexCapacity;
+        this.retentionMs = retentionMs;
+        this.maxBytesPerStream = maxBytesPerStream;
+        openExisting();
+        this.writer = new GroupCommitWriter("archive-writer", syncIntervalMs, syncBytes, maxQueueBytes);
+        if (retentionMs > 0 || maxBytesPerStream > 0) {
+            retentionThread = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(RETENTION_CHECK_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    applyRetention(System.currentTimeMillis());
+                }
+            }, "archive-retention");
+            retentionThread.setDaemon(true);
+            retentionThread.setPriority(Thread.MIN_PRIORITY);
+            retentionThread.start();
+        } else {
+            retentionThread = null;
+        }
+    }
+
+    /**
+     * 启动时的恢复过程：所有流的所有段交给一个 ForkJoin 池并行打开。
+     * 已封存的段只读文件头；未封存的段从检查点往后校验、截断残缺帧、补齐索引；丢失的索引从头重建。
+     */
+    private void openExisting() {
+        File[] dirs = rootDir.listFiles(File::isDirectory);
+        if (dirs == null || dirs.length == 0) return;
+        long start = System.nanoTime();
+        List<StreamArchive> opened = new ArrayList<>();
+        List<Callable<ArchiveSegment>> tasks = new ArrayList<>();
+        List<StreamArchive> owners = new ArrayList<>();
+        for (File dir : dirs) {
+            StreamArchive stream = new StreamArchive(this, dir);
+            for (int number : segmentNumbers(dir)) {
+                tasks.add(() -> ArchiveSegment.open(dir, number));
+                owners.add(stream);
+                stream.nextNumber = number + 1;
+            }
+            opened.add(stream);
+        }
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        int segmentCount = 0;
+        int recoveredSegments = 0;
+        int rebuiltIndexes = 0;
+        long addedFrames = 0;
+        long droppedFrames = 0;
+        try {
+            List<Future<ArchiveSegment>> results = pool.invokeAll(tasks);
+            for (int i = 0; i < results.size(); i++) {
+                ArchiveSegment segment;
+                try {
+                    segment = results.get(i).get();
+                } catch (ExecutionException e) {
+                    System.err.println("跳过损坏的归档段 (" + owners.get(i).dir.getName() + "): " + e.getCause().getMessage());
+                    continue;
+                }
+                if (segment.getCount() == 0) {
+                    deleteEmpty(segment); // 刚建好还没写入就崩溃的段
+                    continue;
+                }
+                owners.get(i).segments.add(segment);
+                segmentCount++;
+                int recovered = segment.getRecoveredFrames();
+                if (recovered != 0 || segment.isIndexRebuilt()) recoveredSegments++;
+                if (segment.isIndexRebuilt()) rebuiltIndexes++;
+                if (recovered > 0) addedFrames += recovered;
+                if (recovered < 0) droppedFrames -= recovered;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdown();
+        }
+        for (StreamArchive stream : opened) {
+            streams.put(stream.dir.getName(), stream);
+        }
+        System.out.printf("帧归档: %s, %d 条流, %d 个段, 恢复 %d 个段 (重建索引 %d 个, 补回 %d 帧, 截掉 %d 帧), 用时 %d ms\n",
+                rootDir, opened.size(), segmentCount, recoveredSegments, rebuiltIndexes, addedFrames, droppedFrames,
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static void deleteEmpty(ArchiveSegment segment) {
+        try {
+            segment.delete();
+        } catch (IOException e) {
+            System.err.println("清理空归档段失败 (" + segment.dataFile + "): " + e.getMessage());
+        }
+    }
+
+    /** 目录里的段号（数据文件或索引文件任一存在），从小到大 */
+    private static List<Integer> segmentNumbers(File dir) {
+        Set<Integer> numbers = new TreeSet<>();
+        String[] names = dir.list((d, name) -> name.endsWith(".seg") || name.endsWith(".idx"));
+        if (names != null) {
+            for (String name : names) {
+                try {
+                    numbers.add(Integer.parseInt(name.substring(0, name.length() - 4)));
+                } catch (NumberFormatException e) {
+                    // 不是归档文件
+                }
+            }
+        }
+        return new ArrayList<>(numbers);
+    }
+
+    /** 查询结果：一帧 JPEG 和它的采集时间 */
+    public static final class ArchivedFrame {
+        public final String streamKey;
+        public final long captureTimeMs;
+        public final byte[] jpeg;
+
+        ArchivedFrame(String streamKey, long captureTimeMs, byte[] jpeg) {
+            this.streamKey = streamKey;
+            this.captureTimeMs = captureTimeMs;
+            this.jpeg = jpeg;
+        }
+    }
+
+    @Override
+    public void onFrame(Frame frame) throws IOException {
+        append(frame.stream.key(), frame.captureTimeMs, frame.backfill, frame.data, frame.offset, frame.length);
+    }
+
+    /** 连接关闭：这条流的写入段交给写盘线程封存，再清理一次；封存完的段由下一次定时清理处理 */
+    @Override
+    public void onStreamClosed(StreamInfo info) {
+        StreamArchive stream = streams.get(info.key());
+        if (stream == null) return;
+        try {
+            stream.onClosed(System.currentTimeMillis());
+        } catch (IOException e) {
+            System.err.println("关闭流时整理归档出错 (" + info.key() + "): " + e.getMessage());
+        }
+    }
+
+    /** 对所有流做一次保留期清理，wallNowMs 是本机时间 */
+    void applyRetention(long wallNowMs) {
+        for (Map.Entry<String, StreamArchive> entry : streams.entrySet()) {
+            try {
+                entry.getValue().expire(wallNowMs);
+            } catch (IOException e) {
+                System.err.println("归档保留期清理出错 (" + entry.getKey() + "): " + e.getMessage());
+            }
+        }
+    }
+
+    /** 帧数据在返回前已经复制进写盘队列，调用方可以立即复用 data */
+    public void append(String streamKey, long captureTimeMs, boolean backfill, byte[] data, int offset, int length)
+            throws IOException {
+        StreamArchive stream = streams.computeIfAbsent(streamKey, key -> new StreamArchive(this, new File(rootDir, key)));
+        stream.append(captureTimeMs, backfill, data, offset, length);
+    }
+
+    /**
+     * 取采集时间不晚于 timeMs 的最近一帧。
+     *
+     * @return 没有这样的帧时返回 null
+     */
+    public ArchivedFrame find(String streamKey, long timeMs) throws IOException {
+        StreamArchive stream = streams.get(streamKey);
+        return stream == null ? null : stream.find(streamKey, timeMs);
+    }
+
+    /** 归档里的流标识 */
+    public List<String> getStreamKeys() {
+        List<String> keys = new ArrayList<>(streams.keySet());
+        Collections.sort(keys);
+        return keys;
+    }
+
+    /** 这条流已封存的段，按段号排列；封存的段不再改动，但随时可能被保留期清理删掉 */
+    List<ArchiveSegment> sealedSegments(String streamKey) {
+        StreamArchive stream = streams.get(streamKey);
+        return stream == null ? Collections.emptyList() : stream.sealedSegments();
+    }
+
+    public File getRootDir() {
+        return rootDir;
+    }
+
+    /** 写盘队列满而丢掉的帧数 */
+    public long getDroppedFrames() {
+        return writer.getDroppedFrames();
+    }
+
+    /** 等写盘队列里当前的帧都写完（之后才查得到） */
+    void flush() throws InterruptedException {
+        writer.flush();
+    }
+
+    /** 先写完队列里的帧并同步，再封存各流的写入段 */
+    @Override
+    public void close() {
+        if (retentionThread != null) retentionThread.interrupt();
+        writer.close();
+        for (StreamArchive stream : streams.values()) {
+            stream.close();
+        }
+    }
+
+    /** 一条流的所有段；所有操作都锁住这个对象 */
+    private static final class StreamArchive {
+        private final FrameArchive archive;
+        private final File dir;
+        private final List<ArchiveSegment> segments = new ArrayList<>();
+        private ArchiveSegment liveWriter;
+        private ArchiveSegment backfillWriter;
+        private int nextNumber = 1;
+        /** 最近一帧实时帧的采集时间和收到它时的本机时间，定时清理按这条流自己的时钟推算现在 */
+        private long lastCaptureMs;
+        private long lastAppendWallMs;
+
+        StreamArchive(FrameArchive archive, File dir) {
+            this.archive = archive;
+            this.dir = dir;
+        }
+
+        synchronized void append(long timeMs, boolean backfill, byte[] data, int offset, int length) throws IOException {
+            ArchiveSegment writer = backfill ? backfillWriter : liveWriter;
+            if (writer == null || !writer.canAppend(timeMs, length, archive.segmentBytes, archive.segmentDurationMs)) {
+                if (writer != null) retire(writer);
+                if (!dir.exists() && !dir.mkdirs()) {
+                    throw new IOException("无法创建归档目录: " + dir);
+                }
+                long bytes = Math.max(archive.segmentBytes, ArchiveSegment.FRAME_HEADER_BYTES + (long) length);
+                writer = ArchiveSegment.create(dir, nextNumber++, backfill, bytes, archive.indexCapacity);
+                segments.add(writer);
+                if (backfill) {
+                    backfillWriter = writer;
+                } else {
+                    liveWriter = writer;
+                }
+                applyRetention(timeMs);
+            }
+            archive.writer.submit(writer, timeMs, data, offset, length); // 队列满时丢掉，由写盘线程计数和报告
+            if (!backfill) {
+                lastCaptureMs = timeMs;
+                lastAppendWallMs = System.currentTimeMillis();
+            }
+        }
+
+        /** 换下来的段交给写盘线程封存；关闭过程中写盘线程不再接手，就地等写完再封存 */
+        private void retire(ArchiveSegment writer) throws IOException {
+            if (!archive.writer.sealWhenWritten(writer)) {
+                archive.writer.awaitWritten(writer);
+                writer.seal();
+            }
+        }
+
+        synchronized void onClosed(long wallNowMs) throws IOException {
+            if (liveWriter != null) retire(liveWriter);
+            if (backfillWriter != null) retire(backfillWriter);
+            liveWriter = null;
+            backfillWriter = null;
+            expire(wallNowMs);
+        }
+
+        /** 按这条流的时钟清理：手机时钟和本机不一致时，不会因为偏差多删或少删 */
+        synchronized void expire(long wallNowMs) throws IOException {
+            applyRetention(lastAppendWallMs == 0 ? wallNowMs : lastCaptureMs + (wallNowMs - lastAppendWallMs));
+        }
+
+        synchronized ArchivedFrame find(String streamKey, long timeMs) throws IOException {
+            ArchiveSegment best = null;
+            int bestIndex = -1;
+            long bestTime = Long.MIN_VALUE;
+            for (ArchiveSegment segment : segments) {
+                if (segment.getCount() == 0 || segment.getFirstTimeMs() > timeMs || segment.getLastTimeMs() < bestTime) {
+                    continue;
+                }
+                int i = segment.floorIndex(timeMs);
+                if (i >= 0 && segment.timeAt(i) >= bestTime) {
+                    best = segment;
+                    bestIndex = i;
+                    bestTime = segment.timeAt(i);
+                }
+            }
+            return best == null ? null : new ArchivedFrame(streamKey, bestTime, best.read(bestIndex));
+        }
+
+        synchronized List<ArchiveSegment> sealedSegments() {
+            List<ArchiveSegment> sealed = new ArrayList<>();
+            for (ArchiveSegment segment : segments) {
+                if (segment.isSealed() && segment.getCount() > 0) sealed.add(segment);
+            }
+            return sealed;
+        }
+
+        /** 删掉过期的和超出容量的已封存段，从最旧的开始 */
+        private void applyRetention(long nowMs) throws IOException {
+            long total = 0;
+            for (ArchiveSegment segment : segments) {
+                total += segment.getDataBytes();
+            }
+            for (int i = 0; i < segments.size(); ) {
+                ArchiveSegment segment = segments.get(i);
+                boolean expired = archive.retentionMs > 0 && segment.getCount() > 0
+                        && segment.getLastTimeMs() < nowMs - archive.retentionMs;
+                boolean overBudget = archive.maxBytesPerStream > 0 && total > archive.maxBytesPerStream;
+                if (!segment.isSealed() || !(expired || overBudget)) {
+                    i++;
+                    continue;
+                }
+                total -= segment.getDataBytes();
+                segments.remove(i);
+                if (!segment.delete()) {
+                    System.err.println("删除归档段失败: " + segment.dataFile);
+                }
+            }
+        }
+
+        synchronized void close() {
+            for (ArchiveSegment writer : new ArchiveSegment[]{liveWriter, backfillWriter}) {
+                if (writer == null) continue;
+                try {
+                    archive.writer.awaitWritten(writer);
+                    writer.seal();
+                } catch (IOException e) {
+                    System.err.println("封存归档段失败 (" + writer.dataFile + "): " + e.getMessage());
+                }
+            }
+            liveWriter = null;
+            backfillWriter = null;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--selftest".equals(args[0])) {
+            System.exit(selfTest() ? 0 : 1);
+            return;
+        }
+        System.out.println("用法: java FrameArchive --selftest");
+    }
+
+    /**
+     * 自测：两条流各写 3000 帧（小段容量，强制多次换段），夹一段回传帧；
+     * 随机时间点查询与内存中的参考结果比对，关闭后重新打开再查一遍，最后检查容量清理。
+     */
+    static boolean selfTest() throws Exception {
+        File dir = java.nio.file.Files.createTempDirectory("frame-archive").toFile();
+        try {
+            long start = 1_700_000_000_000L;
+            List<long[]> reference = new ArrayList<>(); // {流号, 时间, 内容标记}
+            // 每写 256 KB 组提交一次，只按字节数同步，模拟崩溃前后写盘线程不会再动文件
+            FrameArchive archive = new FrameArchive(dir, 64 * 1024, 60_000, 500, 0, 0, 0, 256 * 1024, 1 << 30);
+            for (int i = 0; i < 3000; i++) {
+                for (int s = 0; s < 2; s++) {
+                    long time = start + i * 33L;
+                    archive.append("stream-" + s, time, false, fakeJpeg(s, i), 0, fakeJpeg(s, i).length);
+                    reference.add(new long[]{s, time, i});
+                }
+                if (i == 1500) {
+                    // 回传断线期间的 100 帧，时间早于当前实时帧
+                    for (int b = 0; b < 100; b++) {
+                        long time = start + 400_000L + b * 33L + 1;
+                        byte[] jpeg = fakeJpeg(0, 100_000 + b);
+                        archive.append("stream-0", time, true, jpeg, 0, jpeg.length);
+                        reference.add(new long[]{0, time, 100_000 + b});
+                    }
+                }
+            }
+            archive.flush();
+            boolean ok = checkLookups(archive, reference, start, new Random(1));
+            // 换下来的段由写盘线程封存：flush 之后只有当前写入段没封存
+            File[] segmentFiles = new File(dir, "stream-1").listFiles((d, name) -> name.endsWith(".seg"));
+            int sealedCount = archive.sealedSegments("stream-1").size();
+            if (segmentFiles == null || segmentFiles.length < 3 || sealedCount != segmentFiles.length - 1) {
+                System.err.println("换下来的段没有全部封存: " + sealedCount + "/" + (segmentFiles == null ? 0 : segmentFiles.length));
+                ok = false;
+            }
+            // 模拟崩溃：不关闭 archive，直接破坏文件后重新打开
+            long tornTime = start + 3000 * 33L + 5000;
+            simulateCrash(dir, tornTime);
+            FrameArchive reopened = new FrameArchive(dir, 64 * 1024, 60_000, 500, 0, 0, 0, 256 * 1024, 1 << 30);
+            ok &= checkLookups(reopened, reference, start, new Random(2));
+            ArchivedFrame last = reopened.find("stream-0", tornTime);
+            if (last == null || last.captureTimeMs != start + 2999 * 33L) {
+                System.err.println("残缺帧没有被截掉");
+                ok = false;
+            }
+            reopened.close();
+            FrameArchive again = new FrameArchive(dir, 64 * 1024, 60_000, 500, 0, 0, 0, 256 * 1024, 1 << 30);
+            ok &= checkLookups(again, reference, start, new Random(3));
+            again.close();
+
+            FrameArchive trimmed = new FrameArchive(dir, 64 * 1024, 60_000, 500, 0, 256 * 1024, 0, 256 * 1024, 1 << 30);
+            byte[] jpeg = fakeJpeg(1, 999_999);
+            trimmed.append("stream-1", start + 10_000_000L, false, jpeg, 0, jpeg.length);
+            trimmed.close();
+            long bytes = 0;
+            File[] files = new File(dir, "stream-1").listFiles((d, name) -> name.endsWith(".seg"));
+            for (File file : files == null ? new File[0] : files) {
+                bytes += file.length();
+            }
+            boolean trimmedOk = bytes <= 256 * 1024 + 64 * 1024;
+            ok &= trimmedOk;
+
+            // 写盘队列容量为 1 字节：每一帧都被丢掉并计数，段里一帧都没有
+            FrameArchive full = new FrameArchive(new File(dir, "full"), 64 * 1024, 60_000, 500, 0, 0, 0, 0, 1);
+            for (int i = 0; i < 10; i++) {
+                full.append("stream-0", start + i, false, jpeg, 0, jpeg.length);
+            }
+            full.flush();
+            if (full.getDroppedFrames() != 10 || full.find("stream-0", start + 100) != null) {
+                System.err.println("写盘队列满时没有丢帧: " + full.getDroppedFrames());
+                ok = false;
+            }
+            full.close();
+            ok &= checkFailedSegment(new File(dir, "failed"), start);
+            ok &= checkRetentionWithoutRollover(new File(dir, "idle"), start);
+            System.out.printf("自测%s: %d 帧, 容量清理后 stream-1 占用 %d KB\n", ok ? "通过" : "失败", reference.size(), bytes / 1024);
+            return ok;
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    /**
+     * 一次写入失败后段不再接收帧，已提交的帧首尾相接，丢了索引也能从头扫描找回；
+     * 删除后正在查询的一方还能按下标读时间，读帧数据得到 IOException。
+     */
+    private static boolean checkFailedSegment(File dir, long start) throws IOException {
+        if (!dir.mkdirs()) throw new IOException("无法创建目录: " + dir);
+        byte[] jpeg = fakeJpeg(0, 1);
+        ArchiveSegment segment = ArchiveSegment.create(dir, 1, false, 64 * 1024, 100);
+        long position = segment.reserve(start, jpeg.length);
+        segment.writeData(position, new ByteBuffer[]{frameBuffer(start, jpeg)});
+        segment.commit(start, position, jpeg.length);
+        long next = segment.reserve(start + 1, jpeg.length);
+        boolean failed = false;
+        try {
+            segment.writeData(Long.MAX_VALUE / 2, new ByteBuffer[]{frameBuffer(start + 1, jpeg)}); // 越过文件大小上限
+        } catch (IOException e) {
+            failed = true;
+        }
+        boolean refused = false;
+        try {
+            segment.writeData(next, new ByteBuffer[]{frameBuffer(start + 1, jpeg)});
+        } catch (IOException e) {
+            refused = true;
+        }
+        boolean ok = failed && refused && segment.isWriteFailed()
+                && !segment.canAppend(start + 2, jpeg.length, 64 * 1024, 60_000);
+        segment.seal();
+        new File(dir, "00000001.idx").delete();
+        ArchiveSegment rebuilt = ArchiveSegment.open(dir, 1);
+        ok &= rebuilt.getCount() == 1 && rebuilt.getDataBytes() == ArchiveSegment.FRAME_HEADER_BYTES + jpeg.length;
+        rebuilt.delete();
+        ok &= rebuilt.floorIndex(start) == 0 && rebuilt.timeAt(0) == start;
+        try {
+            rebuilt.read(0);
+            ok = false;
+        } catch (IOException expected) {
+            // 预期
+        }
+        if (!ok) {
+            System.err.println("写入失败的段处理不对: 失败 " + failed + ", 拒绝后续写入 " + refused + ", 重建后 " + rebuilt.getCount() + " 帧");
+        }
+        return ok;
+    }
+
+    /** 流关闭后不会再换段，写入段也要封存，并且到期后由定时清理删掉 */
+    private static boolean checkRetentionWithoutRollover(File dir, long start) throws Exception {
+        FrameArchive idle = new FrameArchive(dir, 64 * 1024, 60_000, 500, 10_000, 0, 0, 256 * 1024, 1 << 30);
+        StreamInfo info = StreamInfo.unidentified(1, "10.0.0.1:5000");
+        for (int i = 0; i < 10; i++) {
+            byte[] jpeg = fakeJpeg(0, i);
+            idle.onFrame(new Frame(info, jpeg, 0, jpeg.length, start + i * 100L, false));
+        }
+        idle.onStreamClosed(info);
+        idle.flush();
+        boolean ok = idle.sealedSegments(info.key()).size() == 1;
+        long now = System.currentTimeMillis();
+        idle.applyRetention(now);
+        ok &= idle.find(info.key(), start + 900) != null;
+        idle.applyRetention(now + 20_000);
+        File[] left = new File(dir, info.key()).listFiles((d, name) -> name.endsWith(".seg"));
+        ok &= idle.find(info.key(), start + 900) == null && left != null && left.length == 0;
+        idle.close();
+        if (!ok) {
+            System.err.println("流关闭后没有按保留期清理: 剩 " + (left == null ? 0 : left.length) + " 个段");
+        }
+        return ok;
+    }
+
+    private static ByteBuffer frameBuffer(long timeMs, byte[] jpeg) {
+        ByteBuffer buffer = ByteBuffer.allocate(ArchiveSegment.FRAME_HEADER_BYTES + jpeg.length);
+        buffer.putInt(ArchiveSegment.FRAME_MAGIC).putLong(timeMs).putInt(jpeg.length).put(jpeg);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * stream-0 的写入段末尾写半个帧，stream-1 的写入段把索引记录数清零（相当于索引没来得及落盘），
+     * 再删掉 stream-0 第一个段的索引文件。
+     */
+    private static void simulateCrash(File dir, long tornTime) throws IOException {
+        for (int s = 0; s < 2; s++) {
+            File streamDir = new File(dir, "stream-" + s);
+            List<Integer> numbers = segmentNumbers(streamDir);
+            int live = numbers.get(numbers.size() - 1);
+            File indexFile = new File(streamDir, String.format("%08d.idx", live));
+            try (java.io.RandomAccessFile index = new java.io.RandomAccessFile(indexFile, "rw")) {
+                if (s == 0) {
+                    index.seek(16);
+                    long dataEnd = index.readLong();
+                    try (java.io.RandomAccessFile data = new java.io.RandomAccessFile(
+                            new File(streamDir, String.format("%08d.seg", live)), "rw")) {
+                        data.seek(dataEnd);
+                        data.writeInt(ArchiveSegment.FRAME_MAGIC);
+                        data.writeLong(tornTime);
+                        data.writeInt(5000);
+                        data.write(fakeJpeg(0, 7), 0, 100);
+                    }
+                } else {
+                    index.seek(8);
+                    index.writeInt(0);
+                    index.writeInt(0);
+                }
+            }
+        }
+        new File(dir, "stream-0/00000001.idx").delete();
+    }
+
+    private static boolean checkLookups(FrameArchive archive, List<long[]> reference, long start, Random random)
+            throws IOException {
+        for (int n = 0; n < 2000; n++) {
+            int stream = random.nextInt(2);
+            long query = start - 100 + (long) (random.nextDouble() * 3000 * 33 + 200);
+            long[] expected = null;
+            for (long[] entry : reference) {
+                if (entry[0] == stream && entry[1] <= query && (expected == null || entry[1] >= expected[1])) {
+                    expected = entry;
+                }
+            }
+            ArchivedFrame found = archive.find("stream-" + stream, query);
+            if (expected == null ? found != null
+                    : found == null || found.captureTimeMs != expected[1]
+                    || !java.util.Arrays.equals(found.jpeg, fakeJpeg(stream, (int) expected[2]))) {
+                System.err.println("查询结果不符: stream-" + stream + " @" + query);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** 带可识别内容的假 JPEG（SOI ... EOI），长度随序号变化 */
+    private static byte[] fakeJpeg(int stream, int sequence) {
+        byte[] jpeg = new byte[200 + sequence % 300];
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        for (int i = 2; i < jpeg.length - 2; i++) {
+            jpeg[i] = (byte) (stream * 31 + sequence * 7 + i);
+        }
+        jpeg[jpeg.length - 2] = (byte) 0xFF;
+        jpeg[jpeg.length - 1] = (byte) 0xD9;
+        return jpeg;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
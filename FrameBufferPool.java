@@ -0,0 +1,82 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按 2 的幂分级的帧缓冲池，避免每收一帧就分配一个新的 byte[]。
+ * <p>
+ * 取出的数组长度是不小于请求长度的最小 2 的幂；用完后归还，
+ * 每一级最多缓存 {@link #MAX_PER_CLASS} 个，多余的交给 GC。
+ */
+public class FrameBufferPool {
+
+    private static final int MIN_CLASS_BITS = 12; // 4 KB
+    private static final int MAX_CLASS_BITS = 24; // 16 MB
+    private static final int MAX_PER_CLASS = 32;
+
+    private final List<ConcurrentLinkedQueue<byte[]>> classes = new ArrayList<>();
+    private final AtomicInteger[] classSizes;
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+
+    public FrameBufferPool() {
+        int count = MAX_CLASS_BITS - MIN_CLASS_BITS + 1;
+        classSizes = new AtomicInteger[count];
+        for (int i = 0; i < count; i++) {
+            classes.add(new ConcurrentLinkedQueue<>());
+            classSizes[i] = new AtomicInteger();
+        }
+    }
+
+    /** 取一个长度至少为 minLength 的缓冲 */
+    public byte[] acquire(int minLength) {
+        int index = classIndex(minLength);
+        if (index < 0) {
+            allocations.incrementAndGet();
+            return new byte[minLength];
+        }
+        byte[] buffer = classes.get(index).poll();
+        if (buffer != null) {
+            classSizes[index].decrementAndGet();
+            reuses.incrementAndGet();
+            return buffer;
+        }
+        allocations.incrementAndGet();
+        return new byte[1 << (index + MIN_CLASS_BITS)];
+    }
+
+    /** 归还缓冲；不是本池规格的数组直接丢弃 */
+    public void release(byte[] buffer) {
+        if (buffer == null) return;
+        int index = classIndex(buffer.length);
+        if (index < 0 || buffer.length != 1 << (index + MIN_CLASS_BITS)) return;
+        if (classSizes[index].incrementAndGet() > MAX_PER_CLASS) {
+            classSizes[index].decrementAndGet();
+            return;
+        }
+        classes.get(index).offer(buffer);
+    }
+
+    /** acquire(minLength) 给出的数组长度，用于按实际占用记账 */
+    public static int capacityFor(int minLength) {
+        int index = classIndex(minLength);
+        return index < 0 ? minLength : 1 << (index + MIN_CLASS_BITS);
+    }
+
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    public long getReuses() {
+        return reuses.get();
+    }
+
+    /** 长度对应的级别下标，超过最大级别返回 -1 */
+    private static int classIndex(int length) {
+        if (length > 1 << MAX_CLASS_BITS) return -1;
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, length) - 1);
+        return Math.max(bits, MIN_CLASS_BITS) - MIN_CLASS_BITS;
+    }
+}
@@ -0,0 +1,298 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 帧分发压测：{@link FrameDispatcher} 的环形缓冲和每个消费者一个 ArrayBlockingQueue 的做法对比。
+ * <p>
+ * 两个场景：
+ * <ol>
+ * <li>吞吐：接收线程全速放帧，N 个消费者都很快（只读几个字节），两边都不丢帧（环用 WAIT，队列用 put），
+ * 报告每秒帧数、放帧到消费者收到的延迟和接收线程每帧分配的字节数</li>
+ * <li>慢消费者：按固定帧率放帧，其中一个消费者每帧要处理 slowMs，报告接收线程放一帧最长花多久、
+ * 快消费者的延迟和慢消费者丢了多少帧（环用 SKIP，队列分别用 put 和 offer）</li>
+ * </ol>
+ * 这里没有 JMH，用普通的计时循环，先跑一轮预热；结果只用来看数量级。
+ * <p>
+ * 用法: java FrameDispatchBenchmark [--consumers=3] [--frames=200000] [--size=65536] [--fps=300] [--slow-ms=20] [--seconds=5]
+ */
+public class FrameDispatchBenchmark {
+
+    private static final int CAPACITY = 64;
+
+    public static void main(String[] args) throws Exception {
+        int consumers = 3;
+        int frames = 200_000;
+        int size = 64 * 1024;
+        int fps = 300;
+        int slowMs = 20;
+        int seconds = 5;
+        for (String arg : args) {
+            if (arg.startsWith("--consumers=")) {
+                consumers = Integer.parseInt(arg.substring("--consumers=".length()));
+            } else if (arg.startsWith("--frames=")) {
+                frames = Integer.parseInt(arg.substring("--frames=".length()));
+            } else if (arg.startsWith("--size=")) {
+                size = Integer.parseInt(arg.substring("--size=".length()));
+            } else if (arg.startsWith("--fps=")) {
+                fps = Integer.parseInt(arg.substring("--fps=".length()));
+            } else if (arg.startsWith("--slow-ms=")) {
+                slowMs = Integer.parseInt(arg.substring("--slow-ms=".length()));
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Integer.parseInt(arg.substring("--seconds=".length()));
+            } else {
+                System.out.println("用法: java FrameDispatchBenchmark [--consumers=3] [--frames=200000] [--size=65536] [--fps=300] [--slow-ms=20] [--seconds=5]");
+                return;
+            }
+        }
+        byte[] data = new byte[size];
+        System.out.printf("%d 个消费者, 每帧 %d KB, 每条流 %d 个槽位 / 队列长度 %d\n", consumers, size / 1024, CAPACITY, CAPACITY);
+        System.out.println();
+        System.out.println("吞吐（全速放帧，不丢帧）:");
+        throughput(new RingFanout(consumers, FrameDispatcher.Policy.WAIT, 0), data, frames / 4); // 预热
+        throughput(new QueueFanout(consumers, true, 0), data, frames / 4);
+        throughput(new RingFanout(consumers, FrameDispatcher.Policy.WAIT, 0), data, frames);
+        throughput(new QueueFanout(consumers, true, 0), data, frames);
+        System.out.println();
+        System.out.printf("慢消费者（%d fps, 其中 1 个消费者每帧 %d ms）:\n", fps, slowMs);
+        slowConsumer(new RingFanout(consumers, FrameDispatcher.Policy.SKIP, slowMs), data, fps, seconds);
+        slowConsumer(new QueueFanout(consumers, true, slowMs), data, fps, seconds);
+        slowConsumer(new QueueFanout(consumers, false, slowMs), data, fps, seconds);
+        System.out.println();
+        System.out.println("JVM: " + ManagementFactory.getRuntimeMXBean().getVmVersion()
+                + ", " + Runtime.getRuntime().availableProcessors() + " CPU");
+    }
+
+    private static void throughput(Fanout fanout, byte[] data, int frames) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        StreamInfo stream = StreamInfo.unidentified(1, "bench");
+        fanout.open(stream);
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            fanout.publish(new Frame(stream, data, 0, data.length, System.nanoTime(), false));
+        }
+        fanout.awaitDrained(frames);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        fanout.close(stream);
+        if (frames < 1000) return;
+        long[] latencies = fanout.latencies();
+        System.out.printf("  %-26s %9.0f 帧/秒, 延迟 p50 %6.1f µs, p99 %8.1f µs; 接收线程每帧分配 %d 字节\n", fanout.name(),
+                frames / elapsed, latencies[latencies.length / 2] / 1e3, latencies[(int) (latencies.length * 0.99)] / 1e3,
+                allocated / frames);
+    }
+
+    private static void slowConsumer(Fanout fanout, byte[] data, int fps, int seconds) throws Exception {
+        StreamInfo stream = StreamInfo.unidentified(1, "bench");
+        fanout.open(stream);
+        long intervalNanos = 1_000_000_000L / fps;
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        long maxPublish = 0;
+        int published = 0;
+        for (long next = start; next < end; next += intervalNanos) {
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) Thread.sleep(sleep / 1_000_000, (int) (sleep % 1_000_000));
+            long before = System.nanoTime();
+            fanout.publish(new Frame(stream, data, 0, data.length, before, false));
+            maxPublish = Math.max(maxPublish, System.nanoTime() - before);
+            published++;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long[] latencies = fanout.latencies();
+        long slowReceived = fanout.slowReceived();
+        fanout.close(stream); // 环的慢 stage 关闭前还要处理完环里剩下的帧，不算在放帧时间里
+        System.out.printf("  %-26s 放帧最长 %8.1f ms, 实际 %.0f fps; 快消费者延迟 p99 %8.1f µs; 慢消费者收到 %d/%d 帧\n",
+                fanout.name(), maxPublish / 1e6, published / elapsed,
+                latencies[(int) (latencies.length * 0.99)] / 1e3, slowReceived, published);
+    }
+
+    /** 两种分发方式的共同操作 */
+    private interface Fanout {
+        String name();
+
+        void open(StreamInfo stream);
+
+        void publish(Frame frame) throws InterruptedException;
+
+        void awaitDrained(long frames) throws InterruptedException;
+
+        /** 快消费者的延迟（纳秒，排好序） */
+        long[] latencies();
+
+        long slowReceived();
+
+        void close(StreamInfo stream) throws InterruptedException;
+    }
+
+    /** 基准里的消费者：读几个字节，记延迟（captureTimeMs 里放的是放帧时的 nanoTime）；慢消费者每帧再睡一会 */
+    private static final class BenchSink implements FrameSink {
+        final long sleepMs;
+        final AtomicLong received = new AtomicLong();
+        final long[] latencies = new long[1 << 20];
+        int checksum;
+
+        BenchSink(long sleepMs) {
+            this.sleepMs = sleepMs;
+        }
+
+        @Override
+        public void onFrame(Frame frame) throws InterruptedException {
+            long latency = System.nanoTime() - frame.captureTimeMs;
+            checksum += frame.data[frame.offset] + frame.data[frame.offset + frame.length - 1];
+            if (sleepMs > 0) Thread.sleep(sleepMs);
+            long count = received.getAndIncrement();
+            latencies[(int) (count & (latencies.length - 1))] = latency;
+        }
+
+        long[] sortedLatencies() {
+            int count = (int) Math.min(received.get(), latencies.length);
+            long[] copy = java.util.Arrays.copyOf(latencies, Math.max(1, count));
+            java.util.Arrays.sort(copy);
+            return copy;
+        }
+    }
+
+    private static final class RingFanout implements Fanout {
+        final FrameDispatcher dispatcher = new FrameDispatcher(CAPACITY);
+        final List<BenchSink> sinks = new ArrayList<>();
+        final FrameDispatcher.Policy policy;
+        final boolean hasSlow;
+
+        RingFanout(int consumers, FrameDispatcher.Policy policy, long slowMs) {
+            this.policy = policy;
+            this.hasSlow = slowMs > 0;
+            for (int i = 0; i < consumers; i++) {
+                BenchSink sink = new BenchSink(i == 0 ? slowMs : 0);
+                sinks.add(sink);
+                dispatcher.addStage("bench-" + i, sink, policy, 10_000);
+            }
+            dispatcher.start();
+        }
+
+        @Override
+        public String name() {
+            return "环形缓冲 (" + policy + ")";
+        }
+
+        @Override
+        public void open(StreamInfo stream) {
+            dispatcher.onStreamOpened(stream);
+        }
+
+        @Override
+        public void publish(Frame frame) {
+            dispatcher.onFrame(frame);
+        }
+
+        @Override
+        public void awaitDrained(long frames) throws InterruptedException {
+            for (BenchSink sink : sinks) {
+                while (sink.received.get() < frames) Thread.sleep(1);
+            }
+        }
+
+        @Override
+        public long[] latencies() {
+            return sinks.get(sinks.size() - 1).sortedLatencies();
+        }
+
+        @Override
+        public long slowReceived() {
+            return hasSlow ? sinks.get(0).received.get() : 0;
+        }
+
+        @Override
+        public void close(StreamInfo stream) {
+            dispatcher.onStreamClosed(stream);
+            dispatcher.close();
+        }
+    }
+
+    /** 每个消费者一个有界队列和一个线程；放帧时复制一次 JPEG，各队列共享这份复制 */
+    private static final class QueueFanout implements Fanout {
+        final List<BlockingQueue<Frame>> queues = new ArrayList<>();
+        final List<BenchSink> sinks = new ArrayList<>();
+        final List<Thread> threads = new ArrayList<>();
+        final boolean blocking;
+        final boolean hasSlow;
+        static final Frame STOP = new Frame(null, new byte[1], 0, 1, 0, false);
+
+        QueueFanout(int consumers, boolean blocking, long slowMs) {
+            this.blocking = blocking;
+            this.hasSlow = slowMs > 0;
+            for (int i = 0; i < consumers; i++) {
+                BlockingQueue<Frame> queue = new ArrayBlockingQueue<>(CAPACITY);
+                BenchSink sink = new BenchSink(i == 0 ? slowMs : 0);
+                queues.add(queue);
+                sinks.add(sink);
+                Thread thread = new Thread(() -> {
+                    try {
+                        while (true) {
+                            Frame frame = queue.take();
+                            if (frame == STOP) return;
+                            sink.onFrame(frame);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, "queue-" + i);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+        }
+
+        @Override
+        public String name() {
+            return "ArrayBlockingQueue (" + (blocking ? "put" : "offer") + ")";
+        }
+
+        @Override
+        public void open(StreamInfo stream) {
+        }
+
+        @Override
+        public void publish(Frame frame) throws InterruptedException {
+            Frame copy = new Frame(frame.stream, frame.copyJpeg(), 0, frame.length, frame.captureTimeMs, frame.backfill);
+            for (BlockingQueue<Frame> queue : queues) {
+                if (blocking) {
+                    queue.put(copy);
+                } else {
+                    queue.offer(copy);
+                }
+            }
+        }
+
+        @Override
+        public void awaitDrained(long frames) throws InterruptedException {
+            for (BenchSink sink : sinks) {
+                while (sink.received.get() < frames) Thread.sleep(1);
+            }
+        }
+
+        @Override
+        public long[] latencies() {
+            return sinks.get(sinks.size() - 1).sortedLatencies();
+        }
+
+        @Override
+        public long slowReceived() {
+            return hasSlow ? sinks.get(0).received.get() : 0;
+        }
+
+        @Override
+        public void close(StreamInfo stream) throws InterruptedException {
+            for (int i = 0; i < queues.size(); i++) {
+                queues.get(i).clear();
+                queues.get(i).put(STOP);
+                threads.get(i).join(TimeUnit.SECONDS.toMillis(10));
+            }
+        }
+    }
+}
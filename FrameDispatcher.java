@@ -0,0 +1,458 @@
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 把接收线程上的帧经每条流一个的单生产者多消费者环形缓冲（Disruptor 的做法）分发给多个 stage，
+ * 每个 stage 是一个普通的 {@link FrameSink}，在自己的线程上处理所有流的帧。
+ * <p>
+ * 环的槽位预先分配，槽位里的字节数组反复使用；每个 stage 在每个环上有自己的序号游标，没有共享队列，也没有锁。
+ * 接收线程只把帧复制进槽位、发布序号，不等任何 stage 处理完。stage 跟不上时按各自的策略：
+ * <ul>
+ * <li>{@link Policy#SKIP}：接收线程照常覆盖旧槽位，落后超过一圈的 stage 直接跳到最新的一圈，记跳过的帧数</li>
+ * <li>{@link Policy#WAIT}：接收线程覆盖这个 stage 还没处理的槽位前最多等 maxWaitMs，超时就不再等，该 stage 会跳过被覆盖的帧</li>
+ * </ul>
+ * stage 正在处理的槽位（被别人的读者占着）不会被就地改写：接收线程换一个新数组写进去，旧数组留给正在读的 stage。
+ * <p>
+ * 流的打开和关闭不占槽位：stage 第一次看到某个环时调用 onStreamOpened，处理完（或跳过）关闭前的最后一帧后调用
+ * onStreamClosed，所以跳帧的 stage 也不会漏掉关闭。所有 stage 都必须在 {@link #start()} 之前加好。
+ */
+public class FrameDispatcher implements FrameSink, Closeable {
+
+    public static final int DEFAULT_CAPACITY = 64;
+    /** stage 一次在一个环上最多连续处理的帧数，处理完换下一个环，多条流之间公平一些 */
+    private static final int BATCH = 16;
+    /** 游标间隔 8 个 long（64 字节），不同 stage 的游标不在同一缓存行 */
+    private static final int CURSOR_STRIDE = 8;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long WAIT_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /** 慢 stage 的处理方式 */
+    public enum Policy {
+        SKIP, WAIT
+    }
+
+    /** 一个消费者：一个 sink、一个线程 */
+    public final class Stage implements Runnable {
+        final int index;
+        final String name;
+        final FrameSink sink;
+        final Policy policy;
+        final long maxWaitNanos;
+        Thread thread;
+        volatile boolean sleeping;
+        volatile long delivered;
+        volatile long skipped;
+
+        Stage(int index, String name, FrameSink sink, Policy policy, long maxWaitMs) {
+            this.index = index;
+            this.name = name;
+            this.sink = sink;
+            this.policy = policy;
+            this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getDelivered() {
+            return delivered;
+        }
+
+        public long getSkipped() {
+            return skipped;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                boolean stop = stopping; // 先读，停止前发布的帧下面这一轮一定能看到
+                boolean worked = false;
+                for (Ring ring : active) {
+                    worked |= consume(ring);
+                }
+                if (worked) continue;
+                if (stop) return;
+                sleeping = true;
+                if (!hasWork()) LockSupport.parkNanos(this, IDLE_PARK_NANOS); // 超时兜底：新出现的环和停止信号
+                sleeping = false;
+            }
+        }
+
+        private boolean hasWork() {
+            for (Ring ring : active) {
+                if (ring.cursor(index) <= ring.published || (ring.closed && !ring.closeDelivered[index])) return true;
+            }
+            return stopping;
+        }
+
+        /** @return 这一轮处理过帧或流事件 */
+        private boolean consume(Ring ring) {
+            boolean worked = false;
+            if (!ring.openDelivered[index]) {
+                ring.openDelivered[index] = true;
+                try {
+                    sink.onStreamOpened(ring.stream);
+                } catch (RuntimeException e) {
+                    System.err.println("打开帧流出错 (" + name + "): " + e.getMessage());
+                }
+                worked = true;
+            }
+            boolean closed = ring.closed; // 先读关闭标记再读发布序号，关闭前的最后一帧不会漏
+            long published = ring.published;
+            long next = ring.cursor(index);
+            for (int n = 0; n < BATCH && next <= published; n++) {
+                if (published - next >= ring.slots.length) {
+                    long oldest = published - ring.slots.length + 1;
+                    skipped += oldest - next;
+                    next = oldest;
+                }
+                Slot slot = ring.slots[(int) (next & ring.mask)];
+                slot.readers.incrementAndGet();
+                try {
+                    Frame frame = null;
+                    if (slot.sequence == next) {
+                        frame = slot.frame;
+                        if (slot.sequence != next) frame = null; // 读引用期间被覆盖
+                    }
+                    if (frame == null) {
+                        skipped++;
+                    } else {
+                        try {
+                            sink.onFrame(frame);
+                        } catch (Exception e) {
+                            System.err.println("帧处理出错 (" + ring.stream.key() + ", " + name + "): " + e.getMessage());
+                        }
+                        delivered++;
+                    }
+                } finally {
+                    slot.readers.decrementAndGet();
+                }
+                next++;
+                ring.setCursor(index, next);
+                worked = true;
+            }
+            if (closed && next > published && !ring.closeDelivered[index]) {
+                ring.closeDelivered[index] = true;
+                try {
+                    sink.onStreamClosed(ring.stream);
+                } catch (RuntimeException e) {
+                    System.err.println("关闭帧流出错 (" + name + "): " + e.getMessage());
+                }
+                if (ring.remainingStages.decrementAndGet() == 0) active.remove(ring);
+                worked = true;
+            }
+            return worked;
+        }
+    }
+
+    /** 一个槽位；sequence 是槽位里当前这一帧的序号，正在改写时为 {@link #WRITING} */
+    private static final class Slot {
+        static final long WRITING = -2;
+        volatile long sequence = -1;
+        final AtomicInteger readers = new AtomicInteger();
+        byte[] buffer;
+        Frame frame;
+    }
+
+    /** 一条流的环，只有这条流的接收线程写 */
+    private final class Ring {
+        final StreamInfo stream;
+        final Slot[] slots;
+        final long mask;
+        /** 每个 stage 下一个要读的序号 */
+        final AtomicLongArray cursors;
+        final boolean[] openDelivered;
+        final boolean[] closeDelivered;
+        final AtomicInteger remainingStages;
+        volatile long published = -1;
+        volatile boolean closed;
+
+        Ring(StreamInfo stream) {
+            this.stream = stream;
+            this.slots = new Slot[capacity];
+            for (int i = 0; i < capacity; i++) {
+                slots[i] = new Slot();
+            }
+            this.mask = capacity - 1;
+            this.cursors = new AtomicLongArray(stages.size() * CURSOR_STRIDE);
+            this.openDelivered = new boolean[stages.size()];
+            this.closeDelivered = new boolean[stages.size()];
+            this.remainingStages = new AtomicInteger(stages.size());
+        }
+
+        long cursor(int stage) {
+            return cursors.get(stage * CURSOR_STRIDE);
+        }
+
+        void setCursor(int stage, long value) {
+            cursors.lazySet(stage * CURSOR_STRIDE, value);
+        }
+    }
+
+    private final int capacity;
+    private final List<Stage> stages = new ArrayList<>();
+    private final Map<StreamInfo, Ring> rings = new ConcurrentHashMap<>();
+    private final List<Ring> active = new CopyOnWriteArrayList<>();
+    private final AtomicLong waitTimeouts = new AtomicLong();
+    private final AtomicLong detachedBuffers = new AtomicLong();
+    private volatile boolean started;
+    private volatile boolean stopping;
+
+    public FrameDispatcher() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** @param capacity 每条流的槽位数，向上取到 2 的幂 */
+    public FrameDispatcher(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    }
+
+    /**
+     * 加一个 stage，必须在 {@link #start()} 之前调用。
+     *
+     * @param maxWaitMs {@link Policy#WAIT} 时接收线程每帧最多等这个 stage 多久，SKIP 时忽略
+     */
+    public synchronized Stage addStage(String name, FrameSink sink, Policy policy, long maxWaitMs) {
+        if (started) throw new IllegalStateException("分发器已经启动，不能再加 stage");
+        Stage stage = new Stage(stages.size(), name, sink, policy, maxWaitMs);
+        stages.add(stage);
+        return stage;
+    }
+
+    public List<Stage> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    /** WAIT 的 stage 等超时、接收线程不再等的次数 */
+    public long getWaitTimeouts() {
+        return waitTimeouts.get();
+    }
+
+    /** 要改写的槽位正被 stage 读着、换了新数组的次数 */
+    public long getDetachedBuffers() {
+        return detachedBuffers.get();
+    }
+
+    public synchronized void start() {
+        if (started) return;
+        started = true;
+        for (Stage stage : stages) {
+            stage.thread = new Thread(stage, "stage-" + stage.name);
+            stage.thread.setDaemon(true);
+            stage.thread.start();
+        }
+    }
+
+    @Override
+    public void onStreamOpened(StreamInfo stream) {
+        rings.computeIfAbsent(stream, s -> {
+            Ring ring = new Ring(s);
+            active.add(ring);
+            return ring;
+        });
+    }
+
+    @Override
+    public void onFrame(Frame frame) {
+        Ring ring = rings.get(frame.stream);
+        if (ring == null) {
+            onStreamOpened(frame.stream);
+            ring = rings.get(frame.stream);
+        }
+        long sequence = ring.published + 1;
+        if (sequence >= capacity) awaitWaitStages(ring, sequence - capacity);
+        Slot slot = ring.slots[(int) (sequence & ring.mask)];
+        slot.sequence = Slot.WRITING;
+        byte[] buffer = slot.buffer;
+        if (slot.readers.get() != 0) {
+            // 有 stage 正在读这个槽位的旧帧：旧数组留给它，换一个新的
+            detachedBuffers.incrementAndGet();
+            buffer = null;
+        }
+        if (buffer == null || buffer.length < frame.length) {
+            buffer = new byte[frame.length + frame.length / 4]; // 留点余量，帧大小小幅波动时不用每次重新分配
+            slot.buffer = buffer;
+        }
+        System.arraycopy(frame.data, frame.offset, buffer, 0, frame.length);
+        slot.frame = new Frame(frame.stream, buffer, 0, frame.length, frame.captureTimeMs, frame.backfill);
+        slot.sequence = sequence;
+        ring.published = sequence;
+        for (Stage stage : stages) {
+            if (stage.sleeping) LockSupport.unpark(stage.thread);
+        }
+    }
+
+    /** 等 WAIT 的 stage 处理完 wrapSequence（它的槽位马上要被覆盖），每个 stage 最多等各自的 maxWaitMs */
+    private void awaitWaitStages(Ring ring, long wrapSequence) {
+        long start = 0;
+        for (Stage stage : stages) {
+            if (stage.policy != Policy.WAIT || ring.cursor(stage.index) > wrapSequence) continue;
+            if (start == 0) start = System.nanoTime();
+            int spins = 0;
+            while (ring.cursor(stage.index) <= wrapSequence) {
+                if (System.nanoTime() - start > stage.maxWaitNanos) {
+                    waitTimeouts.incrementAndGet();
+                    break;
+                }
+                if (++spins < 100) {
+                    Thread.onSpinWait();
+                } else {
+                    if (stage.sleeping) LockSupport.unpark(stage.thread);
+                    LockSupport.parkNanos(this, WAIT_PARK_NANOS);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onStreamClosed(StreamInfo stream) {
+        Ring ring = rings.remove(stream);
+        if (ring == null) return;
+        ring.closed = true;
+        for (Stage stage : stages) {
+            if (stage.sleeping) LockSupport.unpark(stage.thread);
+        }
+    }
+
+    /** 停止所有 stage：已经发布的帧先处理完（跳过的除外），然后线程退出；之后再关闭各个 sink */
+    @Override
+    public void close() {
+        stopping = true;
+        for (Stage stage : stages) {
+            if (stage.thread == null) continue;
+            LockSupport.unpark(stage.thread);
+            try {
+                stage.thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--selftest".equals(args[0])) {
+            System.exit(selfTest() ? 0 : 1);
+            return;
+        }
+        System.out.println("用法: java FrameDispatcher --selftest");
+    }
+
+    /**
+     * 自测：所有 stage 按顺序收到全部帧和打开、关闭事件；SKIP 的慢 stage 跳帧但不拖住接收，读到的帧内容完整；
+     * WAIT 的慢 stage 让接收线程等但不超过上限；close 时处理完已发布的帧。
+     */
+    static boolean selfTest() throws Exception {
+        boolean ok = true;
+
+        FrameDispatcher dispatcher = new FrameDispatcher(16);
+        RecordingSink fast = new RecordingSink(0);
+        RecordingSink slowSkip = new RecordingSink(2);
+        RecordingSink slowWait = new RecordingSink(1);
+        dispatcher.addStage("fast", fast, Policy.WAIT, 1000);
+        Stage skipStage = dispatcher.addStage("slow-skip", slowSkip, Policy.SKIP, 0);
+        dispatcher.addStage("slow-wait", slowWait, Policy.WAIT, 5);
+        dispatcher.start();
+        StreamInfo a = StreamInfo.unidentified(1, "a");
+        StreamInfo b = StreamInfo.unidentified(2, "b");
+        dispatcher.onStreamOpened(a);
+        dispatcher.onStreamOpened(b);
+        byte[] data = new byte[8192];
+        long maxPublishNanos = 0;
+        for (int i = 0; i < 400; i++) {
+            StreamInfo stream = i % 2 == 0 ? a : b;
+            fill(data, i);
+            long before = System.nanoTime();
+            dispatcher.onFrame(new Frame(stream, data, 0, 100 + i * 7 % 8000, i, false));
+            maxPublishNanos = Math.max(maxPublishNanos, System.nanoTime() - before);
+        }
+        dispatcher.onStreamClosed(a);
+        dispatcher.onStreamClosed(b);
+        dispatcher.close();
+        ok &= check(fast.frames.size() == 400 && fast.inOrder() && fast.corrupt == 0, "快 stage 收到全部 400 帧, 实际 " + fast.frames.size());
+        ok &= check(fast.opened.get() == 2 && fast.closed.get() == 2, "快 stage 打开/关闭 " + fast.opened + "/" + fast.closed);
+        ok &= check(slowSkip.frames.size() < 400 && skipStage.getSkipped() > 0 && slowSkip.inOrder() && slowSkip.corrupt == 0,
+                "SKIP 的慢 stage 跳帧: 收到 " + slowSkip.frames.size() + ", 跳过 " + skipStage.getSkipped());
+        ok &= check(slowSkip.closed.get() == 2 && slowWait.closed.get() == 2, "跳帧的 stage 也收到关闭");
+        ok &= check(slowWait.inOrder() && slowWait.corrupt == 0, "WAIT 的慢 stage 顺序和内容");
+        ok &= check(dispatcher.getWaitTimeouts() > 0 && maxPublishNanos < TimeUnit.MILLISECONDS.toNanos(200),
+                "WAIT 有上限: 超时 " + dispatcher.getWaitTimeouts() + " 次, 放帧最长 " + maxPublishNanos / 1000 + " µs");
+
+        System.out.println("自测" + (ok ? "通过" : "失败"));
+        return ok;
+    }
+
+    /** 测试帧内容：每个字节等于序号的低 8 位，sink 用来检查读到的数组没被改写 */
+    private static void fill(byte[] data, int index) {
+        java.util.Arrays.fill(data, (byte) index);
+    }
+
+    private static boolean check(boolean condition, String what) {
+        if (!condition) System.err.println("失败: " + what);
+        return condition;
+    }
+
+    /** 记录收到的帧；每帧睡 delayMs 模拟慢 stage，睡完再检查内容 */
+    private static final class RecordingSink implements FrameSink {
+        final long delayMs;
+        final List<Long> frames = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        volatile int corrupt;
+
+        RecordingSink(long delayMs) {
+            this.delayMs = delayMs;
+        }
+
+        @Override
+        public void onStreamOpened(StreamInfo stream) {
+            opened.incrementAndGet();
+        }
+
+        @Override
+        public void onFrame(Frame frame) throws InterruptedException {
+            if (delayMs > 0) Thread.sleep(delayMs);
+            for (int i = 0; i < frame.length; i++) {
+                if (frame.data[frame.offset + i] != (byte) frame.captureTimeMs) {
+                    corrupt++;
+                    break;
+                }
+            }
+            frames.add(frame.captureTimeMs);
+        }
+
+        @Override
+        public void onStreamClosed(StreamInfo stream) {
+            closed.incrementAndGet();
+        }
+
+        /** 两条流交替，各自的序号（偶数 a、奇数 b）必须递增 */
+        boolean inOrder() {
+            long lastEven = -1;
+            long lastOdd = -1;
+            synchronized (frames) {
+                for (long time : frames) {
+                    if (time % 2 == 0) {
+                        if (time <= lastEven) return false;
+                        lastEven = time;
+                    } else {
+                        if (time <= lastOdd) return false;
+                        lastOdd = time;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * 帧流接收模式：同时监听两个相机端口，按手机的 “4 字节大端长度 + 负载” 协议读帧。
+ * <p>
+ * 每个连接一个线程（平台线程或虚拟线程，见 {@link ConnectionThreads}），用 readFully 把负载读进
+ * {@link FrameBufferPool} 的缓冲，交给 {@link IngestSession} 校验和分发；需要关键帧时向手机写 'K'。
+ * 取缓冲之前先读出包类型、向 {@link IngestMemoryBudget} 申请，申请不到时连接线程停在那里不读 socket（TCP 反压），
+ * 或者在 drop 策略下跳过可丢的包。后台线程定期打印每条流的帧率和吞吐量。
+ */
+public class FrameIngestServer implements IngestEngine {
+
+    public static final int BACK_CAMERA_PORT = 12345;
+    public static final int FRONT_CAMERA_PORT = 12346;
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    private static final int SOCKET_READ_TIMEOUT_MS = 30000; // 手机最低也有每秒 1 帧，超时视为连接已死
+
+    private final int[] ports;
+    private final List<FrameSink> sinks;
+    private final FrameBufferPool bufferPool = new FrameBufferPool();
+    private final IngestMemoryBudget budget;
+    private final List<ServerSocket> serverSockets = new ArrayList<>();
+    private final Map<Socket, IngestSession> sessions = new ConcurrentHashMap<>();
+    private final Executor connectionExecutor;
+    private volatile boolean running = false;
+
+    /**
+     * @param ports 监听端口，传 0 表示由系统分配（测试用）
+     * @param sinks 帧的去处
+     */
+    public FrameIngestServer(int[] ports, List<FrameSink> sinks) {
+        this(ports, sinks, ConnectionThreads.PLATFORM);
+    }
+
+    /**
+     * @param threadMode 连接线程模式，{@link ConnectionThreads#PLATFORM} 或 {@link ConnectionThreads#VIRTUAL}
+     */
+    public FrameIngestServer(int[] ports, List<FrameSink> sinks, String threadMode) {
+        this(ports, sinks, threadMode,
+                new IngestMemoryBudget(IngestMemoryBudget.DEFAULT_TOTAL_BYTES, IngestMemoryBudget.Policy.PAUSE));
+    }
+
+    /**
+     * @param budget 在途帧缓冲的全局预算
+     */
+    public FrameIngestServer(int[] ports, List<FrameSink> sinks, String threadMode, IngestMemoryBudget budget) {
+        this.budget = budget;
+        this.ports = ports.clone();
+        this.sinks = new ArrayList<>(sinks);
+        this.connectionExecutor = ConnectionThreads.create(threadMode, "ingest");
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        if (running) return;
+        running = true;
+        try {
+            for (int port : ports) {
+                ServerSocket serverSocket = new ServerSocket(port);
+                serverSockets.add(serverSocket);
+                Thread acceptThread = new Thread(() -> acceptLoop(serverSocket), "ingest-accept-" + serverSocket.getLocalPort());
+                acceptThread.start();
+                System.out.println("帧流接收模式启动，监听端口: " + serverSocket.getLocalPort());
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        Thread statsThread = new Thread(this::statsLoop, "ingest-stats");
+        statsThread.setDaemon(true);
+        statsThread.start();
+    }
+
+    @Override
+    public int getLocalPort(int index) {
+        return serverSockets.get(index).getLocalPort();
+    }
+
+    @Override
+    public Collection<IngestSession> getSessions() {
+        return sessions.values();
+    }
+
+    @Override
+    public FrameBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    @Override
+    public IngestMemoryBudget getMemoryBudget() {
+        return budget;
+    }
+
+    @Override
+    public synchronized void close() {
+        running = false;
+        for (ServerSocket serverSocket : serverSockets) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                System.err.println("关闭监听端口时出错: " + e.getMessage());
+            }
+        }
+        serverSockets.clear();
+        for (Socket socket : sessions.keySet()) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
+        while (running) {
+            try {
+                Socket clientSocket = serverSocket.accept();
+                if (IngestStatsReporter.VERBOSE) {
+                    System.out.println("收到新的帧流连接: " + clientSocket.getInetAddress() + " -> " + serverSocket.getLocalPort());
+                }
+                connectionExecutor.execute(() -> handleFrameConnection(clientSocket, serverSocket.getLocalPort()));
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("接受连接时出错: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handleFrameConnection(Socket socket, int port) {
+        IngestSession session = new IngestSession(port, socket.getInetAddress().getHostAddress(), sinks);
+        IngestMemoryBudget.Account account = budget.open(null);
+        sessions.put(socket, session);
+        try {
+            socket.setSoTimeout(SOCKET_READ_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), READ_BUFFER_BYTES));
+            OutputStream out = socket.getOutputStream();
+            while (running) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break; // 手机正常断开
+                }
+                if (length <= 0 || length > FrameProtocol.MAX_PACKET_BYTES) {
+                    throw new IOException("数据包长度无效: " + length);
+                }
+                byte type = in.readByte();
+                if (account.await(FrameBufferPool.capacityFor(length), session.isDroppable(type)) == IngestMemoryBudget.DROP) {
+                    in.skipNBytes(length - 1);
+                    if (session.onDropped(type)) {
+                        out.write(FrameProtocol.REQUEST_KEYFRAME);
+                        out.flush();
+                    }
+                    continue;
+                }
+                byte[] buffer = bufferPool.acquire(length);
+                try {
+                    buffer[0] = type;
+                    in.readFully(buffer, 1, length - 1);
+                    if (session.onPacket(buffer, 0, length)) {
+                        out.write(FrameProtocol.REQUEST_KEYFRAME);
+                        out.flush();
+                    }
+                } finally {
+                    bufferPool.release(buffer);
+                    account.release(buffer.length);
+                }
+            }
+        } catch (SocketException | EOFException e) {
+            if (running && IngestStatsReporter.VERBOSE) {
+                System.out.println("帧流连接断开 (" + session.getInfo().key() + "): " + e.getMessage());
+            }
+        } catch (IOException e) {
+            System.err.println("处理帧流时出错 (" + session.getInfo().key() + "): " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            account.close();
+            sessions.remove(socket);
+            session.close();
+            if (IngestStatsReporter.VERBOSE) {
+                System.out.printf("帧流结束: %s, 共 %d 帧, 平均 %.1f fps\n",
+                        session.getInfo(), session.getStats().getFrames(), session.getStats().averageFps());
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("关闭连接时出错: " + e.getMessage());
+            }
+        }
+    }
+
+    private void statsLoop() {
+        while (running) {
+            try {
+                Thread.sleep(IngestStatsReporter.INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            IngestStatsReporter.report(this);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 增量式的帧解析状态机，给非阻塞引擎使用：每次把 read 到的任意长度数据喂进来，
+ * 凑齐 “4 字节大端长度 + 负载” 后把负载交给回调。负载读进 {@link FrameBufferPool} 的缓冲，
+ * 缓冲的所有权随回调一起交出，由回调方负责归还。
+ * <p>
+ * 给了 {@link Admission} 时，每个包在取缓冲之前先问一次（此时已经知道长度和负载的第一个字节，即包类型）：
+ * 可以跳过负载，也可以让 {@link #feed} 停在这里，没消费的数据留在 input 里，由调用方保存、之后再喂。
+ */
+public class FrameParser {
+
+    /** 收到一个完整数据包 */
+    public interface PacketHandler {
+        void onPacket(byte[] buffer, int length) throws IOException;
+    }
+
+    /** 取缓冲之前的准入检查，见 {@link IngestMemoryBudget} */
+    public interface Admission {
+        /**
+         * @param type   负载的第一个字节
+         * @param length 负载长度
+         * @return {@link IngestMemoryBudget#ADMIT}、{@link IngestMemoryBudget#DROP}（跳过负载）
+         * 或 {@link IngestMemoryBudget#WAIT}（停止解析）
+         */
+        int admit(byte type, int length);
+    }
+
+    private final FrameBufferPool bufferPool;
+    private final Admission admission;
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private byte[] body;
+    private int bodyLength;
+    private int bodyPosition;
+    /** 长度已读、还没有准入的包的长度，0 表示没有 */
+    private int undecidedLength;
+    private int skipRemaining;
+
+    public FrameParser(FrameBufferPool bufferPool) {
+        this(bufferPool, null);
+    }
+
+    public FrameParser(FrameBufferPool bufferPool, Admission admission) {
+        this.bufferPool = bufferPool;
+        this.admission = admission;
+    }
+
+    /**
+     * 消费 input 中的数据。
+     *
+     * @return 全部消费返回 true；准入检查要求等待时返回 false，input 停在没消费的位置
+     * @throws IOException 长度前缀无效（连接应被关闭）
+     */
+    public boolean feed(ByteBuffer input, PacketHandler handler) throws IOException {
+        while (input.hasRemaining()) {
+            if (skipRemaining > 0) {
+                int count = Math.min(input.remaining(), skipRemaining);
+                input.position(input.position() + count);
+                skipRemaining -= count;
+                continue;
+            }
+            if (body == null && undecidedLength == 0) {
+                while (header.hasRemaining() && input.hasRemaining()) {
+                    header.put(input.get());
+                }
+                if (header.hasRemaining()) {
+                    return true;
+                }
+                header.flip();
+                int length = header.getInt();
+                header.clear();
+                if (length <= 0 || length > FrameProtocol.MAX_PACKET_BYTES) {
+                    throw new IOException("数据包长度无效: " + length);
+                }
+                undecidedLength = length;
+                if (!input.hasRemaining()) return true;
+            }
+            if (body == null) {
+                int length = undecidedLength;
+                int decision = admission == null ? IngestMemoryBudget.ADMIT : admission.admit(input.get(input.position()), length);
+                if (decision == IngestMemoryBudget.WAIT) return false;
+                undecidedLength = 0;
+                if (decision == IngestMemoryBudget.DROP) {
+                    skipRemaining = length;
+                    continue;
+                }
+                body = bufferPool.acquire(length);
+                bodyLength = length;
+                bodyPosition = 0;
+            }
+            int count = Math.min(input.remaining(), bodyLength - bodyPosition);
+            input.get(body, bodyPosition, count);
+            bodyPosition += count;
+            if (bodyPosition == bodyLength) {
+                byte[] packet = body;
+                body = null;
+                handler.onPacket(packet, bodyLength);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 连接关闭时归还读了一半的缓冲。
+     *
+     * @return 归还的缓冲长度，没有时为 0
+     */
+    public int release() {
+        if (body == null) return 0;
+        int length = body.length;
+        bufferPool.release(body);
+        body = null;
+        return length;
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * 手机端帧协议的接收端常量（与 app 中的 ToolData.FrameProtocol 保持一致）。
+ * <p>
+ * 每个数据包以 4 字节大端长度作为前缀，负载首字节决定类型：
+ * 0xFF 表示完整 JPEG 帧（关键帧），'T' 表示分块增量帧，
+ * 'B' 表示断线期间缓冲、重连后回传的历史帧（带原始采集时间），
+ * 'H' 表示连接建立后的握手包（Camera ID、朝向、尺寸和能力位）。
+ * 接收端可向手机写入单字节 'K' 请求关键帧。
+ */
+public final class FrameProtocol {
+
+    public static final byte PACKET_TILE_DELTA = 'T';
+    public static final byte TILE_DELTA_VERSION = 1;
+    public static final byte PACKET_BACKFILL = 'B';
+    public static final byte BACKFILL_VERSION = 1;
+    /** 回传帧头长度：类型(1) | 版本(1) | 采集时间(8) */
+    public static final int BACKFILL_HEADER_BYTES = 10;
+    public static final byte PACKET_HANDSHAKE = 'H';
+    public static final byte HANDSHAKE_VERSION = 1;
+    public static final int CAP_TILE_DELTA = 1;
+    public static final int CAP_BACKFILL = 1 << 1;
+    public static final int CAP_HARDWARE_MONO = 1 << 2;
+    public static final int CAP_LOGICAL_MULTI_CAMERA = 1 << 3;
+    public static final int CAP_CONCURRENT = 1 << 4;
+    public static final int REQUEST_KEYFRAME = 'K';
+    /** 单个数据包允许的最大长度，超过视为协议错误 */
+    public static final int MAX_PACKET_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_JPEG_PADDING = 32;
+
+    private FrameProtocol() {
+    }
+
+    /** 负载是否以 JPEG SOI (0xFFD8) 开头 */
+    public static boolean startsWithJpegSoi(byte[] data, int offset, int length) {
+        return length >= 2 && (data[offset] & 0xFF) == 0xFF && (data[offset + 1] & 0xFF) == 0xD8;
+    }
+
+    /** 负载是否以 JPEG EOI (0xFFD9) 结尾（允许编码器在末尾补少量 0） */
+    public static boolean endsWithJpegEoi(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int limit = Math.max(offset + 2, end - MAX_JPEG_PADDING);
+        while (end > limit && data[end - 1] == 0) {
+            end--;
+        }
+        return end - offset >= 2 && (data[end - 2] & 0xFF) == 0xFF && (data[end - 1] & 0xFF) == 0xD9;
+    }
+
+    /** SOI 和 EOI 都在，认为是一帧完整的 JPEG */
+    public static boolean isCompleteJpeg(byte[] data, int offset, int length) {
+        return length >= 4 && startsWithJpegSoi(data, offset, length) && endsWithJpegEoi(data, offset, length);
+    }
+
+    /**
+     * 块的起始坐标，与手机端 TileDiff.tileOrigin 使用相同公式。
+     */
+    public static int tileOrigin(int index, int count, int length) {
+        return (int) ((long) index * length / count);
+    }
+}
@@ -0,0 +1,17 @@
+/**
+ * 帧的去处（写文件、转发、录像等），由接收引擎在读线程上同步调用。
+ * 实现必须线程安全：不同连接的帧会从不同线程同时到达。
+ */
+public interface FrameSink {
+
+    /** 连接完成握手（或收到第一帧）时调用 */
+    default void onStreamOpened(StreamInfo stream) {
+    }
+
+    /** 收到一帧通过校验的完整 JPEG */
+    void onFrame(Frame frame) throws Exception;
+
+    /** 连接关闭时调用 */
+    default void onStreamClosed(StreamInfo stream) {
+    }
+}
@@ -0,0 +1,363 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link FrameArchive} 的写盘线程：所有流的帧先进一个按字节数限长的队列，由这一个线程成批写出。
+ * <p>
+ * 每批按段分组，一个段的帧在段文件里本来就是连续的，所以每段每批只有一次聚集写
+ * （{@code FileChannel.write(ByteBuffer[])}），100 条流同时写时系统调用数按批而不是按帧算。
+ * fsync 也是成组提交：距上次同步超过 syncIntervalMs 或新写入超过 syncBytes 时，把这段时间写过的所有段一起
+ * force 一次，再推进它们的检查点；两个都为 0 时只在封存段时同步（崩溃时靠检查点以后的扫描恢复，见 {@link ArchiveSegment}），
+ * {@link #parseDurability} 的 "batch" 表示每批都同步。
+ * <p>
+ * 换段时流不等旧段写完：旧段交给 {@link #sealWhenWritten}，这个线程写完它排队的帧后再封存（封存里有 fsync），
+ * 接收线程换段时不碰磁盘。
+ * <p>
+ * 背压有上限：队列里的字节超过 maxQueueBytes 时 {@link #submit} 直接拒绝，调用方丢掉这一帧并计数，
+ * 磁盘跟不上时不会无限占用堆，也不会反过来卡住接收。帧数据复制进 {@link FrameBufferPool} 的数组，写完归还。
+ * 每 {@link IngestStatsReporter#INTERVAL_MS} 毫秒打印一行 [磁盘] 统计：队列深度、每批帧数、写入和 fsync 的延迟、丢帧数。
+ */
+final class GroupCommitWriter implements Closeable {
+
+    static final long DEFAULT_SYNC_INTERVAL_MS = 5000;
+    static final long DEFAULT_SYNC_BYTES = 32L * 1024 * 1024;
+    static final long DEFAULT_MAX_QUEUE_BYTES = 64L * 1024 * 1024;
+    /** 一批最多写这么多字节，太大时前面的帧等得太久 */
+    private static final long MAX_BATCH_BYTES = 8L * 1024 * 1024;
+    private static final int LATENCY_SAMPLES = 1024;
+
+    /** 一帧待写的数据：帧头和 JPEG 已经拼好放在 buffer 里 */
+    private static final class PendingWrite {
+        final ArchiveSegment segment;
+        final long position;
+        final long timeMs;
+        final byte[] buffer;
+        final int bytes;
+
+        PendingWrite(ArchiveSegment segment, long position, long timeMs, byte[] buffer, int bytes) {
+            this.segment = segment;
+            this.position = position;
+            this.timeMs = timeMs;
+            this.buffer = buffer;
+            this.bytes = bytes;
+        }
+    }
+
+    private final long syncIntervalMs;
+    private final long syncBytes;
+    private final long maxQueueBytes;
+    private final FrameBufferPool bufferPool = new FrameBufferPool();
+    private final ArrayDeque<PendingWrite> queue = new ArrayDeque<>();
+    private final Thread thread;
+    /** 以下字段由 this 保护 */
+    /** 换下来等着封存的段，封存完才移除 */
+    private final List<ArchiveSegment> sealing = new ArrayList<>();
+    private long queuedBytes;
+    private boolean closing;
+    private long droppedFrames;
+    private long writtenFrames;
+    private long batches;
+    private final long[] writeLatencies = new long[LATENCY_SAMPLES];
+    private final long[] syncLatencies = new long[LATENCY_SAMPLES];
+    private long writeSamples;
+    private long syncSamples;
+
+    /**
+     * @param syncIntervalMs 距上次同步多久后同步，0 表示不按时间
+     * @param syncBytes      写入多少字节后同步，0 表示不按字节数
+     * @param maxQueueBytes  队列上限，超过后新帧被丢弃
+     */
+    GroupCommitWriter(String name, long syncIntervalMs, long syncBytes, long maxQueueBytes) {
+        this.syncIntervalMs = syncIntervalMs;
+        this.syncBytes = syncBytes;
+        this.maxQueueBytes = maxQueueBytes;
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 解析持久性设置：none（只在封存时同步）、batch（每批都同步）、
+     * 或者 "5000ms"、"32mb"、"5000ms,32mb" 这样的组提交条件。
+     *
+     * @return {syncIntervalMs, syncBytes}
+     * @throws IllegalArgumentException 格式不对
+     */
+    static long[] parseDurability(String value) {
+        if ("none".equals(value)) return new long[]{0, 0};
+        if ("batch".equals(value)) return new long[]{0, 1};
+        long intervalMs = 0;
+        long bytes = 0;
+        for (String part : value.split(",")) {
+            String lower = part.trim().toLowerCase(java.util.Locale.ROOT);
+            try {
+                if (lower.endsWith("ms")) {
+                    intervalMs = Long.parseLong(lower.substring(0, lower.length() - 2));
+                } else if (lower.endsWith("mb")) {
+                    bytes = Long.parseLong(lower.substring(0, lower.length() - 2)) * 1024 * 1024;
+                } else {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("无效的持久性设置: " + value + "（可选 none、batch 或 5000ms,32mb 这样的组合）");
+            }
+        }
+        return new long[]{intervalMs, bytes};
+    }
+
+    /**
+     * 把一帧排进队列。调用方必须持有这个段所在流的锁，保证同一个段的帧按位置顺序入队。
+     *
+     * @return 队列满时返回 false，帧没有写入段（段的预留位置也没有推进）
+     */
+    boolean submit(ArchiveSegment segment, long timeMs, byte[] jpeg, int offset, int length) {
+        int bytes = ArchiveSegment.FRAME_HEADER_BYTES + length;
+        byte[] buffer = bufferPool.acquire(bytes);
+        ByteBuffer.wrap(buffer).putInt(ArchiveSegment.FRAME_MAGIC).putLong(timeMs).putInt(length);
+        System.arraycopy(jpeg, offset, buffer, ArchiveSegment.FRAME_HEADER_BYTES, length);
+        // 检查、记账、预留和入队放在同一个锁里，close 不会插在中间让写盘线程提前退出、丢下这一帧
+        synchronized (this) {
+            if (closing || queuedBytes + bytes > maxQueueBytes) {
+                droppedFrames++;
+                bufferPool.release(buffer);
+                return false;
+            }
+            queuedBytes += bytes;
+            queue.add(new PendingWrite(segment, segment.reserve(timeMs, length), timeMs, buffer, bytes));
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * 换段时调用：这个段不会再预留新帧，写盘线程写完它已经排队的帧后封存它，调用方不用等。
+     * 调用方必须持有这个段所在流的锁，且这个段的帧都已经 {@link #submit} 过。
+     *
+     * @return 正在关闭时返回 false，由调用方 {@link #awaitWritten} 后自己封存
+     */
+    synchronized boolean sealWhenWritten(ArchiveSegment segment) {
+        if (closing) return false;
+        sealing.add(segment);
+        notifyAll();
+        return true;
+    }
+
+    /** 等这个段排队的帧都写完（关闭时封存前调用），不能在写盘线程上调用 */
+    synchronized void awaitWritten(ArchiveSegment segment) throws IOException {
+        try {
+            while (segment.getPendingWrites() > 0 && thread.isAlive()) {
+                wait(100);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("等待写盘时被中断");
+        }
+    }
+
+    /** 等队列里当前所有的帧都写完、换下来的段都封存 */
+    synchronized void flush() throws InterruptedException {
+        while ((queuedBytes > 0 || !queue.isEmpty() || !sealing.isEmpty()) && thread.isAlive()) {
+            wait(100);
+        }
+    }
+
+    synchronized long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    private void run() {
+        Set<ArchiveSegment> dirty = new LinkedHashSet<>();
+        long lastSync = System.currentTimeMillis();
+        long bytesSinceSync = 0;
+        long lastReport = System.currentTimeMillis();
+        List<PendingWrite> batch = new ArrayList<>();
+        while (true) {
+            batch.clear();
+            long batchBytes = 0;
+            boolean exit;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                while (queue.isEmpty() && !closing && !hasSealable()) {
+                    long wait = IngestStatsReporter.INTERVAL_MS - (now - lastReport);
+                    if (!dirty.isEmpty() && syncIntervalMs > 0) wait = Math.min(wait, syncIntervalMs - (now - lastSync));
+                    if (wait <= 0) break;
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        closing = true;
+                    }
+                    now = System.currentTimeMillis();
+                }
+                while (!queue.isEmpty() && batchBytes < MAX_BATCH_BYTES) {
+                    PendingWrite write = queue.poll();
+                    batch.add(write);
+                    batchBytes += write.bytes;
+                }
+                exit = closing && queue.isEmpty();
+            }
+            if (!batch.isEmpty()) {
+                writeBatch(batch, dirty);
+                bytesSinceSync += batchBytes;
+            }
+            sealWritten(dirty);
+            long now = System.currentTimeMillis();
+            boolean syncDue = (syncBytes > 0 && bytesSinceSync >= syncBytes)
+                    || (syncIntervalMs > 0 && now - lastSync >= syncIntervalMs);
+            if (!dirty.isEmpty() && (syncDue || exit)) {
+                long start = System.nanoTime();
+                for (ArchiveSegment segment : dirty) {
+                    try {
+                        segment.sync();
+                    } catch (IOException e) {
+                        System.err.println("归档同步失败 (" + segment.dataFile + "): " + e.getMessage());
+                    }
+                }
+                recordSync(System.nanoTime() - start);
+                dirty.clear();
+                bytesSinceSync = 0;
+                lastSync = now;
+            } else if (dirty.isEmpty()) {
+                lastSync = now;
+            }
+            if (now - lastReport >= IngestStatsReporter.INTERVAL_MS) {
+                lastReport = now;
+                report();
+            }
+            if (exit) return;
+        }
+    }
+
+    /** 按段分组，每段一次聚集写，写完再提交索引记录、归还缓冲 */
+    private void writeBatch(List<PendingWrite> batch, Set<ArchiveSegment> dirty) {
+        Map<ArchiveSegment, List<PendingWrite>> groups = new LinkedHashMap<>();
+        for (PendingWrite write : batch) {
+            groups.computeIfAbsent(write.segment, s -> new ArrayList<>()).add(write);
+        }
+        long start = System.nanoTime();
+        long released = 0;
+        long failed = 0;
+        for (Map.Entry<ArchiveSegment, List<PendingWrite>> group : groups.entrySet()) {
+            ArchiveSegment segment = group.getKey();
+            List<PendingWrite> writes = group.getValue();
+            ByteBuffer[] buffers = new ByteBuffer[writes.size()];
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = ByteBuffer.wrap(writes.get(i).buffer, 0, writes.get(i).bytes);
+            }
+            if (segment.isWriteFailed()) {
+                failed += writes.size(); // 之前已经报告过，下一帧会换新段
+            } else {
+                try {
+                    segment.writeData(writes.get(0).position, buffers);
+                    for (PendingWrite write : writes) {
+                        segment.commit(write.timeMs, write.position, write.bytes - ArchiveSegment.FRAME_HEADER_BYTES);
+                    }
+                    dirty.add(segment);
+                } catch (IOException e) {
+                    System.err.println("写归档段失败，这个段不再写入，后续帧换新段 (" + segment.dataFile + "): " + e.getMessage());
+                    failed += writes.size();
+                }
+            }
+            for (PendingWrite write : writes) {
+                segment.onWriteDone();
+                bufferPool.release(write.buffer);
+                released += write.bytes;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            queuedBytes -= released;
+            writtenFrames += batch.size() - failed;
+            droppedFrames += failed;
+            batches++;
+            writeLatencies[(int) (writeSamples++ % LATENCY_SAMPLES)] = elapsed;
+            notifyAll();
+        }
+    }
+
+    private boolean hasSealable() {
+        for (ArchiveSegment segment : sealing) {
+            if (segment.getPendingWrites() == 0) return true;
+        }
+        return false;
+    }
+
+    /** 封存排队的帧已经写完的换下来的段；封存自带 fsync，这些段不用再在组提交里同步 */
+    private void sealWritten(Set<ArchiveSegment> dirty) {
+        List<ArchiveSegment> candidates;
+        synchronized (this) {
+            if (sealing.isEmpty()) return;
+            candidates = new ArrayList<>(sealing);
+        }
+        List<ArchiveSegment> done = new ArrayList<>();
+        for (ArchiveSegment segment : candidates) {
+            if (segment.getPendingWrites() > 0) continue;
+            try {
+                segment.seal();
+            } catch (IOException e) {
+                System.err.println("封存归档段失败 (" + segment.dataFile + "): " + e.getMessage());
+            }
+            dirty.remove(segment);
+            done.add(segment);
+        }
+        synchronized (this) {
+            sealing.removeAll(done);
+            notifyAll();
+        }
+    }
+
+    private synchronized void recordSync(long nanos) {
+        syncLatencies[(int) (syncSamples++ % LATENCY_SAMPLES)] = nanos;
+    }
+
+    private long lastReportedFrames;
+    private long lastReportedBatches;
+
+    private synchronized void report() {
+        long frames = writtenFrames - lastReportedFrames;
+        long batchCount = batches - lastReportedBatches;
+        if (frames == 0 && droppedFrames == 0 && queue.isEmpty()) return;
+        lastReportedFrames = writtenFrames;
+        lastReportedBatches = batches;
+        long[] writes = percentiles(writeLatencies, writeSamples);
+        long[] syncs = percentiles(syncLatencies, syncSamples);
+        System.out.printf("[磁盘] 队列 %d 帧 / %.1f MB; %d 批, 每批平均 %.1f 帧; 写入 p50 %.2f ms, p99 %.2f ms; fsync p99 %.2f ms; 累计丢帧 %d\n",
+                queue.size(), queuedBytes / (1024.0 * 1024.0), batchCount, batchCount == 0 ? 0.0 : (double) frames / batchCount,
+                writes[0] / 1e6, writes[1] / 1e6, syncs[1] / 1e6, droppedFrames);
+    }
+
+    /** 最近的样本里的 {p50, p99} */
+    private static long[] percentiles(long[] samples, long count) {
+        int n = (int) Math.min(count, samples.length);
+        if (n == 0) return new long[]{0, 0};
+        long[] sorted = Arrays.copyOf(samples, n);
+        Arrays.sort(sorted);
+        return new long[]{sorted[n / 2], sorted[Math.min(n - 1, (int) (n * 0.99))]};
+    }
+
+    /** 写完队列里的帧、同步后退出；之后 submit 一律拒绝 */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closing = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
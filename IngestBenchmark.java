@@ -0,0 +1,237 @@
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 接收引擎的连接数压测：对每种引擎依次建立 10、100、1000 条模拟手机连接，
+ * 每条连接按固定帧率发送小 JPEG，统计实际收到的帧率、每连接的堆内存、线程数、进程 RSS
+ * 和接入延迟（从发起连接到接收端处理完握手包）。
+ * <p>
+ * 用法:
+ * <pre>
+ * java -Xss256k IngestBenchmark [--engines=nio,thread,virtual] [--connections=10,100,1000] [--fps=5] [--seconds=10]
+ * </pre>
+ * virtual 引擎需要 JDK 21 及以上，不支持时跳过。
+ * 发送端和接收端在同一个进程里，发送端只用 {@link #SENDER_THREADS} 个线程轮流写所有连接，
+ * 所以线程数和内存的差异基本都来自接收引擎。1000 条连接需要 ulimit -n 至少 2100。
+ */
+public class IngestBenchmark {
+
+    private static final int SENDER_THREADS = 4;
+    private static final int FRAME_WIDTH = 160;
+    private static final int FRAME_HEIGHT = 120;
+    private static final long CONNECT_TIMEOUT_MS = 30000;
+
+    public static void main(String[] args) throws Exception {
+        String[] engines = {"nio", "thread", "virtual"};
+        int[] connectionCounts = {10, 100, 1000};
+        int fps = 5;
+        int seconds = 10;
+        for (String arg : args) {
+            if (arg.startsWith("--engines=")) {
+                engines = arg.substring("--engines=".length()).split(",");
+            } else if (arg.startsWith("--connections=")) {
+                String[] parts = arg.substring("--connections=".length()).split(",");
+                connectionCounts = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    connectionCounts[i] = Integer.parseInt(parts[i].trim());
+                }
+            } else if (arg.startsWith("--fps=")) {
+                fps = Integer.parseInt(arg.substring("--fps=".length()));
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Integer.parseInt(arg.substring("--seconds=".length()));
+            } else {
+                System.out.println("用法: java IngestBenchmark [--engines=nio,thread,virtual] [--connections=10,100,1000] [--fps=5] [--seconds=10]");
+                return;
+            }
+        }
+        System.setProperty("ingest.quiet", "true");
+        byte[] jpeg = SyntheticPhoneClient.renderJpegs(FRAME_WIDTH, FRAME_HEIGHT, "bench").get(0);
+
+        List<String> results = new ArrayList<>();
+        for (String engine : engines) {
+            if ("virtual".equals(engine.trim()) && !ConnectionThreads.isVirtualSupported()) {
+                System.out.println("当前 JDK (" + System.getProperty("java.version") + ") 不支持虚拟线程，跳过 virtual 引擎");
+                continue;
+            }
+            for (int connections : connectionCounts) {
+                results.add(runOnce(engine.trim(), connections, fps, seconds, jpeg));
+            }
+        }
+        System.out.println();
+        System.out.println("引擎     连接数   期望fps   实收fps   丢失率   每连接堆(KB)   线程数   RSS(MB)   接入平均/p99(ms)");
+        for (String line : results) {
+            System.out.println(line);
+        }
+    }
+
+    private static String runOnce(String engineName, int connections, int fps, int seconds, byte[] jpeg) throws Exception {
+        LongAdder received = new LongAdder();
+        Map<String, Long> connectStartNanos = new ConcurrentHashMap<>();
+        long[] acceptNanos = new long[connections];
+        FrameSink countingSink = new FrameSink() {
+            @Override
+            public void onStreamOpened(StreamInfo stream) {
+                Long start = connectStartNanos.remove(stream.cameraId);
+                if (start != null) {
+                    acceptNanos[Integer.parseInt(stream.cameraId.substring("bench-".length()))] = System.nanoTime() - start;
+                }
+            }
+
+            @Override
+            public void onFrame(Frame frame) {
+                received.increment();
+            }
+        };
+        long baseHeap = usedHeapAfterGc();
+        int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        List<Socket> sockets = new ArrayList<>(connections);
+        try (IngestEngine engine = IngestEngine.create(engineName, new int[]{0},
+                Collections.singletonList(countingSink), 2, 4)) {
+            engine.start();
+            int port = engine.getLocalPort(0);
+            try {
+                for (int i = 0; i < connections; i++) {
+                    connectStartNanos.put("bench-" + i, System.nanoTime());
+                    Socket socket = new Socket("127.0.0.1", port);
+                    socket.setTcpNoDelay(true);
+                    sockets.add(socket);
+                    writePacket(socket.getOutputStream(),
+                            SyntheticPhoneClient.handshake("bench-" + i, 1, FRAME_WIDTH, FRAME_HEIGHT, fps, 0));
+                }
+                long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+                while (!connectStartNanos.isEmpty() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(20);
+                }
+                if (!connectStartNanos.isEmpty()) {
+                    return String.format("%-8s %6d   连接未全部建立（%d）", engineName, connections, engine.getSessions().size());
+                }
+
+                // 连接建立后先空闲测量，排除发送中的临时缓冲
+                long heapPerConnection = Math.max(0, usedHeapAfterGc() - baseHeap) / connections;
+                int threads = ManagementFactory.getThreadMXBean().getThreadCount() - baseThreads;
+                long rssKb = readRssKb();
+
+                byte[] packet = ByteBuffer.allocate(4 + jpeg.length).putInt(jpeg.length).put(jpeg).array();
+                long before = received.sum();
+                long sent = send(sockets, packet, fps, seconds);
+                long drainDeadline = System.currentTimeMillis() + 5000;
+                while (received.sum() - before < sent && System.currentTimeMillis() < drainDeadline) {
+                    Thread.sleep(20);
+                }
+                long got = received.sum() - before;
+                double expectedFps = (double) connections * fps;
+                double actualFps = (double) got / seconds;
+                double lossPercent = sent > 0 ? 100.0 * (sent - got) / sent : 0;
+                Arrays.sort(acceptNanos);
+                double acceptAvgMs = Arrays.stream(acceptNanos).average().orElse(0) / 1e6;
+                double acceptP99Ms = acceptNanos[Math.min(connections - 1, (int) (connections * 0.99))] / 1e6;
+                String line = String.format("%-8s %6d   %7.0f   %7.0f   %5.1f%%   %12.1f   %6d   %7.1f   %6.2f / %.2f",
+                        engineName, connections, expectedFps, actualFps, lossPercent,
+                        heapPerConnection / 1024.0, threads, rssKb / 1024.0, acceptAvgMs, acceptP99Ms);
+                System.out.println(line);
+                return line;
+            } finally {
+                for (Socket socket : sockets) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // 忽略
+                    }
+                }
+            }
+        } finally {
+            // 等引擎回收会话和线程，避免影响下一轮的基线
+            Thread.sleep(500);
+        }
+    }
+
+    /**
+     * 用 {@link #SENDER_THREADS} 个线程按帧率轮流给各自负责的连接写一帧。
+     *
+     * @return 实际写出的帧数
+     */
+    private static long send(List<Socket> sockets, byte[] packet, int fps, int seconds) throws InterruptedException {
+        LongAdder sent = new LongAdder();
+        long intervalNanos = 1_000_000_000L / fps;
+        long endNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> senders = new ArrayList<>();
+        for (int t = 0; t < SENDER_THREADS; t++) {
+            int first = t;
+            Thread sender = new Thread(() -> {
+                long next = System.nanoTime();
+                while (next < endNanos) {
+                    for (int i = first; i < sockets.size(); i += SENDER_THREADS) {
+                        try {
+                            sockets.get(i).getOutputStream().write(packet);
+                            sent.increment();
+                        } catch (IOException e) {
+                            System.err.println("发送失败: " + e.getMessage());
+                            return;
+                        }
+                    }
+                    next += intervalNanos;
+                    long sleep = next - System.nanoTime();
+                    if (sleep > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(sleep);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "bench-sender-" + t);
+            sender.start();
+            senders.add(sender);
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        return sent.sum();
+    }
+
+    private static void writePacket(OutputStream out, byte[] payload) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(payload.length);
+        data.write(payload);
+        data.flush();
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** 读 /proc/self/status 里的 VmRSS，非 Linux 返回 -1 */
+    private static long readRssKb() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // 忽略
+        }
+        return -1;
+    }
+}
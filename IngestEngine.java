@@ -0,0 +1,58 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 帧流接收引擎。不同实现只在网络模型上不同，协议处理都交给 {@link IngestSession}。
+ */
+public interface IngestEngine extends Closeable {
+
+    /** 绑定端口并开始接收 */
+    void start() throws IOException;
+
+    /** 第 index 个监听端口实际绑定的端口号 */
+    int getLocalPort(int index);
+
+    /** 当前活动的连接 */
+    Collection<IngestSession> getSessions();
+
+    FrameBufferPool getBufferPool();
+
+    /** 在途帧缓冲的全局预算 */
+    IngestMemoryBudget getMemoryBudget();
+
+    @Override
+    void close();
+
+    /**
+     * 按名字创建引擎。
+     *
+     * @param name          "nio"（Selector + 工作线程池）、"thread"（每连接一个平台线程）
+     *                      或 "virtual"（每连接一个虚拟线程）
+     * @param ioThreads     NIO 引擎的 I/O 线程数
+     * @param workerThreads NIO 引擎的工作线程数
+     * @throws IllegalArgumentException 未知的引擎名
+     */
+    static IngestEngine create(String name, int[] ports, List<FrameSink> sinks, int ioThreads, int workerThreads) {
+        return create(name, ports, sinks, ioThreads, workerThreads,
+                new IngestMemoryBudget(IngestMemoryBudget.DEFAULT_TOTAL_BYTES, IngestMemoryBudget.Policy.PAUSE));
+    }
+
+    /**
+     * @param budget 在途帧缓冲的全局预算，所有连接共用
+     */
+    static IngestEngine create(String name, int[] ports, List<FrameSink> sinks, int ioThreads, int workerThreads,
+                               IngestMemoryBudget budget) {
+        switch (name) {
+            case "nio":
+                return new NioIngestServer(ports, sinks, ioThreads, workerThreads, budget);
+            case "thread":
+                return new FrameIngestServer(ports, sinks, ConnectionThreads.PLATFORM, budget);
+            case "virtual":
+                return new FrameIngestServer(ports, sinks, ConnectionThreads.VIRTUAL, budget);
+            default:
+                throw new IllegalArgumentException("未知的接收引擎: " + name + "（可选 nio、thread、virtual）");
+        }
+    }
+}
@@ -0,0 +1,339 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 接收端在途帧缓冲的全局字节预算和准入控制。
+ * <p>
+ * 接收引擎读到一个数据包的长度和类型后，先按 {@link FrameBufferPool} 实际会给出的缓冲大小向预算申请，
+ * 拿到以后才取缓冲读负载，包处理完归还缓冲时再归还预算。每个连接是一个 {@link Account}，
+ * 公平份额是总预算除以当前连接数：连接用量加上这个包不超过份额、并且全局还有余量时准入；
+ * 一个包都没有在途的连接只要全局有余量也准入（大于份额的单个包不会饿死），全局一个在途包都没有时无条件准入。
+ * <p>
+ * 申请不到时按策略处理：
+ * <ul>
+ * <li>{@link Policy#PAUSE}：暂停读这个连接，数据积在内核的接收缓冲里，TCP 窗口收紧后反压到手机；
+ * 别的连接归还预算后再恢复</li>
+ * <li>{@link Policy#DROP}：可以丢的包（没有别的帧依赖的完整 JPEG、分块增量帧，见 {@link IngestSession#isDroppable}）
+ * 直接跳过负载不占内存；握手、回传帧和分块模式的关键帧仍然暂停等待</li>
+ * </ul>
+ * 所有操作都锁住预算对象；每帧两次短暂加锁，和帧率相比开销可以忽略。
+ * <p>
+ * 用法（自测）: java IngestMemoryBudget --selftest
+ */
+public class IngestMemoryBudget {
+
+    public static final long DEFAULT_TOTAL_BYTES = 256L * 1024 * 1024;
+    /** {@link Account#admit} 的结果：已记账，可以取缓冲读入 */
+    public static final int ADMIT = 0;
+    /** 跳过这个包的负载 */
+    public static final int DROP = 1;
+    /** 暂停读取，等预算归还后的回调 */
+    public static final int WAIT = 2;
+    private static final long BLOCKING_WAIT_MS = 100;
+
+    public enum Policy {PAUSE, DROP}
+
+    private final long totalBytes;
+    private final Policy policy;
+    private final List<Account> accounts = new ArrayList<>();
+    private final List<Account> waiting = new ArrayList<>();
+    /** 以下字段由 this 保护 */
+    private long usedBytes;
+    private long peakBytes;
+    private int blockedThreads;
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong pauses = new AtomicLong();
+
+    public IngestMemoryBudget(long totalBytes, Policy policy) {
+        this.totalBytes = totalBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * @param value "pause" 或 "drop"
+     * @throws IllegalArgumentException 未知的策略
+     */
+    public static Policy parsePolicy(String value) {
+        switch (value) {
+            case "pause":
+                return Policy.PAUSE;
+            case "drop":
+                return Policy.DROP;
+            default:
+                throw new IllegalArgumentException("未知的准入策略: " + value + "（可选 pause、drop）");
+        }
+    }
+
+    /**
+     * 为一个连接开户。
+     *
+     * @param onAvailable 非阻塞引擎用：{@link Account#admit} 返回 {@link #WAIT} 后，预算一有归还就调用一次
+     *                    （在归还预算的线程上，不持有锁）；阻塞引擎传 null，用 {@link Account#await}
+     */
+    public synchronized Account open(Runnable onAvailable) {
+        Account account = new Account(onAvailable);
+        accounts.add(account);
+        return account;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /** 开始以来在途字节的最大值 */
+    public synchronized long getPeakBytes() {
+        return peakBytes;
+    }
+
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /** 因为超出份额暂停读取的次数 */
+    public long getPauses() {
+        return pauses.get();
+    }
+
+    /** 当前每个连接的公平份额 */
+    public synchronized long getFairShare() {
+        return totalBytes / Math.max(1, accounts.size());
+    }
+
+    /** 统计行用的摘要 */
+    public synchronized String snapshot() {
+        return String.format("在途 %.1f / %.0f MB (峰值 %.1f MB), %d 个连接每个份额 %.1f MB, %d 个在等待; 准入 %d, 丢弃 %d, 暂停 %d 次",
+                usedBytes / (1024.0 * 1024.0), totalBytes / (1024.0 * 1024.0), peakBytes / (1024.0 * 1024.0),
+                accounts.size(), getFairShare() / (1024.0 * 1024.0), waiting.size() + blockedThreads,
+                admitted.get(), dropped.get(), pauses.get());
+    }
+
+    /** 调用方持有锁 */
+    private boolean tryReserve(Account account, long bytes) {
+        boolean fits = usedBytes + bytes <= totalBytes
+                && (account.usedBytes == 0 || account.usedBytes + bytes <= getFairShare());
+        if (!fits && usedBytes > 0) return false;
+        usedBytes += bytes;
+        account.usedBytes += bytes;
+        peakBytes = Math.max(peakBytes, usedBytes);
+        admitted.incrementAndGet();
+        return true;
+    }
+
+    /** 归还以后唤醒所有在等的连接，它们各自重新申请 */
+    private void released() {
+        List<Account> wake;
+        synchronized (this) {
+            if (blockedThreads > 0) notifyAll();
+            if (waiting.isEmpty()) return;
+            wake = new ArrayList<>(waiting);
+            waiting.clear();
+            for (Account account : wake) {
+                account.waiting = false;
+            }
+        }
+        for (Account account : wake) {
+            account.onAvailable.run();
+        }
+    }
+
+    /** 一个连接在预算里的账户 */
+    public final class Account {
+        private final Runnable onAvailable;
+        /** 以下字段由外部类对象保护 */
+        private long usedBytes;
+        private boolean waiting;
+        private boolean closed;
+
+        private Account(Runnable onAvailable) {
+            this.onAvailable = onAvailable;
+        }
+
+        /**
+         * 非阻塞的准入：返回 {@link #WAIT} 时账户进入等待，预算有归还时回调 onAvailable，调用方届时重新申请。
+         *
+         * @param bytes     缓冲的实际大小（{@link FrameBufferPool#capacityFor}）
+         * @param droppable 这个包能不能丢
+         */
+        public int admit(long bytes, boolean droppable) {
+            synchronized (IngestMemoryBudget.this) {
+                if (tryReserve(this, bytes)) return ADMIT;
+                if (droppable && policy == Policy.DROP) {
+                    dropped.incrementAndGet();
+                    return DROP;
+                }
+                pauses.incrementAndGet();
+                if (!waiting && !closed && onAvailable != null) {
+                    waiting = true;
+                    IngestMemoryBudget.this.waiting.add(this);
+                }
+                return WAIT;
+            }
+        }
+
+        /**
+         * 阻塞的准入：申请不到又不能丢时在这里等，连接线程不读 socket，同样形成 TCP 反压。
+         *
+         * @return {@link #ADMIT} 或 {@link #DROP}
+         */
+        public int await(long bytes, boolean droppable) throws InterruptedException {
+            synchronized (IngestMemoryBudget.this) {
+                if (tryReserve(this, bytes)) return ADMIT;
+                if (droppable && policy == Policy.DROP) {
+                    dropped.incrementAndGet();
+                    return DROP;
+                }
+                pauses.incrementAndGet();
+                blockedThreads++;
+                try {
+                    while (!tryReserve(this, bytes)) {
+                        IngestMemoryBudget.this.wait(BLOCKING_WAIT_MS);
+                    }
+                } finally {
+                    blockedThreads--;
+                }
+                return ADMIT;
+            }
+        }
+
+        /** 归还一个包的预算（bytes 与准入时相同） */
+        public void release(long bytes) {
+            if (bytes <= 0) return;
+            synchronized (IngestMemoryBudget.this) {
+                usedBytes -= bytes;
+                IngestMemoryBudget.this.usedBytes -= bytes;
+            }
+            released();
+        }
+
+        /** 这个连接现在占用的字节 */
+        public long getUsedBytes() {
+            synchronized (IngestMemoryBudget.this) {
+                return usedBytes;
+            }
+        }
+
+        /** 连接关闭：销户，没有归还的部分一并归还，其余连接的份额随之变大 */
+        public void close() {
+            synchronized (IngestMemoryBudget.this) {
+                if (closed) return;
+                closed = true;
+                accounts.remove(this);
+                IngestMemoryBudget.this.waiting.remove(this);
+                IngestMemoryBudget.this.usedBytes -= usedBytes;
+                usedBytes = 0;
+            }
+            released();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--selftest".equals(args[0])) {
+            System.exit(selfTest() ? 0 : 1);
+            return;
+        }
+        System.out.println("用法: java IngestMemoryBudget --selftest");
+    }
+
+    /**
+     * 自测：先检查份额和唤醒的规则；再用很小的预算和一个很慢的去处跑两个接收引擎，
+     * pause 策略下所有帧都要收到、在途字节不超过预算；drop 策略下有帧被丢、剩下的照常收到。
+     */
+    static boolean selfTest() throws Exception {
+        boolean ok = true;
+        IngestMemoryBudget budget = new IngestMemoryBudget(120, Policy.PAUSE);
+        int[] wakeups = new int[1];
+        Account a = budget.open(() -> wakeups[0]++);
+        Account b = budget.open(() -> wakeups[0]++);
+        ok &= check(a.admit(30, false) == ADMIT && a.admit(30, false) == ADMIT, "份额内准入");
+        ok &= check(a.admit(30, false) == WAIT, "超出份额 (60) 等待");
+        ok &= check(b.admit(40, false) == ADMIT, "空账户只要全局有余量就准入");
+        ok &= check(b.admit(30, false) == WAIT, "全局超额时不准入");
+        a.release(30);
+        ok &= check(wakeups[0] == 2, "归还后每个等待的账户唤醒一次, 实际 " + wakeups[0]);
+        b.close();
+        ok &= check(budget.getFairShare() == 120 && a.admit(60, false) == ADMIT, "销户后份额变大");
+        a.close();
+        ok &= check(budget.getUsedBytes() == 0, "销户归还全部");
+        IngestMemoryBudget empty = new IngestMemoryBudget(10, Policy.DROP);
+        Account c = empty.open(null);
+        ok &= check(c.admit(1000, true) == ADMIT, "全局为空时超大包也准入");
+        ok &= check(c.admit(1, true) == DROP && c.admit(1, false) == WAIT, "drop 策略只丢可丢的包");
+
+        for (String engine : new String[]{"nio", "thread"}) {
+            ok &= runEngine(engine, Policy.PAUSE);
+            ok &= runEngine(engine, Policy.DROP);
+        }
+        System.out.println("自测" + (ok ? "通过" : "失败"));
+        return ok;
+    }
+
+    private static boolean check(boolean condition, String what) {
+        if (!condition) System.err.println("不符: " + what);
+        return condition;
+    }
+
+    /**
+     * 4 个客户端不限速发 320x240 的帧，去处每帧睡 2 ms，预算只够两帧的缓冲：
+     * 阻塞引擎每个连接本来只有一个包在途，这时也会有连接要等
+     */
+    private static boolean runEngine(String engineName, Policy policy) throws Exception {
+        System.setProperty("ingest.quiet", "true");
+        AtomicLong received = new AtomicLong();
+        FrameSink slowSink = new FrameSink() {
+            @Override
+            public void onFrame(Frame frame) throws InterruptedException {
+                Thread.sleep(2);
+                received.incrementAndGet();
+            }
+        };
+        int frameBytes = 0;
+        for (byte[] jpeg : SyntheticPhoneClient.renderJpegs(320, 240, "m")) {
+            frameBytes = Math.max(frameBytes, FrameBufferPool.capacityFor(jpeg.length));
+        }
+        IngestMemoryBudget budget = new IngestMemoryBudget(2L * frameBytes, policy);
+        int frames = 150;
+        try (IngestEngine server = IngestEngine.create(engineName, new int[]{0},
+                Collections.singletonList(slowSink), 1, 2, budget)) {
+            server.start();
+            List<SyntheticPhoneClient> clients = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                clients.add(new SyntheticPhoneClient("127.0.0.1", server.getLocalPort(0), "m" + i, 1, 320, 240, frames, 0));
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(clients.size());
+            List<Future<Integer>> results = new ArrayList<>();
+            for (SyntheticPhoneClient client : clients) {
+                results.add(executor.submit(client::run));
+            }
+            long sent = 0;
+            for (Future<Integer> result : results) {
+                sent += result.get();
+            }
+            executor.shutdown();
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (received.get() + budget.getDropped() < sent && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            boolean ok = budget.getPeakBytes() <= budget.getTotalBytes()
+                    && received.get() + budget.getDropped() == sent
+                    && (policy == Policy.PAUSE ? budget.getDropped() == 0 && budget.getPauses() > 0 : budget.getDropped() > 0);
+            System.out.printf("  [%s, %s] %s: 发送 %d 帧, 收到 %d, 丢弃 %d, 暂停 %d 次, 在途峰值 %d KB / %d KB\n",
+                    engineName, policy, ok ? "通过" : "失败", sent, received.get(), budget.getDropped(), budget.getPauses(),
+                    budget.getPeakBytes() / 1024, budget.getTotalBytes() / 1024);
+            return ok && server.getMemoryBudget() == budget;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 一条手机连接的协议状态：解析握手包、校验 JPEG、重建分块增量帧，并把完整帧交给各个 {@link FrameSink}。
+ * <p>
+ * 与具体的网络模型无关，阻塞式和非阻塞式接收引擎都把读到的完整数据包交给 {@link #onPacket}。
+ * 同一个会话的数据包必须按顺序、串行地送入。
+ */
+public class IngestSession {
+
+    private static final int LOG_FIRST_INVALID = 10;
+    private static final int LOG_EVERY_INVALID = 100;
+
+    private final int port;
+    private final String remoteAddress;
+    private final List<FrameSink> sinks;
+    private final StreamStats stats = new StreamStats();
+    private StreamInfo info;
+    private boolean opened = false;
+    private TileCanvas canvas;
+    /** 分块模式：关键帧之后的增量帧都依赖画布，关键帧不能丢；接收线程做准入时读 */
+    private volatile boolean tileMode;
+    /** 丢过增量帧，画布已经不对，在下一个关键帧之前的增量帧都不能用 */
+    private boolean canvasStale;
+
+    public IngestSession(int port, String remoteAddress, List<FrameSink> sinks) {
+        this.port = port;
+        this.remoteAddress = remoteAddress;
+        this.sinks = sinks;
+        this.info = StreamInfo.unidentified(port, remoteAddress);
+    }
+
+    public StreamInfo getInfo() {
+        return info;
+    }
+
+    public StreamStats getStats() {
+        return stats;
+    }
+
+    /**
+     * 处理一个完整的数据包（不含 4 字节长度前缀）。
+     *
+     * @return 需要向手机写入 {@link FrameProtocol#REQUEST_KEYFRAME} 时返回 true
+     */
+    public boolean onPacket(byte[] data, int offset, int length) {
+        stats.onPacket(length + 4);
+        if (length <= 0) {
+            invalid("空数据包");
+            return false;
+        }
+        byte type = data[offset];
+        try {
+            if (type == FrameProtocol.PACKET_HANDSHAKE) {
+                if (opened) {
+                    notifyClosed(); // 同一连接上重新握手，按新流处理
+                }
+                info = StreamInfo.parseHandshake(port, remoteAddress, data, offset, length);
+                tileMode = info.hasCapability(FrameProtocol.CAP_TILE_DELTA);
+                ensureOpened();
+            } else if ((type & 0xFF) == 0xFF) {
+                if (!FrameProtocol.isCompleteJpeg(data, offset, length)) {
+                    invalid("JPEG 缺少 SOI/EOI, 长度 " + length);
+                    return canvas != null; // 分块模式下坏掉的关键帧需要补发
+                }
+                if (canvas != null || info.hasCapability(FrameProtocol.CAP_TILE_DELTA)) {
+                    if (canvas == null) canvas = new TileCanvas();
+                    tileMode = true;
+                    canvas.applyKeyframe(data, offset, length);
+                    canvasStale = false;
+                }
+                deliver(data, offset, length, System.currentTimeMillis(), false);
+            } else if (type == FrameProtocol.PACKET_TILE_DELTA) {
+                if (canvas == null) canvas = new TileCanvas();
+                tileMode = true;
+                if (canvasStale || !canvas.applyTileDelta(data, offset, length)) {
+                    stats.onKeyframeRequest();
+                    return true;
+                }
+                byte[] jpeg = canvas.toJpeg();
+                deliver(jpeg, 0, jpeg.length, System.currentTimeMillis(), false);
+            } else if (type == FrameProtocol.PACKET_BACKFILL) {
+                if (length <= FrameProtocol.BACKFILL_HEADER_BYTES || data[offset + 1] != FrameProtocol.BACKFILL_VERSION) {
+                    invalid("回传帧头无效, 长度 " + length);
+                    return false;
+                }
+                long captureTimeMs = ByteBuffer.wrap(data, offset + 2, 8).getLong();
+                int jpegOffset = offset + FrameProtocol.BACKFILL_HEADER_BYTES;
+                int jpegLength = length - FrameProtocol.BACKFILL_HEADER_BYTES;
+                if (!FrameProtocol.isCompleteJpeg(data, jpegOffset, jpegLength)) {
+                    invalid("回传 JPEG 缺少 SOI/EOI, 长度 " + jpegLength);
+                    return false;
+                }
+                deliver(data, jpegOffset, jpegLength, captureTimeMs, true);
+            } else {
+                invalid("未知包类型 0x" + Integer.toHexString(type & 0xFF));
+            }
+        } catch (IOException e) {
+            invalid(e.getMessage());
+            if (type == FrameProtocol.PACKET_TILE_DELTA) {
+                stats.onKeyframeRequest();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 内存预算不足时这个类型的包能不能不读就丢：完整 JPEG 在非分块模式下互不依赖，可以丢；
+     * 分块增量帧可以丢，代价是画布失效、要请求关键帧（见 {@link #onDropped}）；
+     * 握手、回传的历史帧和分块模式的关键帧不能丢。可以在接收线程上调用。
+     */
+    public boolean isDroppable(byte type) {
+        if (type == FrameProtocol.PACKET_TILE_DELTA) return true;
+        return (type & 0xFF) == 0xFF && !tileMode;
+    }
+
+    /**
+     * 一个包因为内存预算被丢掉了（和其它包按顺序送入）。
+     *
+     * @return 需要向手机写入 {@link FrameProtocol#REQUEST_KEYFRAME} 时返回 true
+     */
+    public boolean onDropped(byte type) {
+        stats.onDroppedFrame();
+        if (type != FrameProtocol.PACKET_TILE_DELTA) return false;
+        canvasStale = true;
+        stats.onKeyframeRequest();
+        return true;
+    }
+
+    /** 连接关闭时调用 */
+    public void close() {
+        if (opened) {
+            notifyClosed();
+        }
+    }
+
+    private void deliver(byte[] data, int offset, int length, long captureTimeMs, boolean backfill) {
+        ensureOpened();
+        stats.onFrame(backfill);
+        Frame frame = new Frame(info, data, offset, length, captureTimeMs, backfill);
+        for (FrameSink sink : sinks) {
+            try {
+                sink.onFrame(frame);
+            } catch (Exception e) {
+                System.err.println("帧处理出错 (" + info.key() + ", " + sink.getClass().getSimpleName() + "): " + e.getMessage());
+            }
+        }
+    }
+
+    private void ensureOpened() {
+        if (opened) return;
+        opened = true;
+        if (IngestStatsReporter.VERBOSE) {
+            System.out.println("新的帧流: " + info);
+        }
+        for (FrameSink sink : sinks) {
+            try {
+                sink.onStreamOpened(info);
+            } catch (RuntimeException e) {
+                System.err.println("打开帧流出错 (" + sink.getClass().getSimpleName() + "): " + e.getMessage());
+            }
+        }
+    }
+
+    private void notifyClosed() {
+        opened = false;
+        for (FrameSink sink : sinks) {
+            try {
+                sink.onStreamClosed(info);
+            } catch (RuntimeException e) {
+                System.err.println("关闭帧流出错 (" + sink.getClass().getSimpleName() + "): " + e.getMessage());
+            }
+        }
+    }
+
+    private void invalid(String reason) {
+        stats.onInvalidPacket();
+        long count = stats.getInvalidPackets();
+        if (count <= LOG_FIRST_INVALID || count % LOG_EVERY_INVALID == 0) {
+            System.err.println("丢弃无效数据包 (" + info.key() + ", 第 " + count + " 个): " + reason);
+        }
+    }
+}
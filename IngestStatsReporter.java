@@ -0,0 +1,38 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 接收引擎共用的统计输出：每条流一行（流太多时只列前几条），然后是汇总和缓冲池情况、内存预算的占用和准入情况。
+ */
+final class IngestStatsReporter {
+
+    /** 是否打印每条连接的建立/断开日志；压测时用 -Dingest.quiet=true 关闭 */
+    static final boolean VERBOSE = !Boolean.getBoolean("ingest.quiet");
+    static final long INTERVAL_MS = 5000;
+    private static final int MAX_STREAM_LINES = 20;
+
+    private IngestStatsReporter() {
+    }
+
+    static void report(IngestEngine engine) {
+        Collection<IngestSession> sessions = engine.getSessions();
+        if (sessions.isEmpty()) return;
+        List<IngestSession> snapshot = new ArrayList<>(sessions);
+        long frames = 0;
+        long bytes = 0;
+        int printed = 0;
+        for (IngestSession session : snapshot) {
+            String line = session.getStats().snapshot();
+            frames += session.getStats().getFrames();
+            bytes += session.getStats().getBytes();
+            if (printed++ < MAX_STREAM_LINES) {
+                System.out.println("[统计] " + session.getInfo().key() + ": " + line);
+            }
+        }
+        FrameBufferPool pool = engine.getBufferPool();
+        System.out.printf("[统计] %d 条流, 累计 %d 帧, %.1f MB; 缓冲池新分配 %d, 复用 %d\n",
+                snapshot.size(), frames, bytes / (1024.0 * 1024.0), pool.getAllocations(), pool.getReuses());
+        System.out.println("[内存] " + engine.getMemoryBudget().snapshot());
+    }
+}
@@ -0,0 +1,103 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 某条流的一帧实时画面，创建后不再修改，所有观看者共享同一块缓冲。
+ * <p>
+ * 缓冲里直接放好 multipart/x-mixed-replace 的一个分段（分段头 | JPEG | CRLF），
+ * MJPEG 观看者拿 {@link #mjpegPart()} 的只读视图原样发出，其它用法用 {@link #jpeg()} 只取 JPEG 部分；
+ * 每个视图只是独立的读指针，不复制数据。
+ * <p>
+ * 快照接口 200 和 304 的响应头（不含最后的 Connection 行）也在这里一次做好，轮询的请求只需要比较 ETag、拼几个视图。
+ * <p>
+ * 缓冲可以来自 {@link SlabAllocator}（堆外、池化），这时帧带引用计数：{@link LiveFrameHub} 持有一份，
+ * 被新帧替换时释放；要读数据的一方先用 {@link LiveFrameHub#acquireLatest} 拿到自己的一份，
+ * 视图全部用完（写到 socket 里）后调用 {@link #release()}。只看序号、ETag 等字段不需要计数。
+ */
+public final class LiveFrame {
+
+    static final String BOUNDARY = "frame";
+
+    public final String streamKey;
+    /** 本进程内这条流的帧序号，从 1 开始 */
+    public final long sequence;
+    public final long captureTimeMs;
+    /** 带引号的强 ETag：进程标记-序号，进程重启后不会和旧值相同 */
+    public final String etag;
+    /** 分段 | 200 响应头 | 304 响应头，依次放在同一块缓冲里 */
+    private final SlabAllocator.PooledBuffer buffer;
+    private final int partLength;
+    private final int jpegOffset;
+    private final int jpegLength;
+    private final int snapshotHeaderLength;
+    private final int notModifiedHeaderLength;
+
+    /** @param allocator 分配缓冲用，null 表示放在堆上 */
+    LiveFrame(String streamKey, String instanceTag, long sequence, long captureTimeMs, byte[] jpeg, int offset, int length,
+            SlabAllocator allocator) {
+        this.streamKey = streamKey;
+        this.sequence = sequence;
+        this.captureTimeMs = captureTimeMs;
+        this.etag = "\"" + instanceTag + "-" + sequence + "\"";
+        String common = "ETag: " + etag + "\r\n"
+                + "Cache-Control: no-cache\r\n"
+                + "X-Sequence: " + sequence + "\r\n"
+                + "X-Timestamp: " + captureTimeMs + "\r\n";
+        byte[] snapshotHeader = ("HTTP/1.1 200 OK\r\n"
+                + "Content-Type: image/jpeg\r\n"
+                + "Content-Length: " + length + "\r\n" + common).getBytes(StandardCharsets.US_ASCII);
+        byte[] notModifiedHeader = ("HTTP/1.1 304 Not Modified\r\n" + common).getBytes(StandardCharsets.US_ASCII);
+        byte[] header = ("--" + BOUNDARY + "\r\n"
+                + "Content-Type: image/jpeg\r\n"
+                + "Content-Length: " + length + "\r\n"
+                + "X-Sequence: " + sequence + "\r\n"
+                + "X-Timestamp: " + captureTimeMs + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        this.partLength = header.length + length + 2;
+        int size = partLength + snapshotHeader.length + notModifiedHeader.length;
+        this.buffer = allocator == null ? SlabAllocator.unpooled(size) : allocator.allocate(size);
+        buffer.memory().put(header).put(jpeg, offset, length).put((byte) '\r').put((byte) '\n')
+                .put(snapshotHeader).put(notModifiedHeader);
+        this.jpegOffset = header.length;
+        this.jpegLength = length;
+        this.snapshotHeaderLength = snapshotHeader.length;
+        this.notModifiedHeaderLength = notModifiedHeader.length;
+    }
+
+    /** 完整的 multipart 分段，只读视图 */
+    public ByteBuffer mjpegPart() {
+        return view(0, partLength);
+    }
+
+    /** 只有 JPEG 的只读视图 */
+    public ByteBuffer jpeg() {
+        return view(jpegOffset, jpegLength);
+    }
+
+    /** GET /snapshot 的 200 响应头，不含 Connection 行和空行，只读视图 */
+    ByteBuffer snapshotHeader() {
+        return view(partLength, snapshotHeaderLength);
+    }
+
+    /** If-None-Match 命中时的 304 响应头，不含 Connection 行和空行，只读视图 */
+    ByteBuffer notModifiedHeader() {
+        return view(partLength + snapshotHeaderLength, notModifiedHeaderLength);
+    }
+
+    private ByteBuffer view(int offset, int length) {
+        return buffer.memory().position(offset).limit(offset + length).slice().asReadOnlyBuffer();
+    }
+
+    public int getJpegLength() {
+        return jpegLength;
+    }
+
+    /** 多拿一份；帧已经被释放（被新帧替换且没有别的使用者）时返回 false */
+    boolean tryRetain() {
+        return buffer.tryRetain();
+    }
+
+    /** 还回一份，最后一份还回时缓冲回到池里，之前拿到的视图都不能再用 */
+    public void release() {
+        buffer.release();
+    }
+}
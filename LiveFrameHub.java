@@ -0,0 +1,102 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 每条流只保留最新一帧的 {@link FrameSink}，给实时观看（MJPEG、快照等）用。
+ * <p>
+ * 每帧在接收线程上复制一次，做成不可变的 {@link LiveFrame} 放进这条流的 AtomicReference，
+ * 再通知监听者。读的一方随时取最新的一帧，不加锁；跟不上的观看者自然跳过中间的帧，不会反过来拖住接收。
+ * 读路径（{@link #latest}）只有 ConcurrentHashMap 查找和一次 volatile 读，不加锁、不碰磁盘。
+ * 回传的历史帧不是实时画面，不进这里。
+ * <p>
+ * 给了 {@link SlabAllocator} 时帧放在池化的堆外缓冲里，每秒几千帧也不产生大块的堆垃圾，
+ * 发给观看者时也省掉 JDK 把堆数组先复制到临时直接缓冲的那一次复制。
+ * 这时帧有引用计数：这里持有每条流最新一帧的一份，被新帧替换时释放；
+ * 要读帧数据的一方用 {@link #acquireLatest} 拿自己的一份，用完 {@link LiveFrame#release()}。
+ */
+public class LiveFrameHub implements FrameSink {
+
+    /** 新帧通知，在接收线程上调用，实现必须很快返回；调用返回后还要用这一帧的数据需要自己 acquireLatest */
+    public interface Listener {
+        void onLiveFrame(LiveFrame frame);
+    }
+
+    private static final class Slot {
+        final AtomicReference<LiveFrame> latest = new AtomicReference<>();
+        long sequence; // 只在这条流的接收线程上递增
+    }
+
+    private final Map<String, Slot> streams = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    /** 进程标记，放进 ETag，进程重启后序号从 1 重新开始也不会误判为未修改 */
+    private final String instanceTag = Long.toString(System.currentTimeMillis(), 36);
+    private final SlabAllocator allocator;
+
+    public LiveFrameHub() {
+        this(null);
+    }
+
+    /** @param allocator 帧缓冲从这里分配，null 表示放在堆上 */
+    public LiveFrameHub(SlabAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void onFrame(Frame frame) {
+        if (frame.backfill) return;
+        String key = frame.stream.key();
+        Slot slot = streams.computeIfAbsent(key, k -> new Slot());
+        LiveFrame live;
+        LiveFrame previous;
+        synchronized (slot) {
+            live = new LiveFrame(key, instanceTag, ++slot.sequence, frame.captureTimeMs, frame.data, frame.offset, frame.length,
+                    allocator);
+            previous = slot.latest.getAndSet(live);
+        }
+        if (previous != null) previous.release();
+        for (Listener listener : listeners) {
+            listener.onLiveFrame(live);
+        }
+    }
+
+    /**
+     * 这条流最新的一帧，只用来看序号、ETag 等字段；帧随时可能被替换并释放，要读数据用 {@link #acquireLatest}。
+     *
+     * @return 还没收到过帧时返回 null
+     */
+    public LiveFrame latest(String streamKey) {
+        Slot slot = streams.get(streamKey);
+        return slot == null ? null : slot.latest.get();
+    }
+
+    /**
+     * 这条流最新的一帧，并为调用方多拿一份，用完必须 {@link LiveFrame#release()}。
+     * 取到的帧恰好在这时被替换、释放掉的话，重新取替换它的那一帧。
+     *
+     * @return 还没收到过帧时返回 null
+     */
+    public LiveFrame acquireLatest(String streamKey) {
+        Slot slot = streams.get(streamKey);
+        if (slot == null) return null;
+        while (true) {
+            LiveFrame frame = slot.latest.get();
+            if (frame == null || frame.tryRetain()) return frame;
+        }
+    }
+
+    /** 收到过实时帧的流 */
+    public List<String> getStreamKeys() {
+        List<String> keys = new ArrayList<>(streams.keySet());
+        Collections.sort(keys);
+        return keys;
+    }
+}
@@ -0,0 +1,1040 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 实时画面的 HTTP 服务：一个 I/O 线程、一个 Selector，全部非阻塞。
+ * <ul>
+ * <li>{@code GET /} 流列表页面</li>
+ * <li>{@code GET /mjpeg/<流标识>} multipart/x-mixed-replace 的 MJPEG，浏览器 img 标签可以直接播放</li>
+ * <li>{@code GET /ws[?streams=a,b|*]} WebSocket，一条连接订阅多路流，二进制推送带序号和采集时间的帧（见 {@link WebSocketSession}）</li>
+ * <li>{@code GET /dashboard} 用 WebSocket 同时看所有流、显示延迟的页面</li>
+ * <li>{@code GET /snapshot/<流标识>} 最新一帧的 JPEG，带 ETag；If-None-Match 命中时回 304，不发图片</li>
+ * <li>{@code GET /replay/<流标识>[?seconds=N]} 设置了 {@link ReplayBuffer} 时，最近 N 秒（默认整个窗口）的帧，
+ * 以 multipart/x-mixed-replace 发出，每个分段带 X-Timestamp；写得动时才从缓冲复制下一帧，HTTP/1.1 用分块编码，
+ * 帧数放在 X-Frame-Count 尾部字段里</li>
+ * </ul>
+ * 所有观看者发送的都是 {@link LiveFrameHub} 里同一个 {@link LiveFrame} 的只读视图，没有按观看者复制。
+ * 正在写的帧由连接用 {@link LiveFrameHub#acquireLatest} 多拿一份，写完立即释放，发不动的连接也只占着自己那一帧。
+ * 每个观看者只记着自己发到了哪一帧：当前帧发完后直接取这条流最新的一帧，中间的帧跳过；
+ * 发不动的观看者只是停在自己当前这一帧上，不影响接收和其他观看者。
+ * <p>
+ * 普通请求支持 HTTP/1.1 keep-alive。快照请求只读 {@link LiveFrameHub#latest} 的最新引用，不加锁、不碰磁盘，
+ * 响应头在 {@link LiveFrame} 里已经做好，一次请求只是比较 ETag 再做一次聚集写。
+ */
+public class LiveHttpServer implements Closeable, LiveFrameHub.Listener {
+
+    public static final int DEFAULT_PORT = 8080;
+    private static final int MAX_REQUEST_BYTES = 8 * 1024;
+    /**
+     * 观看者的内核发送缓冲（Linux 实际分配两倍），限制已经交给内核、来不及跳过的旧帧数量。
+     * 太大时慢观看者看到的是几秒前排在内核里的帧，跳帧根本发生不了。
+     */
+    private static final int VIEWER_SEND_BUFFER_BYTES = 64 * 1024;
+    private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    private static final byte[] KEEP_ALIVE_END = "Connection: keep-alive\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLOSE_END = "Connection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PART_END = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    /** 分段结尾再加上分块结尾 */
+    private static final byte[] PART_END_CHUNKED = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    /** 回放一次可写事件里最多写的分段数 */
+    private static final int MAX_REPLAY_PARTS_PER_WRITE = 16;
+
+    private final int port;
+    private final LiveFrameHub hub;
+    private final Queue<String> updatedStreams = new ConcurrentLinkedQueue<>();
+    /** 流标识 → 正在观看的连接，只在 I/O 线程上访问 */
+    private final Map<String, List<Connection>> viewers = new HashMap<>();
+    /** 订阅了所有流的 WebSocket 连接，只在 I/O 线程上访问 */
+    private final List<Connection> allStreamViewers = new ArrayList<>();
+    private final ByteBuffer discard = ByteBuffer.allocate(4096);
+    private volatile ReplayBuffer replay;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean running;
+    private long lastIdleSweep = System.nanoTime();
+    private long framesSent;
+    private long framesSkipped;
+    private long snapshotsSent;
+    private long snapshotsNotModified;
+
+    public LiveHttpServer(int port, LiveFrameHub hub) {
+        this.port = port;
+        this.hub = hub;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) return;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        hub.addListener(this);
+        thread = new Thread(this::run, "live-http");
+        thread.start();
+        System.out.println("实时画面 HTTP 服务启动，监听端口: " + getLocalPort());
+    }
+
+    /** 提供 /replay 接口用的回放缓冲，null 表示不提供 */
+    public void setReplayBuffer(ReplayBuffer replay) {
+        this.replay = replay;
+    }
+
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /** 接收线程调用：只记下有新帧的流，唤醒 I/O 线程 */
+    @Override
+    public void onLiveFrame(LiveFrame frame) {
+        if (!running) return;
+        updatedStreams.add(frame.streamKey);
+        selector.wakeup();
+    }
+
+    /** 已发出的帧数和观看者跳过的帧数，包括 MJPEG 和 WebSocket（I/O 线程上的计数，读到的可能略旧） */
+    public long[] getFrameCounters() {
+        return new long[]{framesSent, framesSkipped};
+    }
+
+    /** 回了图片的快照请求数和回 304 的快照请求数（I/O 线程上的计数，读到的可能略旧） */
+    public long[] getSnapshotCounters() {
+        return new long[]{snapshotsSent, snapshotsNotModified};
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT_MS);
+                String streamKey;
+                while ((streamKey = updatedStreams.poll()) != null) {
+                    List<Connection> list = viewers.get(streamKey);
+                    if (list != null) {
+                        for (Connection viewer : new ArrayList<>(list)) {
+                            if (viewer.isIdle()) viewer.pump();
+                        }
+                    }
+                    for (Connection viewer : new ArrayList<>(allStreamViewers)) {
+                        if (viewer.isIdle()) viewer.pump();
+                    }
+                }
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        acceptAll();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable()) connection.onReadable();
+                    if (key.isValid() && key.isWritable()) connection.onWritable();
+                }
+                sweepIdle();
+            }
+        } catch (IOException e) {
+            System.err.println("HTTP I/O 线程出错: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) ((Connection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+    }
+
+    private void acceptAll() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                if (running) System.err.println("接受 HTTP 连接时出错: " + e.getMessage());
+                return;
+            }
+            if (channel == null) return;
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ioException) {
+                    // 忽略
+                }
+            }
+        }
+    }
+
+    /** 关闭长时间没有请求的 keep-alive 连接；观看中的连接不算空闲 */
+    private void sweepIdle() {
+        long now = System.nanoTime();
+        if (now - lastIdleSweep < TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT_MS)) return;
+        lastIdleSweep = now;
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+                Connection connection = (Connection) attachment;
+                if (connection.viewing == null && connection.ws == null
+                        && now - connection.lastActivityNanos > IDLE_TIMEOUT_NANOS) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /** 一条 HTTP 连接：先读请求；普通请求回复后继续读下一个，MJPEG 和 WebSocket 请求之后一直推帧 */
+    private final class Connection {
+        final SocketChannel channel;
+        final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        SelectionKey key;
+        ByteBuffer[] response;
+        boolean keepAlive;
+        /** 当前请求是 HTTP/1.1，可以用分块编码 */
+        boolean http11;
+        long lastActivityNanos = System.nanoTime();
+        /** 正在观看的流；null 表示普通请求模式 */
+        String viewing;
+        ByteBuffer current;
+        /** current 所属的帧，写完释放 */
+        LiveFrame currentFrame;
+        long sentSequence;
+        /** 正在逐帧发送的回放，最后一个分段写完后置 null */
+        ReplayBuffer.Cursor replaying;
+        int replayedFrames;
+        /** 回放用分块编码发送；否则以关闭连接结束 */
+        boolean chunked;
+        /** 快照响应里用到的帧，响应写完释放 */
+        LiveFrame responseFrame;
+        /** WebSocket 模式的协议状态；null 表示不是 WebSocket 连接 */
+        WebSocketSession ws;
+        ByteBuffer[] outgoing;
+        /** outgoing 里用到的帧，消息写完释放 */
+        final List<LiveFrame> outgoingFrames = new ArrayList<>();
+        /** 在 viewers 里登记过的流标识 */
+        final List<String> registered = new ArrayList<>();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void onReadable() {
+            try {
+                if (viewing != null) {
+                    // 观看中只需要发现对方关闭
+                    discard.clear();
+                    if (channel.read(discard) < 0) close();
+                    return;
+                }
+                if (ws != null) {
+                    onWebSocketReadable();
+                    return;
+                }
+                int read = channel.read(request);
+                if (read < 0) {
+                    close();
+                    return;
+                }
+                lastActivityNanos = System.nanoTime();
+                if (response == null) processRequests();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /** 缓冲里凑齐了请求头就处理，支持流水线发来的多个请求 */
+        private void processRequests() throws IOException {
+            int end = headerEnd();
+            if (end < 0) {
+                if (!request.hasRemaining()) {
+                    respond(431, "text/plain", "请求头太长", false);
+                }
+                return;
+            }
+            String head = new String(request.array(), 0, end, StandardCharsets.ISO_8859_1);
+            int consumed = end + 4;
+            request.flip().position(consumed);
+            request.compact();
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+                }
+            }
+            if (requestLine.length != 3) {
+                respond(400, "text/plain", "请求行无效", false);
+                return;
+            }
+            String connectionHeader = headers.getOrDefault("connection", "");
+            http11 = "HTTP/1.1".equals(requestLine[2]);
+            keepAlive = http11
+                    ? !"close".equalsIgnoreCase(connectionHeader)
+                    : "keep-alive".equalsIgnoreCase(connectionHeader);
+            if (!"GET".equals(requestLine[0])) {
+                respond(405, "text/plain", "只支持 GET", false);
+                return;
+            }
+            handle(requestLine[1], headers);
+        }
+
+        private int headerEnd() {
+            byte[] bytes = request.array();
+            for (int i = 0; i + 3 < request.position(); i++) {
+                if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void handle(String path, Map<String, String> headers) throws IOException {
+            int queryStart = path.indexOf('?');
+            String query = queryStart >= 0 ? path.substring(queryStart + 1) : "";
+            if (queryStart >= 0) path = path.substring(0, queryStart);
+            if ("/".equals(path)) {
+                respond(200, "text/html; charset=utf-8", indexPage(), keepAlive);
+            } else if ("/dashboard".equals(path)) {
+                respond(200, "text/html; charset=utf-8", DASHBOARD_PAGE, keepAlive);
+            } else if ("/ws".equals(path)) {
+                startWebSocket(query, headers);
+            } else if (path.startsWith("/snapshot/")) {
+                snapshot(path.substring("/snapshot/".length()), headers.get("if-none-match"));
+            } else if (path.startsWith("/replay/")) {
+                replay(path.substring("/replay/".length()), query);
+            } else if (path.startsWith("/mjpeg/")) {
+                startViewing(path.substring("/mjpeg/".length()));
+            } else {
+                respond(404, "text/plain", "没有这个地址", keepAlive);
+            }
+        }
+
+        /** 最新一帧：ETag 没变回 304，否则回共享帧的 JPEG 视图，头都是帧里预先做好的 */
+        private void snapshot(String streamKey, String ifNoneMatch) throws IOException {
+            LiveFrame frame = hub.acquireLatest(streamKey);
+            if (frame == null) {
+                respond(404, "text/plain", "没有这条流: " + streamKey, keepAlive);
+                return;
+            }
+            responseFrame = frame;
+            ByteBuffer end = ByteBuffer.wrap(keepAlive ? KEEP_ALIVE_END : CLOSE_END);
+            if (ifNoneMatch != null && etagMatches(ifNoneMatch, frame.etag)) {
+                snapshotsNotModified++;
+                response = new ByteBuffer[]{frame.notModifiedHeader(), end};
+            } else {
+                snapshotsSent++;
+                response = new ByteBuffer[]{frame.snapshotHeader(), end, frame.jpeg()};
+            }
+            writeResponse();
+        }
+
+        /**
+         * 回放缓冲里最近的帧，按 MJPEG 分段格式发送。这里只发响应头，
+         * 之后每写完一个分段才从缓冲复制下一帧（见 {@link #nextReplayPart}），一次只占一帧的内存。
+         */
+        private void replay(String streamKey, String query) throws IOException {
+            ReplayBuffer buffer = replay;
+            if (buffer == null) {
+                respond(404, "text/plain", "没有开启回放缓冲", keepAlive);
+                return;
+            }
+            long durationMs = buffer.getWindowMs();
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("seconds=")) {
+                    try {
+                        durationMs = Math.min(durationMs, Long.parseLong(parameter.substring("seconds=".length())) * 1000);
+                    } catch (NumberFormatException e) {
+                        respond(400, "text/plain", "seconds 无效", keepAlive);
+                        return;
+                    }
+                }
+            }
+            ReplayBuffer.Cursor cursor = buffer.cursor(streamKey, durationMs);
+            if (cursor == null || cursor.remaining() == 0) {
+                respond(404, "text/plain", "没有这条流的回放: " + streamKey, keepAlive);
+                return;
+            }
+            // 事先不知道总长度：HTTP/1.1 用分块编码，HTTP/1.0 只能发完关连接
+            chunked = http11;
+            if (!chunked) keepAlive = false;
+            String header = "HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: multipart/x-mixed-replace; boundary=" + LiveFrame.BOUNDARY + "\r\n"
+                    + "Cache-Control: no-cache, no-store\r\n"
+                    + (chunked ? "Transfer-Encoding: chunked\r\nTrailer: X-Frame-Count\r\n" : "")
+                    + (keepAlive ? "Connection: keep-alive\r\n\r\n" : "Connection: close\r\n\r\n");
+            replaying = cursor;
+            replayedFrames = 0;
+            response = new ByteBuffer[]{ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII))};
+            writeResponse();
+        }
+
+        /** 回放的下一个分段：分段头、游标缓冲里这一帧的视图、结尾；帧读完时是结束边界（和分块编码的尾部） */
+        private ByteBuffer[] nextReplayPart() {
+            ByteBuffer jpeg = replaying.next();
+            if (jpeg == null) {
+                replaying = null;
+                String end = "--" + LiveFrame.BOUNDARY + "--\r\n";
+                if (chunked) {
+                    end = Integer.toHexString(end.length()) + "\r\n" + end + "\r\n"
+                            + "0\r\nX-Frame-Count: " + replayedFrames + "\r\n\r\n";
+                }
+                return new ByteBuffer[]{ByteBuffer.wrap(end.getBytes(StandardCharsets.US_ASCII))};
+            }
+            replayedFrames++;
+            String head = "--" + LiveFrame.BOUNDARY + "\r\n"
+                    + "Content-Type: image/jpeg\r\n"
+                    + "Content-Length: " + jpeg.remaining() + "\r\n"
+                    + "X-Timestamp: " + replaying.timeMs() + "\r\n\r\n";
+            if (chunked) head = Integer.toHexString(head.length() + jpeg.remaining() + 2) + "\r\n" + head;
+            return new ByteBuffer[]{ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII)), jpeg,
+                    ByteBuffer.wrap(chunked ? PART_END_CHUNKED : PART_END)};
+        }
+
+        private void startViewing(String streamKey) throws IOException {
+            if (hub.latest(streamKey) == null) {
+                respond(404, "text/plain", "没有这条流: " + streamKey, keepAlive);
+                return;
+            }
+            String header = "HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: multipart/x-mixed-replace; boundary=" + LiveFrame.BOUNDARY + "\r\n"
+                    + "Cache-Control: no-cache, no-store\r\n"
+                    + "Connection: close\r\n\r\n";
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, VIEWER_SEND_BUFFER_BYTES);
+            viewing = streamKey;
+            current = ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII));
+            register(streamKey);
+            pump();
+        }
+
+        private void startWebSocket(String query, Map<String, String> headers) throws IOException {
+            String clientKey = headers.get("sec-websocket-key");
+            if (clientKey == null || !"websocket".equalsIgnoreCase(headers.get("upgrade"))) {
+                respond(400, "text/plain", "需要 WebSocket 握手", false);
+                return;
+            }
+            String header = "HTTP/1.1 101 Switching Protocols\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + WebSocketSession.acceptKey(clientKey) + "\r\n\r\n";
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, VIEWER_SEND_BUFFER_BYTES);
+            ws = new WebSocketSession();
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("streams=")) ws.subscribe(parameter.substring("streams=".length()));
+            }
+            ws.sendStreamList(hub);
+            updateSubscriptions();
+            outgoing = new ByteBuffer[]{ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII))};
+            pump();
+        }
+
+        private void onWebSocketReadable() throws IOException {
+            if (channel.read(request) < 0) {
+                close();
+                return;
+            }
+            request.flip();
+            try {
+                if (ws.receive(request, hub)) updateSubscriptions();
+            } catch (IllegalStateException e) {
+                close();
+                return;
+            }
+            request.compact();
+            if (isIdle()) pump();
+        }
+
+        /** 按当前订阅重新登记到 viewers / allStreamViewers */
+        private void updateSubscriptions() {
+            unregister();
+            for (String streamKey : ws.getStreams()) {
+                register(streamKey);
+            }
+            if (ws.isAllStreams()) allStreamViewers.add(this);
+        }
+
+        private void register(String streamKey) {
+            viewers.computeIfAbsent(streamKey, k -> new ArrayList<>()).add(this);
+            registered.add(streamKey);
+        }
+
+        private void unregister() {
+            for (String streamKey : registered) {
+                List<Connection> list = viewers.get(streamKey);
+                if (list != null) {
+                    list.remove(this);
+                    if (list.isEmpty()) viewers.remove(streamKey);
+                }
+            }
+            registered.clear();
+            allStreamViewers.remove(this);
+        }
+
+        /** 当前帧（消息）发完，也没有比它更新的帧可发 */
+        boolean isIdle() {
+            if (ws != null) {
+                return outgoing == null || !outgoing[outgoing.length - 1].hasRemaining();
+            }
+            return current == null || !current.hasRemaining();
+        }
+
+        /** WebSocket：发完当前消息后取下一条（控制帧优先，然后是各订阅流最新的帧） */
+        private void pumpWebSocket() {
+            try {
+                while (true) {
+                    if (isIdle()) {
+                        releaseOutgoingFrames();
+                        long sent = ws.framesSent;
+                        long skipped = ws.framesSkipped;
+                        outgoing = ws.next(hub, outgoingFrames);
+                        framesSent += ws.framesSent - sent;
+                        framesSkipped += ws.framesSkipped - skipped;
+                        if (outgoing == null) {
+                            if (ws.isClosing()) {
+                                close();
+                                return;
+                            }
+                            key.interestOps(SelectionKey.OP_READ);
+                            return;
+                        }
+                    }
+                    channel.write(outgoing);
+                    if (!isIdle()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /** 发当前帧；发完就换成最新的一帧，直到写不动或者没有新帧 */
+        void pump() {
+            if (!key.isValid()) return;
+            if (ws != null) {
+                pumpWebSocket();
+                return;
+            }
+            try {
+                while (true) {
+                    if (!current.hasRemaining()) {
+                        releaseCurrentFrame();
+                        LiveFrame latest = hub.latest(viewing);
+                        if (latest == null || latest.sequence <= sentSequence) {
+                            key.interestOps(SelectionKey.OP_READ);
+                            return;
+                        }
+                        latest = hub.acquireLatest(viewing);
+                        if (sentSequence > 0) framesSkipped += latest.sequence - sentSequence - 1;
+                        sentSequence = latest.sequence;
+                        currentFrame = latest;
+                        current = latest.mjpegPart();
+                        framesSent++;
+                    }
+                    channel.write(current);
+                    if (current.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void onWritable() {
+            if (viewing != null || ws != null) {
+                pump();
+                return;
+            }
+            try {
+                writeResponse();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void respond(int status, String contentType, String body, boolean keepAlive) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            respond(status, contentType, new String[0], ByteBuffer.wrap(bytes), keepAlive);
+        }
+
+        /** 回复一个完整的响应；body 可以是共享数据的只读视图 */
+        void respond(int status, String contentType, String[] extraHeaders, ByteBuffer body, boolean keepAlive)
+                throws IOException {
+            StringBuilder header = new StringBuilder(256);
+            header.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+            if (contentType != null) header.append("Content-Type: ").append(contentType).append("\r\n");
+            header.append("Content-Length: ").append(body.remaining()).append("\r\n");
+            for (String extra : extraHeaders) {
+                header.append(extra).append("\r\n");
+            }
+            header.append(keepAlive ? "Connection: keep-alive\r\n\r\n" : "Connection: close\r\n\r\n");
+            this.keepAlive = keepAlive;
+            response = new ByteBuffer[]{ByteBuffer.wrap(header.toString().getBytes(StandardCharsets.US_ASCII)), body};
+            writeResponse();
+        }
+
+        private void writeResponse() throws IOException {
+            for (int parts = 0; ; parts++) {
+                channel.write(response);
+                // 聚集写按顺序写，最后一个写完就是全部写完；回放一次最多写几个分段，不让一条快连接占住 I/O 线程
+                if (response[response.length - 1].hasRemaining() || (replaying != null && parts == MAX_REPLAY_PARTS_PER_WRITE)) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (replaying == null) break;
+                response = nextReplayPart();
+                lastActivityNanos = System.nanoTime();
+            }
+            response = null;
+            releaseResponseFrame();
+            if (!keepAlive) {
+                close();
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            if (request.position() > 0) processRequests();
+        }
+
+        private void releaseCurrentFrame() {
+            if (currentFrame != null) {
+                currentFrame.release();
+                currentFrame = null;
+            }
+        }
+
+        private void releaseResponseFrame() {
+            if (responseFrame != null) {
+                responseFrame.release();
+                responseFrame = null;
+            }
+        }
+
+        private void releaseOutgoingFrames() {
+            for (LiveFrame frame : outgoingFrames) {
+                frame.release();
+            }
+            outgoingFrames.clear();
+        }
+
+        /** 可能调用多次（出错时和服务关闭时） */
+        void close() {
+            unregister();
+            viewing = null;
+            replaying = null;
+            releaseCurrentFrame();
+            releaseResponseFrame();
+            releaseOutgoingFrames();
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+    }
+
+    /** WebSocket 看板：订阅所有流，每路一张图，标注序号和端到端延迟（采集时间到浏览器收到） */
+    private static final String DASHBOARD_PAGE = "<!DOCTYPE html><html><head><meta charset=\"utf-8\"><title>实时看板</title>"
+            + "<style>figure{display:inline-block;margin:4px}img{width:320px}</style></head><body><div id=\"grid\"></div><script>\n"
+            + "const grid = document.getElementById('grid'), tiles = {}, decoder = new TextDecoder();\n"
+            + "const ws = new WebSocket((location.protocol === 'https:' ? 'wss://' : 'ws://') + location.host + '/ws?streams=*');\n"
+            + "ws.binaryType = 'arraybuffer';\n"
+            + "ws.onmessage = e => {\n"
+            + "  if (typeof e.data === 'string') return;\n"
+            + "  const view = new DataView(e.data);\n"
+            + "  for (let p = 0; p < view.byteLength;) {\n"
+            + "    const n = view.getUint16(p); p += 2;\n"
+            + "    const key = decoder.decode(new Uint8Array(e.data, p, n)); p += n;\n"
+            + "    const seq = Number(view.getBigUint64(p)); p += 8;\n"
+            + "    const ts = Number(view.getBigUint64(p)); p += 8;\n"
+            + "    const len = view.getUint32(p); p += 4;\n"
+            + "    const blob = new Blob([new Uint8Array(e.data, p, len)], {type: 'image/jpeg'}); p += len;\n"
+            + "    let tile = tiles[key];\n"
+            + "    if (!tile) {\n"
+            + "      tile = tiles[key] = document.createElement('figure');\n"
+            + "      tile.innerHTML = '<img><figcaption></figcaption>';\n"
+            + "      grid.appendChild(tile);\n"
+            + "    }\n"
+            + "    const img = tile.firstChild;\n"
+            + "    if (img.src) URL.revokeObjectURL(img.src);\n"
+            + "    img.src = URL.createObjectURL(blob);\n"
+            + "    tile.lastChild.textContent = key + ' #' + seq + ' ' + (Date.now() - ts) + ' ms';\n"
+            + "  }\n"
+            + "};\n"
+            + "</script></body></html>";
+
+    private String indexPage() {
+        StringBuilder html = new StringBuilder("<!DOCTYPE html><html><head><meta charset=\"utf-8\"><title>实时画面</title></head><body>");
+        List<String> keys = hub.getStreamKeys();
+        if (keys.isEmpty()) {
+            html.append("<p>还没有收到任何流</p>");
+        }
+        for (String key : keys) {
+            html.append("<figure><img src=\"/mjpeg/").append(key).append("\" width=\"480\"><figcaption>")
+                    .append(key).append("</figcaption></figure>");
+        }
+        return html.append("<p><a href=\"/dashboard\">WebSocket 看板</a></p></body></html>").toString();
+    }
+
+    /** If-None-Match 的弱比较：* 或逗号分隔的列表里有同一个 ETag（忽略 W/ 前缀） */
+    static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch.equals(etag)) return true;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+            if ("*".equals(candidate) || candidate.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 431: return "Request Header Fields Too Large";
+            default: return "Error";
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!running) return;
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("关闭 HTTP 端口时出错: " + e.getMessage());
+        }
+        selector.wakeup();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5)); // 等 I/O 线程关掉所有连接、还回它们手里的帧
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--selftest".equals(args[0])) {
+            System.exit(selfTest() ? 0 : 1);
+            return;
+        }
+        System.out.println("用法: java LiveHttpServer --selftest");
+    }
+
+    static boolean selfTest() throws Exception {
+        boolean ok = selfTestSnapshot();
+        ok &= selfTestWebSocket();
+        System.out.println("自测" + (ok ? "通过" : "失败"));
+        return ok;
+    }
+
+    /**
+     * 自测（快照）：200 带 ETag、同一 ETag 回 304、新帧后回 200 和新 ETag、列表和 * 形式的 If-None-Match、
+     * 一次发来的多个请求按顺序回复、没有的流回 404、回放接口（分块编码、慢客户端、HTTP/1.0）、Connection: close。
+     */
+    private static boolean selfTestSnapshot() throws Exception {
+        SlabAllocator slab = new SlabAllocator(32 * 1024 * 1024, true);
+        LiveFrameHub hub = new LiveFrameHub(slab);
+        LiveHttpServer server = new LiveHttpServer(0, hub);
+        server.start();
+        StreamInfo a = StreamInfo.unidentified(1, "a");
+        publish(hub, a, 5000);
+        boolean ok = true;
+        try (java.net.Socket socket = new java.net.Socket("127.0.0.1", server.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            java.io.DataInputStream in = new java.io.DataInputStream(new java.io.BufferedInputStream(socket.getInputStream()));
+            java.io.OutputStream out = socket.getOutputStream();
+            String path = "/snapshot/" + a.key();
+            out.write(get(path, null).getBytes(StandardCharsets.US_ASCII));
+            String[] first = readResponse(in);
+            String etag = headerValue(first[0], "ETag");
+            ok &= check(first[0].startsWith("HTTP/1.1 200") && first[1].length() == 5000 && etag != null, "快照 200 " + first[0]);
+
+            out.write(get(path, etag).getBytes(StandardCharsets.US_ASCII));
+            String[] same = readResponse(in);
+            ok &= check(same[0].startsWith("HTTP/1.1 304") && same[1].isEmpty() && etag.equals(headerValue(same[0], "ETag")),
+                    "没变时 304 " + same[0]);
+
+            publish(hub, a, 6000);
+            out.write(get(path, etag).getBytes(StandardCharsets.US_ASCII));
+            String[] changed = readResponse(in);
+            String newEtag = headerValue(changed[0], "ETag");
+            ok &= check(changed[0].startsWith("HTTP/1.1 200") && changed[1].length() == 6000 && !etag.equals(newEtag),
+                    "新帧 200 " + changed[0]);
+
+            // 三个请求一次发出：列表命中、* 命中、没有的流
+            out.write((get(path, etag + ", W/" + newEtag) + get(path, "*") + get("/snapshot/none", null))
+                    .getBytes(StandardCharsets.US_ASCII));
+            ok &= check(readResponse(in)[0].startsWith("HTTP/1.1 304"), "ETag 列表 304");
+            ok &= check(readResponse(in)[0].startsWith("HTTP/1.1 304"), "* 304");
+            ok &= check(readResponse(in)[0].startsWith("HTTP/1.1 404"), "没有的流 404");
+
+            ReplayBuffer replay = new ReplayBuffer(10_000, 16 * 1024 * 1024, 1024 * 1024);
+            server.setReplayBuffer(replay);
+            for (int i = 0; i < 20; i++) {
+                replay.append(a.key(), 1_000_000 + i * 1000L, new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9}, 0, 4);
+            }
+            out.write(get("/replay/" + a.key() + "?seconds=3", null).getBytes(StandardCharsets.US_ASCII));
+            String[] replayed = readResponse(in);
+            ok &= check(replayed[0].startsWith("HTTP/1.1 200") && "4".equals(headerValue(replayed[0], "X-Frame-Count"))
+                    && replayed[1].contains("X-Timestamp: 1016000\r\n") && replayed[1].contains("X-Timestamp: 1019000\r\n")
+                    && replayed[1].endsWith("--" + LiveFrame.BOUNDARY + "--\r\n"), "回放最近 3 秒 " + replayed[0]);
+
+            // 大回放发给不读的客户端：只积压在这条连接上，I/O 线程照常回复别的请求；之后读完帧数和内容都对
+            byte[] large = new byte[200 * 1024];
+            for (int i = 0; i < 40; i++) {
+                large[0] = (byte) i;
+                replay.append("large", 2_000_000 + i * 100L, large, 0, large.length);
+            }
+            try (java.net.Socket slow = new java.net.Socket("127.0.0.1", server.getLocalPort())) {
+                slow.setSoTimeout(5000);
+                slow.setReceiveBufferSize(16 * 1024);
+                slow.getOutputStream().write(get("/replay/large", null).getBytes(StandardCharsets.US_ASCII));
+                Thread.sleep(200);
+                out.write(get(path, newEtag).getBytes(StandardCharsets.US_ASCII));
+                ok &= check(readResponse(in)[0].startsWith("HTTP/1.1 304"), "回放积压时快照照常回复");
+                String[] slowReplay = readResponse(new java.io.DataInputStream(new java.io.BufferedInputStream(slow.getInputStream())));
+                int parts = slowReplay[1].split("Content-Type: image/jpeg").length - 1;
+                ok &= check("40".equals(headerValue(slowReplay[0], "X-Frame-Count")) && parts == 40
+                        && slowReplay[1].length() > 40 * large.length, "慢客户端读完大回放 " + parts + " 帧");
+            }
+
+            // HTTP/1.0 不能分块：发完关连接
+            try (java.net.Socket old = new java.net.Socket("127.0.0.1", server.getLocalPort())) {
+                old.setSoTimeout(5000);
+                old.getOutputStream().write(("GET /replay/" + a.key() + "?seconds=3 HTTP/1.0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                byte[] all = old.getInputStream().readAllBytes();
+                String text = new String(all, StandardCharsets.ISO_8859_1);
+                ok &= check(text.contains("Connection: close") && !text.contains("chunked")
+                        && text.split("Content-Type: image/jpeg").length - 1 == 4
+                        && text.endsWith("--" + LiveFrame.BOUNDARY + "--\r\n"), "HTTP/1.0 回放以关闭连接结束");
+            }
+
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            String[] last = readResponse(in);
+            ok &= check(last[0].contains("Connection: close") && last[1].length() == 6000, "Connection: close " + last[0]);
+            ok &= check(in.read() < 0, "close 之后断开");
+            long[] counters = server.getSnapshotCounters();
+            ok &= check(counters[0] == 3 && counters[1] == 4, "快照计数 " + counters[0] + "/" + counters[1]);
+        } finally {
+            server.close();
+        }
+        ok &= check(slab.getOutstanding() == 1 && slab.getLeaks() == 0, "关闭后只剩 hub 里的最新帧: " + slab.snapshot());
+        return ok;
+    }
+
+    private static String get(String path, String ifNoneMatch) {
+        return "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n"
+                + (ifNoneMatch == null ? "" : "If-None-Match: " + ifNoneMatch + "\r\n") + "\r\n";
+    }
+
+    /** @return {响应头（分块编码时连同尾部字段）, 内容（按 ISO-8859-1 当字符串，只用来比较长度和文本）} */
+    private static String[] readResponse(java.io.DataInputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        readHead(in, head);
+        if ("chunked".equals(headerValue(head.toString(), "Transfer-Encoding"))) {
+            java.io.ByteArrayOutputStream body = new java.io.ByteArrayOutputStream();
+            while (true) {
+                StringBuilder sizeLine = new StringBuilder();
+                while (sizeLine.length() < 2 || !sizeLine.substring(sizeLine.length() - 2).equals("\r\n")) {
+                    sizeLine.append((char) in.readUnsignedByte());
+                }
+                int size = Integer.parseInt(sizeLine.substring(0, sizeLine.length() - 2).trim(), 16);
+                if (size == 0) break;
+                byte[] chunk = new byte[size];
+                in.readFully(chunk);
+                body.write(chunk);
+                in.readFully(new byte[2]);
+            }
+            // 尾部字段接在响应头后面，方便用 headerValue 取
+            head.setLength(head.length() - 2);
+            readHead(in, head);
+            return new String[]{head.toString(), body.toString(StandardCharsets.ISO_8859_1)};
+        }
+        String length = headerValue(head.toString(), "Content-Length");
+        byte[] body = new byte[length == null ? 0 : Integer.parseInt(length)];
+        in.readFully(body);
+        return new String[]{head.toString(), new String(body, StandardCharsets.ISO_8859_1)};
+    }
+
+    /** 读到空行为止（空行也读进 head） */
+    private static void readHead(java.io.DataInputStream in, StringBuilder head) throws IOException {
+        int start = head.length();
+        while (!(head.length() - start == 2 && head.substring(start).equals("\r\n"))
+                && (head.length() - start < 4 || !head.substring(head.length() - 4).equals("\r\n\r\n"))) {
+            head.append((char) in.readUnsignedByte());
+        }
+    }
+
+    private static String headerValue(String head, String name) {
+        for (String line : head.split("\r\n")) {
+            if (line.regionMatches(true, 0, name + ":", 0, name.length() + 1)) return line.substring(name.length() + 1).trim();
+        }
+        return null;
+    }
+
+    /**
+     * 自测（WebSocket）：握手、流列表、按订阅推送、小帧合批、客户端不读时只积压不排队（恢复读取后序号直接跳到最新）、ping 和关闭。
+     */
+    private static boolean selfTestWebSocket() throws Exception {
+        SlabAllocator slab = new SlabAllocator(32 * 1024 * 1024, true);
+        LiveFrameHub hub = new LiveFrameHub(slab);
+        LiveHttpServer server = new LiveHttpServer(0, hub);
+        server.start();
+        StreamInfo a = StreamInfo.unidentified(1, "a");
+        StreamInfo b = StreamInfo.unidentified(2, "b".repeat(300)); // 流标识超过 255 字节
+        publish(hub, a, 1000);
+        publish(hub, b, 1000);
+        boolean ok = true;
+        try (java.net.Socket socket = new java.net.Socket("127.0.0.1", server.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            java.io.DataInputStream in = new java.io.DataInputStream(new java.io.BufferedInputStream(socket.getInputStream()));
+            java.io.OutputStream out = socket.getOutputStream();
+            out.write(("GET /ws HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            StringBuilder response = new StringBuilder();
+            while (!response.toString().endsWith("\r\n\r\n")) {
+                response.append((char) in.readUnsignedByte());
+            }
+            ok &= check(response.toString().contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo="), "握手应答 " + response);
+            String list = new String(readMessage(in, WebSocketSession.OPCODE_TEXT), StandardCharsets.UTF_8);
+            ok &= check(list.contains(a.key()) && list.contains(b.key()), "流列表 " + list);
+
+            sendText(out, "subscribe " + a.key());
+            List<long[]> records = parseRecords(readMessage(in, WebSocketSession.OPCODE_BINARY), a, b);
+            ok &= check(records.size() == 1 && records.get(0)[0] == 0 && records.get(0)[1] == 1, "订阅后收到 a 的当前帧");
+            publish(hub, b, 1000);
+            publish(hub, a, 1000);
+            records = parseRecords(readMessage(in, WebSocketSession.OPCODE_BINARY), a, b);
+            ok &= check(records.size() == 1 && records.get(0)[0] == 0 && records.get(0)[1] == 2, "只收到订阅的 a");
+
+            sendText(out, "unsubscribe " + a.key());
+            sendText(out, "streams"); // 收到回复说明取消订阅已经处理完，之后放的帧不会再单独推给这条连接
+            readMessage(in, WebSocketSession.OPCODE_TEXT);
+            publish(hub, a, 1000);
+            publish(hub, b, 1000);
+            sendText(out, "subscribe *");
+            records = parseRecords(readMessage(in, WebSocketSession.OPCODE_BINARY), a, b);
+            ok &= check(records.size() == 2, "两条小帧合成一条消息, 实际 " + records.size() + " 条记录");
+
+            // 客户端暂停读取，a 连发 300 个大帧
+            for (int i = 0; i < 300; i++) {
+                publish(hub, a, 64 * 1024);
+            }
+            long latest = hub.latest(a.key()).sequence;
+            int messages = 0;
+            long lastSequence = 0;
+            while (lastSequence < latest) {
+                for (long[] record : parseRecords(readMessage(in, WebSocketSession.OPCODE_BINARY), a, b)) {
+                    if (record[0] == 0) lastSequence = record[1];
+                }
+                messages++;
+            }
+            ok &= check(messages < 100, "积压时跳帧: 300 帧只收到 " + messages + " 条消息");
+
+            sendFrame(out, WebSocketSession.OPCODE_PING, "hi".getBytes(StandardCharsets.US_ASCII));
+            ok &= check("hi".equals(new String(readMessage(in, WebSocketSession.OPCODE_PONG), StandardCharsets.US_ASCII)), "pong");
+            sendFrame(out, WebSocketSession.OPCODE_CLOSE, new byte[]{0x03, (byte) 0xE8});
+            readMessage(in, WebSocketSession.OPCODE_CLOSE);
+            ok &= check(in.read() < 0, "关闭后断开");
+        } finally {
+            server.close();
+        }
+        ok &= check(slab.getOutstanding() == 2 && slab.getLeaks() == 0, "关闭后只剩 hub 里的最新帧: " + slab.snapshot());
+        return ok;
+    }
+
+    private static boolean check(boolean condition, String what) {
+        if (!condition) System.err.println("失败: " + what);
+        return condition;
+    }
+
+    private static void publish(LiveFrameHub hub, StreamInfo stream, int size) {
+        byte[] jpeg = new byte[size];
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        jpeg[size - 2] = (byte) 0xFF;
+        jpeg[size - 1] = (byte) 0xD9;
+        hub.onFrame(new Frame(stream, jpeg, 0, size, System.currentTimeMillis(), false));
+    }
+
+    /** 读一条服务端消息，跳过其它类型的消息直到读到 opcode 类型 */
+    private static byte[] readMessage(java.io.DataInputStream in, int opcode) throws IOException {
+        while (true) {
+            int b0 = in.readUnsignedByte();
+            long length = in.readUnsignedByte() & 0x7F;
+            if (length == 126) length = in.readUnsignedShort();
+            else if (length == 127) length = in.readLong();
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            if ((b0 & 0x0F) == opcode) return payload;
+        }
+    }
+
+    /** @return 每条记录 {流 (0 = a, 1 = b), 序号} */
+    private static List<long[]> parseRecords(byte[] message, StreamInfo a, StreamInfo b) {
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        List<long[]> records = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            byte[] key = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(key);
+            long sequence = buffer.getLong();
+            buffer.getLong();
+            int length = buffer.getInt();
+            buffer.position(buffer.position() + length);
+            String streamKey = new String(key, StandardCharsets.US_ASCII);
+            records.add(new long[]{streamKey.equals(a.key()) ? 0 : streamKey.equals(b.key()) ? 1 : -1, sequence});
+        }
+        return records;
+    }
+
+    private static void sendText(java.io.OutputStream out, String text) throws IOException {
+        sendFrame(out, WebSocketSession.OPCODE_TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** 客户端帧必须加掩码 */
+    private static void sendFrame(java.io.OutputStream out, int opcode, byte[] payload) throws IOException {
+        byte[] mask = {0x12, 0x34, 0x56, 0x78};
+        ByteBuffer frame = ByteBuffer.allocate(payload.length + 8);
+        frame.put((byte) (0x80 | opcode)).put((byte) (0x80 | payload.length)).put(mask);
+        for (int i = 0; i < payload.length; i++) {
+            frame.put((byte) (payload[i] ^ mask[i & 3]));
+        }
+        out.write(frame.array(), 0, frame.position());
+        out.flush();
+    }
+}
@@ -0,0 +1,216 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 边收边写的 MJPEG-AVI：每帧 JPEG 原样作为一个 '00dc' 块追加到 movi 列表，不解码、不缓存。
+ * <pre>
+ * RIFF 'AVI '
+ *   LIST 'hdrl' (avih, LIST 'strl' (strh, strf))
+ *   LIST 'movi' ('00dc' JPEG)*
+ *   idx1
+ * </pre>
+ * idx1 的条目边写边追加到旁边的 .idx1 临时文件，关闭时整体拷到文件末尾，内存里不留索引。
+ * RIFF、movi 的长度和总帧数每 {@link #HEADER_PATCH_INTERVAL_MS} 毫秒回填一次，所以写入过程中的文件
+ * （包括进程崩溃留下的、没有 idx1 的文件）也能直接用播放器打开。
+ * <p>
+ * AVI 只能表示固定帧率：开头按握手包里的最大帧率写，回填时改成实际的平均帧率（首末帧采集时间的跨度除以帧数减一），
+ * 实际帧率低于最大帧率时播放时长也和录制时长一致；帧间隔不均匀时需要精确时间请用 {@link FragmentedMp4Writer}。
+ * 非线程安全。
+ */
+final class MjpegAviWriter implements ContainerFrameSink.ContainerWriter {
+
+    static final long HEADER_PATCH_INTERVAL_MS = 1000;
+    private static final int AVIF_HASINDEX = 0x10;
+    private static final int AVIIF_KEYFRAME = 0x10;
+    private static final int HEADER_BYTES = 212;
+    /** movi 列表的 'movi' 四字符码的位置，idx1 里的偏移以它为基准 */
+    private static final int MOVI_FOURCC_POSITION = HEADER_BYTES + 8;
+    private static final int OFFSET_MICROSEC_PER_FRAME = 32;
+    private static final int OFFSET_TOTAL_FRAMES = 48;
+    private static final int OFFSET_STREAM_SCALE = 128;
+    private static final int OFFSET_STREAM_LENGTH = 140;
+
+    private final File file;
+    private final File indexFile;
+    private final FileChannel channel;
+    private final FileChannel indexChannel;
+    private final ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer padding = ByteBuffer.allocate(1);
+    private final ByteBuffer indexBuffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer patch = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+    private long position;
+    private int frames;
+    private int maxFrameBytes;
+    private long firstCaptureMs;
+    private long lastCaptureMs;
+    private long lastPatchMs;
+
+    MjpegAviWriter(File file, int width, int height, int fps) throws IOException {
+        this.file = file;
+        this.indexFile = new File(file.getPath() + ".idx1");
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = header(width, height, Math.max(1, fps));
+        while (header.hasRemaining()) {
+            channel.write(header, HEADER_BYTES + 12 - header.remaining());
+        }
+        position = HEADER_BYTES + 12;
+    }
+
+    private static ByteBuffer header(int width, int height, int fps) {
+        ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES + 12).order(ByteOrder.LITTLE_ENDIAN);
+        fourcc(b, "RIFF").putInt(0);
+        fourcc(b, "AVI ");
+        fourcc(b, "LIST").putInt(192);
+        fourcc(b, "hdrl");
+        fourcc(b, "avih").putInt(56);
+        b.putInt(1_000_000 / fps);      // dwMicroSecPerFrame
+        b.putInt(0);                    // dwMaxBytesPerSec
+        b.putInt(0);                    // dwPaddingGranularity
+        b.putInt(AVIF_HASINDEX);        // dwFlags
+        b.putInt(0);                    // dwTotalFrames，回填
+        b.putInt(0);                    // dwInitialFrames
+        b.putInt(1);                    // dwStreams
+        b.putInt(0);                    // dwSuggestedBufferSize
+        b.putInt(width).putInt(height);
+        b.putInt(0).putInt(0).putInt(0).putInt(0);
+        fourcc(b, "LIST").putInt(116);
+        fourcc(b, "strl");
+        fourcc(b, "strh").putInt(56);
+        fourcc(b, "vids");
+        fourcc(b, "MJPG");
+        b.putInt(0);                    // dwFlags
+        b.putShort((short) 0).putShort((short) 0);
+        b.putInt(0);                    // dwInitialFrames
+        b.putInt(1).putInt(fps);        // dwScale, dwRate
+        b.putInt(0);                    // dwStart
+        b.putInt(0);                    // dwLength，回填
+        b.putInt(0);                    // dwSuggestedBufferSize
+        b.putInt(-1);                   // dwQuality
+        b.putInt(0);                    // dwSampleSize
+        b.putShort((short) 0).putShort((short) 0).putShort((short) width).putShort((short) height);
+        fourcc(b, "strf").putInt(40);
+        b.putInt(40);                   // biSize
+        b.putInt(width).putInt(height);
+        b.putShort((short) 1).putShort((short) 24);
+        fourcc(b, "MJPG");
+        b.putInt(width * height * 3);
+        b.putInt(0).putInt(0).putInt(0).putInt(0);
+        fourcc(b, "LIST").putInt(4);
+        fourcc(b, "movi");
+        b.flip();
+        return b;
+    }
+
+    private static ByteBuffer fourcc(ByteBuffer b, String code) {
+        for (int i = 0; i < 4; i++) {
+            b.put((byte) code.charAt(i));
+        }
+        return b;
+    }
+
+    @Override
+    public void writeFrame(byte[] jpeg, int offset, int length, long captureTimeMs) throws IOException {
+        long chunkPosition = position;
+        chunkHeader.clear();
+        fourcc(chunkHeader, "00dc").putInt(length).flip();
+        ByteBuffer body = ByteBuffer.wrap(jpeg, offset, length);
+        padding.clear().limit(length & 1);
+        ByteBuffer[] buffers = {chunkHeader, body, padding};
+        long total = 8L + length + (length & 1);
+        for (long written = 0; written < total; ) {
+            channel.position(chunkPosition + written);
+            written += channel.write(buffers);
+        }
+        position += total;
+        if (frames == 0) firstCaptureMs = captureTimeMs;
+        lastCaptureMs = captureTimeMs;
+        frames++;
+        maxFrameBytes = Math.max(maxFrameBytes, length);
+        if (indexBuffer.remaining() < 16) {
+            flushIndex();
+        }
+        fourcc(indexBuffer, "00dc").putInt(AVIIF_KEYFRAME).putInt((int) (chunkPosition - MOVI_FOURCC_POSITION)).putInt(length);
+        long now = System.currentTimeMillis();
+        if (now - lastPatchMs >= HEADER_PATCH_INTERVAL_MS) {
+            patchHeader(position);
+            lastPatchMs = now;
+        }
+    }
+
+    private void flushIndex() throws IOException {
+        indexBuffer.flip();
+        while (indexBuffer.hasRemaining()) {
+            indexChannel.write(indexBuffer);
+        }
+        indexBuffer.clear();
+    }
+
+    /** 回填 RIFF 长度、movi 长度、总帧数、流长度和平均帧率，fileLength 是当前文件的有效长度 */
+    private void patchHeader(long fileLength) throws IOException {
+        if (frames > 1 && lastCaptureMs > firstCaptureMs) {
+            // 帧率写成 dwRate / dwScale = 1000000 / 平均帧间隔（微秒），不用取整到整数帧率
+            long frameMicros = Math.max(1, Math.round((lastCaptureMs - firstCaptureMs) * 1000.0 / (frames - 1)));
+            putInt(OFFSET_MICROSEC_PER_FRAME, frameMicros);
+            putInt(OFFSET_STREAM_SCALE, frameMicros);
+            putInt(OFFSET_STREAM_SCALE + 4, 1_000_000);
+        }
+        putInt(4, fileLength - 8);
+        putInt(HEADER_BYTES + 4, position - (HEADER_BYTES + 8));
+        putInt(OFFSET_TOTAL_FRAMES, frames);
+        putInt(OFFSET_STREAM_LENGTH, frames);
+        putInt(12 + 12 + 8 + 28, maxFrameBytes);   // avih.dwSuggestedBufferSize
+        putInt(OFFSET_STREAM_LENGTH + 4, maxFrameBytes); // strh.dwSuggestedBufferSize
+    }
+
+    private void putInt(long at, long value) throws IOException {
+        patch.clear();
+        patch.putInt((int) value).flip();
+        while (patch.hasRemaining()) {
+            channel.write(patch, at + patch.position());
+        }
+    }
+
+    @Override
+    public long size() {
+        return position;
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    /** 把 idx1 追加到文件末尾，回填最终长度 */
+    @Override
+    public void close() throws IOException {
+        try {
+            flushIndex();
+            long indexBytes = indexChannel.size();
+            ByteBuffer idx1 = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            fourcc(idx1, "idx1").putInt((int) indexBytes).flip();
+            long at = position;
+            while (idx1.hasRemaining()) {
+                at += channel.write(idx1, at);
+            }
+            try (FileChannel index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                for (long copied = 0; copied < indexBytes; ) {
+                    copied += channel.transferFrom(index, at + copied, indexBytes - copied);
+                }
+            }
+            patchHeader(at + indexBytes);
+            channel.force(false);
+        } finally {
+            channel.close();
+            indexChannel.close();
+            Files.deleteIfExists(indexFile.toPath());
+        }
+    }
+}
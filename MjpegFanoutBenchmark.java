@@ -0,0 +1,277 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * MJPEG 分发压测：1 路实时流推给 N 个 HTTP 观看者（默认 500），其中一部分是故意读得很慢的观看者。
+ * <p>
+ * 接收端直接往 {@link LiveFrameHub} 里按固定帧率放帧（记录每次放帧的耗时，用来确认观看者不会拖住接收），
+ * 观看者在一个客户端线程里用 Selector 读 multipart 流，按分段头的 Content-Length 计帧，用 X-Timestamp 算延迟。
+ * 报告正常观看者的帧率和延迟、慢观看者的帧率、服务端跳过的帧数、放帧耗时和服务端线程数。
+ * <p>
+ * 用法: java MjpegFanoutBenchmark [--viewers=500] [--slow=25] [--fps=15] [--seconds=10] [--size=1280x720]
+ */
+public class MjpegFanoutBenchmark {
+
+    /** 慢观看者每 250 ms 读一次，每次最多 8 KB，约 32 KB/s */
+    private static final long SLOW_READ_INTERVAL_MS = 250;
+    private static final int SLOW_READ_BYTES = 8 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int viewerCount = 500;
+        int slowCount = 25;
+        int fps = 15;
+        int seconds = 10;
+        int width = 1280;
+        int height = 720;
+        for (String arg : args) {
+            if (arg.startsWith("--viewers=")) {
+                viewerCount = Integer.parseInt(arg.substring("--viewers=".length()));
+            } else if (arg.startsWith("--slow=")) {
+                slowCount = Integer.parseInt(arg.substring("--slow=".length()));
+            } else if (arg.startsWith("--fps=")) {
+                fps = Integer.parseInt(arg.substring("--fps=".length()));
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Integer.parseInt(arg.substring("--seconds=".length()));
+            } else if (arg.startsWith("--size=")) {
+                String[] size = arg.substring("--size=".length()).split("x");
+                width = Integer.parseInt(size[0]);
+                height = Integer.parseInt(size[1]);
+            } else {
+                System.out.println("用法: java MjpegFanoutBenchmark [--viewers=500] [--slow=25] [--fps=15] [--seconds=10] [--size=1280x720]");
+                return;
+            }
+        }
+        LiveFrameHub hub = new LiveFrameHub();
+        LiveHttpServer server = new LiveHttpServer(0, hub);
+        server.start();
+        StreamInfo stream = StreamInfo.unidentified(1, "bench");
+        List<byte[]> jpegs = SyntheticPhoneClient.renderJpegs(width, height, "bench");
+        hub.onFrame(new Frame(stream, jpegs.get(0), 0, jpegs.get(0).length, System.currentTimeMillis(), false));
+
+        Viewers viewers = new Viewers(server.getLocalPort(), "/mjpeg/" + stream.key(), viewerCount, slowCount);
+        Thread clientThread = new Thread(viewers, "viewer-clients");
+        clientThread.start();
+        Thread.sleep(1000); // 等观看者都连上
+
+        int threadsDuringRun = 0;
+        long[] startCounters = server.getFrameCounters();
+        viewers.resetCounters();
+        long intervalNanos = 1_000_000_000L / fps;
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        List<Long> publishNanos = new ArrayList<>();
+        int published = 0;
+        for (long next = start; next < end; next += intervalNanos) {
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) Thread.sleep(sleep / 1_000_000, (int) (sleep % 1_000_000));
+            byte[] jpeg = jpegs.get(published % jpegs.size());
+            long before = System.nanoTime();
+            hub.onFrame(new Frame(stream, jpeg, 0, jpeg.length, System.currentTimeMillis(), false));
+            publishNanos.add(System.nanoTime() - before);
+            published++;
+            if (published == fps) threadsDuringRun = Thread.activeCount();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        Thread.sleep(200);
+        long[] counters = server.getFrameCounters();
+        viewers.stop();
+        clientThread.join();
+        server.close();
+
+        long[] publish = publishNanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        System.out.println();
+        System.out.printf("1 路 %dx%d, %d fps, 每帧约 %d KB, %d 个观看者 (其中 %d 个慢观看者), %d 秒\n", width, height, fps,
+                jpegs.get(0).length / 1024, viewerCount, slowCount, seconds);
+        System.out.printf("放帧: %d 帧, 每次耗时 p50 %.1f µs, p99 %.1f µs, 最大 %.1f µs\n", published,
+                publish[publish.length / 2] / 1e3, publish[(int) (publish.length * 0.99)] / 1e3, publish[publish.length - 1] / 1e3);
+        viewers.report(elapsed, fps);
+        System.out.printf("服务端: 发出 %d 帧, 跳过 %d 帧, %.1f MB/s; 进程线程数 %d (HTTP 服务 1 个 I/O 线程)\n",
+                counters[0] - startCounters[0], counters[1] - startCounters[1],
+                viewers.totalBytes / elapsed / (1024 * 1024), threadsDuringRun);
+        System.out.printf("堆内存: %.1f MB\n", (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / (1024.0 * 1024.0));
+        System.out.println("JVM: " + ManagementFactory.getRuntimeMXBean().getVmVersion()
+                + ", " + Runtime.getRuntime().availableProcessors() + " CPU");
+    }
+
+    /** 所有观看者的客户端：一个线程、一个 Selector */
+    private static final class Viewers implements Runnable {
+        final Selector selector;
+        final List<Viewer> all = new ArrayList<>();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        volatile boolean running = true;
+        long totalBytes;
+
+        Viewers(int port, String path, int count, int slowCount) throws IOException {
+            selector = Selector.open();
+            byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            for (int i = 0; i < count; i++) {
+                SocketChannel channel = SocketChannel.open();
+                boolean slow = i < slowCount;
+                if (slow) channel.setOption(StandardSocketOptions.SO_RCVBUF, 32 * 1024);
+                channel.connect(new InetSocketAddress("127.0.0.1", port));
+                ByteBuffer out = ByteBuffer.wrap(request);
+                while (out.hasRemaining()) channel.write(out);
+                channel.configureBlocking(false);
+                Viewer viewer = new Viewer(channel, slow);
+                all.add(viewer);
+                if (!slow) channel.register(selector, SelectionKey.OP_READ, viewer);
+            }
+        }
+
+        void resetCounters() {
+            synchronized (this) {
+                for (Viewer viewer : all) {
+                    viewer.frames = 0;
+                    viewer.latencies.clear();
+                }
+                totalBytes = 0;
+            }
+        }
+
+        void stop() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long nextSlowRead = System.currentTimeMillis();
+            try {
+                while (running) {
+                    selector.select(SLOW_READ_INTERVAL_MS / 5);
+                    synchronized (this) {
+                        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                        while (iterator.hasNext()) {
+                            SelectionKey key = iterator.next();
+                            iterator.remove();
+                            Viewer viewer = (Viewer) key.attachment();
+                            buffer.clear();
+                            int read = viewer.channel.read(buffer);
+                            if (read < 0) {
+                                key.cancel();
+                                continue;
+                            }
+                            buffer.flip();
+                            totalBytes += read;
+                            viewer.feed(buffer);
+                        }
+                        if (System.currentTimeMillis() >= nextSlowRead) {
+                            nextSlowRead += SLOW_READ_INTERVAL_MS;
+                            for (Viewer viewer : all) {
+                                if (!viewer.slow) continue;
+                                buffer.clear().limit(SLOW_READ_BYTES);
+                                int read = viewer.channel.read(buffer);
+                                if (read <= 0) continue;
+                                buffer.flip();
+                                totalBytes += read;
+                                viewer.feed(buffer);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("观看者客户端出错: " + e.getMessage());
+            } finally {
+                for (Viewer viewer : all) {
+                    try {
+                        viewer.channel.close();
+                    } catch (IOException e) {
+                        // 忽略
+                    }
+                }
+            }
+        }
+
+        synchronized void report(double seconds, int fps) {
+            List<Long> latencies = new ArrayList<>();
+            double minFps = Double.MAX_VALUE;
+            double fastFps = 0;
+            double slowFps = 0;
+            int fast = 0;
+            int slow = 0;
+            for (Viewer viewer : all) {
+                double rate = viewer.frames / seconds;
+                if (viewer.slow) {
+                    slowFps += rate;
+                    slow++;
+                } else {
+                    fastFps += rate;
+                    minFps = Math.min(minFps, rate);
+                    fast++;
+                    latencies.addAll(viewer.latencies);
+                }
+            }
+            long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            if (fast > 0 && sorted.length > 0) {
+                System.out.printf("正常观看者 %d 个: 平均 %.1f fps, 最低 %.1f fps (源 %d fps); 延迟 p50 %d ms, p99 %d ms, 最大 %d ms\n",
+                        fast, fastFps / fast, minFps, fps, sorted[sorted.length / 2], sorted[(int) (sorted.length * 0.99)],
+                        sorted[sorted.length - 1]);
+            }
+            if (slow > 0) {
+                System.out.printf("慢观看者 %d 个: 平均 %.1f fps\n", slow, slowFps / slow);
+            }
+        }
+    }
+
+    /** 一个观看者的 multipart 解析状态：跳过响应头，之后交替读分段头和跳过分段内容 */
+    private static final class Viewer {
+        final SocketChannel channel;
+        final boolean slow;
+        final ByteBuffer header = ByteBuffer.allocate(1024);
+        final List<Long> latencies = new ArrayList<>();
+        boolean responseHeaderDone;
+        long skip;
+        long timestamp;
+        int frames;
+
+        Viewer(SocketChannel channel, boolean slow) {
+            this.channel = channel;
+            this.slow = slow;
+        }
+
+        void feed(ByteBuffer data) {
+            while (data.hasRemaining()) {
+                if (skip > 0) {
+                    int n = (int) Math.min(skip, data.remaining());
+                    data.position(data.position() + n);
+                    skip -= n;
+                    if (skip == 0) {
+                        frames++;
+                        latencies.add(System.currentTimeMillis() - timestamp);
+                    }
+                    continue;
+                }
+                header.put(data.get());
+                int length = header.position();
+                if (length >= 4 && header.get(length - 4) == '\r' && header.get(length - 3) == '\n'
+                        && header.get(length - 2) == '\r' && header.get(length - 1) == '\n') {
+                    String text = new String(header.array(), 0, length, StandardCharsets.US_ASCII);
+                    header.clear();
+                    if (!responseHeaderDone) {
+                        responseHeaderDone = true;
+                        continue;
+                    }
+                    long contentLength = 0;
+                    for (String line : text.split("\r\n")) {
+                        if (line.startsWith("Content-Length: ")) contentLength = Long.parseLong(line.substring(16));
+                        if (line.startsWith("X-Timestamp: ")) timestamp = Long.parseLong(line.substring(13));
+                    }
+                    skip = contentLength + 2; // JPEG 和结尾的 CRLF
+                } else if (!header.hasRemaining()) {
+                    throw new IllegalStateException("分段头太长: " + Arrays.toString(Arrays.copyOf(header.array(), 32)));
+                }
+            }
+        }
+    }
+}
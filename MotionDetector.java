@@ -0,0 +1,388 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 接收端的运动检测：按缩小的尺寸解码实时帧，和每条流的背景比较亮度，发出运动开始和结束的事件。
+ * <p>
+ * 每条流每 {@link #DEFAULT_ANALYSIS_INTERVAL_MS} 毫秒最多取一帧分析，同一条流同时只有一帧在分析；
+ * 分析在一个大小等于 CPU 核数、队列有界的线程池里做，池忙不过来时这一帧不分析（计数），不会拖住接收。
+ * <p>
+ * 解码用 ImageReader 的 {@link ImageReadParam#setSourceSubsampling} 隔行隔列取样，宽度缩到 {@link #DECODE_WIDTH} 左右，
+ * 并用 readRaster 直接拿 YCbCr，不做颜色转换，只用 Y 通道。缩小后的亮度再按块平均到
+ * {@link #GRID_WIDTH}×{@link #GRID_HEIGHT} 的网格，和背景（每个格子的滑动平均）逐格比较：
+ * 先减掉所有格子差值的平均（整体变亮变暗、自动曝光不算运动），差值超过 {@link #CELL_THRESHOLD} 的格子占比
+ * 达到阈值就算这一帧有运动。有运动时立即发开始事件，之后 holdMs 内没有再检测到运动才发结束事件。
+ * 事件时间都是帧的采集时间。
+ * <p>
+ * 流关闭时还在运动中就立即发结束事件；之后这条流还没做完的分析不再发任何事件，
+ * 所以每个开始事件都有对应的结束事件，关闭之后监听方不会再收到这条流的消息（重连后是新的一轮）。
+ */
+public class MotionDetector implements FrameSink, Closeable {
+
+    public static final long DEFAULT_ANALYSIS_INTERVAL_MS = 200;
+    public static final long DEFAULT_HOLD_MS = 5000;
+    public static final double DEFAULT_AREA_THRESHOLD = 0.02;
+    static final int DECODE_WIDTH = 160;
+    static final int GRID_WIDTH = 32;
+    static final int GRID_HEIGHT = 24;
+    /** 一个格子的亮度和背景差多少（0-255）算变了 */
+    static final int CELL_THRESHOLD = 20;
+    /** 背景每次向当前帧靠近的比例 */
+    private static final float BACKGROUND_RATE = 0.1f;
+
+    /** 运动事件，在分析线程上调用，实现必须很快返回 */
+    public interface Listener {
+        /**
+         * @param active        true 是运动开始，false 是运动结束
+         * @param captureTimeMs 触发事件的那一帧的采集时间
+         * @param score         这一帧变化的格子占比
+         */
+        void onMotion(String streamKey, boolean active, long captureTimeMs, double score);
+    }
+
+    /**
+     * 一条流的分析状态；背景只在分析线程上改，同一时刻只有一个分析任务。
+     * 运动状态的改变和事件在锁住这个对象时做，和流关闭互斥。
+     */
+    private static final class StreamState {
+        final String key;
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile long lastSubmittedMs = Long.MIN_VALUE;
+        float[] background;
+        volatile boolean active;
+        /** 流已关闭，之后到达的分析结果丢掉 */
+        boolean closed;
+        long lastMotionMs;
+        long startedMs;
+
+        StreamState(String key) {
+            this.key = key;
+        }
+    }
+
+    private final long analysisIntervalMs;
+    private final long holdMs;
+    private final double areaThreshold;
+    private final ThreadPoolExecutor pool;
+    private final ThreadLocal<ImageReader> readers = ThreadLocal.withInitial(
+            () -> ImageIO.getImageReadersByFormatName("jpeg").next());
+    private final Map<String, StreamState> streams = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong analyzed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong analysisNanos = new AtomicLong();
+
+    public MotionDetector() {
+        this(DEFAULT_ANALYSIS_INTERVAL_MS, DEFAULT_HOLD_MS, DEFAULT_AREA_THRESHOLD,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param analysisIntervalMs 每条流两次分析之间至少隔多久（按采集时间），0 表示每帧都尝试
+     * @param holdMs             最后一次检测到运动之后多久算运动结束
+     * @param areaThreshold      变化的格子占比达到多少算有运动
+     * @param threads            分析线程数
+     */
+    public MotionDetector(long analysisIntervalMs, long holdMs, double areaThreshold, int threads) {
+        this.analysisIntervalMs = analysisIntervalMs;
+        this.holdMs = holdMs;
+        this.areaThreshold = areaThreshold;
+        AtomicInteger counter = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 2), runnable -> {
+                    Thread thread = new Thread(runnable, "motion-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /** 这条流当前是否处在运动中 */
+    public boolean isActive(String streamKey) {
+        StreamState state = streams.get(streamKey);
+        return state != null && state.active;
+    }
+
+    @Override
+    public void onFrame(Frame frame) {
+        if (frame.backfill) return;
+        StreamState state = streams.computeIfAbsent(frame.stream.key(), StreamState::new);
+        long last = state.lastSubmittedMs;
+        if (last != Long.MIN_VALUE && frame.captureTimeMs - last < analysisIntervalMs) return;
+        if (!state.inFlight.compareAndSet(0, 1)) {
+            skipped.incrementAndGet(); // 上一帧还没分析完
+            return;
+        }
+        state.lastSubmittedMs = frame.captureTimeMs;
+        byte[] jpeg = frame.copyJpeg(); // 帧数据只在 onFrame 期间有效
+        long captureTimeMs = frame.captureTimeMs;
+        try {
+            pool.execute(() -> {
+                try {
+                    analyze(state, jpeg, captureTimeMs);
+                } finally {
+                    state.inFlight.set(0);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            state.inFlight.set(0);
+            skipped.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onStreamClosed(StreamInfo stream) {
+        StreamState state = streams.remove(stream.key());
+        if (state == null) return;
+        synchronized (state) {
+            state.closed = true;
+            if (state.active) {
+                state.active = false;
+                fire(state, false, state.lastMotionMs, 0);
+            }
+        }
+    }
+
+    private void analyze(StreamState state, byte[] jpeg, long captureTimeMs) {
+        long start = System.nanoTime();
+        float[] luma;
+        try {
+            luma = decodeLuma(readers.get(), jpeg);
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            return;
+        }
+        double score = compare(state, luma);
+        analyzed.incrementAndGet();
+        analysisNanos.addAndGet(System.nanoTime() - start);
+        synchronized (state) {
+            if (state.closed) return; // 分析期间流关闭了
+            if (score >= areaThreshold) {
+                state.lastMotionMs = captureTimeMs;
+                if (!state.active) {
+                    state.active = true;
+                    state.startedMs = captureTimeMs;
+                    fire(state, true, captureTimeMs, score);
+                }
+            } else if (state.active && captureTimeMs - state.lastMotionMs >= holdMs) {
+                state.active = false;
+                fire(state, false, captureTimeMs, score);
+            }
+        }
+    }
+
+    private void fire(StreamState state, boolean active, long captureTimeMs, double score) {
+        events.incrementAndGet();
+        if (active) {
+            System.out.printf("[运动] %s 开始, 变化 %.1f%%\n", state.key, score * 100);
+        } else {
+            System.out.printf("[运动] %s 结束, 持续 %.1f 秒\n", state.key, (captureTimeMs - state.startedMs) / 1000.0);
+        }
+        for (Listener listener : listeners) {
+            listener.onMotion(state.key, active, captureTimeMs, score);
+        }
+    }
+
+    /** 缩小解码，返回网格里每格的平均亮度 */
+    static float[] decodeLuma(ImageReader reader, byte[] jpeg) throws IOException {
+        try (MemoryCacheImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(jpeg))) {
+            reader.setInput(input, true, true);
+            int step = Math.max(1, reader.getWidth(0) / DECODE_WIDTH);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(step, step, 0, 0);
+            Raster raster = reader.readRaster(0, param); // JPEG 读出来的是 YCbCr（或灰度），第 0 个通道就是亮度
+            return toGrid(raster.getSamples(0, 0, raster.getWidth(), raster.getHeight(), 0, (int[]) null),
+                    raster.getWidth(), raster.getHeight());
+        } finally {
+            reader.setInput(null);
+        }
+    }
+
+    private static float[] toGrid(int[] samples, int width, int height) {
+        float[] sums = new float[GRID_WIDTH * GRID_HEIGHT];
+        int[] counts = new int[sums.length];
+        for (int y = 0; y < height; y++) {
+            int row = y * GRID_HEIGHT / height * GRID_WIDTH;
+            for (int x = 0; x < width; x++) {
+                int cell = row + x * GRID_WIDTH / width;
+                sums[cell] += samples[y * width + x];
+                counts[cell]++;
+            }
+        }
+        for (int i = 0; i < sums.length; i++) {
+            if (counts[i] > 0) sums[i] /= counts[i];
+        }
+        return sums;
+    }
+
+    /** 和背景比较并更新背景，返回变化的格子占比；第一帧只用来建立背景 */
+    private static double compare(StreamState state, float[] luma) {
+        float[] background = state.background;
+        if (background == null) {
+            state.background = luma;
+            return 0;
+        }
+        float meanDiff = 0;
+        for (int i = 0; i < luma.length; i++) {
+            meanDiff += luma[i] - background[i];
+        }
+        meanDiff /= luma.length;
+        int changed = 0;
+        for (int i = 0; i < luma.length; i++) {
+            if (Math.abs(luma[i] - background[i] - meanDiff) > CELL_THRESHOLD) changed++;
+            background[i] += (luma[i] - background[i]) * BACKGROUND_RATE;
+        }
+        return (double) changed / luma.length;
+    }
+
+    public long getAnalyzedFrames() {
+        return analyzed.get();
+    }
+
+    /** 因为上一帧没分析完或池满而没分析的帧 */
+    public long getSkippedFrames() {
+        return skipped.get();
+    }
+
+    public long getEvents() {
+        return events.get();
+    }
+
+    /** 一行统计 */
+    public String snapshot() {
+        long count = analyzed.get();
+        return String.format("分析 %d 帧 (平均 %.2f ms/帧, %d 个线程), 跳过 %d, 解码失败 %d, 事件 %d",
+                count, count == 0 ? 0 : analysisNanos.get() / 1e6 / count, pool.getMaximumPoolSize(),
+                skipped.get(), failed.get(), events.get());
+    }
+
+    /** 等已经提交的分析都做完（自测用） */
+    void awaitIdle() throws InterruptedException {
+        while (pool.getActiveCount() > 0 || !pool.getQueue().isEmpty()) {
+            Thread.sleep(1);
+        }
+        for (StreamState state : streams.values()) {
+            while (state.inFlight.get() != 0) Thread.sleep(1);
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--selftest".equals(args[0])) {
+            System.exit(selfTest() ? 0 : 1);
+            return;
+        }
+        System.out.println("用法: java MotionDetector --selftest");
+    }
+
+    /**
+     * 自测：静止画面（带噪声）不触发；整体变亮不触发；移动的方块触发开始事件；停下来 hold 之后触发结束事件。
+     * 再用 {@link MotionRecorder} 接一个归档：静止时按保活间隔稀疏写，运动时全速写并补上回放缓冲里的预录帧。
+     */
+    static boolean selfTest() throws Exception {
+        boolean ok = true;
+        MotionDetector detector = new MotionDetector(0, 1000, DEFAULT_AREA_THRESHOLD, 2);
+        List<String> log = new CopyOnWriteArrayList<>();
+        detector.addListener((key, active, time, score) -> log.add((active ? "start@" : "end@") + time));
+        StreamInfo stream = StreamInfo.unidentified(1, "motion");
+        java.util.Random random = new java.util.Random(7);
+        long time = 1_000_000;
+        for (int i = 0; i < 10; i++, time += 100) {
+            feed(detector, stream, scene(random, 0, -1), time);
+        }
+        ok &= check(log.isEmpty(), "静止画面没有事件 " + log);
+        for (int i = 0; i < 5; i++, time += 100) {
+            feed(detector, stream, scene(random, 40, -1), time);
+        }
+        ok &= check(log.isEmpty(), "整体变亮没有事件 " + log);
+        long motionStart = time;
+        for (int i = 0; i < 10; i++, time += 100) {
+            feed(detector, stream, scene(random, 40, i), time);
+        }
+        ok &= check(log.size() == 1 && log.get(0).equals("start@" + motionStart), "方块移动触发开始 " + log);
+        long stop = time;
+        for (int i = 0; i < 60; i++, time += 100) {
+            feed(detector, stream, scene(random, 40, 9), time);
+        }
+        ok &= check(log.size() == 2 && log.get(1).startsWith("end@")
+                && Long.parseLong(log.get(1).substring(4)) - stop >= 1000, "停下、方块融入背景 1 秒后结束 " + log);
+
+        // 运动中关闭：立即结束；关闭时还没做完的分析（这里直接调用）不再发事件
+        for (int i = 0; i < 3; i++, time += 100) {
+            feed(detector, stream, scene(random, 40, i), time);
+        }
+        ok &= check(log.size() == 3 && log.get(2).startsWith("start@"), "再次运动 " + log);
+        StreamState closing = detector.streams.get(stream.key());
+        detector.onStreamClosed(stream);
+        ok &= check(log.size() == 4 && log.get(3).startsWith("end@"), "运动中关闭立即结束 " + log);
+        detector.analyze(closing, scene(random, 40, 5), time);
+        ok &= check(log.size() == 4 && !detector.isActive(stream.key()), "关闭后迟到的分析不发事件 " + log);
+        System.out.println(detector.snapshot());
+        detector.close();
+        ok &= MotionRecorder.selfTest();
+        System.out.println("自测" + (ok ? "通过" : "失败"));
+        return ok;
+    }
+
+    static void feed(MotionDetector detector, StreamInfo stream, byte[] jpeg, long time) throws InterruptedException {
+        detector.onFrame(new Frame(stream, jpeg, 0, jpeg.length, time, false));
+        detector.awaitIdle();
+    }
+
+    /**
+     * 测试画面：灰色背景加随机噪点，brightness 整体加亮；square >= 0 时画一个位置随 square 变化的白色方块。
+     */
+    static byte[] scene(java.util.Random random, int brightness, int square) throws IOException {
+        java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(640, 480, java.awt.image.BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 480; y++) {
+            for (int x = 0; x < 640; x++) {
+                int v = Math.min(255, 60 + x / 8 + brightness + random.nextInt(9) - 4);
+                image.setRGB(x, y, v << 16 | v << 8 | v);
+            }
+        }
+        if (square >= 0) {
+            java.awt.Graphics2D g = image.createGraphics();
+            g.setColor(java.awt.Color.WHITE);
+            g.fillRect(40 + square * 50, 160, 120, 120);
+            g.dispose();
+        }
+        java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", bos);
+        return bos.toByteArray();
+    }
+
+    static boolean check(boolean condition, String what) {
+        if (!condition) System.err.println("失败: " + what);
+        return condition;
+    }
+}
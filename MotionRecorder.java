@@ -0,0 +1,215 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按运动事件录像：放在 {@link FrameArchive} 前面，静止时每条流只按保活间隔稀疏地写帧，运动中每帧都写。
+ * <p>
+ * 运动开始时先从 {@link ReplayBuffer} 补写事件之前 preRollMs 内、还没写过的帧（预录），
+ * 检测本身的延迟（抽帧间隔加分析时间）和开始前的画面都不会丢。没有回放缓冲时不预录。
+ * 回放缓冲在环形分发（{@link FrameDispatcher}）下是单独的跳帧 stage，跟不上时少收的帧预录里也没有，
+ * 所以预录是尽力而为，可能有空缺；运动开始之后的帧由这里自己全部写入，不受影响。
+ * <p>
+ * 帧、流的打开和关闭由这里转给 {@link MotionDetector}，检测和录像在同一个 stage 里按同样的顺序看到一条流：
+ * 关闭时先关检测（运动中会立即收到结束事件，之后不会再有这条流的事件），再删这条流的状态，
+ * 所以迟到的运动事件不会让一条已经关闭的流一直全速写下去。
+ * 事件在分析线程上到达，这里只记下状态；预录和所有写入都在这条流的帧线程上做，
+ * 每条流写进归档的时间保持单调。回传的历史帧不经过判断，照常写入。
+ */
+public class MotionRecorder implements FrameSink, MotionDetector.Listener {
+
+    public static final long DEFAULT_KEEP_ALIVE_MS = 2000;
+    public static final long DEFAULT_PRE_ROLL_MS = 5000;
+    private static final long NONE = Long.MIN_VALUE;
+
+    private static final class Gate {
+        volatile boolean active;
+        /** 运动开始后还没补写预录帧时是预录的起点，否则为 NONE */
+        volatile long preRollFromMs = NONE;
+        /** 最后写进归档的实时帧的时间，只在这条流的帧线程上访问 */
+        long lastWrittenMs = NONE;
+    }
+
+    private final FrameArchive archive;
+    private final ReplayBuffer replay;
+    private final MotionDetector detector;
+    private final long keepAliveMs;
+    private final long preRollMs;
+    private final Map<String, Gate> gates = new ConcurrentHashMap<>();
+    private final AtomicLong fullFrames = new AtomicLong();
+    private final AtomicLong keepAliveFrames = new AtomicLong();
+    private final AtomicLong preRollFrames = new AtomicLong();
+    private final AtomicLong skippedFrames = new AtomicLong();
+
+    /**
+     * @param replay      预录用的回放缓冲，null 表示不预录
+     * @param detector    由这里转发帧的运动检测，null 表示事件由调用方直接给出
+     * @param keepAliveMs 静止时每条流每隔多久写一帧
+     * @param preRollMs   运动开始前补写多久
+     */
+    public MotionRecorder(FrameArchive archive, ReplayBuffer replay, MotionDetector detector, long keepAliveMs, long preRollMs) {
+        this.archive = archive;
+        this.replay = replay;
+        this.detector = detector;
+        this.keepAliveMs = keepAliveMs;
+        this.preRollMs = preRollMs;
+        if (detector != null) detector.addListener(this);
+    }
+
+    /** 只对打开着的流生效：关闭之后（或者还没有帧之前）到达的事件丢掉 */
+    @Override
+    public void onMotion(String streamKey, boolean active, long captureTimeMs, double score) {
+        Gate gate = gates.get(streamKey);
+        if (gate == null) return;
+        if (active) {
+            gate.preRollFromMs = captureTimeMs - preRollMs; // 先于 active，帧线程看到 active 时一定看得到起点
+        } else {
+            System.out.println("[录像] " + snapshot());
+        }
+        gate.active = active;
+    }
+
+    @Override
+    public void onStreamOpened(StreamInfo stream) {
+        gates.computeIfAbsent(stream.key(), k -> new Gate());
+        if (detector != null) detector.onStreamOpened(stream);
+        archive.onStreamOpened(stream);
+    }
+
+    @Override
+    public void onFrame(Frame frame) throws IOException {
+        if (frame.backfill) {
+            archive.onFrame(frame);
+            return;
+        }
+        String key = frame.stream.key();
+        Gate gate = gates.computeIfAbsent(key, k -> new Gate());
+        if (detector != null) detector.onFrame(frame); // 只复制要分析的帧、提交给分析线程，很快返回
+        long time = frame.captureTimeMs;
+        if (gate.active) {
+            long from = gate.preRollFromMs;
+            if (from != NONE) {
+                gate.preRollFromMs = NONE;
+                preRoll(key, gate, from, time);
+            }
+            fullFrames.incrementAndGet();
+        } else if (gate.lastWrittenMs == NONE || time - gate.lastWrittenMs >= keepAliveMs) {
+            keepAliveFrames.incrementAndGet();
+        } else {
+            skippedFrames.incrementAndGet();
+            return;
+        }
+        archive.onFrame(frame);
+        gate.lastWrittenMs = time;
+    }
+
+    /** 补写 [from, before) 内回放缓冲里有、归档里还没有的帧 */
+    private void preRoll(String key, Gate gate, long from, long before) throws IOException {
+        if (replay == null) return;
+        long start = gate.lastWrittenMs == NONE ? from : Math.max(from, gate.lastWrittenMs + 1);
+        for (ReplayBuffer.ReplayFrame frame : replay.since(key, start)) {
+            if (frame.captureTimeMs >= before) break;
+            archive.append(key, frame.captureTimeMs, false, frame.jpeg, 0, frame.jpeg.length);
+            gate.lastWrittenMs = frame.captureTimeMs;
+            preRollFrames.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onStreamClosed(StreamInfo stream) {
+        if (detector != null) detector.onStreamClosed(stream); // 运动中时这里同步收到结束事件
+        gates.remove(stream.key());
+        archive.onStreamClosed(stream);
+    }
+
+    /** 有状态的流数（自测用） */
+    int getGateCount() {
+        return gates.size();
+    }
+
+    public long getFullFrames() {
+        return fullFrames.get();
+    }
+
+    public long getKeepAliveFrames() {
+        return keepAliveFrames.get();
+    }
+
+    public long getPreRollFrames() {
+        return preRollFrames.get();
+    }
+
+    /** 静止时没写的帧 */
+    public long getSkippedFrames() {
+        return skippedFrames.get();
+    }
+
+    /** 一行统计 */
+    public String snapshot() {
+        return String.format("全速 %d 帧, 保活 %d 帧, 预录 %d 帧, 静止时省掉 %d 帧",
+                fullFrames.get(), keepAliveFrames.get(), preRollFrames.get(), skippedFrames.get());
+    }
+
+    /**
+     * 自测（由 MotionDetector --selftest 调用）：10 fps 的一条流，直接给出运动事件，
+     * 检查静止时的保活间隔、运动开始时补上的预录帧、运动中全速写入和结束后回到保活。
+     */
+    static boolean selfTest() throws Exception {
+        File dir = java.nio.file.Files.createTempDirectory("motion-recorder").toFile();
+        boolean ok = true;
+        try {
+            FrameArchive archive = new FrameArchive(dir, 1024 * 1024, 60_000, 0, 0, 0, 0, 16 * 1024 * 1024);
+            ReplayBuffer replay = new ReplayBuffer(10_000, 4 * 1024 * 1024, 1024 * 1024);
+            MotionRecorder recorder = new MotionRecorder(archive, replay, null, 1000, 2000);
+            StreamInfo stream = StreamInfo.unidentified(1, "recorder");
+            String key = stream.key();
+            long start = 1_000_000;
+            byte[] jpeg = {(byte) 0xFF, (byte) 0xD8, 1, 2, 3, (byte) 0xFF, (byte) 0xD9};
+            for (int i = 0; i < 150; i++) {
+                long time = start + i * 100L;
+                if (i == 100) recorder.onMotion(key, true, time - 300, 0.1); // 分析落后 3 帧
+                if (i == 120) recorder.onMotion(key, false, time, 0);
+                Frame frame = new Frame(stream, jpeg, 0, jpeg.length, time, false);
+                replay.onFrame(frame);
+                recorder.onFrame(frame);
+            }
+            archive.flush();
+            // 静止 10 秒 10 帧、运动结束后 3 帧；预录从 9700-2000 起，但 9000 之前的已经写过，补 9100..9900
+            ok &= MotionDetector.check(recorder.getKeepAliveFrames() == 13 && recorder.getPreRollFrames() == 9
+                    && recorder.getFullFrames() == 20, recorder.snapshot());
+            ok &= MotionDetector.check(archive.find(key, start + 9550).captureTimeMs == start + 9500, "预录帧写进了归档");
+            ok &= MotionDetector.check(archive.find(key, start + 8950).captureTimeMs == start + 8000, "静止时只有保活帧");
+            ok &= MotionDetector.check(archive.find(key, start + 12850).captureTimeMs == start + 11900
+                    && archive.find(key, start + 12950).captureTimeMs == start + 12900, "结束后回到保活间隔");
+            List<String> keys = archive.getStreamKeys();
+            ok &= MotionDetector.check(keys.size() == 1 && keys.get(0).equals(key), "归档里的流 " + keys);
+
+            // 关闭之后迟到的开始事件不会重新建出状态，流不会一直处在运动中
+            recorder.onStreamClosed(stream);
+            recorder.onMotion(key, true, start + 20_000, 0.5);
+            ok &= MotionDetector.check(recorder.getGateCount() == 0, "关闭后的事件被丢掉");
+            recorder.onStreamOpened(stream);
+            long full = recorder.getFullFrames();
+            recorder.onFrame(new Frame(stream, jpeg, 0, jpeg.length, start + 20_100, false));
+            recorder.onFrame(new Frame(stream, jpeg, 0, jpeg.length, start + 20_200, false));
+            ok &= MotionDetector.check(recorder.getFullFrames() == full, "重连后从静止开始");
+            archive.close();
+        } finally {
+            deleteRecursively(dir);
+        }
+        return ok;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
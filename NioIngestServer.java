@@ -0,0 +1,558 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于 Selector 的非阻塞接收引擎，替代每连接一个线程的 {@link FrameIngestServer}。
+ * <p>
+ * 少量 I/O 线程各持有一个 Selector：第一个 I/O 线程负责 accept，新连接轮流分给各 I/O 线程。
+ * I/O 线程把读到的数据喂给每个连接自己的 {@link FrameParser} 状态机，凑齐的数据包放进连接的队列，
+ * 再由工作线程池按连接串行地交给 {@link IngestSession}（同一连接的包保证顺序，不同连接并行）。
+ * 某个连接积压的包达到 {@link #MAX_PENDING_PACKETS} 时暂停读它，形成反压。
+ * <p>
+ * 每个包取缓冲之前先向 {@link IngestMemoryBudget} 申请：超出份额时要么跳过负载（drop 策略下可丢的包），
+ * 要么暂停读这个连接，把这次 read 剩下的数据存进连接自己的暂存缓冲，等别的连接归还预算后在 I/O 线程上接着解析。
+ * <p>
+ * 用法（自测）: java NioIngestServer --selftest
+ */
+public class NioIngestServer implements IngestEngine {
+
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_PENDING_PACKETS = 8;
+    private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long SELECT_TIMEOUT_MS = 1000;
+
+    private final int[] ports;
+    private final List<FrameSink> sinks;
+    private final int ioThreadCount;
+    private final int workerThreadCount;
+    private final FrameBufferPool bufferPool = new FrameBufferPool();
+    private final IngestMemoryBudget budget;
+    private final List<ServerSocketChannel> serverChannels = new ArrayList<>();
+    private final Map<SocketChannel, Connection> connections = new ConcurrentHashMap<>();
+    private final Map<SocketChannel, IngestSession> sessions = new ConcurrentHashMap<>();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    /** 因为积压暂停读取的次数 */
+    private final AtomicLong readPauses = new AtomicLong();
+    private IoLoop[] loops;
+    private ExecutorService workers;
+    private volatile boolean running = false;
+
+    /**
+     * @param ioThreads     I/O 线程数（每个一个 Selector）
+     * @param workerThreads 处理数据包的工作线程数
+     */
+    public NioIngestServer(int[] ports, List<FrameSink> sinks, int ioThreads, int workerThreads) {
+        this(ports, sinks, ioThreads, workerThreads,
+                new IngestMemoryBudget(IngestMemoryBudget.DEFAULT_TOTAL_BYTES, IngestMemoryBudget.Policy.PAUSE));
+    }
+
+    /**
+     * @param budget 在途帧缓冲的全局预算
+     */
+    public NioIngestServer(int[] ports, List<FrameSink> sinks, int ioThreads, int workerThreads, IngestMemoryBudget budget) {
+        this.budget = budget;
+        this.ports = ports.clone();
+        this.sinks = new ArrayList<>(sinks);
+        this.ioThreadCount = Math.max(1, ioThreads);
+        this.workerThreadCount = Math.max(1, workerThreads);
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        if (running) return;
+        running = true;
+        AtomicInteger workerCounter = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerThreadCount,
+                r -> new Thread(r, "ingest-worker-" + workerCounter.incrementAndGet()));
+        loops = new IoLoop[ioThreadCount];
+        try {
+            for (int i = 0; i < ioThreadCount; i++) {
+                loops[i] = new IoLoop(i);
+            }
+            for (int port : ports) {
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverChannels.add(serverChannel);
+                serverChannel.bind(new InetSocketAddress(port), 1024);
+                serverChannel.configureBlocking(false);
+                serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+                System.out.println("帧流接收模式 (NIO) 启动，监听端口: " + serverChannel.socket().getLocalPort());
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        for (IoLoop loop : loops) {
+            loop.thread.start();
+        }
+        Thread statsThread = new Thread(this::statsLoop, "ingest-stats");
+        statsThread.setDaemon(true);
+        statsThread.start();
+        System.out.println("NIO 引擎: " + ioThreadCount + " 个 I/O 线程, " + workerThreadCount + " 个工作线程");
+    }
+
+    @Override
+    public int getLocalPort(int index) {
+        return serverChannels.get(index).socket().getLocalPort();
+    }
+
+    @Override
+    public Collection<IngestSession> getSessions() {
+        return sessions.values();
+    }
+
+    @Override
+    public FrameBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    @Override
+    public IngestMemoryBudget getMemoryBudget() {
+        return budget;
+    }
+
+    @Override
+    public synchronized void close() {
+        running = false;
+        for (ServerSocketChannel serverChannel : serverChannels) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                System.err.println("关闭监听端口时出错: " + e.getMessage());
+            }
+        }
+        serverChannels.clear();
+        if (loops != null) {
+            for (IoLoop loop : loops) {
+                if (loop != null) loop.selector.wakeup();
+            }
+        }
+        for (Connection connection : new ArrayList<>(connections.values())) {
+            connection.close();
+        }
+        if (workers != null) {
+            workers.shutdown();
+        }
+    }
+
+    long getReadPauses() {
+        return readPauses.get();
+    }
+
+    private void statsLoop() {
+        while (running) {
+            try {
+                Thread.sleep(IngestStatsReporter.INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            IngestStatsReporter.report(this);
+        }
+    }
+
+    /** 一个 I/O 线程：Selector 循环、accept（仅第一个）和读取 */
+    private final class IoLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+        long lastIdleSweep = System.nanoTime();
+
+        IoLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "ingest-io-" + index);
+        }
+
+        /** 在本 I/O 线程上执行任务（注册通道、恢复读取等） */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(SELECT_TIMEOUT_MS);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) {
+                            acceptAll((ServerSocketChannel) key.channel());
+                        } else if (key.isReadable()) {
+                            ((Connection) key.attachment()).onReadable();
+                        }
+                    }
+                    sweepIdle();
+                }
+            } catch (IOException e) {
+                System.err.println("I/O 线程出错: " + e.getMessage());
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // 忽略
+                }
+            }
+        }
+
+        private void acceptAll(ServerSocketChannel serverChannel) {
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (IOException e) {
+                    if (running) System.err.println("接受连接时出错: " + e.getMessage());
+                    return;
+                }
+                if (channel == null) return;
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    int port = serverChannel.socket().getLocalPort();
+                    InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+                    IoLoop target = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                    Connection connection = new Connection(channel, target, port, remote.getAddress().getHostAddress());
+                    connections.put(channel, connection);
+                    sessions.put(channel, connection.session);
+                    target.execute(connection::register);
+                    if (IngestStatsReporter.VERBOSE) {
+                        System.out.println("收到新的帧流连接: " + remote + " -> " + port);
+                    }
+                } catch (IOException e) {
+                    System.err.println("初始化连接时出错: " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException ioException) {
+                        // 忽略
+                    }
+                }
+            }
+        }
+
+        /**
+         * 每秒检查一次，关闭长时间没有数据的连接。
+         * 因为积压或等预算而暂停读取的连接不算空闲（是这边没去读），刷新它的时间，恢复读取后重新计时。
+         */
+        private void sweepIdle() {
+            long now = System.nanoTime();
+            if (now - lastIdleSweep < TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT_MS)) return;
+            lastIdleSweep = now;
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+                if (!(attachment instanceof Connection)) continue;
+                Connection connection = (Connection) attachment;
+                if (connection.readPaused.get() || connection.budgetPaused) {
+                    connection.lastReadNanos = now;
+                } else if (now - connection.lastReadNanos > IDLE_TIMEOUT_NANOS) {
+                    System.out.println("帧流连接超时 (" + connection.session.getInfo().key() + ")");
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /** 一个完整的数据包（缓冲来自缓冲池）；{@link #CLOSED} 表示连接已关闭，buffer 为 null 的其它包是被丢掉的包的类型 */
+    private static final class Packet {
+        static final Packet CLOSED = new Packet(null, 0);
+        final byte[] buffer;
+        final int length;
+
+        Packet(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+
+    /** 一条连接：解析状态机在 I/O 线程上运行，会话处理在工作线程上串行运行 */
+    private final class Connection {
+        final SocketChannel channel;
+        final IoLoop loop;
+        final IngestSession session;
+        final IngestMemoryBudget.Account account = budget.open(this::onBudgetAvailable);
+        final FrameParser parser = new FrameParser(bufferPool, this::admit);
+        final Queue<Packet> pending = new ConcurrentLinkedQueue<>();
+        final AtomicInteger pendingCount = new AtomicInteger();
+        final AtomicBoolean draining = new AtomicBoolean();
+        final AtomicBoolean closed = new AtomicBoolean();
+        final FrameParser.PacketHandler enqueue = this::enqueue;
+        SelectionKey key;
+        /**
+         * 积压太多时暂停读取。I/O 线程先置位再复查积压数，工作线程先减积压数再检查标记，
+         * 恢复只由把它从 true 改成 false 的那一方做，两边交错时总有一方看得到对方的修改
+         */
+        final AtomicBoolean readPaused = new AtomicBoolean();
+        /** 等预算时暂停读取；只在 I/O 线程上访问 */
+        boolean budgetPaused = false;
+        /** 等预算时这次 read 没解析完的数据 */
+        ByteBuffer carry;
+        long lastReadNanos = System.nanoTime();
+
+        Connection(SocketChannel channel, IoLoop loop, int port, String remoteAddress) {
+            this.channel = channel;
+            this.loop = loop;
+            this.session = new IngestSession(port, remoteAddress, sinks);
+        }
+
+        /** 在所属 I/O 线程上注册读事件 */
+        void register() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            } catch (ClosedChannelException e) {
+                close();
+            }
+        }
+
+        /** I/O 线程：读尽可读数据，交给解析状态机 */
+        void onReadable() {
+            try {
+                while (!readPaused.get() && !budgetPaused) {
+                    ByteBuffer buffer = loop.readBuffer;
+                    buffer.clear();
+                    int read = channel.read(buffer);
+                    if (read < 0) {
+                        close();
+                        return;
+                    }
+                    if (read == 0) return;
+                    lastReadNanos = System.nanoTime();
+                    buffer.flip();
+                    if (!parser.feed(buffer, enqueue)) {
+                        pauseForBudget(buffer);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                if (running && IngestStatsReporter.VERBOSE) {
+                    System.out.println("帧流连接断开 (" + session.getInfo().key() + "): " + e.getMessage());
+                }
+                close();
+            }
+        }
+
+        /** I/O 线程：解析器读到一个包的长度和类型，取缓冲之前向预算申请 */
+        private int admit(byte type, int length) {
+            int decision = account.admit(FrameBufferPool.capacityFor(length), session.isDroppable(type));
+            if (decision == IngestMemoryBudget.DROP) {
+                pending.add(new Packet(null, type)); // 按顺序告诉会话丢了一个包
+                scheduleDrain();
+            }
+            return decision;
+        }
+
+        /** I/O 线程：存下没解析完的数据，停止读取，等 {@link #onBudgetAvailable} */
+        private void pauseForBudget(ByteBuffer remaining) {
+            if (carry == null) carry = ByteBuffer.allocate(READ_BUFFER_BYTES);
+            carry.clear();
+            carry.put(remaining);
+            carry.flip();
+            budgetPaused = true;
+            if (key != null && key.isValid()) key.interestOps(0);
+        }
+
+        /** 别的连接归还了预算（任意线程）；回到 I/O 线程上接着解析 */
+        private void onBudgetAvailable() {
+            loop.execute(this::resumeFromBudget);
+        }
+
+        private void resumeFromBudget() {
+            if (closed.get() || !budgetPaused) return;
+            try {
+                if (!parser.feed(carry, enqueue)) return; // 还是申请不到，账户重新进入等待
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            budgetPaused = false;
+            resumeReading();
+        }
+
+        private void enqueue(byte[] buffer, int length) {
+            pending.add(new Packet(buffer, length));
+            if (pendingCount.incrementAndGet() >= MAX_PENDING_PACKETS && key != null && key.isValid()
+                    && readPaused.compareAndSet(false, true)) {
+                key.interestOps(0); // 工作线程跟不上，暂停读取这个连接
+                readPauses.incrementAndGet();
+                // 置位之前工作线程可能已经处理完积压（它当时看到的标记还是 false，不会来恢复）
+                if (pendingCount.get() < MAX_PENDING_PACKETS / 2 && readPaused.compareAndSet(true, false)) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+            scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            if (draining.compareAndSet(false, true)) {
+                try {
+                    workers.execute(this::drain);
+                } catch (RuntimeException e) {
+                    draining.set(false); // 线程池已关闭
+                }
+            }
+        }
+
+        /** 工作线程：按顺序处理积压的数据包 */
+        private void drain() {
+            while (true) {
+                Packet packet;
+                while ((packet = pending.poll()) != null) {
+                    if (packet == Packet.CLOSED) {
+                        finish();
+                        continue;
+                    }
+                    if (packet.buffer == null) {
+                        if (session.onDropped((byte) packet.length)) requestKeyframe();
+                        continue;
+                    }
+                    try {
+                        if (session.onPacket(packet.buffer, 0, packet.length)) {
+                            requestKeyframe();
+                        }
+                    } finally {
+                        bufferPool.release(packet.buffer);
+                        account.release(packet.buffer.length);
+                    }
+                    pendingCount.decrementAndGet();
+                    resumeIfDrained();
+                }
+                resumeIfDrained();
+                draining.set(false);
+                if (pending.isEmpty() || !draining.compareAndSet(false, true)) return;
+            }
+        }
+
+        /** 工作线程：积压降到一半以下时恢复读取 */
+        private void resumeIfDrained() {
+            if (pendingCount.get() < MAX_PENDING_PACKETS / 2 && readPaused.get() && readPaused.compareAndSet(true, false)) {
+                loop.execute(this::resumeReading);
+            }
+        }
+
+        private void resumeReading() {
+            if (key != null && key.isValid() && !readPaused.get() && !budgetPaused) {
+                key.interestOps(SelectionKey.OP_READ);
+                onReadable(); // 暂停期间到达的数据可能不会再触发读事件
+            }
+        }
+
+        /** 非阻塞地写一个 'K'；发送缓冲满时放弃，下一个无法应用的增量帧会再次请求 */
+        private void requestKeyframe() {
+            try {
+                channel.write(ByteBuffer.wrap(new byte[]{(byte) FrameProtocol.REQUEST_KEYFRAME}));
+            } catch (IOException e) {
+                // 连接已断开，由 I/O 线程清理
+            }
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+            connections.remove(channel);
+            sessions.remove(channel);
+            // 关闭标记排在已收到的数据包之后，保证 session.close() 最后执行
+            pending.add(Packet.CLOSED);
+            scheduleDrain();
+        }
+
+        private void finish() {
+            account.release(parser.release());
+            account.close();
+            session.close();
+            if (IngestStatsReporter.VERBOSE) {
+                System.out.printf("帧流结束: %s, 共 %d 帧, 平均 %.1f fps\n",
+                        session.getInfo(), session.getStats().getFrames(), session.getStats().averageFps());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--selftest".equals(args[0])) {
+            System.exit(selfTest() ? 0 : 1);
+            return;
+        }
+        System.out.println("用法: java NioIngestServer --selftest");
+    }
+
+    /**
+     * 自测：处理跟不上时的反压。一个很慢的 sink（每帧 3 ms）和一个不慢的 sink，客户端都不限速地发，
+     * 积压反复越过暂停和恢复的阈值；读取必须每次都能恢复，所有帧都要按时收到，否则客户端会一直卡在写上。
+     */
+    static boolean selfTest() throws Exception {
+        boolean ok = selfTestBackpressure("慢 sink", 3, 1, 1, 150);
+        ok &= selfTestBackpressure("快 sink", 0, 2, 3, 1000);
+        System.out.println("自测" + (ok ? "通过" : "失败"));
+        return ok;
+    }
+
+    private static boolean selfTestBackpressure(String name, long sinkDelayMs, int workers, int clientCount, int frames)
+            throws Exception {
+        AtomicLong received = new AtomicLong();
+        FrameSink sink = frame -> {
+            if (sinkDelayMs > 0) Thread.sleep(sinkDelayMs);
+            received.incrementAndGet();
+        };
+        NioIngestServer server = new NioIngestServer(new int[]{0}, List.of(sink), 1, workers);
+        try {
+            server.start();
+            ExecutorService executor = Executors.newFixedThreadPool(clientCount);
+            List<java.util.concurrent.Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < clientCount; i++) {
+                SyntheticPhoneClient client = new SyntheticPhoneClient("127.0.0.1", server.getLocalPort(0),
+                        "bp" + i, 1, 64, 48, frames, 0);
+                results.add(executor.submit(client::run));
+            }
+            executor.shutdown();
+            long expected = 0;
+            long deadline = System.currentTimeMillis() + 30_000;
+            for (java.util.concurrent.Future<Integer> result : results) {
+                expected += result.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+            while (received.get() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            boolean ok = received.get() == expected && expected == (long) clientCount * frames
+                    && (sinkDelayMs == 0 || server.getReadPauses() > 0); // 慢 sink 一定会触发反压
+            if (!ok) {
+                System.err.printf("失败: [%s] 期望 %d 帧, 收到 %d 帧, 暂停读取 %d 次\n",
+                        name, (long) clientCount * frames, received.get(), server.getReadPauses());
+            }
+            return ok;
+        } catch (java.util.concurrent.TimeoutException e) {
+            System.err.printf("失败: [%s] 客户端卡在发送上（读取没有恢复）, 收到 %d 帧, 暂停读取 %d 次\n",
+                    name, received.get(), server.getReadPauses());
+            return false;
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,618 @@
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 每条流最近 N 秒实时帧的内存回放缓冲，新观看者连上或告警触发时可以立刻拿到之前的画面。
+ * <p>
+ * 帧数据放在堆外：所有流共用一个由固定大小直接内存块（{@link #DEFAULT_CHUNK_BYTES}）组成的池，
+ * 池的总大小就是全局内存预算。每条流依次写满自己的块，帧索引（时间、块、偏移、长度）放在预先分配好的环形数组里。
+ * 换块时先回收超出时间窗口的块，池里没有空块就收回所有流里最旧的一块（正在写的块除外）。
+ * 连接断开的流不再占着正在写的块，它的块在断开一个窗口之后或者预算不够时被收回，最后一块收回时整个环也删掉，
+ * 所以来来去去的流（流标识里带着对端地址）不会一直占着池。
+ * <p>
+ * 接收线程上的 {@link #onFrame} 只有一次 ConcurrentHashMap 查找和一次内存复制，稳定运行后不分配对象；
+ * 全局锁只在换块时拿（每块一次，锁内只遍历块表），读的一方不加锁：
+ * 复制前后比较块的代数和环的起点，被回收或覆盖的帧直接跳过，所以读永远不会挡住接收。
+ * 回传的历史帧不进这里。
+ */
+public class ReplayBuffer implements FrameSink {
+
+    public static final int DEFAULT_CHUNK_BYTES = 2 * 1024 * 1024;
+    public static final long DEFAULT_WINDOW_MS = 30_000;
+    /** 每条流最多索引的帧数，30 秒窗口够 270 fps */
+    static final int INDEX_CAPACITY = 8192;
+
+    /** 回放出来的一帧，数据已经复制到堆上 */
+    public static final class ReplayFrame {
+        public final String streamKey;
+        public final long captureTimeMs;
+        public final byte[] jpeg;
+
+        ReplayFrame(String streamKey, long captureTimeMs, byte[] jpeg) {
+            this.streamKey = streamKey;
+            this.captureTimeMs = captureTimeMs;
+            this.jpeg = jpeg;
+        }
+    }
+
+    /** 池里的一块直接内存；generation 每回收一次加一，读的一方用它判断复制出来的数据是否还有效 */
+    private static final class Chunk {
+        final int id;
+        final ByteBuffer buffer;
+        /** 写入用的视图，只在所属流的写线程上改位置 */
+        final ByteBuffer writeView;
+        volatile int generation;
+        volatile long lastTimeMs;
+        /** 所属的流，空闲时为 null；只在持有 chunks 锁时修改 */
+        Ring owner;
+        int used;
+
+        Chunk(int id, int bytes) {
+            this.id = id;
+            this.buffer = ByteBuffer.allocateDirect(bytes);
+            this.writeView = buffer.duplicate();
+        }
+    }
+
+    /** 一条流的帧索引环：[head, tail) 是可能有效的帧，序号对容量取模得到槽位 */
+    private static final class Ring {
+        final String key;
+        final long[] times = new long[INDEX_CAPACITY];
+        final int[] chunkIds = new int[INDEX_CAPACITY];
+        final int[] generations = new int[INDEX_CAPACITY];
+        final int[] offsets = new int[INDEX_CAPACITY];
+        final int[] lengths = new int[INDEX_CAPACITY];
+        volatile long head;
+        volatile long tail;
+        volatile long lastTimeMs = Long.MIN_VALUE;
+        /** 正在写的块，不会被回收；只在持有 chunks 锁时修改 */
+        volatile Chunk current;
+        /** 以下只在持有 chunks 锁时访问：属于这条流的块数、写这条流的连接数、最后一个连接断开的时间（没断开过为 0） */
+        int chunkCount;
+        int writerCount;
+        long closedAtMs;
+
+        Ring(String key) {
+            this.key = key;
+        }
+    }
+
+    private final long windowMs;
+    private final int chunkBytes;
+    private final Chunk[] chunks;
+    private final int[] freeChunks;
+    private int freeCount;
+    private int allocatedChunks;
+    /** 接收路径用连接的 StreamInfo（按对象身份）找环，不用每帧拼流标识 */
+    private final Map<StreamInfo, Ring> writers = new ConcurrentHashMap<>();
+    private final Map<String, Ring> rings = new ConcurrentHashMap<>();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong chunksEvicted = new AtomicLong();
+
+    /**
+     * @param windowMs    每条流保留的时长
+     * @param budgetBytes 所有流合计的直接内存上限，按块大小向下取整，至少一块
+     */
+    public ReplayBuffer(long windowMs, long budgetBytes) {
+        this(windowMs, budgetBytes, DEFAULT_CHUNK_BYTES);
+    }
+
+    ReplayBuffer(long windowMs, long budgetBytes, int chunkBytes) {
+        this.windowMs = windowMs;
+        this.chunkBytes = chunkBytes;
+        int count = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 8, budgetBytes / chunkBytes));
+        this.chunks = new Chunk[count];
+        this.freeChunks = new int[count];
+    }
+
+    public long getWindowMs() {
+        return windowMs;
+    }
+
+    /** 池里已经分配的直接内存（按需分配，不超过预算） */
+    public long getAllocatedBytes() {
+        synchronized (chunks) {
+            return (long) allocatedChunks * chunkBytes;
+        }
+    }
+
+    public long getBudgetBytes() {
+        return (long) chunks.length * chunkBytes;
+    }
+
+    /** 没进缓冲的帧数：单帧超过块大小，或者预算不够每条流一块 */
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    /** 因为全局预算不够、在时间窗口内被收回的块数 */
+    public long getChunksEvicted() {
+        return chunksEvicted.get();
+    }
+
+    @Override
+    public void onStreamOpened(StreamInfo stream) {
+        writers.computeIfAbsent(stream, s -> {
+            synchronized (chunks) {
+                Ring ring = rings.computeIfAbsent(s.key(), Ring::new);
+                ring.writerCount++;
+                return ring;
+            }
+        });
+    }
+
+    @Override
+    public void onFrame(Frame frame) {
+        if (frame.backfill) return;
+        Ring ring = writers.get(frame.stream);
+        if (ring == null) {
+            onStreamOpened(frame.stream);
+            ring = writers.get(frame.stream);
+        }
+        append(ring, frame.captureTimeMs, frame.data, frame.offset, frame.length);
+    }
+
+    /**
+     * 连接断开后环还留着（重连的同一条流接着写，断开前的画面也还能回放），但不再占着正在写的块：
+     * 里面的块在断开 windowMs 之后或者预算不够时收回，最后一块收回时环也删掉。
+     */
+    @Override
+    public void onStreamClosed(StreamInfo stream) {
+        Ring ring = writers.remove(stream);
+        if (ring == null) return;
+        synchronized (ring) { // 等正在写的帧写完
+            synchronized (chunks) {
+                if (--ring.writerCount > 0) return;
+                ring.closedAtMs = System.currentTimeMillis();
+                ring.current = null;
+                if (ring.chunkCount == 0) rings.remove(ring.key, ring);
+            }
+        }
+    }
+
+    /** 当前索引着的流（包括断开后还有帧的） */
+    int getRingCount() {
+        return rings.size();
+    }
+
+    /** 不经过连接按流标识直接写入；这样的环没有断开一说，只按时间窗口和预算回收 */
+    public void append(String streamKey, long captureTimeMs, byte[] data, int offset, int length) {
+        append(rings.computeIfAbsent(streamKey, Ring::new), captureTimeMs, data, offset, length);
+    }
+
+    private void append(Ring ring, long captureTimeMs, byte[] data, int offset, int length) {
+        if (length > chunkBytes) {
+            framesDropped.incrementAndGet();
+            return;
+        }
+        // 同一条流重连时新旧连接可能短暂同时写；正常只有一个写线程，锁没有竞争
+        synchronized (ring) {
+            // 手机时钟偶尔回拨，索引里的时间保持不减，按时间查找才能二分
+            long time = Math.max(captureTimeMs, ring.lastTimeMs);
+            Chunk chunk = ring.current;
+            if (chunk == null || chunk.used + length > chunkBytes) {
+                chunk = nextChunk(ring, time);
+                if (chunk == null) {
+                    framesDropped.incrementAndGet();
+                    return;
+                }
+            }
+            int position = chunk.used;
+            chunk.writeView.clear().position(position);
+            chunk.writeView.put(data, offset, length);
+            chunk.used = position + length;
+            chunk.lastTimeMs = time;
+
+            long tail = ring.tail;
+            long head = ring.head;
+            // 丢掉窗口外的、块已被收回的和环满了要覆盖的帧
+            while (head < tail && (tail - head >= INDEX_CAPACITY || ring.times[slot(head)] < time - windowMs
+                    || chunks[ring.chunkIds[slot(head)]].generation != ring.generations[slot(head)])) {
+                head++;
+            }
+            ring.head = head;
+            VarHandle.storeStoreFence(); // 先让读的一方看到新起点，再覆盖槽位
+            int slot = slot(tail);
+            ring.times[slot] = time;
+            ring.chunkIds[slot] = chunk.id;
+            ring.generations[slot] = chunk.generation;
+            ring.offsets[slot] = position;
+            ring.lengths[slot] = length;
+            ring.lastTimeMs = time;
+            ring.tail = tail + 1;
+        }
+    }
+
+    private static int slot(long sequence) {
+        return (int) (sequence % INDEX_CAPACITY);
+    }
+
+    /**
+     * 给 ring 换一块新的：先回收各流超出时间窗口的块，再从池里取；池空了且还没到预算就分配新块，
+     * 否则收回所有流里最后写入时间最早的一块（正在写的块除外）。
+     *
+     * @return 预算连每条流一块都不够时返回 null
+     */
+    private Chunk nextChunk(Ring ring, long time) {
+        synchronized (chunks) {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < allocatedChunks; i++) {
+                Chunk chunk = chunks[i];
+                Ring owner = chunk.owner;
+                if (owner != null && owner.current != chunk && (chunk.lastTimeMs < owner.lastTimeMs - windowMs
+                        || (owner.writerCount == 0 && owner.closedAtMs > 0 && now - owner.closedAtMs > windowMs))) {
+                    free(chunk);
+                }
+            }
+            if (freeCount == 0 && allocatedChunks < chunks.length) {
+                chunks[allocatedChunks] = new Chunk(allocatedChunks, chunkBytes);
+                freeChunks[freeCount++] = allocatedChunks++;
+            }
+            if (freeCount == 0) {
+                Chunk oldest = null;
+                for (int i = 0; i < allocatedChunks; i++) {
+                    Chunk chunk = chunks[i];
+                    if (chunk.owner != null && chunk.owner.current != chunk
+                            && (oldest == null || chunk.lastTimeMs < oldest.lastTimeMs)) {
+                        oldest = chunk;
+                    }
+                }
+                if (oldest == null) return null;
+                free(oldest);
+                chunksEvicted.incrementAndGet();
+            }
+            Chunk chunk = chunks[freeChunks[--freeCount]];
+            if (ring.chunkCount++ == 0) rings.putIfAbsent(ring.key, ring); // 按流标识写入的环可能刚被删掉
+            chunk.owner = ring;
+            chunk.used = 0;
+            chunk.lastTimeMs = time;
+            ring.current = chunk;
+            return chunk;
+        }
+    }
+
+    /** 调用方持有 chunks 锁；没有连接在写的流的最后一块收回时把环也删掉 */
+    private void free(Chunk chunk) {
+        chunk.generation++;
+        VarHandle.storeStoreFence(); // 代数先变，之后新主人写进来的数据读的一方才不会当成旧帧
+        Ring owner = chunk.owner;
+        chunk.owner = null;
+        freeChunks[freeCount++] = chunk.id;
+        if (--owner.chunkCount == 0 && owner.writerCount == 0 && owner.current == null) {
+            rings.remove(owner.key, owner);
+        }
+    }
+
+    /**
+     * 取采集时间不晚于 timeMs 的最近一帧。
+     *
+     * @return 没有这样的帧时返回 null
+     */
+    public ReplayFrame seek(String streamKey, long timeMs) {
+        Ring ring = rings.get(streamKey);
+        if (ring == null) return null;
+        while (true) {
+            long head = ring.head;
+            long tail = ring.tail;
+            long found = floor(ring, head, tail, timeMs);
+            if (found < 0) return null;
+            ReplayFrame frame = copy(ring, found);
+            if (frame != null) return frame;
+            if (ring.head == head) return null; // 这一帧的块被收回了，更早的也一样
+        }
+    }
+
+    /** 采集时间不早于 fromMs 的所有帧，按时间顺序 */
+    public List<ReplayFrame> since(String streamKey, long fromMs) {
+        Ring ring = rings.get(streamKey);
+        if (ring == null) return Collections.emptyList();
+        long tail = ring.tail;
+        long start = floor(ring, ring.head, tail, fromMs - 1) + 1;
+        List<ReplayFrame> frames = new ArrayList<>();
+        for (long sequence = Math.max(start, ring.head); sequence < tail; sequence++) {
+            ReplayFrame frame = copy(ring, sequence);
+            if (frame != null && frame.captureTimeMs >= fromMs) frames.add(frame);
+        }
+        return frames;
+    }
+
+    /** 这条流最新一帧之前 durationMs 内的帧，按时间顺序 */
+    public List<ReplayFrame> last(String streamKey, long durationMs) {
+        Ring ring = rings.get(streamKey);
+        if (ring == null || ring.tail == 0) return Collections.emptyList();
+        return since(streamKey, ring.lastTimeMs - durationMs);
+    }
+
+    /**
+     * 和 {@link #last} 同样范围的帧，但不一次复制出来：游标每次只把一帧复制进自己的直接缓冲，
+     * 适合一边读一边写 socket 的大响应。范围在创建时定下，之后到达的帧不包括在内。
+     *
+     * @return 没有这条流或者还没有帧时返回 null
+     */
+    public Cursor cursor(String streamKey, long durationMs) {
+        Ring ring = rings.get(streamKey);
+        if (ring == null || ring.tail == 0) return null;
+        long fromMs = ring.lastTimeMs - durationMs;
+        long tail = ring.tail;
+        long head = ring.head;
+        return new Cursor(ring, Math.max(floor(ring, head, tail, fromMs - 1) + 1, head), tail, fromMs);
+    }
+
+    /** 按时间顺序逐帧读的游标，只能在一个线程上用；读的时候已经被回收或覆盖的帧跳过 */
+    public final class Cursor {
+        private final Ring ring;
+        private final long end;
+        private final long fromMs;
+        private long sequence;
+        private ByteBuffer buffer;
+        private long timeMs;
+
+        private Cursor(Ring ring, long start, long end, long fromMs) {
+            this.ring = ring;
+            this.sequence = start;
+            this.end = end;
+            this.fromMs = fromMs;
+        }
+
+        /** 创建时范围内还剩多少帧（没算之后被回收的） */
+        public long remaining() {
+            return Math.max(0, end - sequence);
+        }
+
+        /**
+         * 复制下一帧。
+         *
+         * @return 这一帧 JPEG 的只读视图，下次调用之前有效；没有了返回 null
+         */
+        public ByteBuffer next() {
+            while (sequence < end) {
+                long current = Math.max(sequence, ring.head);
+                sequence = current + 1;
+                if (current >= end) break;
+                int slot = slot(current);
+                long time = ring.times[slot];
+                int chunkId = ring.chunkIds[slot];
+                int generation = ring.generations[slot];
+                int offset = ring.offsets[slot];
+                int length = ring.lengths[slot];
+                VarHandle.loadLoadFence();
+                if (current < ring.head || chunkId >= chunks.length || length < 0 || length > chunkBytes - offset) continue;
+                Chunk chunk = chunks[chunkId];
+                if (chunk == null || chunk.generation != generation || time < fromMs) continue;
+                if (buffer == null || buffer.capacity() < length) {
+                    buffer = ByteBuffer.allocateDirect(Math.min(chunkBytes, Math.max(length, buffer == null ? 0 : buffer.capacity() * 2)));
+                }
+                buffer.clear();
+                buffer.put(chunk.buffer.duplicate().limit(offset + length).position(offset));
+                VarHandle.loadLoadFence();
+                if (chunk.generation != generation || current < ring.head) continue;
+                buffer.flip();
+                timeMs = time;
+                return buffer.asReadOnlyBuffer();
+            }
+            return null;
+        }
+
+        /** 上一次 {@link #next} 返回的帧的采集时间 */
+        public long timeMs() {
+            return timeMs;
+        }
+    }
+
+    /** 有过回放数据的流 */
+    public List<String> getStreamKeys() {
+        List<String> keys = new ArrayList<>(rings.keySet());
+        Collections.sort(keys);
+        return keys;
+    }
+
+    /** [head, tail) 里时间不晚于 timeMs 的最后一个序号，没有返回 head - 1；读到正在被覆盖的槽位时结果可能偏，复制时会校验 */
+    private static long floor(Ring ring, long head, long tail, long timeMs) {
+        long low = head;
+        long high = tail - 1;
+        long found = head - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            if (ring.times[slot(middle)] <= timeMs) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    /** 复制一帧；复制期间槽位被覆盖或块被收回时返回 null */
+    private ReplayFrame copy(Ring ring, long sequence) {
+        if (sequence < ring.head) return null;
+        int slot = slot(sequence);
+        long time = ring.times[slot];
+        int chunkId = ring.chunkIds[slot];
+        int generation = ring.generations[slot];
+        int offset = ring.offsets[slot];
+        int length = ring.lengths[slot];
+        VarHandle.loadLoadFence();
+        if (sequence < ring.head || chunkId >= chunks.length || length < 0 || length > chunkBytes - offset) return null;
+        Chunk chunk = chunks[chunkId];
+        if (chunk == null || chunk.generation != generation) return null;
+        byte[] jpeg = new byte[length];
+        chunk.buffer.duplicate().position(offset).get(jpeg);
+        VarHandle.loadLoadFence();
+        if (chunk.generation != generation || sequence < ring.head) return null;
+        return new ReplayFrame(ring.key, time, jpeg);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--selftest".equals(args[0])) {
+            System.exit(selfTest() ? 0 : 1);
+            return;
+        }
+        System.out.println("用法: java ReplayBuffer --selftest");
+    }
+
+    /**
+     * 自测：时间窗口和按时间查找、全局预算下收回最旧的块、稳定后接收路径不分配内存、
+     * 边写边读时读出的帧内容完整、断开的流不会一直占着块。
+     */
+    static boolean selfTest() throws Exception {
+        boolean ok = true;
+
+        // 10 fps 写 60 秒，窗口 30 秒
+        ReplayBuffer buffer = new ReplayBuffer(30_000, 64L * 1024 * 1024, 64 * 1024);
+        StreamInfo a = StreamInfo.unidentified(1, "a");
+        buffer.onStreamOpened(a);
+        long t0 = 1_000_000;
+        for (int i = 0; i < 600; i++) {
+            buffer.onFrame(frame(a, t0 + i * 100L, 2000 + i));
+        }
+        List<ReplayFrame> window = buffer.last(a.key(), 30_000);
+        ok &= check(window.size() == 301 && window.get(0).captureTimeMs == t0 + 29_900
+                && valid(window.get(window.size() - 1), t0 + 59_900), "窗口内 301 帧, 实际 " + window.size());
+        Cursor cursor = buffer.cursor(a.key(), 30_000);
+        int cursorFrames = 0;
+        boolean cursorMatches = cursor.remaining() == window.size();
+        for (ByteBuffer jpeg; (jpeg = cursor.next()) != null; cursorFrames++) {
+            byte[] bytes = new byte[jpeg.remaining()];
+            jpeg.get(bytes);
+            cursorMatches &= cursorFrames < window.size() && cursor.timeMs() == window.get(cursorFrames).captureTimeMs
+                    && Arrays.equals(bytes, window.get(cursorFrames).jpeg);
+        }
+        ok &= check(cursorMatches && cursorFrames == window.size(), "游标逐帧读出和 last 一样的帧, 读出 " + cursorFrames);
+        ok &= check(buffer.cursor("none", 30_000) == null, "没有的流没有游标");
+        ReplayFrame seek = buffer.seek(a.key(), t0 + 45_050);
+        ok &= check(seek != null && valid(seek, t0 + 45_000), "按时间查找");
+        ok &= check(buffer.seek(a.key(), t0 + 1000) == null, "窗口外查不到");
+        ok &= check(buffer.getAllocatedBytes() <= 40 * 64 * 1024, "窗口外的块已回收, 分配了 " + buffer.getAllocatedBytes());
+
+        // 预算 8 块，3 条流轮流写：内存不超预算，被收回的是最旧的
+        ReplayBuffer small = new ReplayBuffer(30_000, 8 * 64 * 1024, 64 * 1024);
+        StreamInfo[] streams = {StreamInfo.unidentified(1, "x"), StreamInfo.unidentified(2, "y"), StreamInfo.unidentified(3, "z")};
+        for (int i = 0; i < 300; i++) {
+            for (StreamInfo stream : streams) {
+                small.onFrame(frame(stream, t0 + i * 100L, 10_000));
+            }
+        }
+        ok &= check(small.getAllocatedBytes() == small.getBudgetBytes() && small.getChunksEvicted() > 0, "预算用满后开始收回");
+        for (StreamInfo stream : streams) {
+            List<ReplayFrame> frames = small.last(stream.key(), 30_000);
+            ok &= check(!frames.isEmpty() && frames.get(frames.size() - 1).captureTimeMs == t0 + 29_900
+                    && frames.get(0).captureTimeMs > t0 + 20_000, stream.key() + " 只剩最近的帧, 共 " + frames.size());
+        }
+
+        // 池只有 4 块，20 条流依次连上、写几帧、断开：断开的流不占着块，之后连上的新流照样能缓冲，环不会越积越多
+        ReplayBuffer churn = new ReplayBuffer(30_000, 4 * 64 * 1024, 64 * 1024);
+        for (int i = 0; i < 20; i++) {
+            StreamInfo gone = StreamInfo.unidentified(1, "10.0.0." + i + ":5000");
+            churn.onStreamOpened(gone);
+            for (int f = 0; f < 3; f++) {
+                churn.onFrame(frame(gone, t0 + i * 1000L + f * 100L, 10_000));
+            }
+            churn.onStreamClosed(gone);
+        }
+        StreamInfo fresh = StreamInfo.unidentified(1, "fresh");
+        churn.onStreamOpened(fresh);
+        for (int f = 0; f < 18; f++) { // 正好三块，留下最近断开的那条流的一块
+            churn.onFrame(frame(fresh, t0 + 30_000 + f * 100L, 10_000));
+        }
+        ok &= check(churn.getFramesDropped() == 0 && churn.last(fresh.key(), 30_000).size() == 18,
+                "断开的流不占块: 丢帧 " + churn.getFramesDropped() + ", 新流缓冲 " + churn.last(fresh.key(), 30_000).size() + " 帧");
+        ok &= check(churn.getRingCount() <= 4, "块都被收回的断开的流已删掉, 剩 " + churn.getRingCount() + " 条");
+        ok &= check(!churn.last(StreamInfo.unidentified(1, "10.0.0.19:5000").key(), 30_000).isEmpty(), "刚断开的流还能回放");
+        churn.onStreamClosed(fresh);
+
+        // 稳定运行（池已分配满、开始循环收回）后接收路径不分配对象；帧对象预先建好，时间不变只靠预算收回
+        Frame[] frames = new Frame[64];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = frame(a, t0 + 100_000, 3000 + i * 50);
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < 200_000; i++) {
+            buffer.onFrame(frames[i & 63]);
+        }
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 100_000; i++) {
+            buffer.onFrame(frames[i & 63]);
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        ok &= check(allocated < 1024, "接收路径 10 万帧共分配 " + allocated + " 字节");
+
+        // 一个线程以 1 ms 间隔快速写，同时读：读出来的帧必须完整
+        ReplayBuffer shared = new ReplayBuffer(2_000, 4 * 64 * 1024, 64 * 1024);
+        StreamInfo s = StreamInfo.unidentified(9, "s");
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 200_000; i++) {
+                shared.onFrame(frame(s, t0 + i, 1000 + (i % 7) * 997));
+            }
+        });
+        writer.start();
+        long reads = 0;
+        long torn = 0;
+        while (writer.isAlive()) {
+            for (ReplayFrame frame : shared.last(s.key(), 500)) {
+                reads++;
+                if (!valid(frame, frame.captureTimeMs)) torn++;
+            }
+        }
+        writer.join();
+        ok &= check(reads > 0 && torn == 0, "边写边读: 读出 " + reads + " 帧, 损坏 " + torn + " 帧");
+
+        // 游标边写边读：慢慢读，期间的帧大多被回收，读出来的仍然完整
+        Thread writer2 = new Thread(() -> {
+            for (int i = 200_000; i < 300_000; i++) {
+                shared.onFrame(frame(s, t0 + i, 1000 + (i % 7) * 997));
+            }
+        });
+        Cursor slow = shared.cursor(s.key(), 2_000);
+        writer2.start();
+        long cursorReads = 0;
+        long cursorTorn = 0;
+        for (ByteBuffer jpeg; (jpeg = slow.next()) != null; cursorReads++) {
+            byte[] bytes = new byte[jpeg.remaining()];
+            jpeg.get(bytes);
+            if (!valid(new ReplayFrame(s.key(), slow.timeMs(), bytes), slow.timeMs())) cursorTorn++;
+            Thread.yield();
+        }
+        writer2.join();
+        ok &= check(cursorTorn == 0, "游标边写边读: 读出 " + cursorReads + " 帧, 损坏 " + cursorTorn + " 帧");
+
+        System.out.println("自测" + (ok ? "通过" : "失败"));
+        return ok;
+    }
+
+    /** 测试帧：JPEG 头尾，中间填满由时间决定的字节 */
+    private static Frame frame(StreamInfo stream, long timeMs, int size) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) timeMs);
+        data[0] = (byte) 0xFF;
+        data[1] = (byte) 0xD8;
+        data[size - 2] = (byte) 0xFF;
+        data[size - 1] = (byte) 0xD9;
+        return new Frame(stream, data, 0, size, timeMs, false);
+    }
+
+    private static boolean valid(ReplayFrame frame, long timeMs) {
+        byte[] jpeg = frame.jpeg;
+        if (frame.captureTimeMs != timeMs || jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8
+                || (jpeg[jpeg.length - 2] & 0xFF) != 0xFF || (jpeg[jpeg.length - 1] & 0xFF) != 0xD9) {
+            return false;
+        }
+        for (int i = 2; i < jpeg.length - 2; i++) {
+            if (jpeg[i] != (byte) timeMs) return false;
+        }
+        return true;
+    }
+
+    private static boolean check(boolean condition, String what) {
+        if (!condition) System.err.println("失败: " + what);
+        return condition;
+    }
+}
@@ -0,0 +1,385 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32C;
+
+/**
+ * 可续传上传（v5 前导，带去重查询）的参考客户端，手机端按同样的流程实现：
+ * 发前导和抽样摘要 → 读续传偏移（服务端要求时补发整文件 SHA-256，内容已存在时到此结束）
+ * → 从偏移处按块发送 “长度 | CRC32C | 数据” → 发整文件 SHA-256 → 读结果。
+ * 连接断开或块校验失败时重连，从服务端给出的偏移继续。
+ * 整文件 SHA-256 在发送过程中顺带计算，只有服务端怀疑是重复文件时才需要提前把整个文件读一遍。
+ * <p>
+ * 用法:
+ * <pre>
+ * java ResumableUploadClient &lt;host&gt; &lt;port&gt; &lt;文件&gt; [块大小KB=1024]
+ * java ResumableUploadClient --selftest
+ * </pre>
+ * selftest 在随机端口上启动 {@link VideoUploadReceiver}，先后模拟中途断线和坏块，核对续传后的文件内容。
+ */
+public class ResumableUploadClient {
+
+    private static final long RETRY_DELAY_MS = 1000;
+
+    private final String host;
+    private final int port;
+    private final File file;
+    private final String uploadId;
+    private final int chunkSize;
+    private byte[] digest;
+    private byte[] sampleDigest;
+    private boolean deduplicated = false;
+    private long bytesSent = 0;
+    private long lastResumeOffset = -1;
+    private int dropAfterChunks = -1;
+    private int corruptChunk = -1;
+
+    public ResumableUploadClient(String host, int port, File file, String uploadId, int chunkSize) {
+        this.host = host;
+        this.port = port;
+        this.file = file;
+        this.uploadId = uploadId;
+        this.chunkSize = chunkSize;
+    }
+
+    /** 测试用：下一次连接发完 n 块后直接断开 */
+    ResumableUploadClient dropNextAttemptAfter(int chunks) {
+        this.dropAfterChunks = chunks;
+        return this;
+    }
+
+    /** 测试用：下一次连接的第 n 块（从 0 数）发送时翻转一个字节 */
+    ResumableUploadClient corruptNextAttemptChunk(int chunk) {
+        this.corruptChunk = chunk;
+        return this;
+    }
+
+    /** 所有连接累计写出的文件数据字节数（包括服务端断开前已写进 socket 缓冲、被丢弃的部分） */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /** 服务端是否因为内容已存在而跳过了上传 */
+    public boolean isDeduplicated() {
+        return deduplicated;
+    }
+
+    /** 最近一次连接时服务端给出的续传偏移 */
+    public long getLastResumeOffset() {
+        return lastResumeOffset;
+    }
+
+    /**
+     * 上传直到成功或用完尝试次数。
+     *
+     * @return 服务端确认收到完整文件时返回 true
+     */
+    public boolean upload(int maxAttempts) throws InterruptedException {
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            try {
+                byte result = uploadOnce();
+                if (result == VideoUploadReceiver.RESULT_OK) {
+                    return true;
+                }
+                System.err.println("上传被拒绝 (" + (char) result + ")，第 " + attempt + " 次尝试");
+            } catch (IOException e) {
+                System.err.println("上传中断 (第 " + attempt + " 次尝试): " + e.getMessage());
+            }
+            if (attempt < maxAttempts) {
+                Thread.sleep(RETRY_DELAY_MS);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 一次连接尝试。
+     *
+     * @return 服务端的结果字节
+     * @throws IOException 连接中途断开
+     */
+    public byte uploadOnce() throws IOException {
+        if (sampleDigest == null) {
+            sampleDigest = UploadDedupIndex.sampleDigest(file);
+        }
+        int dropAfter = dropAfterChunks;
+        int corrupt = corruptChunk;
+        dropAfterChunks = -1;
+        corruptChunk = -1;
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+             FileChannel source = FileChannel.open(file.toPath())) {
+            long totalLength = source.size();
+            writeFully(channel, ByteBuffer.wrap(preamble(totalLength)));
+            long offset = readFully(channel, 8).getLong();
+            if (offset == VideoUploadReceiver.RESUME_NEED_DIGEST) {
+                writeFully(channel, ByteBuffer.wrap(fullDigest()));
+                offset = readFully(channel, 8).getLong();
+            }
+            if (offset == VideoUploadReceiver.RESUME_DUPLICATE) {
+                System.out.println("服务端已有相同内容，跳过上传: " + file.getName());
+                deduplicated = true;
+                return VideoUploadReceiver.RESULT_OK;
+            }
+            if (offset < 0 || offset > totalLength) {
+                throw new IOException("服务端给出的续传偏移无效: " + offset);
+            }
+            lastResumeOffset = offset;
+            if (offset > 0) {
+                System.out.printf("从 %.2f MB 处续传 %s\n", offset / (1024.0 * 1024.0), file.getName());
+            }
+            ByteBuffer header = ByteBuffer.allocate(8);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(chunkSize);
+            CRC32C crc = new CRC32C();
+            MessageDigest running = digest == null ? prefixDigest(source, offset) : null;
+            int sentChunks = 0;
+            while (offset < totalLength) {
+                if (sentChunks == dropAfter) {
+                    return 0; // 模拟断线：直接关闭连接
+                }
+                chunk.clear().limit((int) Math.min(chunkSize, totalLength - offset));
+                while (chunk.hasRemaining()) {
+                    if (source.read(chunk, offset + chunk.position()) < 0) {
+                        throw new IOException("文件在上传过程中变短了");
+                    }
+                }
+                chunk.flip();
+                crc.reset();
+                crc.update(chunk);
+                if (running != null) {
+                    chunk.flip();
+                    running.update(chunk);
+                }
+                chunk.flip();
+                if (sentChunks == corrupt) {
+                    chunk.put(0, (byte) ~chunk.get(0));
+                }
+                header.clear();
+                header.putInt(chunk.remaining()).putInt((int) crc.getValue()).flip();
+                int length = chunk.remaining();
+                writeFully(channel, header);
+                writeFully(channel, chunk);
+                bytesSent += length;
+                offset += length;
+                sentChunks++;
+            }
+            if (running != null) {
+                digest = running.digest();
+            }
+            writeFully(channel, ByteBuffer.wrap(digest));
+            return readFully(channel, 1).get();
+        }
+    }
+
+    private byte[] fullDigest() throws IOException {
+        if (digest == null) {
+            digest = VideoUploadReceiver.sha256(file);
+        }
+        return digest;
+    }
+
+    /** 续传时先把已上传的前缀读一遍算进摘要 */
+    private static MessageDigest prefixDigest(FileChannel source, long length) throws IOException {
+        MessageDigest md = UploadDedupIndex.newSha256();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        for (long position = 0; position < length; ) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+            int read = source.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("文件在上传过程中变短了");
+            }
+            buffer.flip();
+            md.update(buffer);
+            position += read;
+        }
+        return md;
+    }
+
+    private byte[] preamble(long totalLength) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeShort(VideoUploadReceiver.PREAMBLE_V2_MARKER);
+        out.writeByte(VideoUploadReceiver.PREAMBLE_V5);
+        out.writeUTF(uploadId);
+        out.writeUTF(file.getName());
+        out.writeLong(totalLength);
+        out.writeInt(chunkSize);
+        out.write(sampleDigest);
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer readFully(SocketChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("服务端关闭了连接");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--selftest".equals(args[0])) {
+            System.exit(selfTest() ? 0 : 1);
+            return;
+        }
+        if (args.length < 3) {
+            System.out.println("用法: java ResumableUploadClient <host> <port> <文件> [块大小KB=1024]");
+            System.out.println("      java ResumableUploadClient --selftest");
+            return;
+        }
+        File file = new File(args[2]);
+        int chunkSize = (args.length > 3 ? Integer.parseInt(args[3]) : 1024) * 1024;
+        // 同一个文件重试时用同一个上传 ID，服务端据此找到部分文件
+        String uploadId = Integer.toHexString((file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified()).hashCode());
+        ResumableUploadClient client = new ResumableUploadClient(args[0], Integer.parseInt(args[1]), file, uploadId, chunkSize);
+        boolean ok = client.upload(10);
+        System.out.printf("上传%s: %s, 发送 %.2f MB\n", ok ? "完成" : "失败", file.getName(), client.getBytesSent() / (1024.0 * 1024.0));
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * 自测：40 MB 文件、1 MB 一块。第一次连接发 7 块后断开，第二次从 7 MB 续传、第 3 块损坏，
+     * 第三次应该从损坏块（10 MB）处续传并完成，保存的文件与源文件一致。
+     * 最后换个文件名、换个上传 ID 再传同样的内容，应该直接去重、不发送数据。
+     */
+    static boolean selfTest() throws Exception {
+        File dir = Files.createTempDirectory("resumable-upload").toFile();
+        File source = new File(dir, "source.mp4");
+        int chunkSize = 1024 * 1024;
+        long length = 40L * chunkSize + 12345;
+        try (RandomAccessFile raf = new RandomAccessFile(source, "rw")) {
+            byte[] block = new byte[chunkSize];
+            Random random = new Random(42);
+            for (long written = 0; written < length; written += block.length) {
+                random.nextBytes(block);
+                raf.write(block, 0, (int) Math.min(block.length, length - written));
+            }
+        }
+        File saveDir = new File(dir, "saved");
+        saveDir.mkdirs();
+        VideoUploadReceiver receiver = new VideoUploadReceiver(saveDir, VideoUploadReceiver.FsyncPolicy.NONE, 0);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            executor.execute(() -> {
+                while (server.isOpen()) {
+                    try {
+                        SocketChannel channel = server.accept();
+                        executor.execute(() -> {
+                            try (SocketChannel c = channel) {
+                                receiver.receive(c);
+                            } catch (IOException e) {
+                                System.out.println("服务端: " + e.getMessage());
+                            }
+                        });
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+            ResumableUploadClient client = new ResumableUploadClient("127.0.0.1", port, source, "selftest-1", chunkSize);
+            client.dropNextAttemptAfter(7);
+            boolean first = client.uploadOnce() == VideoUploadReceiver.RESULT_OK;
+            client.corruptNextAttemptChunk(3);
+            boolean second;
+            try {
+                second = client.uploadOnce() == VideoUploadReceiver.RESULT_OK;
+            } catch (IOException e) {
+                second = false; // 服务端回 'C' 后断开，客户端可能在写的时候就发现了
+            }
+            boolean secondResumed = client.getLastResumeOffset() == 7L * chunkSize;
+            boolean ok = !first && !second && client.upload(3);
+            boolean thirdResumed = client.getLastResumeOffset() == 10L * chunkSize;
+
+            File[] saved = saveDir.listFiles((d, name) -> name.endsWith("_source.mp4"));
+            boolean contentOk = saved != null && saved.length == 1
+                    && Arrays.equals(VideoUploadReceiver.sha256(saved[0]), VideoUploadReceiver.sha256(source));
+            boolean resumed = secondResumed && thirdResumed;
+            String[] leftovers = new File(saveDir, ".partial").list();
+            boolean cleaned = leftovers != null && leftovers.length == 0;
+
+            File again = new File(dir, "again.mp4");
+            Files.copy(source.toPath(), again.toPath());
+            ResumableUploadClient duplicate = new ResumableUploadClient("127.0.0.1", port, again, "selftest-2", chunkSize);
+            File[] linked = duplicate.upload(1) ? saveDir.listFiles((d, name) -> name.endsWith("_again.mp4")) : null;
+            boolean dedupOk = duplicate.isDeduplicated() && duplicate.getBytesSent() == 0
+                    && linked != null && linked.length == 1
+                    && Arrays.equals(VideoUploadReceiver.sha256(linked[0]), VideoUploadReceiver.sha256(source))
+                    && new UploadDedupIndex(saveDir).find(VideoUploadReceiver.sha256(source), length) != null;
+
+            // 声明长度超过上限的 v2 和 v4 前导直接被拒绝，不会先扩展出一个巨大的文件
+            receiver.setMaxUploadBytes(64L * 1024 * 1024);
+            boolean rejected = true;
+            for (byte version : new byte[]{VideoUploadReceiver.PREAMBLE_V2, VideoUploadReceiver.PREAMBLE_V4}) {
+                try (SocketChannel huge = SocketChannel.open(new InetSocketAddress("127.0.0.1", port))) {
+                    ByteArrayOutputStream preamble = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(preamble);
+                    out.writeShort(VideoUploadReceiver.PREAMBLE_V2_MARKER);
+                    out.writeByte(version);
+                    if (version == VideoUploadReceiver.PREAMBLE_V4) out.writeUTF("huge-1");
+                    out.writeUTF("huge.mp4");
+                    out.writeLong(1L << 50);
+                    if (version == VideoUploadReceiver.PREAMBLE_V4) {
+                        out.writeInt(4);
+                        out.writeInt(0);
+                    }
+                    huge.write(ByteBuffer.wrap(preamble.toByteArray()));
+                    rejected &= huge.read(ByteBuffer.allocate(1)) < 0;
+                }
+            }
+            File[] hugeFiles = saveDir.listFiles((d, name) -> name.endsWith("_huge.mp4"));
+            String[] hugeParts = new File(saveDir, ".partial").list();
+            boolean capped = rejected && (hugeFiles == null || hugeFiles.length == 0) && hugeParts != null && hugeParts.length == 0;
+
+            // 上次运行留下的分段上传文件在启动清理时删掉（哪些段收齐了没有保存）
+            File leftover = new File(new File(saveDir, ".partial"), "restart-1.seg");
+            Files.write(leftover.toPath(), new byte[1024]);
+            receiver.cleanupStalePartials();
+            boolean restartCleaned = !leftover.exists();
+
+            ok = ok && contentOk && resumed && cleaned && dedupOk && capped && restartCleaned;
+            System.out.printf("自测%s: 文件 %.2f MB, 累计写出 %.2f MB, 续传偏移%s, 内容%s, 部分文件%s, 去重%s\n",
+                    ok ? "通过" : "失败", length / (1024.0 * 1024.0), client.getBytesSent() / (1024.0 * 1024.0),
+                    resumed ? "正确" : "错误", contentOk ? "一致" : "不一致", cleaned ? "已清理" : "有残留",
+                    dedupOk ? "正确" : "错误");
+            if (!capped) System.err.println("失败: 超过上限的声明长度没有被拒绝");
+            if (!restartCleaned) System.err.println("失败: 遗留的分段上传文件没有被清理");
+            return ok;
+        } finally {
+            executor.shutdownNow();
+            deleteRecursively(dir);
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,173 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+/**
+ * 分段并行上传（v4 前导）的参考客户端：把文件按 {@link VideoUploadReceiver#segmentStart} 切成 N 段，
+ * 每段一条连接同时发送，某段失败只重传那一段。
+ * <p>
+ * 用法:
+ * <pre>
+ * java SegmentedUploadClient &lt;host&gt; &lt;port&gt; &lt;文件&gt; [连接数=4]
+ * </pre>
+ */
+public class SegmentedUploadClient {
+
+    private static final int SEND_BUFFER_BYTES = 1024 * 1024;
+    private static final int MAX_ATTEMPTS_PER_SEGMENT = 5;
+    private static final long RETRY_DELAY_MS = 1000;
+
+    private final String host;
+    private final int port;
+    private final File file;
+    private final String uploadId;
+    private final int streams;
+
+    public SegmentedUploadClient(String host, int port, File file, String uploadId, int streams) {
+        if (streams <= 0 || streams > VideoUploadReceiver.MAX_SEGMENTS) {
+            throw new IllegalArgumentException("连接数需要在 1 到 " + VideoUploadReceiver.MAX_SEGMENTS + " 之间: " + streams);
+        }
+        this.host = host;
+        this.port = port;
+        this.file = file;
+        this.uploadId = uploadId;
+        this.streams = streams;
+    }
+
+    /**
+     * 并行上传所有段，每段最多尝试 {@link #MAX_ATTEMPTS_PER_SEGMENT} 次。
+     *
+     * @return 所有段都得到服务端确认时返回 true，此时服务端已经落地完整文件
+     */
+    public boolean upload() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(streams);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < streams; i++) {
+                int index = i;
+                results.add(executor.submit(() -> uploadSegmentWithRetry(index)));
+            }
+            boolean ok = true;
+            for (Future<Boolean> result : results) {
+                try {
+                    ok &= result.get();
+                } catch (java.util.concurrent.ExecutionException e) {
+                    System.err.println("分段上传出错: " + e.getCause());
+                    ok = false;
+                }
+            }
+            return ok;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private boolean uploadSegmentWithRetry(int index) throws InterruptedException {
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS_PER_SEGMENT; attempt++) {
+            try {
+                byte result = uploadSegment(index);
+                if (result == VideoUploadReceiver.RESULT_OK) {
+                    return true;
+                }
+                System.err.println("第 " + (index + 1) + " 段被拒绝 (" + (char) result + ")，第 " + attempt + " 次尝试");
+            } catch (IOException e) {
+                System.err.println("第 " + (index + 1) + " 段上传中断 (第 " + attempt + " 次尝试): " + e.getMessage());
+            }
+            Thread.sleep(RETRY_DELAY_MS);
+        }
+        return false;
+    }
+
+    private byte uploadSegment(int index) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+             FileChannel source = FileChannel.open(file.toPath())) {
+            long totalLength = source.size();
+            writeFully(channel, ByteBuffer.wrap(preamble(totalLength, index)));
+            byte reply = readFully(channel, 1).get();
+            if (reply == VideoUploadReceiver.RESULT_OK) {
+                return reply; // 服务端已经有这一段
+            }
+            if (reply != VideoUploadReceiver.SEGMENT_READY) {
+                throw new IOException("服务端回复无效: " + reply);
+            }
+            long position = VideoUploadReceiver.segmentStart(totalLength, streams, index);
+            long end = VideoUploadReceiver.segmentStart(totalLength, streams, index + 1);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(SEND_BUFFER_BYTES);
+            CRC32C crc = new CRC32C();
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(SEND_BUFFER_BYTES, end - position));
+                int read = source.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("文件在上传过程中变短了");
+                }
+                buffer.flip();
+                crc.update(buffer);
+                buffer.flip();
+                writeFully(channel, buffer);
+                position += read;
+            }
+            ByteBuffer checksum = ByteBuffer.allocate(4).putInt((int) crc.getValue());
+            checksum.flip();
+            writeFully(channel, checksum);
+            return readFully(channel, 1).get();
+        }
+    }
+
+    private byte[] preamble(long totalLength, int index) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeShort(VideoUploadReceiver.PREAMBLE_V2_MARKER);
+        out.writeByte(VideoUploadReceiver.PREAMBLE_V4);
+        out.writeUTF(uploadId);
+        out.writeUTF(file.getName());
+        out.writeLong(totalLength);
+        out.writeInt(streams);
+        out.writeInt(index);
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer readFully(SocketChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("服务端关闭了连接");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("用法: java SegmentedUploadClient <host> <port> <文件> [连接数=4]");
+            return;
+        }
+        File file = new File(args[2]);
+        int streams = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        String uploadId = Integer.toHexString((file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified()).hashCode());
+        long start = System.nanoTime();
+        boolean ok = new SegmentedUploadClient(args[0], Integer.parseInt(args[1]), file, uploadId, streams).upload();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("上传%s: %s, %d 条连接, %.1f MB/s\n", ok ? "完成" : "失败", file.getName(), streams,
+                file.length() / (1024.0 * 1024.0) / seconds);
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,312 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按大小分级的堆外缓冲分配器：16 KB / 64 KB / 256 KB / 1 MB 四级，从 4 MB 的直接内存块（slab）里切出来。
+ * <p>
+ * 取出的是带引用计数的 {@link PooledBuffer}，初始计数为 1；要共享给别的使用者时先 {@link PooledBuffer#retain}，
+ * 每个使用者用完各自 {@link PooledBuffer#release}，计数归零时缓冲回到所在级别的空闲列表，
+ * 不经过 GC，也不用每次向操作系统要直接内存。
+ * 直接内存总量不超过 maxBytes；用完了或者请求超过最大级别时退回堆上分配（计数），调用方不用区分。
+ * <p>
+ * 泄漏检测（构造参数或 -Dslab.leakDetection=true）：每个借出的缓冲配一个弱引用，记下分配时的调用栈；
+ * 缓冲没释放就被 GC 回收时，下一次分配会打印这个调用栈、把那块内存收回并计数。
+ * 不开时没有这部分开销，没释放的缓冲对应的那块内存就一直占着。
+ * <p>
+ * 目前只有 {@link LiveFrameHub} 用它保存每条流的最新帧。接收引擎读进来的负载仍然是
+ * {@link FrameBufferPool} 的堆数组，只在 {@link FrameSink#onFrame} 期间有效，需要保留的接收端
+ * （实时画面、回放缓冲、归档写入）各自复制一份；把负载本身放进这里、由各个接收端各自 release，
+ * 要改 {@link Frame} 和所有接收端的接口，还没有做。
+ */
+public class SlabAllocator {
+
+    static final int[] CLASS_SIZES = {16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+    static final int SLAB_BYTES = 4 * 1024 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private final long maxBytes;
+    private final boolean leakDetection;
+    private final List<ArrayDeque<ByteBuffer>> free = new ArrayList<>();
+    /** 已经向操作系统要的直接内存，在 this 上同步 */
+    private long reservedBytes;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+    private final ReferenceQueue<PooledBuffer> leakQueue = new ReferenceQueue<>();
+    /** 还没释放的缓冲的弱引用；释放时移除，GC 后还在这里的就是泄漏 */
+    private final Set<LeakTracker> trackers = ConcurrentHashMap.newKeySet();
+
+    public SlabAllocator(long maxBytes) {
+        this(maxBytes, Boolean.getBoolean("slab.leakDetection"));
+    }
+
+    public SlabAllocator(long maxBytes, boolean leakDetection) {
+        this.maxBytes = maxBytes;
+        this.leakDetection = leakDetection;
+        for (int i = 0; i < CLASS_SIZES.length; i++) {
+            free.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * 取一个容量至少为 size 的缓冲，引用计数为 1。
+     * 直接内存用完或 size 超过最大级别时返回堆上的缓冲（{@link PooledBuffer#isDirect()} 为 false）。
+     */
+    public PooledBuffer allocate(int size) {
+        if (leakDetection) reclaimLeaks();
+        int index = classIndex(size);
+        ByteBuffer memory = index < 0 ? null : take(index);
+        if (memory == null) {
+            fallbacks.incrementAndGet();
+            return unpooled(size);
+        }
+        allocations.incrementAndGet();
+        outstanding.incrementAndGet();
+        PooledBuffer buffer = new PooledBuffer(this, memory, index);
+        if (leakDetection) {
+            buffer.tracker = new LeakTracker(buffer, memory, index, leakQueue);
+            trackers.add(buffer.tracker);
+        }
+        return buffer;
+    }
+
+    /** 不经过池的堆上缓冲，release 到 0 之后交给 GC */
+    public static PooledBuffer unpooled(int size) {
+        return new PooledBuffer(null, ByteBuffer.allocate(size), -1);
+    }
+
+    private ByteBuffer take(int index) {
+        ArrayDeque<ByteBuffer> list = free.get(index);
+        synchronized (list) {
+            ByteBuffer memory = list.poll();
+            if (memory != null || !reserveSlab()) return memory;
+            ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_BYTES);
+            int size = CLASS_SIZES[index];
+            for (int offset = size; offset + size <= SLAB_BYTES; offset += size) {
+                list.add(slab.duplicate().position(offset).limit(offset + size).slice());
+            }
+            return slab.limit(size).slice();
+        }
+    }
+
+    private synchronized boolean reserveSlab() {
+        if (reservedBytes + SLAB_BYTES > maxBytes) return false;
+        reservedBytes += SLAB_BYTES;
+        return true;
+    }
+
+    private void recycle(PooledBuffer buffer) {
+        if (buffer.tracker != null) {
+            trackers.remove(buffer.tracker);
+            buffer.tracker.clear();
+        }
+        giveBack(buffer.memory, buffer.classIndex);
+    }
+
+    private void giveBack(ByteBuffer memory, int index) {
+        memory.clear();
+        ArrayDeque<ByteBuffer> list = free.get(index);
+        synchronized (list) {
+            list.push(memory); // 后进先出，刚用过的那块更可能还在 CPU 缓存里
+        }
+        outstanding.decrementAndGet();
+    }
+
+    /** 把已被 GC 回收、却没释放的缓冲对应的内存收回来 */
+    private void reclaimLeaks() {
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker) leakQueue.poll()) != null) {
+            if (!trackers.remove(tracker)) continue;
+            leaks.incrementAndGet();
+            System.err.println("堆外缓冲没有释放就被回收了（" + CLASS_SIZES[tracker.classIndex] / 1024 + " KB），分配位置:");
+            tracker.allocatedAt.printStackTrace();
+            giveBack(tracker.memory, tracker.classIndex);
+        }
+    }
+
+    /** 还没释放的池内缓冲数 */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /** 退回堆上分配的次数 */
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    public long getLeaks() {
+        return leaks.get();
+    }
+
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /** 一行统计，给定时输出用 */
+    public String snapshot() {
+        return String.format("堆外 %d/%d MB, 借出 %d, 分配 %d, 退回堆上 %d, 泄漏 %d",
+                getReservedBytes() >> 20, maxBytes >> 20, getOutstanding(), getAllocations(), getFallbacks(), getLeaks());
+    }
+
+    /** 容量不小于 size 的最小级别，超过最大级别返回 -1 */
+    static int classIndex(int size) {
+        for (int i = 0; i < CLASS_SIZES.length; i++) {
+            if (size <= CLASS_SIZES[i]) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * 带引用计数的缓冲。每次分配都是新对象，计数归零后再 retain 必然失败，
+     * 即使底下那块内存已经借给了别人，也不会把别人的缓冲当成自己的。
+     */
+    public static final class PooledBuffer {
+        private final SlabAllocator owner;
+        private final ByteBuffer memory;
+        private final int classIndex;
+        private final AtomicInteger refCount = new AtomicInteger(1);
+        private LeakTracker tracker;
+
+        private PooledBuffer(SlabAllocator owner, ByteBuffer memory, int classIndex) {
+            this.owner = owner;
+            this.memory = memory;
+            this.classIndex = classIndex;
+        }
+
+        /** 整块缓冲的新视图（位置 0，界限为容量），各视图的读写位置互不影响；释放后不能再用 */
+        public ByteBuffer memory() {
+            return memory.duplicate();
+        }
+
+        public int capacity() {
+            return memory.capacity();
+        }
+
+        public boolean isDirect() {
+            return memory.isDirect();
+        }
+
+        /** 多一个使用者 */
+        public PooledBuffer retain() {
+            if (!tryRetain()) throw new IllegalStateException("缓冲已经释放");
+            return this;
+        }
+
+        /** 计数还没归零时加一并返回 true；已经释放的返回 false，用于和最后一次 release 竞争的读者 */
+        public boolean tryRetain() {
+            while (true) {
+                int count = refCount.get();
+                if (count <= 0) return false;
+                if (refCount.compareAndSet(count, count + 1)) return true;
+            }
+        }
+
+        /**
+         * 少一个使用者，计数归零时还给池。
+         *
+         * @return 这次是否归零
+         * @throws IllegalStateException 重复释放
+         */
+        public boolean release() {
+            int count = refCount.decrementAndGet();
+            if (count < 0) throw new IllegalStateException("缓冲重复释放");
+            if (count > 0) return false;
+            if (owner != null) owner.recycle(this);
+            return true;
+        }
+
+        int refCount() {
+            return refCount.get();
+        }
+    }
+
+    /** 泄漏检测用的弱引用：只引用内存和分配位置，不引用 PooledBuffer 本身 */
+    private static final class LeakTracker extends WeakReference<PooledBuffer> {
+        final ByteBuffer memory;
+        final int classIndex;
+        final Throwable allocatedAt = new Throwable("分配位置");
+
+        LeakTracker(PooledBuffer buffer, ByteBuffer memory, int classIndex, ReferenceQueue<PooledBuffer> queue) {
+            super(buffer, queue);
+            this.memory = memory;
+            this.classIndex = classIndex;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--selftest".equals(args[0])) {
+            System.exit(selfTest() ? 0 : 1);
+            return;
+        }
+        System.out.println("用法: java SlabAllocator --selftest");
+    }
+
+    /** 自测：分级和复用、共享和重复释放、退回堆上、泄漏检测 */
+    static boolean selfTest() throws Exception {
+        boolean ok = true;
+        SlabAllocator slab = new SlabAllocator(4 * SLAB_BYTES, true);
+
+        PooledBuffer a = slab.allocate(20_000);
+        ok &= check(a.isDirect() && a.capacity() == 64 * 1024, "20000 字节落在 64 KB 级别");
+        ok &= check(slab.getReservedBytes() == SLAB_BYTES && slab.getOutstanding() == 1, "切了一个 slab");
+        a.memory().put(0, (byte) 42);
+        ByteBuffer firstMemory = a.memory;
+        ok &= check(a.release() && slab.getOutstanding() == 0, "release 归零");
+        PooledBuffer b = slab.allocate(64 * 1024);
+        ok &= check(b.memory == firstMemory && b.memory().get(0) == 42, "刚释放的那块被复用");
+        ok &= check(!a.tryRetain() && a.refCount() == 0, "释放后 tryRetain 失败");
+
+        ok &= check(b.retain() == b && !b.release() && b.release(), "共享两次，第二次 release 才归零");
+        try {
+            b.release();
+            ok &= check(false, "重复释放应该抛异常");
+        } catch (IllegalStateException e) {
+            // 预期
+        }
+
+        // 泄漏：分配后直接丢掉引用
+        slab.allocate(16 * 1024);
+        ok &= check(slab.getOutstanding() == 1, "泄漏前借出 1 个");
+        for (int i = 0; i < 50 && slab.getLeaks() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+            slab.allocate(16 * 1024).release();
+        }
+        ok &= check(slab.getLeaks() == 1 && slab.getOutstanding() == 0, "泄漏被发现并收回: " + slab.snapshot());
+        PooledBuffer big = slab.allocate(2 * 1024 * 1024);
+        ok &= check(!big.isDirect() && slab.getFallbacks() == 1, "超过最大级别退回堆上");
+        big.release();
+        PooledBuffer[] all = new PooledBuffer[SLAB_BYTES / (1024 * 1024) * 2]; // 64 KB 和 16 KB 各占一个 slab，还剩两个
+        for (int i = 0; i < all.length; i++) {
+            all[i] = slab.allocate(1024 * 1024);
+        }
+        ok &= check(all[all.length - 1].isDirect() && slab.getReservedBytes() == 4 * SLAB_BYTES, "切满四个 slab");
+        PooledBuffer overflow = slab.allocate(1024 * 1024);
+        ok &= check(!overflow.isDirect() && slab.getFallbacks() == 2, "直接内存用完退回堆上");
+        for (PooledBuffer buffer : all) {
+            buffer.release();
+        }
+
+        System.out.println(slab.snapshot());
+        System.out.println("自测" + (ok ? "通过" : "失败"));
+        return ok;
+    }
+
+    private static boolean check(boolean condition, String what) {
+        if (!condition) System.err.println("失败: " + what);
+        return condition;
+    }
+}
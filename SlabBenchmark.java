@@ -0,0 +1,215 @@
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * 实时帧缓冲压测：{@link LiveFrameHub} 用堆上的帧和用 {@link SlabAllocator} 的池化堆外帧对比。
+ * <p>
+ * 一个接收线程按固定总帧率轮流往 N 条流放帧（默认 8 路合计 3000 fps、每帧 64 KB），
+ * 几个观看线程不停地取各条流的最新帧（{@link LiveFrameHub#acquireLatest}），把 JPEG 复制进一块直接缓冲
+ * （相当于写 socket 时内核那一次复制），再释放。报告接收线程每帧分配的字节数、放帧耗时、
+ * GC 次数和总耗时，以及从 GC 通知里取到的每次停顿的 p99 和最大值。
+ * 两种模式各先预热一轮；结果只用来看数量级，GC 的数字和堆大小、收集器有关，可以用 -Xmx、-XX:+UseXxxGC 对比。
+ * <p>
+ * 用法: java SlabBenchmark [--streams=8] [--fps=3000] [--size=65536] [--viewers=4] [--seconds=10] [--slab-mb=64]
+ */
+public class SlabBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int streams = 8;
+        int fps = 3000;
+        int size = 64 * 1024;
+        int viewers = 4;
+        int seconds = 10;
+        long slabBytes = SlabAllocator.DEFAULT_MAX_BYTES;
+        for (String arg : args) {
+            if (arg.startsWith("--streams=")) {
+                streams = Integer.parseInt(arg.substring("--streams=".length()));
+            } else if (arg.startsWith("--fps=")) {
+                fps = Integer.parseInt(arg.substring("--fps=".length()));
+            } else if (arg.startsWith("--size=")) {
+                size = Integer.parseInt(arg.substring("--size=".length()));
+            } else if (arg.startsWith("--viewers=")) {
+                viewers = Integer.parseInt(arg.substring("--viewers=".length()));
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Integer.parseInt(arg.substring("--seconds=".length()));
+            } else if (arg.startsWith("--slab-mb=")) {
+                slabBytes = Long.parseLong(arg.substring("--slab-mb=".length())) * 1024 * 1024;
+            } else {
+                System.out.println("用法: java SlabBenchmark [--streams=8] [--fps=3000] [--size=65536] [--viewers=4] [--seconds=10] [--slab-mb=64]");
+                return;
+            }
+        }
+        List<byte[]> jpegs = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 4; i++) {
+            byte[] jpeg = new byte[size - i * 1000];
+            random.nextBytes(jpeg);
+            jpegs.add(jpeg);
+        }
+        GcPauses pauses = new GcPauses();
+        System.out.printf("%d 路合计 %d fps, 每帧约 %d KB, %d 个观看线程, 每轮 %d 秒\n", streams, fps, size / 1024, viewers, seconds);
+        run("预热", new LiveFrameHub(), streams, fps, jpegs, viewers, Math.max(1, seconds / 3), pauses, false);
+        run("预热", new LiveFrameHub(new SlabAllocator(slabBytes)), streams, fps, jpegs, viewers, Math.max(1, seconds / 3), pauses, false);
+        run("堆上的帧", new LiveFrameHub(), streams, fps, jpegs, viewers, seconds, pauses, true);
+        SlabAllocator slab = new SlabAllocator(slabBytes);
+        run("池化堆外帧", new LiveFrameHub(slab), streams, fps, jpegs, viewers, seconds, pauses, true);
+        System.out.println("  " + slab.snapshot());
+        System.out.println("JVM: " + ManagementFactory.getRuntimeMXBean().getVmVersion()
+                + ", " + Runtime.getRuntime().availableProcessors() + " CPU, 最大堆 "
+                + Runtime.getRuntime().maxMemory() / (1024 * 1024) + " MB, 收集器 " + gcNames());
+    }
+
+    private static void run(String name, LiveFrameHub hub, int streams, int fps, List<byte[]> jpegs, int viewerCount,
+            int seconds, GcPauses pauses, boolean print) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        StreamInfo[] infos = new StreamInfo[streams];
+        for (int i = 0; i < streams; i++) {
+            infos[i] = StreamInfo.unidentified(i + 1, "bench" + i);
+            hub.onFrame(new Frame(infos[i], jpegs.get(0), 0, jpegs.get(0).length, System.currentTimeMillis(), false));
+        }
+        List<Viewer> viewers = new ArrayList<>();
+        for (int i = 0; i < viewerCount; i++) {
+            Viewer viewer = new Viewer(hub, infos, jpegs.get(0).length);
+            viewer.setDaemon(true);
+            viewer.start();
+            viewers.add(viewer);
+        }
+        System.gc();
+        long[] gcBefore = gcTotals();
+        pauses.reset();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long intervalNanos = 1_000_000_000L / fps;
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        long[] publishNanos = new long[(int) Math.min(Integer.MAX_VALUE - 8, (long) fps * seconds + 1)];
+        int published = 0;
+        for (long next = start; next < end && published < publishNanos.length; next += intervalNanos) {
+            long sleep = next - System.nanoTime();
+            if (sleep > 100_000) Thread.sleep(sleep / 1_000_000, (int) (sleep % 1_000_000));
+            byte[] jpeg = jpegs.get(published % jpegs.size());
+            long before = System.nanoTime();
+            hub.onFrame(new Frame(infos[published % streams], jpeg, 0, jpeg.length, System.currentTimeMillis(), false));
+            publishNanos[published++] = System.nanoTime() - before;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        long[] gcAfter = gcTotals();
+        long viewed = 0;
+        for (Viewer viewer : viewers) {
+            viewer.running = false;
+            viewer.join();
+            viewed += viewer.frames;
+        }
+        if (!print) return;
+        long[] publish = java.util.Arrays.copyOf(publishNanos, published);
+        java.util.Arrays.sort(publish);
+        long[] pause = pauses.sorted();
+        System.out.printf("  %-10s %6.0f fps, 接收线程每帧分配 %7d 字节; 放帧 p99 %7.1f µs, 最大 %8.1f µs; 观看线程取到 %d 帧\n",
+                name, published / elapsed, allocated / Math.max(1, published),
+                publish[(int) (publish.length * 0.99)] / 1e3, publish[publish.length - 1] / 1e3, viewed);
+        System.out.printf("  %-10s GC %d 次, 共 %d ms; 停顿 p99 %d ms, 最大 %d ms\n", "",
+                gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1],
+                pause.length == 0 ? 0 : pause[(int) (pause.length * 0.99)], pause.length == 0 ? 0 : pause[pause.length - 1]);
+    }
+
+    /** 观看线程：各条流有新帧就取一份，复制进直接缓冲后释放 */
+    private static final class Viewer extends Thread {
+        final LiveFrameHub hub;
+        final StreamInfo[] streams;
+        final long[] sent;
+        final ByteBuffer socket;
+        volatile boolean running = true;
+        long frames;
+
+        Viewer(LiveFrameHub hub, StreamInfo[] streams, int size) {
+            super("viewer");
+            this.hub = hub;
+            this.streams = streams;
+            this.sent = new long[streams.length];
+            this.socket = ByteBuffer.allocateDirect(size + 1024);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                boolean any = false;
+                for (int i = 0; i < streams.length; i++) {
+                    LiveFrame peek = hub.latest(streams[i].key());
+                    if (peek == null || peek.sequence <= sent[i]) continue;
+                    LiveFrame frame = hub.acquireLatest(streams[i].key());
+                    socket.clear();
+                    socket.put(frame.jpeg());
+                    sent[i] = frame.sequence;
+                    frame.release();
+                    frames++;
+                    any = true;
+                }
+                if (!any) {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /** 从 GC 通知里记每次停顿的时长（毫秒） */
+    private static final class GcPauses implements NotificationListener {
+        private final List<Long> durations = Collections.synchronizedList(new ArrayList<>());
+
+        GcPauses() {
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (gc instanceof NotificationEmitter) ((NotificationEmitter) gc).addNotificationListener(this, null, null);
+            }
+        }
+
+        @Override
+        public void handleNotification(javax.management.Notification notification, Object handback) {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) return;
+            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            if (info.getGcCause().equals("System.gc()")) return; // 每轮开始前手动触发的那次不算
+            durations.add(info.getGcInfo().getDuration());
+        }
+
+        void reset() {
+            durations.clear();
+        }
+
+        long[] sorted() {
+            synchronized (durations) {
+                return durations.stream().mapToLong(Long::longValue).sorted().toArray();
+            }
+        }
+    }
+
+    /** {所有收集器的次数之和, 耗时之和 ms} */
+    private static long[] gcTotals() {
+        long count = 0;
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[]{count, time};
+    }
+
+    private static String gcNames() {
+        List<String> names = new ArrayList<>();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            names.add(gc.getName());
+        }
+        return String.join(" / ", names);
+    }
+}
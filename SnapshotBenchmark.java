@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 快照接口压测：N 条 keep-alive 连接不停地 {@code GET /snapshot/<流>}，同时接收端按固定帧率放新帧。
+ * <p>
+ * 分两轮：第一轮带上次拿到的 ETag 发 If-None-Match（轮询页面的正常用法，大部分是 304），
+ * 第二轮不带（每次都回整张图）。每条连接一次只有一个请求在路上，客户端在一个线程里用 Selector 驱动，
+ * 报告每秒请求数、200/304 的比例和请求延迟。服务端只有一个 I/O 线程，单核机器上客户端和服务端共用这一个核。
+ * <p>
+ * 用法: java SnapshotBenchmark [--clients=64] [--fps=15] [--seconds=5] [--size=640x360]
+ */
+public class SnapshotBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int clientCount = 64;
+        int fps = 15;
+        int seconds = 5;
+        int width = 640;
+        int height = 360;
+        for (String arg : args) {
+            if (arg.startsWith("--clients=")) {
+                clientCount = Integer.parseInt(arg.substring("--clients=".length()));
+            } else if (arg.startsWith("--fps=")) {
+                fps = Integer.parseInt(arg.substring("--fps=".length()));
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Integer.parseInt(arg.substring("--seconds=".length()));
+            } else if (arg.startsWith("--size=")) {
+                String[] size = arg.substring("--size=".length()).split("x");
+                width = Integer.parseInt(size[0]);
+                height = Integer.parseInt(size[1]);
+            } else {
+                System.out.println("用法: java SnapshotBenchmark [--clients=64] [--fps=15] [--seconds=5] [--size=640x360]");
+                return;
+            }
+        }
+        LiveFrameHub hub = new LiveFrameHub();
+        LiveHttpServer server = new LiveHttpServer(0, hub);
+        server.start();
+        StreamInfo stream = StreamInfo.unidentified(1, "bench");
+        List<byte[]> jpegs = SyntheticPhoneClient.renderJpegs(width, height, "bench");
+        hub.onFrame(new Frame(stream, jpegs.get(0), 0, jpegs.get(0).length, System.currentTimeMillis(), false));
+
+        Publisher publisher = new Publisher(hub, stream, jpegs, fps);
+        Thread publisherThread = new Thread(publisher, "publisher");
+        publisherThread.start();
+        System.out.println();
+        System.out.printf("1 路 %dx%d, 每帧约 %d KB, %d fps; %d 条 keep-alive 连接, 每轮 %d 秒\n", width, height,
+                jpegs.get(0).length / 1024, fps, clientCount, seconds);
+        try {
+            String path = "/snapshot/" + stream.key();
+            runRound(server, path, clientCount, 1, false); // 预热
+            runRound(server, path, clientCount, seconds, true);
+            runRound(server, path, clientCount, seconds, false);
+        } finally {
+            publisher.running = false;
+            publisherThread.join();
+            server.close();
+        }
+        System.out.println("JVM: " + ManagementFactory.getRuntimeMXBean().getVmVersion()
+                + ", " + Runtime.getRuntime().availableProcessors() + " CPU");
+    }
+
+    private static void runRound(LiveHttpServer server, String path, int clientCount, int seconds, boolean conditional)
+            throws IOException {
+        long[] before = server.getSnapshotCounters();
+        Clients clients = new Clients(server.getLocalPort(), path, clientCount, conditional);
+        long start = System.nanoTime();
+        clients.run(start + seconds * 1_000_000_000L);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long[] after = server.getSnapshotCounters();
+        if (seconds < 2) return;
+        long full = after[0] - before[0];
+        long notModified = after[1] - before[1];
+        long[] latencies = clients.latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        System.out.printf("%s: %.0f 请求/秒 (200: %d, 304: %d), %.1f MB/s; 延迟 p50 %.0f µs, p99 %.0f µs\n",
+                conditional ? "带 If-None-Match" : "不带 If-None-Match",
+                (full + notModified) / elapsed, full, notModified, clients.bytes / elapsed / (1024 * 1024),
+                latencies[latencies.length / 2] / 1e3, latencies[(int) (latencies.length * 0.99)] / 1e3);
+    }
+
+    /** 按固定帧率放帧 */
+    private static final class Publisher implements Runnable {
+        final LiveFrameHub hub;
+        final StreamInfo stream;
+        final List<byte[]> jpegs;
+        final long intervalNanos;
+        volatile boolean running = true;
+
+        Publisher(LiveFrameHub hub, StreamInfo stream, List<byte[]> jpegs, int fps) {
+            this.hub = hub;
+            this.stream = stream;
+            this.jpegs = jpegs;
+            this.intervalNanos = 1_000_000_000L / fps;
+        }
+
+        @Override
+        public void run() {
+            int published = 0;
+            for (long next = System.nanoTime(); running; next += intervalNanos) {
+                long sleep = next - System.nanoTime();
+                try {
+                    if (sleep > 0) Thread.sleep(sleep / 1_000_000, (int) (sleep % 1_000_000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                byte[] jpeg = jpegs.get(published++ % jpegs.size());
+                hub.onFrame(new Frame(stream, jpeg, 0, jpeg.length, System.currentTimeMillis(), false));
+            }
+        }
+    }
+
+    /** 所有客户端连接：一个线程、一个 Selector，每条连接收完一个响应就发下一个请求 */
+    private static final class Clients {
+        final Selector selector;
+        final List<Client> all = new ArrayList<>();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        final List<Long> latencies = new ArrayList<>();
+        final String path;
+        final boolean conditional;
+        long bytes;
+
+        Clients(int port, String path, int count, boolean conditional) throws IOException {
+            this.selector = Selector.open();
+            this.path = path;
+            this.conditional = conditional;
+            for (int i = 0; i < count; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+                channel.configureBlocking(false);
+                Client client = new Client(channel);
+                all.add(client);
+                channel.register(selector, SelectionKey.OP_READ, client);
+            }
+        }
+
+        void run(long endNanos) throws IOException {
+            try {
+                for (Client client : all) {
+                    send(client);
+                }
+                while (System.nanoTime() < endNanos) {
+                    selector.select(100);
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        Client client = (Client) key.attachment();
+                        buffer.clear();
+                        int read = client.channel.read(buffer);
+                        if (read < 0) throw new IOException("服务端断开了连接");
+                        bytes += read;
+                        buffer.flip();
+                        if (client.feed(buffer)) {
+                            latencies.add(System.nanoTime() - client.sentNanos);
+                            send(client);
+                        }
+                    }
+                }
+            } finally {
+                for (Client client : all) {
+                    client.channel.close();
+                }
+                selector.close();
+            }
+        }
+
+        private void send(Client client) throws IOException {
+            String request = "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n"
+                    + (conditional && client.etag != null ? "If-None-Match: " + client.etag + "\r\n" : "") + "\r\n";
+            ByteBuffer out = ByteBuffer.wrap(request.getBytes(StandardCharsets.US_ASCII));
+            client.sentNanos = System.nanoTime();
+            while (out.hasRemaining()) client.channel.write(out); // 请求很小，内核发送缓冲一定放得下
+        }
+    }
+
+    /** 一条连接的响应解析状态：读响应头，记下 ETag，再按 Content-Length 跳过内容 */
+    private static final class Client {
+        final SocketChannel channel;
+        final ByteBuffer header = ByteBuffer.allocate(1024);
+        long skip = -1;
+        String etag;
+        long sentNanos;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /** @return 一个响应收完了 */
+        boolean feed(ByteBuffer data) {
+            while (data.hasRemaining()) {
+                if (skip >= 0) {
+                    int n = (int) Math.min(skip, data.remaining());
+                    data.position(data.position() + n);
+                    skip -= n;
+                } else {
+                    header.put(data.get());
+                    int length = header.position();
+                    if (length >= 4 && header.get(length - 4) == '\r' && header.get(length - 3) == '\n'
+                            && header.get(length - 2) == '\r' && header.get(length - 1) == '\n') {
+                        String text = new String(header.array(), 0, length, StandardCharsets.US_ASCII);
+                        header.clear();
+                        skip = 0;
+                        for (String line : text.split("\r\n")) {
+                            if (line.startsWith("Content-Length: ")) skip = Long.parseLong(line.substring(16));
+                            if (line.startsWith("ETag: ")) etag = line.substring(6);
+                        }
+                    } else if (!header.hasRemaining()) {
+                        throw new IllegalStateException("响应头太长");
+                    }
+                }
+                if (skip == 0) {
+                    skip = -1;
+                    if (data.hasRemaining()) throw new IllegalStateException("收到了没有请求的数据");
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
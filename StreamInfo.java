@@ -0,0 +1,102 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * 一条帧流连接的身份信息，来自手机的握手包；没有握手包的旧版本手机按端口和地址标识。
+ */
+public final class StreamInfo {
+
+    /** 握手包里 Camera ID 的最大长度；流标识要放进看板消息的 2 字节长度字段，也要做目录名 */
+    static final int MAX_CAMERA_ID_LENGTH = 255;
+
+    public final int port;
+    public final String remoteAddress;
+    /** 手机端 Camera ID，未握手时为 null */
+    public final String cameraId;
+    /** LENS_FACING：0 前置、1 后置、2 外接，未知为 -1 */
+    public final int lensFacing;
+    public final int sensorOrientation;
+    public final int width;
+    public final int height;
+    public final int maxFps;
+    public final float focalLengthMm;
+    public final int capabilities;
+
+    private StreamInfo(int port, String remoteAddress, String cameraId, int lensFacing, int sensorOrientation,
+                       int width, int height, int maxFps, float focalLengthMm, int capabilities) {
+        this.port = port;
+        this.remoteAddress = remoteAddress;
+        this.cameraId = cameraId;
+        this.lensFacing = lensFacing;
+        this.sensorOrientation = sensorOrientation;
+        this.width = width;
+        this.height = height;
+        this.maxFps = maxFps;
+        this.focalLengthMm = focalLengthMm;
+        this.capabilities = capabilities;
+    }
+
+    /** 还没收到握手包时的占位身份 */
+    public static StreamInfo unidentified(int port, String remoteAddress) {
+        return new StreamInfo(port, remoteAddress, null, -1, 0, 0, 0, 0, 0f, 0);
+    }
+
+    /**
+     * 解析握手包（格式见手机端 FrameProtocol.encodeHandshake）。
+     */
+    public static StreamInfo parseHandshake(int port, String remoteAddress, byte[] data, int offset, int length)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        byte type = in.readByte();
+        byte version = in.readByte();
+        if (type != FrameProtocol.PACKET_HANDSHAKE || version != FrameProtocol.HANDSHAKE_VERSION) {
+            throw new IOException("不支持的握手包: type=" + type + ", version=" + version);
+        }
+        String cameraId = in.readUTF();
+        if (cameraId.length() > MAX_CAMERA_ID_LENGTH) {
+            throw new IOException("Camera ID 过长: " + cameraId.length() + " 个字符");
+        }
+        int lensFacing = in.readUnsignedByte();
+        int sensorOrientation = in.readUnsignedShort();
+        int width = in.readUnsignedShort();
+        int height = in.readUnsignedShort();
+        int maxFps = in.readUnsignedByte();
+        float focalLength = in.readUnsignedShort() / 100f;
+        int capabilities = in.readInt();
+        return new StreamInfo(port, remoteAddress, cameraId, lensFacing, sensorOrientation,
+                width, height, maxFps, focalLength, capabilities);
+    }
+
+    public boolean isIdentified() {
+        return cameraId != null;
+    }
+
+    public boolean hasCapability(int capability) {
+        return (capabilities & capability) != 0;
+    }
+
+    /** 稳定的流标识，用作目录名和统计键 */
+    public String key() {
+        String host = remoteAddress.replaceAll("[^0-9A-Za-z.]", "_");
+        return isIdentified()
+                ? host + "_camera-" + cameraId.replaceAll("[^0-9A-Za-z._-]", "_")
+                : host + "_port-" + port;
+    }
+
+    @Override
+    public String toString() {
+        if (!isIdentified()) {
+            return remoteAddress + ":" + port + " (未握手)";
+        }
+        String facing;
+        switch (lensFacing) {
+            case 0: facing = "前置"; break;
+            case 1: facing = "后置"; break;
+            case 2: facing = "外接"; break;
+            default: facing = "未知";
+        }
+        return String.format("%s 摄像头 %s (%s, %dx%d, %.2fmm, 能力 0x%x)",
+                remoteAddress, cameraId, facing, width, height, focalLengthMm, capabilities);
+    }
+}
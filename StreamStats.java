@@ -0,0 +1,88 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单条连接的接收统计：累计值加上按统计窗口计算的帧率和吞吐量。
+ */
+public class StreamStats {
+
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong backfillFrames = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong invalidPackets = new AtomicLong();
+    private final AtomicLong keyframeRequests = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+
+    private long windowStartNanos = startNanos;
+    private long windowFrames;
+    private long windowBytes;
+
+    /** 记录一个收到的数据包（含长度前缀） */
+    public void onPacket(int wireBytes) {
+        bytes.addAndGet(wireBytes);
+    }
+
+    public void onFrame(boolean backfill) {
+        frames.incrementAndGet();
+        if (backfill) {
+            backfillFrames.incrementAndGet();
+        }
+    }
+
+    public void onInvalidPacket() {
+        invalidPackets.incrementAndGet();
+    }
+
+    public void onKeyframeRequest() {
+        keyframeRequests.incrementAndGet();
+    }
+
+    /** 内存预算不足、没读进内存就丢掉的帧 */
+    public void onDroppedFrame() {
+        droppedFrames.incrementAndGet();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    public long getFrames() {
+        return frames.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getInvalidPackets() {
+        return invalidPackets.get();
+    }
+
+    public long getKeyframeRequests() {
+        return keyframeRequests.get();
+    }
+
+    /**
+     * 生成一行摘要，并开始新的统计窗口（帧率和吞吐量按上一个窗口计算）。
+     */
+    public synchronized String snapshot() {
+        long now = System.nanoTime();
+        long totalFrames = frames.get();
+        long totalBytes = bytes.get();
+        double seconds = Math.max(1e-3, (now - windowStartNanos) / 1e9);
+        double fps = (totalFrames - windowFrames) / seconds;
+        double mbps = (totalBytes - windowBytes) / seconds / (1024 * 1024);
+        windowStartNanos = now;
+        windowFrames = totalFrames;
+        windowBytes = totalBytes;
+        return String.format("%.1f fps, %.2f MB/s, 累计 %d 帧 (回传 %d), %.1f MB, 无效 %d, 请求关键帧 %d, 丢弃 %d",
+                fps, mbps, totalFrames, backfillFrames.get(), totalBytes / (1024.0 * 1024.0),
+                invalidPackets.get(), keyframeRequests.get(), droppedFrames.get());
+    }
+
+    /** 连接整个生命周期的平均帧率 */
+    public double averageFps() {
+        double seconds = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+        return frames.get() / seconds;
+    }
+}
@@ -0,0 +1,263 @@
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 模拟手机推流的客户端，用于测试帧流接收模式：
+ * 先发握手包，再按指定帧率发送带长度前缀的 JPEG 帧，可选夹带回传帧和故意损坏的帧。
+ * <p>
+ * 用法:
+ * <pre>
+ * java SyntheticPhoneClient &lt;host&gt; &lt;port&gt; [帧数=300] [帧率=30] [客户端数=1]
+ * java SyntheticPhoneClient --selftest [nio|thread]
+ * </pre>
+ * selftest 在随机端口上启动接收引擎（默认两种都测），用几个模拟客户端验证收到的帧数。
+ */
+public class SyntheticPhoneClient {
+
+    private static final int JPEG_VARIANTS = 8;
+
+    private final String host;
+    private final int port;
+    private final String cameraId;
+    private final int lensFacing;
+    private final int frameCount;
+    private final int fps;
+    private int backfillEvery = 0;
+    private int corruptEvery = 0;
+    private final List<byte[]> jpegs;
+
+    /**
+     * @param fps 0 表示不限速，尽快发送
+     */
+    public SyntheticPhoneClient(String host, int port, String cameraId, int lensFacing,
+                                int width, int height, int frameCount, int fps) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.cameraId = cameraId;
+        this.lensFacing = lensFacing;
+        this.frameCount = frameCount;
+        this.fps = fps;
+        this.jpegs = renderJpegs(width, height, cameraId);
+    }
+
+    /** 每隔 n 帧额外发送一帧回传帧，0 表示不发 */
+    public SyntheticPhoneClient withBackfillEvery(int n) {
+        this.backfillEvery = n;
+        return this;
+    }
+
+    /** 每隔 n 帧把一帧截断（去掉 EOI），0 表示不损坏 */
+    public SyntheticPhoneClient withCorruptEvery(int n) {
+        this.corruptEvery = n;
+        return this;
+    }
+
+    /**
+     * 连接并发送全部帧。
+     *
+     * @return 发送的有效 JPEG 帧数（不含损坏帧）
+     */
+    public int run() throws IOException, InterruptedException {
+        int validFrames = 0;
+        long intervalNanos = fps > 0 ? 1_000_000_000L / fps : 0;
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            writePacket(out, handshake());
+            long next = System.nanoTime();
+            for (int i = 1; i <= frameCount; i++) {
+                byte[] jpeg = jpegs.get(i % jpegs.size());
+                if (corruptEvery > 0 && i % corruptEvery == 0) {
+                    writePacket(out, Arrays.copyOf(jpeg, jpeg.length - 2));
+                } else {
+                    writePacket(out, jpeg);
+                    validFrames++;
+                }
+                if (backfillEvery > 0 && i % backfillEvery == 0) {
+                    writePacket(out, backfill(System.currentTimeMillis() - 60_000L, jpeg));
+                    validFrames++;
+                }
+                if (intervalNanos > 0) {
+                    out.flush();
+                    next += intervalNanos;
+                    long sleep = next - System.nanoTime();
+                    if (sleep > 0) {
+                        TimeUnit.NANOSECONDS.sleep(sleep);
+                    }
+                }
+            }
+            out.flush();
+        }
+        return validFrames;
+    }
+
+    private byte[] handshake() throws IOException {
+        BufferedImage sample = ImageIO.read(new java.io.ByteArrayInputStream(jpegs.get(0)));
+        return handshake(cameraId, lensFacing, sample.getWidth(), sample.getHeight(),
+                fps > 0 ? Math.min(fps, 255) : 30, FrameProtocol.CAP_BACKFILL);
+    }
+
+    /** 构造握手包负载（不含长度前缀） */
+    static byte[] handshake(String cameraId, int lensFacing, int width, int height, int maxFps, int capabilities)
+            throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(FrameProtocol.PACKET_HANDSHAKE);
+        out.writeByte(FrameProtocol.HANDSHAKE_VERSION);
+        out.writeUTF(cameraId);
+        out.writeByte(lensFacing);
+        out.writeShort(90);
+        out.writeShort(width);
+        out.writeShort(height);
+        out.writeByte(maxFps);
+        out.writeShort(420); // 4.20mm
+        out.writeInt(capabilities);
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private static byte[] backfill(long captureTimeMs, byte[] jpeg) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(FrameProtocol.BACKFILL_HEADER_BYTES + jpeg.length);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(FrameProtocol.PACKET_BACKFILL);
+        out.writeByte(FrameProtocol.BACKFILL_VERSION);
+        out.writeLong(captureTimeMs);
+        out.write(jpeg);
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private static void writePacket(DataOutputStream out, byte[] payload) throws IOException {
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    /** 预先渲染几帧带移动方块的画面，发送时循环使用，避免编码占用 CPU */
+    static List<byte[]> renderJpegs(int width, int height, String label) throws IOException {
+        List<byte[]> result = new ArrayList<>();
+        for (int i = 0; i < JPEG_VARIANTS; i++) {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = image.createGraphics();
+            try {
+                g.setColor(Color.DARK_GRAY);
+                g.fillRect(0, 0, width, height);
+                g.setColor(Color.ORANGE);
+                int size = Math.max(8, Math.min(width, height) / 4);
+                g.fillRect((width - size) * i / JPEG_VARIANTS, (height - size) / 2, size, size);
+                g.setColor(Color.WHITE);
+                g.drawString("camera " + label + " #" + i, 8, 16);
+            } finally {
+                g.dispose();
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ImageIO.write(image, "jpg", bos);
+            result.add(bos.toByteArray());
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--selftest".equals(args[0])) {
+            boolean ok = true;
+            for (String engine : args.length > 1 ? new String[]{args[1]} : new String[]{"nio", "thread"}) {
+                ok &= selfTest(engine);
+            }
+            System.exit(ok ? 0 : 1);
+            return;
+        }
+        if (args.length < 2) {
+            System.out.println("用法: java SyntheticPhoneClient <host> <port> [帧数=300] [帧率=30] [客户端数=1]");
+            System.out.println("      java SyntheticPhoneClient --selftest [nio|thread]");
+            return;
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int frames = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+        int fps = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+        int clients = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        List<Future<Integer>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            SyntheticPhoneClient client = new SyntheticPhoneClient(host, port, "sim-" + i, 1, 640, 480, frames, fps);
+            results.add(executor.submit(client::run));
+        }
+        long sent = 0;
+        for (Future<Integer> result : results) {
+            sent += result.get();
+        }
+        executor.shutdown();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("模拟发送完成: %d 个客户端, 共 %d 帧, 用时 %.1f 秒, %.1f fps\n", clients, sent, seconds, sent / seconds);
+    }
+
+    /**
+     * 自测：两个端口、三个客户端（其中一个带回传帧和损坏帧），核对接收端的帧数和无效包数。
+     */
+    static boolean selfTest(String engineName) throws Exception {
+        AtomicLong received = new AtomicLong();
+        AtomicLong backfills = new AtomicLong();
+        List<StreamInfo> opened = Collections.synchronizedList(new ArrayList<>());
+        FrameSink countingSink = new FrameSink() {
+            @Override
+            public void onStreamOpened(StreamInfo stream) {
+                opened.add(stream);
+            }
+
+            @Override
+            public void onFrame(Frame frame) {
+                if (!FrameProtocol.isCompleteJpeg(frame.data, frame.offset, frame.length)) {
+                    throw new IllegalStateException("收到不完整的 JPEG");
+                }
+                received.incrementAndGet();
+                if (frame.backfill) backfills.incrementAndGet();
+            }
+        };
+        try (IngestEngine server = IngestEngine.create(engineName, new int[]{0, 0},
+                Collections.singletonList(countingSink), 1, 2)) {
+            server.start();
+            int backPort = server.getLocalPort(0);
+            int frontPort = server.getLocalPort(1);
+            List<SyntheticPhoneClient> clients = Arrays.asList(
+                    new SyntheticPhoneClient("127.0.0.1", backPort, "0", 1, 320, 240, 200, 0),
+                    new SyntheticPhoneClient("127.0.0.1", backPort, "2", 1, 320, 240, 200, 0)
+                            .withBackfillEvery(10).withCorruptEvery(50),
+                    new SyntheticPhoneClient("127.0.0.1", frontPort, "1", 0, 320, 240, 200, 0));
+            ExecutorService executor = Executors.newFixedThreadPool(clients.size());
+            List<Future<Integer>> results = new ArrayList<>();
+            for (SyntheticPhoneClient client : clients) {
+                results.add(executor.submit(client::run));
+            }
+            long expected = 0;
+            for (Future<Integer> result : results) {
+                expected += result.get();
+            }
+            executor.shutdown();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (received.get() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            boolean ok = received.get() == expected && backfills.get() == 20 && opened.size() == 3;
+            System.out.printf("自测 [%s] %s: 期望 %d 帧, 收到 %d 帧 (回传 %d), 打开 %d 条流, 缓冲池新分配 %d 复用 %d\n",
+                    engineName, ok ? "通过" : "失败", expected, received.get(), backfills.get(), opened.size(),
+                    server.getBufferPool().getAllocations(), server.getBufferPool().getReuses());
+            return ok;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 缩略图生成压测：先造一个 N 条流、每条 M 分钟的归档（每 10 秒一帧，每段 5 分钟，写完全部封存），
+ * 再用 {@link ThumbnailGenerator} 从头生成全部缩略图和联系表，线程数从 1 加到 CPU 核数，
+ * 报告每秒处理的帧数（每分钟解码一帧）、折算到每个线程的吞吐、单帧解码耗时和总耗时。
+ * 最后用同样的线程数强制按原尺寸解码（取样步长 1）再跑一轮，对比隔行隔列取样解码省了多少。
+ * 每轮输出到新的临时目录，不走缓存；第一轮前先预热一遍。
+ * <p>
+ * 用法: java ThumbnailBenchmark [--streams=4] [--minutes=120] [--size=1280x720] [--width=160] [--threads=CPU 核数]
+ */
+public class ThumbnailBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int streams = 4;
+        int minutes = 120;
+        int width = 1280;
+        int height = 720;
+        int thumbWidth = ThumbnailGenerator.DEFAULT_THUMB_WIDTH;
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        for (String arg : args) {
+            if (arg.startsWith("--streams=")) {
+                streams = Integer.parseInt(arg.substring("--streams=".length()));
+            } else if (arg.startsWith("--minutes=")) {
+                minutes = Integer.parseInt(arg.substring("--minutes=".length()));
+            } else if (arg.startsWith("--size=")) {
+                String[] size = arg.substring("--size=".length()).split("x");
+                width = Integer.parseInt(size[0]);
+                height = Integer.parseInt(size[1]);
+            } else if (arg.startsWith("--width=")) {
+                thumbWidth = Integer.parseInt(arg.substring("--width=".length()));
+            } else if (arg.startsWith("--threads=")) {
+                maxThreads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else {
+                System.out.println("用法: java ThumbnailBenchmark [--streams=4] [--minutes=120] [--size=1280x720] [--width=160] [--threads=CPU 核数]");
+                return;
+            }
+        }
+        File dir = Files.createTempDirectory("thumbnail-bench").toFile();
+        try {
+            List<byte[]> jpegs = SyntheticPhoneClient.renderJpegs(width, height, "bench");
+            File archiveDir = new File(dir, "archive");
+            FrameArchive archive = openArchive(archiveDir);
+            long start = System.currentTimeMillis() / 3_600_000 * 3_600_000 - minutes * ThumbnailGenerator.MINUTE_MS;
+            for (long time = start; time < start + minutes * ThumbnailGenerator.MINUTE_MS; time += 10_000) {
+                for (int s = 0; s < streams; s++) {
+                    byte[] jpeg = jpegs.get((int) ((time / 10_000 + s) % jpegs.size()));
+                    archive.append("bench-" + s, time, false, jpeg, 0, jpeg.length);
+                }
+            }
+            archive.close();
+            archive = openArchive(archiveDir);
+            System.out.println();
+            System.out.printf("%d 路 %dx%d, 每帧约 %d KB, 每条 %d 分钟; 缩略图宽 %d\n", streams, width, height,
+                    jpegs.get(0).length / 1024, minutes, thumbWidth);
+            run("预热", archive, new File(dir, "warmup"), thumbWidth, maxThreads, 0, false);
+            for (int threads = 1; threads <= maxThreads; threads++) {
+                run("取样解码", archive, new File(dir, "sub-" + threads), thumbWidth, threads, 0, true);
+            }
+            run("原尺寸解码", archive, new File(dir, "full"), thumbWidth, maxThreads, 1, true);
+            archive.close();
+        } finally {
+            deleteRecursively(dir);
+        }
+        System.out.println("JVM: " + ManagementFactory.getRuntimeMXBean().getVmVersion()
+                + ", " + Runtime.getRuntime().availableProcessors() + " CPU");
+    }
+
+    private static void run(String name, FrameArchive archive, File output, int thumbWidth, int threads, int step,
+            boolean print) throws Exception {
+        ThumbnailGenerator generator = new ThumbnailGenerator(archive, output, thumbWidth, threads);
+        generator.setDecodeStep(step);
+        long begin = System.nanoTime();
+        long[] result = generator.runOnce();
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        generator.close();
+        if (!print) return;
+        long decoded = generator.getDecodedFrames();
+        System.out.printf("  %-6s %2d 线程: %4d 个段, %5d 张缩略图, %3d 张联系表, 用时 %6.2f s; %7.1f 帧/s, 每线程 %6.1f 帧/s, 解码 %5.2f ms/帧\n",
+                name, threads, result[0], result[1], result[2], elapsed, decoded / elapsed, decoded / elapsed / threads,
+                generator.getDecodeNanos() / 1e6 / Math.max(1, decoded));
+    }
+
+    private static FrameArchive openArchive(File dir) {
+        return new FrameArchive(dir, 256L * 1024 * 1024, 5 * ThumbnailGenerator.MINUTE_MS, 0, 0, 0, 0, 64L * 1024 * 1024);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,531 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 归档的缩略图和联系表：每条流每分钟一张缩略图，每小时一张把这一小时的缩略图排成 10×6 的联系表。
+ * <pre>
+ * &lt;输出目录&gt;/&lt;流标识&gt;/thumbs/20261019-1305.jpg
+ *                    /sheets/20261019-13.jpg
+ *                    /thumbnails.txt   已处理的段和每分钟选中的帧
+ * </pre>
+ * 每分钟取这一分钟里最早的一帧。只处理已封存的段（封存后不再改动）：所有流的所有新段交给一个 ForkJoin 池，
+ * 每个段按分钟边界对半拆成子任务并行解码，结果合并后再并行生成受影响那几个小时的联系表。
+ * 解码用 ImageReader 的 {@link ImageReadParam#setSourceSubsampling} 直接读出接近缩略图宽度的图，不生成原尺寸的光栅。
+ * <p>
+ * 处理过的段号和每分钟选中帧的时间追加写进每条流的 thumbnails.txt，重启后读回来，每个段只处理一次；
+ * 同一分钟跨两个段（换段或回传）时保留时间更早的那一帧。
+ * <p>
+ * 用法（自测）: java ThumbnailGenerator --selftest
+ */
+public class ThumbnailGenerator implements Closeable {
+
+    public static final int DEFAULT_THUMB_WIDTH = 160;
+    public static final long DEFAULT_INTERVAL_MS = 60_000;
+    static final long MINUTE_MS = 60_000;
+    static final int SHEET_COLUMNS = 10;
+    /** 一个子任务最多负责这么多分钟，再多就按分钟边界拆开 */
+    private static final int MINUTES_PER_TASK = 4;
+    private static final DateTimeFormatter MINUTE_NAME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmm");
+    private static final DateTimeFormatter HOUR_NAME = DateTimeFormatter.ofPattern("yyyyMMdd-HH");
+
+    /** 一张缩略图：所在分钟、选中帧的时间和编码好的 JPEG */
+    private static final class Thumb {
+        final long minuteMs;
+        final long frameTimeMs;
+        final byte[] jpeg;
+
+        Thumb(long minuteMs, long frameTimeMs, byte[] jpeg) {
+            this.minuteMs = minuteMs;
+            this.frameTimeMs = frameTimeMs;
+            this.jpeg = jpeg;
+        }
+    }
+
+    /** 一条流的处理记录，只在 runOnce 的调用线程上访问 */
+    private static final class StreamCache {
+        final File dir;
+        final Set<Integer> doneSegments = new HashSet<>();
+        /** 分钟 → 选中帧的时间 */
+        final Map<Long, Long> minutes = new HashMap<>();
+
+        StreamCache(File dir) {
+            this.dir = dir;
+        }
+    }
+
+    private final FrameArchive archive;
+    private final File outputDir;
+    private final int thumbWidth;
+    private final ZoneId zone;
+    private final ForkJoinPool pool;
+    private final ThreadLocal<ImageReader> readers = ThreadLocal.withInitial(
+            () -> ImageIO.getImageReadersByFormatName("jpeg").next());
+    private final Map<String, StreamCache> caches = new HashMap<>();
+    /** 固定的取样步长，0 表示按缩略图宽度自动选 */
+    private volatile int decodeStep;
+    private Thread thread;
+    private volatile boolean running;
+    private final AtomicLong totalDecoded = new AtomicLong();
+    private final AtomicLong totalDecodeNanos = new AtomicLong();
+
+    /**
+     * @param parallelism ForkJoin 池的线程数，一般等于 CPU 核数
+     */
+    public ThumbnailGenerator(FrameArchive archive, File outputDir, int thumbWidth, int parallelism) {
+        this(archive, outputDir, thumbWidth, parallelism, ZoneId.systemDefault());
+    }
+
+    ThumbnailGenerator(FrameArchive archive, File outputDir, int thumbWidth, int parallelism, ZoneId zone) {
+        this.archive = archive;
+        this.outputDir = outputDir;
+        this.thumbWidth = thumbWidth;
+        this.zone = zone;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /** 在后台线程里每 intervalMs 跑一次 {@link #runOnce} */
+    public synchronized void start(long intervalMs) {
+        if (running) return;
+        running = true;
+        thread = new Thread(() -> {
+            while (running) {
+                try {
+                    long[] result = runOnce();
+                    if (result[0] > 0) {
+                        System.out.printf("[缩略图] %d 个段, %d 张缩略图, %d 张联系表, 用时 %d ms; %s\n",
+                                result[0], result[1], result[2], result[3], snapshot());
+                    }
+                    Thread.sleep(intervalMs);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("生成缩略图出错: " + e.getMessage());
+                }
+            }
+        }, "thumbnails");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * 处理所有还没处理过的已封存段。
+     *
+     * @return {处理的段数, 新写的缩略图数, 新写的联系表数, 用时 ms}
+     */
+    public synchronized long[] runOnce() throws IOException {
+        long start = System.nanoTime();
+        List<String> keys = new ArrayList<>();
+        List<ArchiveSegment> segments = new ArrayList<>();
+        List<SegmentTask> tasks = new ArrayList<>();
+        for (String key : archive.getStreamKeys()) {
+            StreamCache cache = cache(key);
+            for (ArchiveSegment segment : archive.sealedSegments(key)) {
+                if (cache.doneSegments.contains(segment.number)) continue;
+                keys.add(key);
+                segments.add(segment);
+                tasks.add(new SegmentTask(segment, 0, segment.getCount()));
+            }
+        }
+        if (tasks.isEmpty()) return new long[]{0, 0, 0, 0};
+        runAll(tasks);
+
+        // 合并：同一分钟保留最早的帧，记下哪些小时的联系表要重做
+        Map<String, TreeMap<Long, Thumb>> chosen = new HashMap<>();
+        Map<String, List<Integer>> done = new HashMap<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            SegmentTask task = tasks.get(i);
+            if (task.isCompletedAbnormally()) {
+                System.err.println("跳过读不了的归档段 (" + segments.get(i).dataFile + "): " + task.getException());
+                continue;
+            }
+            String key = keys.get(i);
+            done.computeIfAbsent(key, k -> new ArrayList<>()).add(segments.get(i).number);
+            StreamCache cache = cache(key);
+            TreeMap<Long, Thumb> streamChosen = chosen.computeIfAbsent(key, k -> new TreeMap<>());
+            for (Thumb thumb : task.join()) {
+                Long existing = cache.minutes.get(thumb.minuteMs);
+                Thumb pending = streamChosen.get(thumb.minuteMs);
+                if ((existing == null || thumb.frameTimeMs < existing)
+                        && (pending == null || thumb.frameTimeMs < pending.frameTimeMs)) {
+                    streamChosen.put(thumb.minuteMs, thumb);
+                }
+            }
+        }
+        int thumbs = 0;
+        List<SheetTask> sheets = new ArrayList<>();
+        for (Map.Entry<String, List<Integer>> entry : done.entrySet()) {
+            String key = entry.getKey();
+            StreamCache cache = cache(key);
+            File thumbDir = new File(cache.dir, "thumbs");
+            if (!thumbDir.exists() && !thumbDir.mkdirs()) throw new IOException("无法创建缩略图目录: " + thumbDir);
+            Set<String> hours = new TreeSet<>();
+            StringBuilder log = new StringBuilder();
+            for (Thumb thumb : chosen.getOrDefault(key, new TreeMap<>()).values()) {
+                Files.write(new File(thumbDir, minuteName(thumb.minuteMs) + ".jpg").toPath(), thumb.jpeg);
+                cache.minutes.put(thumb.minuteMs, thumb.frameTimeMs);
+                log.append("minute ").append(thumb.minuteMs).append(' ').append(thumb.frameTimeMs).append('\n');
+                hours.add(hourName(thumb.minuteMs));
+                thumbs++;
+            }
+            for (int number : entry.getValue()) {
+                cache.doneSegments.add(number);
+                log.append("segment ").append(number).append('\n');
+            }
+            for (String hour : hours) {
+                sheets.add(new SheetTask(cache, hour));
+            }
+            // 缩略图先写好再记录，中途崩溃最多重做这些段
+            try (Writer writer = new FileWriter(new File(cache.dir, "thumbnails.txt"), StandardCharsets.UTF_8, true)) {
+                writer.write(log.toString());
+            }
+        }
+        runAll(sheets);
+        int sheetCount = 0;
+        for (SheetTask sheet : sheets) {
+            if (sheet.isCompletedAbnormally()) {
+                System.err.println("生成联系表失败 (" + sheet.hour + "): " + sheet.getException());
+            } else {
+                sheetCount++;
+            }
+        }
+        return new long[]{done.values().stream().mapToInt(List::size).sum(), thumbs, sheetCount,
+                (System.nanoTime() - start) / 1_000_000};
+    }
+
+    /** 在池里并行跑完所有任务；单个任务出错（比如段刚被保留期清理删掉）不影响其他任务，由调用方逐个检查 */
+    private void runAll(List<? extends ForkJoinTask<?>> tasks) {
+        pool.invoke(new RecursiveTask<Void>() {
+            @Override
+            protected Void compute() {
+                for (ForkJoinTask<?> task : tasks) {
+                    task.fork();
+                }
+                for (ForkJoinTask<?> task : tasks) {
+                    task.quietlyJoin();
+                }
+                return null;
+            }
+        });
+    }
+
+    /** 一条流的处理记录，第一次用到时从 thumbnails.txt 读回 */
+    private StreamCache cache(String key) throws IOException {
+        StreamCache cache = caches.get(key);
+        if (cache != null) return cache;
+        cache = new StreamCache(new File(outputDir, key));
+        File log = new File(cache.dir, "thumbnails.txt");
+        if (log.exists()) {
+            for (String line : Files.readAllLines(log.toPath(), StandardCharsets.UTF_8)) {
+                String[] parts = line.split(" ");
+                if (parts.length == 2 && "segment".equals(parts[0])) {
+                    cache.doneSegments.add(Integer.parseInt(parts[1]));
+                } else if (parts.length == 3 && "minute".equals(parts[0])) {
+                    cache.minutes.merge(Long.parseLong(parts[1]), Long.parseLong(parts[2]), Math::min);
+                }
+            }
+        }
+        caches.put(key, cache);
+        return cache;
+    }
+
+    /** 一个段里 [from, to) 这些帧的每分钟缩略图；跨的分钟多时按分钟边界拆成两半 */
+    private final class SegmentTask extends RecursiveTask<List<Thumb>> {
+        private static final long serialVersionUID = 1L;
+        final ArchiveSegment segment;
+        final int from;
+        final int to;
+
+        SegmentTask(ArchiveSegment segment, int from, int to) {
+            this.segment = segment;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Thumb> compute() {
+            long firstMinute = floorMinute(segment.timeAt(from));
+            long lastMinute = floorMinute(segment.timeAt(to - 1));
+            if ((lastMinute - firstMinute) / MINUTE_MS + 1 > MINUTES_PER_TASK) {
+                long middle = firstMinute + (lastMinute - firstMinute) / MINUTE_MS / 2 * MINUTE_MS + MINUTE_MS;
+                int split = segment.floorIndex(middle - 1) + 1; // 第一帧不早于 middle 的下标
+                SegmentTask left = new SegmentTask(segment, from, split);
+                SegmentTask right = new SegmentTask(segment, split, to);
+                right.fork();
+                List<Thumb> result = new ArrayList<>(left.compute());
+                result.addAll(right.join());
+                return result;
+            }
+            List<Thumb> result = new ArrayList<>();
+            try {
+                for (int i = from; i < to; ) {
+                    long time = segment.timeAt(i);
+                    long minute = floorMinute(time);
+                    result.add(new Thumb(minute, time, encode(scaled(decode(segment.read(i))))));
+                    i = Math.max(i + 1, Math.min(to, segment.floorIndex(minute + MINUTE_MS - 1) + 1));
+                }
+            } catch (IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+            return result;
+        }
+    }
+
+    /** 一小时的联系表：读这一小时已有的缩略图，按分钟排进 10×6 的格子，每格标上时间 */
+    private final class SheetTask extends RecursiveTask<Void> {
+        private static final long serialVersionUID = 1L;
+        final StreamCache cache;
+        final String hour;
+
+        SheetTask(StreamCache cache, String hour) {
+            this.cache = cache;
+            this.hour = hour;
+        }
+
+        @Override
+        protected Void compute() {
+            try {
+                List<File> files = new ArrayList<>();
+                int cellHeight = 0;
+                BufferedImage[] cells = new BufferedImage[60];
+                for (int minute = 0; minute < 60; minute++) {
+                    File file = new File(cache.dir, String.format("thumbs/%s%02d.jpg", hour, minute));
+                    if (!file.exists()) continue;
+                    files.add(file);
+                    cells[minute] = ImageIO.read(file);
+                    cellHeight = Math.max(cellHeight, cells[minute].getHeight());
+                }
+                if (files.isEmpty()) return null;
+                int label = 14;
+                BufferedImage sheet = new BufferedImage(SHEET_COLUMNS * thumbWidth, 60 / SHEET_COLUMNS * (cellHeight + label),
+                        BufferedImage.TYPE_INT_RGB);
+                Graphics2D g = sheet.createGraphics();
+                try {
+                    g.setColor(Color.DARK_GRAY);
+                    g.fillRect(0, 0, sheet.getWidth(), sheet.getHeight());
+                    g.setColor(Color.WHITE);
+                    for (int minute = 0; minute < 60; minute++) {
+                        int x = minute % SHEET_COLUMNS * thumbWidth;
+                        int y = minute / SHEET_COLUMNS * (cellHeight + label);
+                        if (cells[minute] != null) g.drawImage(cells[minute], x, y + label, null);
+                        g.drawString(hour.substring(hour.length() - 2) + ":" + String.format("%02d", minute), x + 2, y + label - 3);
+                    }
+                } finally {
+                    g.dispose();
+                }
+                File sheetDir = new File(cache.dir, "sheets");
+                if (!sheetDir.exists() && !sheetDir.mkdirs()) throw new IOException("无法创建联系表目录: " + sheetDir);
+                Files.write(new File(sheetDir, hour + ".jpg").toPath(), encode(sheet));
+                return null;
+            } catch (IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+        }
+    }
+
+    /** 隔行隔列取样解码，宽度不小于缩略图宽度；取样步长 1 就是原尺寸解码（基准对比用） */
+    BufferedImage decode(byte[] jpeg) throws IOException {
+        return decode(jpeg, decodeStep);
+    }
+
+    BufferedImage decode(byte[] jpeg, int forcedStep) throws IOException {
+        long start = System.nanoTime();
+        ImageReader reader = readers.get();
+        try (MemoryCacheImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(jpeg))) {
+            reader.setInput(input, true, true);
+            int step = forcedStep > 0 ? forcedStep : Math.max(1, reader.getWidth(0) / thumbWidth);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(step, step, 0, 0);
+            BufferedImage image = reader.read(0, param);
+            totalDecoded.incrementAndGet();
+            totalDecodeNanos.addAndGet(System.nanoTime() - start);
+            return image;
+        } finally {
+            reader.setInput(null);
+        }
+    }
+
+    /** 缩到缩略图宽度（取样后的图只比它大一点，双线性插值就够了） */
+    BufferedImage scaled(BufferedImage image) {
+        if (image.getWidth() == thumbWidth) return image;
+        int height = Math.max(1, image.getHeight() * thumbWidth / image.getWidth());
+        BufferedImage thumb = new BufferedImage(thumbWidth, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = thumb.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, thumbWidth, height, null);
+        } finally {
+            g.dispose();
+        }
+        return thumb;
+    }
+
+    static byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", bos);
+        return bos.toByteArray();
+    }
+
+    private static long floorMinute(long timeMs) {
+        return Math.floorDiv(timeMs, MINUTE_MS) * MINUTE_MS;
+    }
+
+    private String minuteName(long minuteMs) {
+        return MINUTE_NAME.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(minuteMs), zone));
+    }
+
+    private String hourName(long minuteMs) {
+        return HOUR_NAME.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(minuteMs), zone));
+    }
+
+    /** 基准测试用：固定取样步长，1 就是原尺寸解码 */
+    void setDecodeStep(int step) {
+        this.decodeStep = step;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /** 解码的帧数和平均每帧耗时 */
+    public String snapshot() {
+        long decoded = totalDecoded.get();
+        return String.format("累计解码 %d 帧, 平均 %.2f ms/帧, %d 个线程",
+                decoded, decoded == 0 ? 0 : totalDecodeNanos.get() / 1e6 / decoded, pool.getParallelism());
+    }
+
+    long getDecodedFrames() {
+        return totalDecoded.get();
+    }
+
+    /** 解码累计耗时（所有线程之和） */
+    long getDecodeNanos() {
+        return totalDecodeNanos.get();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (thread != null) thread.interrupt();
+        pool.shutdown();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--selftest".equals(args[0])) {
+            System.exit(selfTest() ? 0 : 1);
+            return;
+        }
+        System.out.println("用法: java ThumbnailGenerator --selftest");
+    }
+
+    /**
+     * 自测：两条流各 130 分钟（每 20 秒一帧，每段 7 分钟），第一遍每条流 130 张缩略图、3 张联系表；
+     * 第二遍不再处理任何段；再追加 10 分钟、换一个新实例（从 thumbnails.txt 读回记录）后只处理新段，
+     * 只重做最后一个小时的联系表。
+     */
+    static boolean selfTest() throws Exception {
+        File dir = Files.createTempDirectory("thumbnails").toFile();
+        boolean ok = true;
+        try {
+            ZoneId zone = ZoneId.of("UTC");
+            long start = ZonedDateTime.of(2026, 1, 1, 0, 0, 0, 0, zone).toInstant().toEpochMilli();
+            List<byte[]> jpegs = SyntheticPhoneClient.renderJpegs(640, 480, "thumb");
+            File archiveDir = new File(dir, "archive");
+            File output = new File(dir, "thumbnails");
+            writeFrames(archiveDir, jpegs, start, 0, 130);
+            FrameArchive archive = openArchive(archiveDir);
+            ThumbnailGenerator generator = new ThumbnailGenerator(archive, output, 160, 2, zone);
+            long[] first = generator.runOnce();
+            String key = archive.getStreamKeys().get(0);
+            ok &= check(first[1] == 260 && first[2] == 6, "第一遍 " + java.util.Arrays.toString(first));
+            ok &= check(new File(output, key + "/thumbs/20260101-0209.jpg").exists()
+                    && new File(output, key + "/sheets/20260101-02.jpg").exists(), "文件名按分钟和小时");
+            BufferedImage thumb = ImageIO.read(new File(output, key + "/thumbs/20260101-0000.jpg"));
+            ok &= check(thumb.getWidth() == 160 && thumb.getHeight() == 120, "缩略图尺寸 " + thumb.getWidth() + "x" + thumb.getHeight());
+            BufferedImage sheet = ImageIO.read(new File(output, key + "/sheets/20260101-00.jpg"));
+            ok &= check(sheet.getWidth() == 1600 && sheet.getHeight() == 6 * (120 + 14), "联系表尺寸");
+            long decoded = generator.getDecodedFrames();
+            ok &= check(decoded <= 260 + 2 * 20, "每分钟只解码一帧左右: " + decoded);
+            long[] second = generator.runOnce();
+            ok &= check(second[0] == 0, "第二遍没有新段 " + java.util.Arrays.toString(second));
+            generator.close();
+            archive.close();
+
+            writeFrames(archiveDir, jpegs, start, 130, 140);
+            archive = openArchive(archiveDir);
+            generator = new ThumbnailGenerator(archive, output, 160, 2, zone);
+            long[] third = generator.runOnce();
+            // 第 126-129 分钟所在的段已处理过，新段从 130 分钟开始；同一分钟不会重复
+            ok &= check(third[0] == 4 && third[1] == 20 && third[2] == 2, "追加之后 " + java.util.Arrays.toString(third));
+            ok &= check(new File(output, key + "/thumbs/20260101-0219.jpg").exists(), "新的分钟");
+            generator.close();
+            archive.close();
+            System.out.println("自测" + (ok ? "通过" : "失败"));
+        } finally {
+            deleteRecursively(dir);
+        }
+        return ok;
+    }
+
+    /** 两条流在 [fromMinute, toMinute) 内每 20 秒一帧，每段最长 7 分钟，写完关闭（所有段封存） */
+    static void writeFrames(File dir, List<byte[]> jpegs, long start, int fromMinute, int toMinute) throws Exception {
+        FrameArchive archive = openArchive(dir);
+        for (long time = start + fromMinute * MINUTE_MS; time < start + toMinute * MINUTE_MS; time += 20_000) {
+            for (int s = 0; s < 2; s++) {
+                byte[] jpeg = jpegs.get((int) ((time / 20_000) % jpegs.size()));
+                archive.append("stream-" + s, time, false, jpeg, 0, jpeg.length);
+            }
+        }
+        archive.close();
+    }
+
+    private static FrameArchive openArchive(File dir) {
+        return new FrameArchive(dir, 64L * 1024 * 1024, 7 * MINUTE_MS, 0, 0, 0, 0, 64L * 1024 * 1024);
+    }
+
+    private static boolean check(boolean condition, String what) {
+        if (!condition) System.err.println("失败: " + what);
+        return condition;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
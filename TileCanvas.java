@@ -0,0 +1,277 @@
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分块增量帧的重建画布，每路流一个实例。
+ * <p>
+ * 完整 JPEG（关键帧）直接替换画布；分块增量帧把变化的小 JPEG 块
+ * 按列/行画回画布对应位置。画布尚未建立或尺寸不匹配时拒绝增量帧，
+ * 调用方应向手机请求关键帧。
+ * <p>
+ * 用法（自测）: java TileCanvas --selftest
+ */
+public class TileCanvas {
+
+    private BufferedImage canvas;
+    private long keyframes;
+    private long deltaFrames;
+    private long tilesApplied;
+
+    /**
+     * 应用关键帧（完整 JPEG）。
+     */
+    public synchronized void applyKeyframe(byte[] data, int offset, int length) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(data, offset, length));
+        if (image == null) {
+            throw new IOException("无法解码关键帧 JPEG");
+        }
+        if (canvas == null || canvas.getWidth() != image.getWidth() || canvas.getHeight() != image.getHeight()) {
+            canvas = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        }
+        draw(image, 0, 0);
+        keyframes++;
+    }
+
+    /**
+     * 应用分块增量帧。
+     *
+     * @return 成功应用返回 true；还没有关键帧或帧尺寸变化时返回 false（需要请求关键帧）
+     * @throws IOException 数据包格式错误或块无法解码
+     */
+    public synchronized boolean applyTileDelta(byte[] data, int offset, int length) throws IOException {
+        ByteBuffer packet = ByteBuffer.wrap(data, offset, length);
+        try {
+            byte type = packet.get();
+            byte version = packet.get();
+            if (type != FrameProtocol.PACKET_TILE_DELTA || version != FrameProtocol.TILE_DELTA_VERSION) {
+                throw new IOException("不支持的分块包: type=" + type + ", version=" + version);
+            }
+            int frameWidth = packet.getShort() & 0xFFFF;
+            int frameHeight = packet.getShort() & 0xFFFF;
+            int cols = packet.get() & 0xFF;
+            int rows = packet.get() & 0xFF;
+            int tileCount = packet.getShort() & 0xFFFF;
+            if (cols == 0 || rows == 0) {
+                throw new IOException("分块网格无效: " + cols + "x" + rows);
+            }
+            if (canvas == null || canvas.getWidth() != frameWidth || canvas.getHeight() != frameHeight) {
+                return false;
+            }
+            for (int i = 0; i < tileCount; i++) {
+                int col = packet.get() & 0xFF;
+                int row = packet.get() & 0xFF;
+                int tileLength = packet.getInt();
+                if (col >= cols || row >= rows || tileLength <= 0 || tileLength > packet.remaining()) {
+                    throw new IOException("分块数据越界: col=" + col + ", row=" + row + ", len=" + tileLength);
+                }
+                int x = FrameProtocol.tileOrigin(col, cols, frameWidth);
+                int y = FrameProtocol.tileOrigin(row, rows, frameHeight);
+                BufferedImage tile = ImageIO.read(new ByteArrayInputStream(data, packet.position(), tileLength));
+                if (tile == null) {
+                    throw new IOException("无法解码分块 JPEG: col=" + col + ", row=" + row);
+                }
+                draw(tile, x, y);
+                packet.position(packet.position() + tileLength);
+                tilesApplied++;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("分块包被截断", e);
+        }
+        deltaFrames++;
+        return true;
+    }
+
+    private void draw(BufferedImage image, int x, int y) {
+        Graphics2D g = canvas.createGraphics();
+        try {
+            g.drawImage(image, x, y, null);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    /** 是否已经收到关键帧，可以输出完整画面 */
+    public synchronized boolean isReady() {
+        return canvas != null;
+    }
+
+    /**
+     * 把当前画布编码为完整 JPEG。
+     */
+    public synchronized byte[] toJpeg() throws IOException {
+        if (canvas == null) {
+            throw new IllegalStateException("画布尚未收到关键帧");
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageIO.write(canvas, "jpg", bos);
+        return bos.toByteArray();
+    }
+
+    public synchronized String getStats() {
+        return String.format("关键帧 %d, 增量帧 %d, 应用块 %d", keyframes, deltaFrames, tilesApplied);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--selftest".equals(args[0])) {
+            System.exit(selfTest() ? 0 : 1);
+            return;
+        }
+        System.out.println("用法: java TileCanvas --selftest");
+    }
+
+    private static final int TEST_WIDTH = 128;
+    private static final int TEST_HEIGHT = 96;
+    private static final int TEST_COLS = 4;
+    private static final int TEST_ROWS = 3;
+
+    /**
+     * 自测：经过 {@link IngestSession} 送入关键帧和分块增量帧，把输出的完整帧和期望的画面逐块比较；
+     * 并检查没有关键帧时、丢过增量帧后、尺寸不符和截断的增量帧都会请求关键帧，补上关键帧后恢复。
+     */
+    static boolean selfTest() throws Exception {
+        boolean ok = true;
+        List<byte[]> delivered = new ArrayList<>();
+        IngestSession session = new IngestSession(FrameIngestServer.BACK_CAMERA_PORT, "selftest",
+                List.of(frame -> delivered.add(frame.copyJpeg())));
+
+        // 增量帧先到：还没有画布，要关键帧
+        Color[] scene = solidScene(Color.GRAY);
+        byte[] delta = tileDelta(TEST_WIDTH, TEST_HEIGHT, scene, 0);
+        ok &= check(onPacket(session, delta), "没有关键帧时请求关键帧");
+        ok &= check(delivered.isEmpty(), "没有关键帧时不输出帧");
+
+        byte[] keyframe = encode(render(scene));
+        ok &= check(!onPacket(session, keyframe), "关键帧不请求关键帧");
+        ok &= check(delivered.size() == 1 && matches(delivered.get(0), scene), "关键帧原样输出");
+
+        // 两块变了：只发这两块，重建出的整帧和期望一致
+        scene[1] = Color.RED;
+        scene[2 * TEST_COLS + 3] = Color.BLUE;
+        ok &= check(!onPacket(session, tileDelta(TEST_WIDTH, TEST_HEIGHT, scene, (1 << 1) | (1 << (2 * TEST_COLS + 3)))),
+                "正常的增量帧不请求关键帧");
+        ok &= check(delivered.size() == 2 && matches(delivered.get(1), scene), "增量帧重建出完整画面");
+
+        // 再变一块，和前面的变化叠加
+        scene[TEST_COLS] = Color.GREEN;
+        onPacket(session, tileDelta(TEST_WIDTH, TEST_HEIGHT, scene, 1 << TEST_COLS));
+        ok &= check(delivered.size() == 3 && matches(delivered.get(2), scene), "连续的增量帧叠加");
+
+        // 丢了一个增量帧：之后的增量帧都不能用，直到下一个关键帧
+        scene[0] = Color.YELLOW;
+        ok &= check(session.onDropped(FrameProtocol.PACKET_TILE_DELTA), "丢掉增量帧时请求关键帧");
+        scene[5] = Color.MAGENTA;
+        ok &= check(onPacket(session, tileDelta(TEST_WIDTH, TEST_HEIGHT, scene, 1 << 5)), "丢帧后的增量帧请求关键帧");
+        ok &= check(delivered.size() == 3, "丢帧后的增量帧不输出（画布缺了第 0 块）");
+        ok &= check(!onPacket(session, encode(render(scene))), "补上的关键帧");
+        ok &= check(delivered.size() == 4 && matches(delivered.get(3), scene), "关键帧之后画面恢复");
+        scene[6] = Color.CYAN;
+        ok &= check(!onPacket(session, tileDelta(TEST_WIDTH, TEST_HEIGHT, scene, 1 << 6)), "关键帧之后增量帧恢复");
+        ok &= check(delivered.size() == 5 && matches(delivered.get(4), scene), "关键帧之后增量帧重建正确");
+
+        // 尺寸不符（比如换了分辨率，旧的增量帧晚到）和截断的增量帧
+        ok &= check(onPacket(session, tileDelta(TEST_WIDTH * 2, TEST_HEIGHT, solidScene(Color.WHITE), 1)), "尺寸不符时请求关键帧");
+        byte[] truncated = tileDelta(TEST_WIDTH, TEST_HEIGHT, scene, 1);
+        ok &= check(onPacket(session, java.util.Arrays.copyOf(truncated, truncated.length - 20)), "截断的增量帧请求关键帧");
+        ok &= check(delivered.size() == 5, "坏的增量帧不输出");
+        ok &= check(session.getStats().getKeyframeRequests() == 5, "关键帧请求次数 " + session.getStats().getKeyframeRequests());
+        session.close();
+        System.out.println("自测" + (ok ? "通过" : "失败"));
+        return ok;
+    }
+
+    private static boolean onPacket(IngestSession session, byte[] packet) {
+        return session.onPacket(packet, 0, packet.length);
+    }
+
+    private static Color[] solidScene(Color color) {
+        Color[] scene = new Color[TEST_COLS * TEST_ROWS];
+        java.util.Arrays.fill(scene, color);
+        return scene;
+    }
+
+    private static BufferedImage render(Color[] scene) {
+        BufferedImage image = new BufferedImage(TEST_WIDTH, TEST_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            for (int row = 0; row < TEST_ROWS; row++) {
+                for (int col = 0; col < TEST_COLS; col++) {
+                    int x = FrameProtocol.tileOrigin(col, TEST_COLS, TEST_WIDTH);
+                    int y = FrameProtocol.tileOrigin(row, TEST_ROWS, TEST_HEIGHT);
+                    g.setColor(scene[row * TEST_COLS + col]);
+                    g.fillRect(x, y, FrameProtocol.tileOrigin(col + 1, TEST_COLS, TEST_WIDTH) - x,
+                            FrameProtocol.tileOrigin(row + 1, TEST_ROWS, TEST_HEIGHT) - y);
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    /** 按手机端的格式拼一个分块增量包，mask 里置位的块才发 */
+    private static byte[] tileDelta(int width, int height, Color[] scene, int mask) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(10);
+        header.put(FrameProtocol.PACKET_TILE_DELTA).put(FrameProtocol.TILE_DELTA_VERSION)
+                .putShort((short) width).putShort((short) height)
+                .put((byte) TEST_COLS).put((byte) TEST_ROWS).putShort((short) Integer.bitCount(mask));
+        bos.write(header.array());
+        for (int i = 0; i < TEST_COLS * TEST_ROWS; i++) {
+            if ((mask & (1 << i)) == 0) continue;
+            int col = i % TEST_COLS;
+            int row = i / TEST_COLS;
+            int x = FrameProtocol.tileOrigin(col, TEST_COLS, width);
+            int y = FrameProtocol.tileOrigin(row, TEST_ROWS, height);
+            BufferedImage tile = new BufferedImage(FrameProtocol.tileOrigin(col + 1, TEST_COLS, width) - x,
+                    FrameProtocol.tileOrigin(row + 1, TEST_ROWS, height) - y, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = tile.createGraphics();
+            g.setColor(scene[i]);
+            g.fillRect(0, 0, tile.getWidth(), tile.getHeight());
+            g.dispose();
+            byte[] jpeg = encode(tile);
+            bos.write(ByteBuffer.allocate(6).put((byte) col).put((byte) row).putInt(jpeg.length).array());
+            bos.write(jpeg);
+        }
+        return bos.toByteArray();
+    }
+
+    private static byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", bos);
+        return bos.toByteArray();
+    }
+
+    /** 每块中心附近的颜色和期望一致（JPEG 有损，留一点余量） */
+    private static boolean matches(byte[] jpeg, Color[] scene) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        if (image.getWidth() != TEST_WIDTH || image.getHeight() != TEST_HEIGHT) return false;
+        for (int row = 0; row < TEST_ROWS; row++) {
+            for (int col = 0; col < TEST_COLS; col++) {
+                int x = (FrameProtocol.tileOrigin(col, TEST_COLS, TEST_WIDTH) + FrameProtocol.tileOrigin(col + 1, TEST_COLS, TEST_WIDTH)) / 2;
+                int y = (FrameProtocol.tileOrigin(row, TEST_ROWS, TEST_HEIGHT) + FrameProtocol.tileOrigin(row + 1, TEST_ROWS, TEST_HEIGHT)) / 2;
+                Color actual = new Color(image.getRGB(x, y));
+                Color expected = scene[row * TEST_COLS + col];
+                if (Math.abs(actual.getRed() - expected.getRed()) > 24 || Math.abs(actual.getGreen() - expected.getGreen()) > 24
+                        || Math.abs(actual.getBlue() - expected.getBlue()) > 24) {
+                    System.err.println("块 (" + col + ", " + row + ") 颜色 " + actual + ", 期望 " + expected);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean check(boolean condition, String what) {
+        if (!condition) System.err.println("失败: " + what);
+        return condition;
+    }
+}
@@ -0,0 +1,233 @@
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 视频上传接收的吞吐量对比：经回环地址上传一个大文件（默认 1 GB），分别用
+ * <ul>
+ * <li>stream：原来的 8 KB byte[] + DataInputStream.read + FileOutputStream.write</li>
+ * <li>transfer：{@link VideoUploadReceiver}，v1 前导（长度未知）</li>
+ * <li>transfer-v2：{@link VideoUploadReceiver}，v2 前导（声明长度，预先扩展文件）</li>
+ * </ul>
+ * 报告 MB/s 和接收线程每 MB 消耗的 CPU 时间。之后用 {@link SegmentedUploadClient} 分别以 1、2、4、8 条连接
+ * 分段上传同样大小的文件，报告 MB/s。回环地址没有单流限速，分段在这里主要体现额外的开销；
+ * 真实 Wi-Fi 上用 SegmentedUploadClient 直接对服务器测。
+ * <p>
+ * 用法: java UploadBenchmark [--mb=1024] [--fsync=none|close|N] [--rounds=2] [--streams=1,2,4,8]
+ */
+public class UploadBenchmark {
+
+    private static final int CLIENT_BUFFER_BYTES = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        long sizeMb = 1024;
+        String fsync = "none";
+        int rounds = 2;
+        int[] streamCounts = {1, 2, 4, 8};
+        for (String arg : args) {
+            if (arg.startsWith("--mb=")) {
+                sizeMb = Long.parseLong(arg.substring("--mb=".length()));
+            } else if (arg.startsWith("--fsync=")) {
+                fsync = arg.substring("--fsync=".length());
+            } else if (arg.startsWith("--rounds=")) {
+                rounds = Integer.parseInt(arg.substring("--rounds=".length()));
+            } else if (arg.startsWith("--streams=")) {
+                String[] parts = arg.substring("--streams=".length()).split(",");
+                streamCounts = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    streamCounts[i] = Integer.parseInt(parts[i].trim());
+                }
+            } else {
+                System.out.println("用法: java UploadBenchmark [--mb=1024] [--fsync=none|close|N] [--rounds=2] [--streams=1,2,4,8]");
+                return;
+            }
+        }
+        long size = sizeMb * 1024 * 1024;
+        File dir = Files.createTempDirectory("upload-bench").toFile();
+        VideoUploadReceiver receiver = VideoUploadReceiver.fromFsyncArg(dir, fsync);
+        List<String> results = new ArrayList<>();
+        try {
+            // 第一轮作为预热，只报告最后一轮
+            for (int round = 1; round <= rounds; round++) {
+                boolean report = round == rounds;
+                run("stream", dir, size, false, channel -> receiveWithStream(channel, dir), report, results);
+                run("transfer", dir, size, false, receiver::receive, report, results);
+                run("transfer-v2", dir, size, true, receiver::receive, report, results);
+            }
+            runSegmented(dir, size, receiver, streamCounts, rounds, results);
+        } finally {
+            deleteRecursively(dir);
+        }
+        System.out.println();
+        System.out.printf("上传 %d MB, fsync=%s\n", sizeMb, fsync);
+        System.out.println("方式           MB/s     CPU(ms/MB)");
+        for (String line : results) {
+            System.out.println(line);
+        }
+    }
+
+    private interface Receive {
+        File receive(SocketChannel channel) throws IOException;
+    }
+
+    private static void run(String name, File dir, long size, boolean declareLength, Receive receive,
+                            boolean report, List<String> results) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            Future<long[]> received = executor.submit((Callable<long[]>) () -> {
+                try (SocketChannel channel = server.accept()) {
+                    long cpuStart = threads.getCurrentThreadCpuTime();
+                    long start = System.nanoTime();
+                    File file = receive.receive(channel);
+                    long[] result = {System.nanoTime() - start, threads.getCurrentThreadCpuTime() - cpuStart, file.length()};
+                    file.delete();
+                    return result;
+                }
+            });
+            send(server.getLocalAddress(), size, declareLength);
+            long[] result = received.get();
+            if (result[2] != size) {
+                throw new IllegalStateException(name + ": 收到 " + result[2] + " 字节, 期望 " + size);
+            }
+            double mb = size / (1024.0 * 1024.0);
+            String line = String.format("%-12s %8.1f   %8.3f", name, mb / (result[0] / 1e9), result[1] / 1e6 / mb);
+            if (report) {
+                results.add(line);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void send(java.net.SocketAddress address, long size, boolean declareLength) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            if (declareLength) {
+                out.writeShort(VideoUploadReceiver.PREAMBLE_V2_MARKER);
+                out.writeByte(VideoUploadReceiver.PREAMBLE_V2);
+                out.writeUTF("bench.mp4");
+                out.writeLong(size);
+            } else {
+                out.writeUTF("bench.mp4");
+            }
+            out.flush();
+            ByteBuffer preamble = ByteBuffer.wrap(bos.toByteArray());
+            while (preamble.hasRemaining()) {
+                channel.write(preamble);
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect(CLIENT_BUFFER_BYTES);
+            for (int i = 0; i < CLIENT_BUFFER_BYTES; i++) {
+                buffer.put((byte) (i * 31));
+            }
+            long remaining = size;
+            while (remaining > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(CLIENT_BUFFER_BYTES, remaining));
+                while (buffer.hasRemaining()) {
+                    remaining -= channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    private static void runSegmented(File dir, long size, VideoUploadReceiver receiver, int[] streamCounts,
+                                     int rounds, List<String> results) throws Exception {
+        File source = new File(dir, "segmented-source.mp4");
+        try (FileChannel out = FileChannel.open(source.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(CLIENT_BUFFER_BYTES);
+            for (int i = 0; i < CLIENT_BUFFER_BYTES; i++) {
+                buffer.put((byte) (i * 31));
+            }
+            for (long written = 0; written < size; ) {
+                buffer.clear().limit((int) Math.min(CLIENT_BUFFER_BYTES, size - written));
+                written += out.write(buffer, written);
+            }
+        }
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            executor.execute(() -> {
+                while (server.isOpen()) {
+                    try {
+                        SocketChannel channel = server.accept();
+                        executor.execute(() -> {
+                            try (SocketChannel c = channel) {
+                                File saved = receiver.receive(c);
+                                if (saved != null) {
+                                    saved.delete();
+                                }
+                            } catch (IOException e) {
+                                System.err.println("分段接收出错: " + e.getMessage());
+                            }
+                        });
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+            int uploads = 0;
+            for (int round = 1; round <= rounds; round++) {
+                for (int streams : streamCounts) {
+                    long start = System.nanoTime();
+                    boolean ok = new SegmentedUploadClient("127.0.0.1", port, source, "bench-" + (++uploads), streams).upload();
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    if (!ok) {
+                        throw new IllegalStateException("分段上传失败: " + streams + " 条连接");
+                    }
+                    if (round == rounds) {
+                        results.add(String.format("%-12s %8.1f", "segment x" + streams, size / (1024.0 * 1024.0) / seconds));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            source.delete();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /** 改动前的接收方式，作为对照 */
+    private static File receiveWithStream(SocketChannel channel, File dir) throws IOException {
+        DataInputStream dis = new DataInputStream(channel.socket().getInputStream());
+        File videoFile = new File(dir, "stream_" + dis.readUTF());
+        try (FileOutputStream fos = new FileOutputStream(videoFile)) {
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = dis.read(buffer)) != -1) {
+                fos.write(buffer, 0, bytesRead);
+            }
+        }
+        return videoFile;
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 按内容寻址的上传去重索引。
+ * <p>
+ * 完整收到并校验过 SHA-256 的文件移到 {@code <保存目录>/.blobs/<SHA-256>}，
+ * 保存目录里的带时间戳文件名只是指向它的硬链接（文件系统不支持硬链接时退回复制）。
+ * 索引是 {@code .blobs/index.log}，每行 “SHA-256 抽样摘要 长度”，只追加，启动时整体读入内存。
+ * <p>
+ * 抽样摘要 = SHA-256(长度 | 前 1 MB | 后 1 MB)，手机几乎不花时间就能算出来。
+ * 抽样摘要对不上的文件一定是新内容，手机可以直接开始上传，不必先把几百 MB 的文件完整算一遍 SHA-256。
+ */
+public class UploadDedupIndex {
+
+    static final int SAMPLE_BYTES = 1024 * 1024;
+    static final int DIGEST_BYTES = 32;
+    private static final String BLOB_DIR = ".blobs";
+    private static final String INDEX_FILE = "index.log";
+
+    private final File blobDir;
+    private final File indexFile;
+    /** SHA-256 → 长度 */
+    private final Map<String, Long> blobs = new HashMap<>();
+    /** “长度:抽样摘要” 的集合，用来快速排除新内容 */
+    private final Set<String> samples = new HashSet<>();
+
+    public UploadDedupIndex(File saveDir) {
+        this.blobDir = new File(saveDir, BLOB_DIR);
+        this.indexFile = new File(blobDir, INDEX_FILE);
+        load();
+    }
+
+    private void load() {
+        if (!indexFile.exists()) return;
+        int skipped = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(indexFile, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length != 3) {
+                    skipped++; // 写到一半断电留下的残行
+                    continue;
+                }
+                try {
+                    long length = Long.parseLong(parts[2]);
+                    blobs.put(parts[0], length);
+                    samples.add(length + ":" + parts[1]);
+                } catch (NumberFormatException e) {
+                    skipped++;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("读取去重索引失败: " + e.getMessage());
+        }
+        System.out.println("去重索引: " + blobs.size() + " 个文件" + (skipped > 0 ? ", 跳过 " + skipped + " 行损坏记录" : ""));
+    }
+
+    /** 长度和抽样摘要都对得上的文件是否存在；不存在时内容一定是新的 */
+    public synchronized boolean mayContain(long length, byte[] sampleDigest) {
+        return samples.contains(length + ":" + toHex(sampleDigest));
+    }
+
+    /**
+     * 查找内容相同的已存文件。
+     *
+     * @return 内容文件，不存在（或已被手工删除）时返回 null
+     */
+    public synchronized File find(byte[] sha256, long length) {
+        String key = toHex(sha256);
+        Long stored = blobs.get(key);
+        if (stored == null || stored != length) return null;
+        File blob = new File(blobDir, key);
+        return blob.isFile() && blob.length() == length ? blob : null;
+    }
+
+    /**
+     * 把刚收完、已校验过的文件收进内容库：文件移到 .blobs 下，原位置换成硬链接。
+     * 已有相同内容时直接丢弃新文件、链接到已有内容。
+     */
+    public void add(File completedFile, byte[] sha256) throws IOException {
+        byte[] sample = sampleDigest(completedFile);
+        long length = completedFile.length();
+        String key = toHex(sha256);
+        synchronized (this) {
+            if (!blobDir.exists() && !blobDir.mkdirs()) {
+                throw new IOException("无法创建目录: " + blobDir);
+            }
+            File blob = new File(blobDir, key);
+            if (find(sha256, length) == null) {
+                Files.move(completedFile.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                try (Writer writer = new OutputStreamWriter(new FileOutputStream(indexFile, true), StandardCharsets.UTF_8)) {
+                    writer.write(key + " " + toHex(sample) + " " + length + "\n");
+                }
+                blobs.put(key, length);
+                samples.add(length + ":" + toHex(sample));
+            } else {
+                Files.delete(completedFile.toPath());
+            }
+            link(blob, completedFile);
+        }
+    }
+
+    /** 在 target 处建立指向 blob 的硬链接，不支持硬链接时复制一份 */
+    public static void link(File blob, File target) throws IOException {
+        try {
+            Files.createLink(target.toPath(), blob.toPath());
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(blob.toPath(), target.toPath());
+        }
+    }
+
+    /** SHA-256(长度 | 前 {@link #SAMPLE_BYTES} 字节 | 后 {@link #SAMPLE_BYTES} 字节) */
+    public static byte[] sampleDigest(File file) throws IOException {
+        MessageDigest digest = newSha256();
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            long length = channel.size();
+            digest.update(ByteBuffer.allocate(8).putLong(0, length));
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(SAMPLE_BYTES, length));
+            readAt(channel, buffer, 0);
+            digest.update(buffer);
+            buffer.clear();
+            readAt(channel, buffer, Math.max(0, length - SAMPLE_BYTES));
+            digest.update(buffer);
+        }
+        return digest.digest();
+    }
+
+    private static void readAt(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("文件在读取时变短了");
+            }
+        }
+        buffer.flip();
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -1,29 +1,102 @@
 import java.io.*;
-import java.net.*;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 public class VideoServer {
     private static final int PORT = 12346; // 视频服务使用的端口
     private static final String SAVE_PATH = "received_videos/"; // 保存视频的目录
+    private static final String FRAME_SAVE_PATH = "received_frames/"; // 帧流模式保存帧的目录
+    private static final String EXPORT_PATH = "exported_videos/"; // 帧流模式导出视频文件的目录
+    private static final long DISK_STAGE_MAX_WAIT_MS = 100; // 写盘的 stage 跟不上时接收线程每帧最多等这么久
 
+    /**
+     * 用法:
+     * <pre>
+     * java VideoServer [--threads=platform|virtual] [--fsync=none|close|N] [--max-upload-gb=64]
+     *                                        视频文件接收模式（端口 12346），每连接一个平台线程或虚拟线程；
+     *                                        fsync 默认 close（收完同步一次），N 表示每 N MB 同步一次；
+     *                                        声明长度超过 --max-upload-gb 或保存目录剩余空间的上传直接拒绝
+     * java VideoServer ingest [目录|none] [--engine=nio|thread|virtual] [--io-threads=N] [--workers=N]
+     *                    [--archive=目录] [--segment-mb=256] [--retention-hours=N] [--archive-gb-per-stream=N]
+     *                                        帧流接收模式（端口 12345 和 12346），默认 NIO 引擎；
+     *                    [--archive-sync=5000ms,32mb|batch|none] [--archive-queue-mb=64]
+     *                                        归档由一个写盘线程成批写出，默认每 5 秒或每 32 MB 组提交一次 fsync，
+     *                                        batch 表示每批都同步，none 表示只在封存段时同步；写盘队列超过
+     *                                        --archive-queue-mb 时丢帧；
+     *                    [--motion] [--motion-keepalive-ms=2000] [--motion-preroll-seconds=5]
+     *                                        指定 --motion 时按运动录像：缩小解码做运动检测（线程数等于 CPU 核数），
+     *                                        静止时每条流每 --motion-keepalive-ms 只归档一帧，运动中每帧都归档，
+     *                                        运动开始时从回放缓冲补上之前 N 秒（没给 --replay-seconds 时自动开一个）；
+     *                    [--thumbnails[=目录]]  指定时后台每分钟从已封存的归档段生成每分钟一张缩略图和每小时一张联系表，
+     *                                        默认写到“归档目录-thumbnails”，每个段只处理一次；
+     *                    [--export=avi|mp4] [--export-dir=目录] [--http[=8080]] [--replay-seconds=30] [--replay-mb=256]
+     *                                        指定 --archive 时帧写入分段归档，不再一帧一个文件（除非同时给出帧目录）；
+     *                                        指定 --export 时实时帧同时写成可边写边播的 MJPEG-AVI 或分片 MP4；
+     *                                        指定 --http 时在该端口提供浏览器可看的实时 MJPEG（/mjpeg/流标识）；
+     *                                        指定 --replay-seconds 时在堆外内存里保留每条流最近 N 秒（所有流合计不超过
+     *                                        --replay-mb），HTTP 服务同时提供 /replay/流标识；
+     *                    [--live-slab-mb=64]   实时画面的帧放在池化的堆外缓冲里，合计不超过这么多，用完时退回堆上；
+     *                                        0 表示一直用堆（-Dslab.leakDetection=true 打开泄漏检测）；
+     *                    [--memory-mb=256] [--admission=pause|drop]
+     *                                        所有连接在途的帧缓冲合计不超过 --memory-mb，每个连接按连接数平分；
+     *                                        超出份额时默认暂停读这个连接（TCP 反压到手机），drop 表示丢掉可丢的帧；
+     *                    [--dispatch=ring|direct]
+     *                                        默认 ring：帧经每条流一个环形缓冲分发，每个去处一个线程，写盘的跟不上时
+     *                                        接收线程最多等 100 ms，实时观看和回放缓冲跟不上时直接跳帧（运动检测自己只挑空闲时的帧分析）；
+     *                                        direct 表示在接收线程上依次同步调用各个去处
+     * </pre>
+     */
     public static void main(String[] args) {
+        if (args.length > 0 && "ingest".equals(args[0])) {
+            runFrameIngest(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        String threadMode = ConnectionThreads.PLATFORM;
+        String fsync = "close";
+        long maxUploadBytes = VideoUploadReceiver.DEFAULT_MAX_UPLOAD_BYTES;
+        for (String arg : args) {
+            if (arg.startsWith("--threads=")) {
+                threadMode = arg.substring("--threads=".length());
+            } else if (arg.startsWith("--fsync=")) {
+                fsync = arg.substring("--fsync=".length());
+            } else if (arg.startsWith("--max-upload-gb=")) {
+                maxUploadBytes = Long.parseLong(arg.substring("--max-upload-gb=".length())) * 1024 * 1024 * 1024;
+            }
+        }
+        Executor connectionExecutor;
+        VideoUploadReceiver receiver;
+        try {
+            connectionExecutor = ConnectionThreads.create(threadMode, "video");
+            receiver = VideoUploadReceiver.fromFsyncArg(new File(SAVE_PATH), fsync);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        receiver.setMaxUploadBytes(maxUploadBytes);
+        receiver.cleanupStalePartials();
+
         // 创建保存目录
         File saveDir = new File(SAVE_PATH);
         if (!saveDir.exists()) {
             saveDir.mkdirs();
         }
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("视频接收服务器启动，监听端口: " + PORT);
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(PORT));
+            System.out.println("视频接收服务器启动，监听端口: " + PORT + "，连接线程: " + threadMode + "，fsync: " + fsync);
 
             while (true) {
                 try {
-                    Socket clientSocket = serverSocket.accept();
-                    System.out.println("收到新的连接: " + clientSocket.getInetAddress());
+                    SocketChannel clientChannel = serverChannel.accept();
+                    System.out.println("收到新的连接: " + clientChannel.getRemoteAddress());
 
-                    // 为每个连接创建新线程处理
-                    new Thread(() -> handleVideoConnection(clientSocket)).start();
+                    // 每个连接一个线程处理
+                    connectionExecutor.execute(() -> handleVideoConnection(clientChannel, receiver));
                 } catch (IOException e) {
                     System.err.println("处理连接时出错: " + e.getMessage());
                 }
@@ -33,50 +106,233 @@ public class VideoServer {
         }
     }
 
-    private static void handleVideoConnection(Socket socket) {
-        try (DataInputStream dis = new DataInputStream(socket.getInputStream())) {
-            // 读取文件名
-            String fileName = dis.readUTF();
-            System.out.println("接收视频文件: " + fileName);
-
-            // 生成保存路径
-            String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-            String saveFileName = SAVE_PATH + timestamp + "_" + fileName;
-            File videoFile = new File(saveFileName);
-
-            // 接收视频文件
-            try (FileOutputStream fos = new FileOutputStream(videoFile)) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                long totalBytes = 0;
-                long startTime = System.currentTimeMillis();
-
-                while ((bytesRead = dis.read(buffer)) != -1) {
-                    fos.write(buffer, 0, bytesRead);
-                    totalBytes += bytesRead;
-
-                    // 打印接收进度
-                    if (totalBytes % (1024 * 1024) == 0) { // 每接收1MB打印一次
-                        System.out.printf("已接收: %.2f MB\n", totalBytes / (1024.0 * 1024.0));
-                    }
+    /**
+     * 帧流接收模式：接收手机推送的长度前缀 JPEG 帧，保存到目录（传 none 只统计不保存）或分段归档。
+     */
+    private static void runFrameIngest(String[] args) {
+        String saveDir = null;
+        String archiveDir = null;
+        long segmentBytes = FrameArchive.DEFAULT_SEGMENT_BYTES;
+        long retentionMs = 0;
+        long archiveBytesPerStream = 0;
+        String archiveSync = GroupCommitWriter.DEFAULT_SYNC_INTERVAL_MS + "ms,"
+                + GroupCommitWriter.DEFAULT_SYNC_BYTES / (1024 * 1024) + "mb";
+        long archiveQueueBytes = GroupCommitWriter.DEFAULT_MAX_QUEUE_BYTES;
+        String exportFormat = null;
+        String exportDir = EXPORT_PATH;
+        int httpPort = -1;
+        boolean ringDispatch = true;
+        long replayMs = 0;
+        long replayBytes = 256L * 1024 * 1024;
+        long liveSlabBytes = SlabAllocator.DEFAULT_MAX_BYTES;
+        long memoryBytes = IngestMemoryBudget.DEFAULT_TOTAL_BYTES;
+        String admission = "pause";
+        boolean motion = false;
+        long motionKeepAliveMs = MotionRecorder.DEFAULT_KEEP_ALIVE_MS;
+        long motionPreRollMs = MotionRecorder.DEFAULT_PRE_ROLL_MS;
+        String thumbnailDir = null;
+        String engine = "nio";
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int ioThreads = Math.max(1, cpus / 2);
+        int workers = Math.max(2, cpus);
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+            } else if (arg.startsWith("--io-threads=")) {
+                ioThreads = Integer.parseInt(arg.substring("--io-threads=".length()));
+            } else if (arg.startsWith("--workers=")) {
+                workers = Integer.parseInt(arg.substring("--workers=".length()));
+            } else if (arg.startsWith("--archive=")) {
+                archiveDir = arg.substring("--archive=".length());
+            } else if (arg.startsWith("--segment-mb=")) {
+                segmentBytes = Long.parseLong(arg.substring("--segment-mb=".length())) * 1024 * 1024;
+            } else if (arg.startsWith("--retention-hours=")) {
+                retentionMs = Long.parseLong(arg.substring("--retention-hours=".length())) * 3600 * 1000;
+            } else if (arg.startsWith("--export=")) {
+                exportFormat = arg.substring("--export=".length());
+            } else if ("--http".equals(arg)) {
+                httpPort = LiveHttpServer.DEFAULT_PORT;
+            } else if (arg.startsWith("--http=")) {
+                httpPort = Integer.parseInt(arg.substring("--http=".length()));
+            } else if ("--dispatch=ring".equals(arg) || "--dispatch=direct".equals(arg)) {
+                ringDispatch = "--dispatch=ring".equals(arg);
+            } else if (arg.startsWith("--replay-seconds=")) {
+                replayMs = Long.parseLong(arg.substring("--replay-seconds=".length())) * 1000;
+            } else if (arg.startsWith("--replay-mb=")) {
+                replayBytes = Long.parseLong(arg.substring("--replay-mb=".length())) * 1024 * 1024;
+            } else if (arg.startsWith("--live-slab-mb=")) {
+                liveSlabBytes = Long.parseLong(arg.substring("--live-slab-mb=".length())) * 1024 * 1024;
+            } else if (arg.startsWith("--export-dir=")) {
+                exportDir = arg.substring("--export-dir=".length());
+            } else if (arg.startsWith("--memory-mb=")) {
+                memoryBytes = Long.parseLong(arg.substring("--memory-mb=".length())) * 1024 * 1024;
+            } else if ("--motion".equals(arg)) {
+                motion = true;
+            } else if ("--thumbnails".equals(arg)) {
+                thumbnailDir = "";
+            } else if (arg.startsWith("--thumbnails=")) {
+                thumbnailDir = arg.substring("--thumbnails=".length());
+            } else if (arg.startsWith("--motion-keepalive-ms=")) {
+                motionKeepAliveMs = Long.parseLong(arg.substring("--motion-keepalive-ms=".length()));
+            } else if (arg.startsWith("--motion-preroll-seconds=")) {
+                motionPreRollMs = Long.parseLong(arg.substring("--motion-preroll-seconds=".length())) * 1000;
+            } else if (arg.startsWith("--admission=")) {
+                admission = arg.substring("--admission=".length());
+            } else if (arg.startsWith("--archive-sync=")) {
+                archiveSync = arg.substring("--archive-sync=".length());
+            } else if (arg.startsWith("--archive-queue-mb=")) {
+                archiveQueueBytes = Long.parseLong(arg.substring("--archive-queue-mb=".length())) * 1024 * 1024;
+            } else if (arg.startsWith("--archive-gb-per-stream=")) {
+                archiveBytesPerStream = Long.parseLong(arg.substring("--archive-gb-per-stream=".length())) * 1024 * 1024 * 1024;
+            } else {
+                saveDir = arg;
+            }
+        }
+        if (saveDir == null) {
+            saveDir = archiveDir == null && exportFormat == null ? FRAME_SAVE_PATH : "none";
+        }
+        List<FrameSink> sinks = new ArrayList<>();
+        if (!"none".equals(saveDir)) {
+            sinks.add(new DirectoryFrameSink(new File(saveDir)));
+        }
+        List<Closeable> closeables = new ArrayList<>();
+        LiveHttpServer http = null;
+        ThumbnailGenerator thumbnails = null;
+        int[] ports = {FrameIngestServer.BACK_CAMERA_PORT, FrameIngestServer.FRONT_CAMERA_PORT};
+        IngestEngine server;
+        try {
+            if (exportFormat != null) {
+                ContainerFrameSink export = new ContainerFrameSink(new File(exportDir), exportFormat,
+                        ContainerFrameSink.DEFAULT_MAX_FILE_BYTES);
+                sinks.add(export);
+                closeables.add(export);
+            }
+            if (httpPort >= 0) {
+                LiveFrameHub hub = new LiveFrameHub(liveSlabBytes > 0 ? new SlabAllocator(liveSlabBytes) : null);
+                http = new LiveHttpServer(httpPort, hub);
+                sinks.add(hub);
+                closeables.add(http);
+            }
+            if (motion && archiveDir == null) {
+                System.err.println("--motion 需要同时指定 --archive，忽略");
+                motion = false;
+            }
+            if (thumbnailDir != null && archiveDir == null) {
+                System.err.println("--thumbnails 需要同时指定 --archive，忽略");
+                thumbnailDir = null;
+            }
+            if (motion && replayMs < motionPreRollMs) {
+                replayMs = motionPreRollMs + MotionDetector.DEFAULT_HOLD_MS; // 预录要从回放缓冲里取，留出检测延迟的余量
+            }
+            ReplayBuffer replay = null;
+            if (replayMs > 0) {
+                replay = new ReplayBuffer(replayMs, replayBytes);
+                sinks.add(replay);
+                if (http != null) {
+                    http.setReplayBuffer(replay);
                 }
+            }
+            if (archiveDir != null) {
+                long[] sync = GroupCommitWriter.parseDurability(archiveSync);
+                FrameArchive archive = new FrameArchive(new File(archiveDir), segmentBytes,
+                        FrameArchive.DEFAULT_SEGMENT_DURATION_MS, retentionMs, archiveBytesPerStream,
+                        sync[0], sync[1], archiveQueueBytes);
+                if (motion) {
+                    // 检测由录像转发帧，两者在同一个 stage 里按同样的顺序打开和关闭流
+                    MotionDetector detector = new MotionDetector();
+                    MotionRecorder recorder = new MotionRecorder(archive, replay, detector, motionKeepAliveMs, motionPreRollMs);
+                    sinks.add(recorder);
+                    closeables.add(detector);
+                } else {
+                    sinks.add(archive);
+                }
+                if (thumbnailDir != null) {
+                    // 不能放在归档目录里面：归档把根目录下的每个子目录都当成一条流
+                    File dir = new File(thumbnailDir.isEmpty() ? new File(archiveDir).getPath() + "-thumbnails" : thumbnailDir);
+                    thumbnails = new ThumbnailGenerator(archive, dir, ThumbnailGenerator.DEFAULT_THUMB_WIDTH,
+                            Runtime.getRuntime().availableProcessors());
+                    thumbnailDir = dir.getPath();
+                    closeables.add(thumbnails);
+                }
+                closeables.add(archive);
+            }
+            if (ringDispatch && !sinks.isEmpty()) {
+                FrameDispatcher dispatcher = new FrameDispatcher();
+                for (FrameSink sink : sinks) {
+                    boolean live = sink instanceof LiveFrameHub || sink instanceof ReplayBuffer;
+                    dispatcher.addStage(sink.getClass().getSimpleName(), sink,
+                            live ? FrameDispatcher.Policy.SKIP : FrameDispatcher.Policy.WAIT, DISK_STAGE_MAX_WAIT_MS);
+                }
+                dispatcher.start();
+                sinks = List.of(dispatcher);
+                closeables.add(0, dispatcher); // 先让各 stage 处理完已经发布的帧，再关闭 sink
+            }
+            IngestMemoryBudget budget = new IngestMemoryBudget(memoryBytes, IngestMemoryBudget.parsePolicy(admission));
+            server = IngestEngine.create(engine, ports, sinks, ioThreads, workers, budget);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        try {
+            server.start();
+            if (http != null) {
+                http.start();
+            }
+            if (thumbnails != null) {
+                thumbnails.start(ThumbnailGenerator.DEFAULT_INTERVAL_MS);
+            }
+            System.out.println("帧保存目录: " + ("none".equals(saveDir) ? "(不保存)" : saveDir));
+            System.out.println("在途帧内存预算: " + memoryBytes / (1024 * 1024) + " MB, 超出份额时 " + admission);
+            if (archiveDir != null) {
+                System.out.println("帧归档目录: " + archiveDir + ", 每段 " + segmentBytes / (1024 * 1024) + " MB, 同步: "
+                        + archiveSync + ", 写盘队列 " + archiveQueueBytes / (1024 * 1024) + " MB");
+            }
+            if (motion) {
+                System.out.println("按运动录像: 静止时每 " + motionKeepAliveMs + " ms 归档一帧, 预录 "
+                        + motionPreRollMs / 1000 + " 秒");
+            }
+            if (thumbnails != null) {
+                System.out.println("缩略图目录: " + thumbnailDir + ", " + thumbnails.getParallelism() + " 个线程");
+            }
+            if (http != null) {
+                System.out.println("实时画面帧缓冲: " + (liveSlabBytes > 0 ? "堆外 " + liveSlabBytes / (1024 * 1024) + " MB" : "堆"));
+            }
+            if (replayMs > 0) {
+                System.out.println("回放缓冲: 每条流 " + replayMs / 1000 + " 秒, 合计不超过 " + replayBytes / (1024 * 1024) + " MB");
+            }
+            if (exportFormat != null) {
+                System.out.println("视频导出目录: " + exportDir + " (" + exportFormat + ")");
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.close();
+                closeAll(closeables);
+            }));
+        } catch (IOException e) {
+            System.err.println("帧流接收模式启动失败: " + e.getMessage());
+            server.close();
+            closeAll(closeables);
+        }
+    }
 
-                long endTime = System.currentTimeMillis();
-                double duration = (endTime - startTime) / 1000.0;
-                double speed = (totalBytes / (1024.0 * 1024.0)) / duration;
-
-                System.out.printf("视频接收完成:\n");
-                System.out.printf("文件名: %s\n", saveFileName);
-                System.out.printf("文件大小: %.2f MB\n", totalBytes / (1024.0 * 1024.0));
-                System.out.printf("用时: %.1f 秒\n", duration);
-                System.out.printf("平均速度: %.2f MB/s\n", speed);
+    /** 引擎关闭后再关闭各个 sink，让它们把缓冲的数据写完、封存文件 */
+    private static void closeAll(List<Closeable> closeables) {
+        for (Closeable closeable : closeables) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                System.err.println("关闭失败: " + e.getMessage());
             }
+        }
+    }
 
+    private static void handleVideoConnection(SocketChannel channel, VideoUploadReceiver receiver) {
+        try {
+            receiver.receive(channel);
         } catch (IOException e) {
             System.err.println("处理视频接收时出错: " + e.getMessage());
         } finally {
             try {
-                socket.close();
+                channel.close();
             } catch (IOException e) {
                 System.err.println("关闭连接时出错: " + e.getMessage());
             }
@@ -0,0 +1,684 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+
+/**
+ * 视频文件上传的接收端：读前导信息，然后用 {@link FileChannel#transferFrom} 把文件内容从 socket
+ * 直接写进文件，不再经过堆上的 byte[]。
+ * <p>
+ * 前导格式有三种：
+ * <pre>
+ * v1（旧客户端）: 文件名 (writeUTF) | 文件内容直到连接关闭
+ * v2          : 0xFFFF | 版本(1) | 文件名 (writeUTF) | 文件长度 (8, -1 表示未知) | 文件内容
+ * v3（可续传） : 0xFFFF | 版本(1) | 上传 ID (writeUTF) | 文件名 (writeUTF) | 文件长度 (8) | 块大小 (4)
+ * v4（分段并行）: 0xFFFF | 版本(1) | 上传 ID (writeUTF) | 文件名 (writeUTF) | 文件长度 (8) | 段数 (4) | 段序号 (4)
+ * v5（去重续传）: v3 的前导 | 抽样摘要 (32)
+ * </pre>
+ * 文件名不可能有 65535 字节，所以 v1 的 writeUTF 长度前缀不会是 0xFFFF，几种格式可以直接区分。
+ * v2 声明了长度时先把文件扩展到该长度，收到的内容不足时截断到实际长度。声明的长度由客户端决定，
+ * 超过 {@link #setMaxUploadBytes 上限}或者保存目录剩余空间的一律拒绝（v3、v4、v5 也一样），不会被一个前导占满磁盘。
+ * <p>
+ * v3 的后续交互：
+ * <pre>
+ * 服务端 → 手机: 续传偏移 (8)，即已校验通过的字节数，总是块大小的整数倍
+ * 手机 → 服务端: 从续传偏移开始的各块，每块 长度 (4) | CRC32C (4) | 数据，最后一块可以不满
+ * 手机 → 服务端: 整个文件的 SHA-256 (32)
+ * 服务端 → 手机: 结果 (1)，{@link #RESULT_OK}、{@link #RESULT_CHUNK_MISMATCH} 或 {@link #RESULT_DIGEST_MISMATCH}
+ * </pre>
+ * 未完成的上传保存在 {@code <保存目录>/.partial/<上传 ID>.part}，块校验通过后才写入，
+ * 所以断线后文件长度向下取整到块大小就是下次的续传偏移。块校验失败时服务端回 'C' 并断开，
+ * 手机重连后从上一个好块之后续传；整文件摘要不符时丢弃部分文件，手机需要从头上传。
+ * <p>
+ * v4 把文件按 {@link #segmentStart} 切成 N 段，由 N 条连接同时上传，绕开单条 TCP 流的速率上限：
+ * <pre>
+ * 服务端 → 手机: {@link #SEGMENT_READY} 表示开始发送，{@link #RESULT_OK} 表示这一段已经收过、可以跳过
+ * 手机 → 服务端: 该段的全部字节 | 该段的 CRC32C (4)
+ * 服务端 → 手机: 结果 (1)，{@link #RESULT_OK} 或 {@link #RESULT_CHUNK_MISMATCH}
+ * </pre>
+ * 各段用定位写入同一个预先扩展好的 {@code .partial/<上传 ID>.seg}，最后一段收齐后 fsync 并原子地改名为最终文件，
+ * 然后才回复 'O'，所以手机收到所有段的 'O' 就表示文件已经落地。某段失败只需重传那一段。
+ * 哪些段已经收齐只记在内存里：服务端重启后启动时的 {@link #cleanupStalePartials} 删掉遗留的 .seg 文件，
+ * 手机重连后所有段都回 {@link #SEGMENT_READY}，整个文件重新上传，不会把没收完的段当成好的。
+ * <p>
+ * v5 在 v3 之前先查 {@link UploadDedupIndex}：抽样摘要（见 {@link UploadDedupIndex#sampleDigest}）对得上时
+ * 服务端回续传偏移 {@link #RESUME_NEED_DIGEST}，手机补发整文件 SHA-256 (32)；内容已存在时回
+ * {@link #RESUME_DUPLICATE} 并把新文件名链接到已有内容，一个字节都不用传。其余情况与 v3 完全相同。
+ * v3 和 v5 上传完成后（SHA-256 已校验）都会收进去重索引。
+ */
+public class VideoUploadReceiver {
+
+    static final int PREAMBLE_V2_MARKER = 0xFFFF;
+    static final byte PREAMBLE_V2 = 2;
+    static final byte PREAMBLE_V3 = 3;
+    static final byte PREAMBLE_V4 = 4;
+    static final byte PREAMBLE_V5 = 5;
+    static final long RESUME_DUPLICATE = -1;
+    static final long RESUME_NEED_DIGEST = -2;
+    static final byte SEGMENT_READY = 'R';
+    static final int MAX_SEGMENTS = 64;
+    static final byte RESULT_OK = 'O';
+    static final byte RESULT_CHUNK_MISMATCH = 'C';
+    static final byte RESULT_DIGEST_MISMATCH = 'D';
+    static final int DIGEST_BYTES = 32;
+    static final int MAX_CHUNK_BYTES = 8 * 1024 * 1024;
+    private static final String PARTIAL_DIR = ".partial";
+    private static final Pattern UPLOAD_ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    /** 超过这个时间没有续传的部分文件在启动时清理 */
+    private static final long PARTIAL_RETENTION_MS = 7L * 24 * 60 * 60 * 1000;
+    /** 分段上传超过这个时间没有任何连接就放弃，删除部分文件 */
+    private static final long SEGMENTED_IDLE_TIMEOUT_MS = 30L * 60 * 1000;
+    private static final int SEGMENT_BUFFER_BYTES = 1024 * 1024;
+    /** 同一上传 ID 的旧连接在这段时间内没结束就强制关闭，让新连接接手 */
+    private static final long TAKEOVER_WAIT_MS = 2000;
+    /** 每次 transferFrom 最多传的字节数 */
+    private static final long TRANSFER_CHUNK_BYTES = 8L * 1024 * 1024;
+    private static final long PROGRESS_EVERY_BYTES = 100L * 1024 * 1024;
+    public static final long DEFAULT_MAX_UPLOAD_BYTES = 64L * 1024 * 1024 * 1024;
+
+    /** 落盘策略 */
+    public enum FsyncPolicy {
+        /** 不主动 fsync，交给操作系统 */
+        NONE,
+        /** 接收完成后 fsync 一次 */
+        CLOSE,
+        /** 每写入 {@link #fsyncIntervalBytes} 字节 fsync 一次，结束时再 fsync */
+        INTERVAL
+    }
+
+    private final File saveDir;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalBytes;
+    private final UploadDedupIndex dedupIndex;
+    private volatile long maxUploadBytes = DEFAULT_MAX_UPLOAD_BYTES;
+    /** 同一个上传 ID 同时只允许一个连接写；手机重连时旧连接往往还卡在读上 */
+    private final Map<String, SocketChannel> activeUploads = new ConcurrentHashMap<>();
+    private final Map<String, ReentrantLock> uploadLocks = new ConcurrentHashMap<>();
+    /** 正在进行的分段上传，访问时锁住整个表 */
+    private final Map<String, SegmentedUpload> segmentedUploads = new HashMap<>();
+
+    /** 一个分段上传的共享状态：所有段写同一个文件 */
+    private static final class SegmentedUpload {
+        final String fileName;
+        final long totalLength;
+        final File partFile;
+        final RandomAccessFile raf;
+        final FileChannel file;
+        final boolean[] done;
+        final SocketChannel[] owners;
+        final long startTime = System.currentTimeMillis();
+        int remaining;
+        long lastActivityMs = startTime;
+
+        SegmentedUpload(String fileName, long totalLength, int segmentCount, File partFile) throws IOException {
+            this.fileName = fileName;
+            this.totalLength = totalLength;
+            this.partFile = partFile;
+            this.raf = new RandomAccessFile(partFile, "rw");
+            this.file = raf.getChannel();
+            raf.setLength(0); // 同一个上传 ID 遗留的内容不算数，所有段都要重新写
+            raf.setLength(totalLength);
+            this.done = new boolean[segmentCount];
+            this.owners = new SocketChannel[segmentCount];
+            this.remaining = segmentCount;
+        }
+
+        boolean isIdle(long now) {
+            for (SocketChannel owner : owners) {
+                if (owner != null) return false;
+            }
+            return now - lastActivityMs > SEGMENTED_IDLE_TIMEOUT_MS;
+        }
+
+        void discard() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+            partFile.delete();
+        }
+    }
+
+    /**
+     * @param fsyncIntervalBytes 仅 {@link FsyncPolicy#INTERVAL} 时使用
+     */
+    public VideoUploadReceiver(File saveDir, FsyncPolicy fsyncPolicy, long fsyncIntervalBytes) {
+        this.saveDir = saveDir;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalBytes = fsyncIntervalBytes;
+        this.dedupIndex = new UploadDedupIndex(saveDir);
+    }
+
+    /** 单个上传声明的长度上限，默认 {@link #DEFAULT_MAX_UPLOAD_BYTES} */
+    public void setMaxUploadBytes(long maxUploadBytes) {
+        this.maxUploadBytes = maxUploadBytes;
+    }
+
+    /**
+     * 客户端声明的文件长度：超过上限或者保存目录剩余空间不够时拒绝，通过了才按它预先扩展文件。
+     *
+     * @throws IOException 拒绝的原因
+     */
+    private void checkDeclaredLength(String fileName, long length) throws IOException {
+        if (length > maxUploadBytes) {
+            throw new IOException(String.format("拒绝上传 %s: 声明 %.2f MB, 超过上限 %.2f MB", fileName,
+                    length / (1024.0 * 1024.0), maxUploadBytes / (1024.0 * 1024.0)));
+        }
+        long usable = saveDir.getUsableSpace(); // 目录不存在时为 0，那时不检查，写的时候自然会报错
+        if (usable > 0 && length > usable) {
+            throw new IOException(String.format("拒绝上传 %s: 声明 %.2f MB, 保存目录只剩 %.2f MB", fileName,
+                    length / (1024.0 * 1024.0), usable / (1024.0 * 1024.0)));
+        }
+    }
+
+    /**
+     * 解析 --fsync 参数：none、close 或每隔多少 MB 同步一次的数字。
+     *
+     * @throws IllegalArgumentException 无法识别的取值
+     */
+    public static VideoUploadReceiver fromFsyncArg(File saveDir, String value) {
+        if ("none".equals(value)) {
+            return new VideoUploadReceiver(saveDir, FsyncPolicy.NONE, 0);
+        }
+        if ("close".equals(value)) {
+            return new VideoUploadReceiver(saveDir, FsyncPolicy.CLOSE, 0);
+        }
+        try {
+            long mb = Long.parseLong(value);
+            if (mb > 0) {
+                return new VideoUploadReceiver(saveDir, FsyncPolicy.INTERVAL, mb * 1024 * 1024);
+            }
+        } catch (NumberFormatException e) {
+            // 下面统一报错
+        }
+        throw new IllegalArgumentException("无效的 fsync 策略: " + value + "（可选 none、close 或每隔多少 MB 的正整数）");
+    }
+
+    /**
+     * 接收一个上传连接，直到对端关闭或收满声明的长度。调用方负责关闭 channel。
+     *
+     * @return 保存的文件；分段上传的连接不是最后完成的一段时返回 null
+     */
+    public File receive(SocketChannel channel) throws IOException {
+        channel.configureBlocking(true);
+        int marker = readUnsignedShort(channel);
+        String fileName;
+        long declaredLength = -1;
+        if (marker == PREAMBLE_V2_MARKER) {
+            byte version = readFully(channel, 1).get();
+            if (version == PREAMBLE_V3 || version == PREAMBLE_V5) {
+                return receiveResumable(channel, version == PREAMBLE_V5);
+            }
+            if (version == PREAMBLE_V4) {
+                return receiveSegment(channel);
+            }
+            if (version != PREAMBLE_V2) {
+                throw new IOException("不支持的上传前导版本: " + version);
+            }
+            fileName = readUtf(channel, readUnsignedShort(channel));
+            declaredLength = readFully(channel, 8).getLong();
+        } else {
+            fileName = readUtf(channel, marker);
+        }
+        fileName = new File(fileName).getName(); // 去掉路径，防止写到保存目录外
+        if (declaredLength >= 0) checkDeclaredLength(fileName, declaredLength);
+        System.out.println("接收视频文件: " + fileName + (declaredLength >= 0
+                ? String.format(" (%.2f MB)", declaredLength / (1024.0 * 1024.0)) : ""));
+
+        File videoFile = newVideoFile(fileName);
+        long totalBytes = 0;
+        long startTime = System.currentTimeMillis();
+        try (RandomAccessFile raf = new RandomAccessFile(videoFile, "rw");
+             FileChannel file = raf.getChannel()) {
+            if (declaredLength > 0) {
+                raf.setLength(declaredLength);
+            }
+            long limit = declaredLength >= 0 ? declaredLength : Long.MAX_VALUE;
+            long nextProgress = PROGRESS_EVERY_BYTES;
+            long nextFsync = fsyncIntervalBytes;
+            while (totalBytes < limit) {
+                long transferred = file.transferFrom(channel, totalBytes, Math.min(TRANSFER_CHUNK_BYTES, limit - totalBytes));
+                if (transferred <= 0) {
+                    break; // 对端关闭
+                }
+                totalBytes += transferred;
+                if (totalBytes >= nextProgress) {
+                    System.out.printf("已接收: %.2f MB\n", totalBytes / (1024.0 * 1024.0));
+                    nextProgress += PROGRESS_EVERY_BYTES;
+                }
+                if (fsyncPolicy == FsyncPolicy.INTERVAL && totalBytes >= nextFsync) {
+                    file.force(false);
+                    nextFsync += fsyncIntervalBytes;
+                }
+            }
+            if (declaredLength >= 0 && totalBytes < declaredLength) {
+                raf.setLength(totalBytes);
+                System.err.printf("上传不完整: %s 声明 %d 字节, 只收到 %d 字节\n", fileName, declaredLength, totalBytes);
+            }
+            if (fsyncPolicy != FsyncPolicy.NONE) {
+                file.force(true);
+            }
+        }
+
+        printSummary(videoFile, totalBytes, startTime);
+        return videoFile;
+    }
+
+    /**
+     * 清理超过保留期限仍未续传的部分文件，以及上次运行留下的分段上传文件（哪些段收齐了没有保存，没法续传）。
+     * 启动时、还没有接收任何连接之前调用一次。
+     */
+    public void cleanupStalePartials() {
+        File[] files = new File(saveDir, PARTIAL_DIR).listFiles();
+        if (files == null) return;
+        long cutoff = System.currentTimeMillis() - PARTIAL_RETENTION_MS;
+        for (File file : files) {
+            if (file.getName().endsWith(".seg") && file.delete()) {
+                System.out.println("清理上次运行未完成的分段上传: " + file.getName());
+            } else if (file.lastModified() < cutoff && file.delete()) {
+                System.out.println("清理过期的未完成上传: " + file.getName());
+            }
+        }
+    }
+
+    private File receiveResumable(SocketChannel channel, boolean dedup) throws IOException {
+        String uploadId = readUtf(channel, readUnsignedShort(channel));
+        String fileName = new File(readUtf(channel, readUnsignedShort(channel))).getName();
+        ByteBuffer header = readFully(channel, 12);
+        long totalLength = header.getLong();
+        int chunkSize = header.getInt();
+        if (!UPLOAD_ID_PATTERN.matcher(uploadId).matches()) {
+            throw new IOException("无效的上传 ID: " + uploadId);
+        }
+        if (totalLength < 0 || chunkSize <= 0 || chunkSize > MAX_CHUNK_BYTES) {
+            throw new IOException("无效的续传参数: 长度 " + totalLength + ", 块大小 " + chunkSize);
+        }
+        checkDeclaredLength(fileName, totalLength);
+
+        byte[] announcedDigest = null;
+        if (dedup) {
+            byte[] sampleDigest = new byte[DIGEST_BYTES];
+            readFully(channel, DIGEST_BYTES).get(sampleDigest);
+            if (dedupIndex.mayContain(totalLength, sampleDigest)) {
+                writeLong(channel, RESUME_NEED_DIGEST);
+                announcedDigest = new byte[DIGEST_BYTES];
+                readFully(channel, DIGEST_BYTES).get(announcedDigest);
+                File blob = dedupIndex.find(announcedDigest, totalLength);
+                if (blob != null) {
+                    File videoFile = newVideoFile(fileName);
+                    Files.deleteIfExists(videoFile.toPath());
+                    UploadDedupIndex.link(blob, videoFile);
+                    writeLong(channel, RESUME_DUPLICATE);
+                    System.out.printf("重复上传: %s (上传 %s, %.2f MB) 内容已存在, 链接为 %s\n", fileName, uploadId,
+                            totalLength / (1024.0 * 1024.0), videoFile.getPath());
+                    return videoFile;
+                }
+            }
+        }
+
+        ReentrantLock lock = lockUpload(uploadId);
+        activeUploads.put(uploadId, channel);
+        try {
+            return receiveResumableLocked(channel, uploadId, fileName, totalLength, chunkSize, announcedDigest);
+        } finally {
+            activeUploads.remove(uploadId, channel);
+            if (!lock.hasQueuedThreads()) {
+                uploadLocks.remove(uploadId, lock);
+            }
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 拿到上传 ID 的锁。旧连接如果已经断开，socket 缓冲里剩下的块会先被它写完，
+     * 所以先等一会儿；等不到再关闭旧连接。
+     */
+    private ReentrantLock lockUpload(String uploadId) throws IOException {
+        while (true) {
+            ReentrantLock lock = uploadLocks.computeIfAbsent(uploadId, id -> new ReentrantLock());
+            try {
+                if (!lock.tryLock(TAKEOVER_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                    SocketChannel previous = activeUploads.get(uploadId);
+                    if (previous != null) {
+                        System.out.println("上传 " + uploadId + " 有新连接，关闭旧连接");
+                        previous.close();
+                    }
+                    lock.lockInterruptibly();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("等待上传锁时被中断");
+            }
+            if (uploadLocks.get(uploadId) == lock) {
+                return lock;
+            }
+            lock.unlock(); // 锁已被上一个持有者移出表，换新的锁重来
+        }
+    }
+
+    /**
+     * @param announcedDigest v5 查重时手机提前给出的 SHA-256，没有时为 null
+     */
+    private File receiveResumableLocked(SocketChannel channel, String uploadId, String fileName,
+                                        long totalLength, int chunkSize, byte[] announcedDigest) throws IOException {
+        File partialDir = new File(saveDir, PARTIAL_DIR);
+        if (!partialDir.exists() && !partialDir.mkdirs()) {
+            throw new IOException("无法创建目录: " + partialDir);
+        }
+        File partFile = new File(partialDir, uploadId + ".part");
+        File metaFile = new File(partialDir, uploadId + ".properties");
+        Properties meta = new Properties();
+        meta.setProperty("fileName", fileName);
+        meta.setProperty("totalLength", Long.toString(totalLength));
+        meta.setProperty("chunkSize", Integer.toString(chunkSize));
+        if (!meta.equals(loadMeta(metaFile))) {
+            // 新上传，或者手机换了文件/块大小，之前的部分内容作废
+            Files.deleteIfExists(partFile.toPath());
+            try (FileOutputStream out = new FileOutputStream(metaFile)) {
+                meta.store(out, "resumable upload " + uploadId);
+            }
+        }
+
+        long startTime = System.currentTimeMillis();
+        long offset;
+        try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+             FileChannel file = raf.getChannel()) {
+            offset = Math.min(totalLength, raf.length() / chunkSize * chunkSize);
+            raf.setLength(offset);
+            writeLong(channel, offset);
+            System.out.printf("续传视频文件: %s (上传 %s), 从 %.2f / %.2f MB 开始\n", fileName, uploadId,
+                    offset / (1024.0 * 1024.0), totalLength / (1024.0 * 1024.0));
+
+            ByteBuffer chunk = ByteBuffer.allocateDirect(chunkSize);
+            CRC32C crc = new CRC32C();
+            long nextProgress = (offset / PROGRESS_EVERY_BYTES + 1) * PROGRESS_EVERY_BYTES;
+            long nextFsync = offset + fsyncIntervalBytes;
+            while (offset < totalLength) {
+                ByteBuffer chunkHeader = readFully(channel, 8);
+                int length = chunkHeader.getInt();
+                int expectedCrc = chunkHeader.getInt();
+                if (length <= 0 || length > chunkSize || (length < chunkSize && offset + length != totalLength)) {
+                    throw new IOException("块长度无效: " + length + ", 偏移 " + offset);
+                }
+                chunk.clear().limit(length);
+                readFully(channel, chunk);
+                chunk.flip();
+                crc.reset();
+                crc.update(chunk);
+                if ((int) crc.getValue() != expectedCrc) {
+                    System.err.printf("块校验失败: 上传 %s, 偏移 %d, 长度 %d\n", uploadId, offset, length);
+                    writeResult(channel, RESULT_CHUNK_MISMATCH);
+                    throw new IOException("块 CRC32C 不符, 等待手机从偏移 " + offset + " 续传");
+                }
+                chunk.flip();
+                while (chunk.hasRemaining()) {
+                    file.write(chunk, offset + chunk.position());
+                }
+                offset += length;
+                if (offset >= nextProgress) {
+                    System.out.printf("已接收: %.2f MB\n", offset / (1024.0 * 1024.0));
+                    nextProgress += PROGRESS_EVERY_BYTES;
+                }
+                if (fsyncPolicy == FsyncPolicy.INTERVAL && offset >= nextFsync) {
+                    file.force(false);
+                    nextFsync += fsyncIntervalBytes;
+                }
+            }
+            if (fsyncPolicy != FsyncPolicy.NONE) {
+                file.force(true);
+            }
+        }
+
+        byte[] expectedDigest = new byte[DIGEST_BYTES];
+        readFully(channel, DIGEST_BYTES).get(expectedDigest);
+        if (announcedDigest != null && !Arrays.equals(expectedDigest, announcedDigest)
+                || !Arrays.equals(expectedDigest, sha256(partFile))) {
+            System.err.println("整文件摘要不符, 丢弃未完成上传: " + uploadId);
+            Files.deleteIfExists(partFile.toPath());
+            Files.deleteIfExists(metaFile.toPath());
+            writeResult(channel, RESULT_DIGEST_MISMATCH);
+            throw new IOException("整文件 SHA-256 不符");
+        }
+        File videoFile = newVideoFile(fileName);
+        Files.move(partFile.toPath(), videoFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(metaFile.toPath());
+        try {
+            dedupIndex.add(videoFile, expectedDigest);
+        } catch (IOException e) {
+            System.err.println("加入去重索引失败: " + e.getMessage()); // 文件本身已经保存好了
+        }
+        writeResult(channel, RESULT_OK);
+        printSummary(videoFile, totalLength, startTime);
+        return videoFile;
+    }
+
+    /** 第 index 段的起始偏移，与 {@link FrameProtocol#tileOrigin} 同样的均分公式；index == count 时为文件长度 */
+    static long segmentStart(long totalLength, int count, int index) {
+        return totalLength * index / count;
+    }
+
+    private File receiveSegment(SocketChannel channel) throws IOException {
+        String uploadId = readUtf(channel, readUnsignedShort(channel));
+        String fileName = new File(readUtf(channel, readUnsignedShort(channel))).getName();
+        ByteBuffer header = readFully(channel, 16);
+        long totalLength = header.getLong();
+        int segmentCount = header.getInt();
+        int index = header.getInt();
+        if (!UPLOAD_ID_PATTERN.matcher(uploadId).matches()) {
+            throw new IOException("无效的上传 ID: " + uploadId);
+        }
+        if (totalLength < 0 || segmentCount <= 0 || segmentCount > MAX_SEGMENTS || index < 0 || index >= segmentCount) {
+            throw new IOException("无效的分段参数: 长度 " + totalLength + ", 段数 " + segmentCount + ", 段序号 " + index);
+        }
+        checkDeclaredLength(fileName, totalLength);
+
+        SegmentedUpload upload;
+        synchronized (segmentedUploads) {
+            upload = openSegmentedUpload(uploadId, fileName, totalLength, segmentCount);
+            if (upload.done[index]) {
+                writeResult(channel, RESULT_OK);
+                return null;
+            }
+            SocketChannel previous = upload.owners[index];
+            if (previous != null) {
+                previous.close(); // 手机重传这一段，旧连接多半已经死了；两边写的是同样的内容
+            }
+            upload.owners[index] = channel;
+        }
+        try {
+            writeResult(channel, SEGMENT_READY);
+            long start = segmentStart(totalLength, segmentCount, index);
+            long end = segmentStart(totalLength, segmentCount, index + 1);
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(SEGMENT_BUFFER_BYTES, Math.max(1, end - start)));
+            CRC32C crc = new CRC32C();
+            long position = start;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("连接在上传中途关闭");
+                }
+                buffer.flip();
+                crc.update(buffer);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += upload.file.write(buffer, position);
+                }
+            }
+            if (readFully(channel, 4).getInt() != (int) crc.getValue()) {
+                System.err.printf("分段校验失败: 上传 %s, 第 %d/%d 段\n", uploadId, index + 1, segmentCount);
+                writeResult(channel, RESULT_CHUNK_MISMATCH);
+                throw new IOException("分段 CRC32C 不符, 等待手机重传第 " + (index + 1) + " 段");
+            }
+            boolean last;
+            synchronized (segmentedUploads) {
+                upload.lastActivityMs = System.currentTimeMillis();
+                if (!upload.done[index]) {
+                    upload.done[index] = true;
+                    upload.remaining--;
+                }
+                last = upload.remaining == 0 && segmentedUploads.remove(uploadId, upload);
+            }
+            File videoFile = last ? finishSegmentedUpload(upload) : null;
+            writeResult(channel, RESULT_OK);
+            if (videoFile != null) {
+                printSummary(videoFile, totalLength, upload.startTime);
+            }
+            return videoFile;
+        } finally {
+            synchronized (segmentedUploads) {
+                if (upload.owners[index] == channel) {
+                    upload.owners[index] = null;
+                }
+                upload.lastActivityMs = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /** 调用方持有 segmentedUploads 的锁 */
+    private SegmentedUpload openSegmentedUpload(String uploadId, String fileName, long totalLength,
+                                                int segmentCount) throws IOException {
+        long now = System.currentTimeMillis();
+        segmentedUploads.values().removeIf(upload -> {
+            if (!upload.isIdle(now)) return false;
+            System.out.println("放弃长时间没有进展的分段上传: " + upload.fileName);
+            upload.discard();
+            return true;
+        });
+        SegmentedUpload upload = segmentedUploads.get(uploadId);
+        if (upload != null) {
+            if (upload.totalLength != totalLength || upload.done.length != segmentCount || !upload.fileName.equals(fileName)) {
+                throw new IOException("分段上传 " + uploadId + " 的参数与之前的连接不一致");
+            }
+            return upload;
+        }
+        File partialDir = new File(saveDir, PARTIAL_DIR);
+        if (!partialDir.exists() && !partialDir.mkdirs()) {
+            throw new IOException("无法创建目录: " + partialDir);
+        }
+        upload = new SegmentedUpload(fileName, totalLength, segmentCount, new File(partialDir, uploadId + ".seg"));
+        segmentedUploads.put(uploadId, upload);
+        System.out.printf("分段接收视频文件: %s (上传 %s), %.2f MB, %d 段\n", fileName, uploadId,
+                totalLength / (1024.0 * 1024.0), segmentCount);
+        return upload;
+    }
+
+    private File finishSegmentedUpload(SegmentedUpload upload) throws IOException {
+        try {
+            if (fsyncPolicy != FsyncPolicy.NONE) {
+                upload.file.force(true);
+            }
+        } finally {
+            upload.raf.close();
+        }
+        File videoFile = newVideoFile(upload.fileName);
+        // .partial 在保存目录下，同一个文件系统，改名是原子的
+        Files.move(upload.partFile.toPath(), videoFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return videoFile;
+    }
+
+    private File newVideoFile(String fileName) {
+        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        return new File(saveDir, timestamp + "_" + fileName);
+    }
+
+    private static Properties loadMeta(File metaFile) {
+        Properties meta = new Properties();
+        if (metaFile.exists()) {
+            try (FileInputStream in = new FileInputStream(metaFile)) {
+                meta.load(in);
+            } catch (IOException e) {
+                System.err.println("读取续传信息失败: " + e.getMessage());
+            }
+        }
+        return meta;
+    }
+
+    static byte[] sha256(File file) throws IOException {
+        MessageDigest digest = UploadDedupIndex.newSha256();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.digest();
+    }
+
+    private static void printSummary(File videoFile, long totalBytes, long startTime) {
+        double duration = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+        double speed = (totalBytes / (1024.0 * 1024.0)) / duration;
+        System.out.printf("视频接收完成:\n");
+        System.out.printf("文件名: %s\n", videoFile.getPath());
+        System.out.printf("文件大小: %.2f MB\n", totalBytes / (1024.0 * 1024.0));
+        System.out.printf("用时: %.1f 秒\n", duration);
+        System.out.printf("平均速度: %.2f MB/s\n", speed);
+    }
+
+    private static void writeLong(SocketChannel channel, long value) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8).putLong(value);
+        buffer.flip();
+        writeFully(channel, buffer);
+    }
+
+    private static void writeResult(SocketChannel channel, byte result) throws IOException {
+        writeFully(channel, ByteBuffer.wrap(new byte[]{result}));
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static int readUnsignedShort(SocketChannel channel) throws IOException {
+        return readFully(channel, 2).getShort() & 0xFFFF;
+    }
+
+    /** 按 DataInputStream.readUTF 的格式解码已读出长度前缀的字符串 */
+    private static String readUtf(SocketChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(2 + length);
+        buffer.putShort((short) length);
+        readFully(channel, buffer);
+        return new DataInputStream(new ByteArrayInputStream(buffer.array())).readUTF();
+    }
+
+    private static ByteBuffer readFully(SocketChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(channel, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("连接在上传中途关闭");
+            }
+        }
+    }
+}
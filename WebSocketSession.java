@@ -0,0 +1,254 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * 一条 WebSocket 观看连接的协议状态（RFC 6455 的最小子集），由 {@link LiveHttpServer} 在 I/O 线程上驱动。
+ * <p>
+ * 浏览器发文本命令：
+ * <pre>
+ * subscribe &lt;流标识,...|*&gt;     订阅（* 表示所有流，包括以后出现的）
+ * unsubscribe &lt;流标识,...|*&gt;
+ * streams                        回复 {"streams":[...]}
+ * </pre>
+ * 服务端推二进制消息，每条消息含一条或多条记录（大端）：
+ * <pre>
+ * 流标识长度 (2) | 流标识 (ASCII) | 序号 (8) | 采集时间 (8, epoch 毫秒) | JPEG 长度 (4) | JPEG
+ * </pre>
+ * 小于 {@link #BATCH_FRAME_BYTES} 的帧合进同一条消息（最多 {@link #BATCH_MAX_BYTES}），减少消息数和系统调用；
+ * 大帧单独成一条消息。和 MJPEG 一样只记每条流发到了哪一帧，写不动时不排队，能写时直接发每条流最新的一帧。
+ */
+final class WebSocketSession {
+
+    static final int BATCH_FRAME_BYTES = 16 * 1024;
+    static final int BATCH_MAX_BYTES = 64 * 1024;
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    static final int OPCODE_TEXT = 0x1;
+    static final int OPCODE_BINARY = 0x2;
+    static final int OPCODE_CLOSE = 0x8;
+    static final int OPCODE_PING = 0x9;
+    static final int OPCODE_PONG = 0xA;
+
+    private final Set<String> streams = new LinkedHashSet<>();
+    private boolean allStreams;
+    private final Map<String, Long> sentSequences = new HashMap<>();
+    private final Queue<ByteBuffer> control = new ArrayDeque<>();
+    private boolean closing;
+    private int rotation;
+    long framesSent;
+    long framesSkipped;
+
+    /** 握手应答里的 Sec-WebSocket-Accept */
+    static String acceptKey(String clientKey) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((clientKey + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    boolean isAllStreams() {
+        return allStreams;
+    }
+
+    Set<String> getStreams() {
+        return streams;
+    }
+
+    /** 收到关闭帧、已回复关闭帧，发完就可以断开 */
+    boolean isClosing() {
+        return closing;
+    }
+
+    /**
+     * 从 in 里解出完整的客户端帧并处理，不完整的留在缓冲里。
+     *
+     * @param hub 用来回复流列表
+     * @return 订阅是否有变化
+     * @throws IllegalStateException 协议错误（没加掩码、控制帧过长等）
+     */
+    boolean receive(ByteBuffer in, LiveFrameHub hub) {
+        boolean changed = false;
+        while (true) {
+            int start = in.position();
+            if (in.remaining() < 2) break;
+            int b0 = in.get() & 0xFF;
+            int b1 = in.get() & 0xFF;
+            if ((b1 & 0x80) == 0) throw new IllegalStateException("客户端帧没有掩码");
+            long length = b1 & 0x7F;
+            if (length == 126) {
+                if (in.remaining() < 2) {
+                    in.position(start);
+                    break;
+                }
+                length = in.getShort() & 0xFFFF;
+            } else if (length == 127) {
+                if (in.remaining() < 8) {
+                    in.position(start);
+                    break;
+                }
+                length = in.getLong();
+            }
+            if (length > in.capacity() - 14) throw new IllegalStateException("客户端消息太长: " + length);
+            if (in.remaining() < 4 + length) {
+                in.position(start);
+                break;
+            }
+            byte[] mask = new byte[4];
+            in.get(mask);
+            byte[] payload = new byte[(int) length];
+            in.get(payload);
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i & 3];
+            }
+            int opcode = b0 & 0x0F;
+            if (opcode == OPCODE_TEXT) {
+                changed |= command(new String(payload, StandardCharsets.UTF_8).trim(), hub);
+            } else if (opcode == OPCODE_PING) {
+                control.add(frame(OPCODE_PONG, ByteBuffer.wrap(payload)));
+            } else if (opcode == OPCODE_CLOSE) {
+                control.add(frame(OPCODE_CLOSE, ByteBuffer.wrap(payload, 0, Math.min(2, payload.length))));
+                closing = true;
+            }
+            // 二进制帧、pong 和分片消息都不需要处理
+        }
+        return changed;
+    }
+
+    private boolean command(String text, LiveFrameHub hub) {
+        int space = text.indexOf(' ');
+        String verb = space < 0 ? text : text.substring(0, space);
+        String argument = space < 0 ? "" : text.substring(space + 1).trim();
+        switch (verb) {
+            case "subscribe":
+                subscribe(argument);
+                return true;
+            case "unsubscribe":
+                for (String key : argument.split(",")) {
+                    if ("*".equals(key.trim())) {
+                        allStreams = false;
+                    } else {
+                        streams.remove(key.trim());
+                        sentSequences.remove(key.trim());
+                    }
+                }
+                return true;
+            case "streams":
+                sendStreamList(hub);
+                return false;
+            default:
+                control.add(text("{\"error\":\"未知命令\"}"));
+                return false;
+        }
+    }
+
+    /** 订阅逗号分隔的流标识，* 表示所有流 */
+    void subscribe(String keys) {
+        for (String key : keys.split(",")) {
+            key = key.trim();
+            if ("*".equals(key)) {
+                allStreams = true;
+            } else if (!key.isEmpty()) {
+                streams.add(key);
+            }
+        }
+    }
+
+    void sendStreamList(LiveFrameHub hub) {
+        StringBuilder json = new StringBuilder("{\"streams\":[");
+        List<String> keys = hub.getStreamKeys();
+        for (int i = 0; i < keys.size(); i++) {
+            if (i > 0) json.append(',');
+            json.append('"').append(keys.get(i)).append('"'); // 流标识只含字母数字和 ._-
+        }
+        control.add(text(json.append("]}").toString()));
+    }
+
+    /**
+     * 下一条要发的消息：先发控制帧和文本回复，再把订阅的流里比已发序号新的最新帧打成一条二进制消息。
+     *
+     * @param batch 空列表，消息里用到的帧加到这里（每帧已多拿一份），消息写完后由调用方逐个 release
+     * @return 要依次写出的缓冲，没有要发的返回 null
+     */
+    ByteBuffer[] next(LiveFrameHub hub, List<LiveFrame> batch) {
+        ByteBuffer pending = control.poll();
+        if (pending != null) return new ByteBuffer[]{pending};
+        if (closing) return null;
+        List<String> keys = allStreams ? hub.getStreamKeys() : new ArrayList<>(streams);
+        int batchBytes = 0;
+        for (int n = 0; n < keys.size(); n++) {
+            String key = keys.get(Math.floorMod(rotation + n, keys.size())); // 轮流从不同的流开始，大帧不会一直挤掉别的流
+            LiveFrame peek = hub.latest(key);
+            Long sent = sentSequences.get(key);
+            if (peek == null || (sent != null && peek.sequence <= sent)) continue;
+            LiveFrame latest = hub.acquireLatest(key);
+            int size = recordBytes(latest);
+            boolean small = latest.getJpegLength() < BATCH_FRAME_BYTES;
+            if (!batch.isEmpty() && (!small || batchBytes + size > BATCH_MAX_BYTES)) {
+                latest.release();
+                continue;
+            }
+            batch.add(latest);
+            batchBytes += size;
+            if (!small) break;
+        }
+        rotation++;
+        if (batch.isEmpty()) return null;
+        ByteBuffer[] buffers = new ByteBuffer[1 + batch.size() * 2];
+        buffers[0] = frameHeader(OPCODE_BINARY, batchBytes);
+        for (int i = 0; i < batch.size(); i++) {
+            LiveFrame frame = batch.get(i);
+            byte[] key = frame.streamKey.getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer header = ByteBuffer.allocate(2 + key.length + 20);
+            header.putShort((short) key.length).put(key).putLong(frame.sequence).putLong(frame.captureTimeMs)
+                    .putInt(frame.getJpegLength()).flip();
+            buffers[1 + i * 2] = header;
+            buffers[2 + i * 2] = frame.jpeg();
+            Long sent = sentSequences.put(frame.streamKey, frame.sequence);
+            if (sent != null) framesSkipped += frame.sequence - sent - 1;
+            framesSent++;
+        }
+        return buffers;
+    }
+
+    private static int recordBytes(LiveFrame frame) {
+        return 2 + frame.streamKey.length() + 20 + frame.getJpegLength();
+    }
+
+    static ByteBuffer text(String text) {
+        return frame(OPCODE_TEXT, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static ByteBuffer frame(int opcode, ByteBuffer payload) {
+        ByteBuffer header = frameHeader(opcode, payload.remaining());
+        ByteBuffer frame = ByteBuffer.allocate(header.remaining() + payload.remaining());
+        frame.put(header).put(payload).flip();
+        return frame;
+    }
+
+    /** 服务端帧头：FIN、操作码、长度（服务端不加掩码） */
+    static ByteBuffer frameHeader(int opcode, long length) {
+        ByteBuffer header = ByteBuffer.allocate(10);
+        header.put((byte) (0x80 | opcode));
+        if (length < 126) {
+            header.put((byte) length);
+        } else if (length <= 0xFFFF) {
+            header.put((byte) 126).putShort((short) length);
+        } else {
+            header.put((byte) 127).putLong(length);
+        }
+        return header.flip();
+    }
+}
@@ -14,8 +14,16 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
@@ -34,6 +42,7 @@ import android.os.Looper; // 引入 Looper
 import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 import android.widget.Toast;
@@ -43,18 +52,29 @@ import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 import androidx.core.content.ContextCompat;
 
+import com.example.myapplication.ToolData.BandwidthAllocator;
+import com.example.myapplication.ToolData.FrameProtocol;
+import com.example.myapplication.ToolData.FrameRingBuffer;
+import com.example.myapplication.ToolData.LightProfileSelector;
+import com.example.myapplication.ToolData.TileDiff;
+
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
@@ -71,31 +91,93 @@ public class CameraStreamService extends Service {
     private static final int FRONT_CAMERA_PORT = 12346;
     private static final int SOCKET_CONNECT_TIMEOUT_MS = 5000;
     private static final int IMAGE_BUFFER_SIZE = 2;
-    private static final int JPEG_QUALITY = 70;
     private static final String PREFS_NAME = "CameraServicePrefs";
     private static final String KEY_IP_ADDRESS = "last_ip_address";
     private static final String KEY_RESTART_SERVICE = "restart_service_flag";
     private static final String KEY_RETRY_COUNT = "retry_count";
+    private static final String KEY_TILE_MODE = "tile_mode_enabled";
+    private static final String KEY_BUFFER_CAPACITY_MB = "buffer_capacity_mb";
+    private static final String KEY_BUFFER_MAX_MINUTES = "buffer_max_minutes";
+    private static final String KEY_BANDWIDTH_KBPS = "bandwidth_kbps";
     private static final int MAX_RETRIES = 3;
     private static final long RETRY_DELAY_MS = 1000; // 调试时可以缩短延迟为 1 秒
     public static final String ACTION_SHOW_RETRY_FAILURE_DIALOG = "com.example.myapplication.ACTION_SHOW_RETRY_FAILURE_DIALOG";
+    // 分块增量模式参数
+    private static final int TILE_GRID_COLS = 8;
+    private static final int TILE_GRID_ROWS = 6;
+    private static final int TILE_DIFF_THRESHOLD = 6; // 子格平均亮度变化阈值
+    private static final long KEYFRAME_INTERVAL_MS = 10000; // 强制关键帧间隔
+    private static final float TILE_KEYFRAME_RATIO = 0.6f; // 变化块超过该比例时直接发整帧更省
+    private static final int TILE_STATS_LOG_INTERVAL = 300; // 每多少帧打印一次字节统计
+    // 断线存储转发参数
+    private static final int DEFAULT_BUFFER_CAPACITY_MB = 64; // 所有流合计
+    private static final int DEFAULT_BUFFER_MAX_MINUTES = 30;
+    private static final int BUFFER_MIN_SEGMENT_BYTES = 256 * 1024;
+    private static final int BUFFER_MAX_SEGMENT_BYTES = 4 * 1024 * 1024;
+    private static final long BUFFER_FRAME_INTERVAL_MS = 1000; // 断线期间降为每秒 1 帧
+    private static final long RECONNECT_BASE_DELAY_MS = 2000;
+    private static final long RECONNECT_MAX_DELAY_MS = 30000;
+    private static final String FRAME_BUFFER_DIR = "frame_buffer";
+    private static final long FRAME_INTERVAL_TOLERANCE_MS = 5; // 按档位限帧时容忍的相机出帧抖动
+    // 带宽分配参数：默认后置优先
+    private static final int BACK_STREAM_WEIGHT = 3;
+    private static final int FRONT_STREAM_WEIGHT = 1;
+    private static final int EXTERNAL_STREAM_WEIGHT = 2;
+    private static final int CONNECTION_THREADS = 4;
+    private static final long BANDWIDTH_NOTIFY_INTERVAL_MS = 5000; // 通知栏指标刷新间隔
 
     private String ipAddress;
-    private final Map<Integer, Socket> sockets = new ConcurrentHashMap<>();
-    private final Map<Integer, OutputStream> outputStreams = new ConcurrentHashMap<>();
-    private final Map<Integer, CameraDevice> cameraDevices = new ConcurrentHashMap<>();
-    private final Map<Integer, CameraCaptureSession> cameraCaptureSessions = new ConcurrentHashMap<>();
-    private final Map<Integer, ImageReader> imageReaders = new ConcurrentHashMap<>();
+    private final Map<String, Socket> sockets = new ConcurrentHashMap<>();
+    private final Map<String, OutputStream> outputStreams = new ConcurrentHashMap<>();
+    private final Map<String, CameraDevice> cameraDevices = new ConcurrentHashMap<>();
+    private final Map<String, CameraCaptureSession> cameraCaptureSessions = new ConcurrentHashMap<>();
+    private final Map<String, ImageReader> imageReaders = new ConcurrentHashMap<>();
     private final AtomicInteger activeStreamCount = new AtomicInteger(0);
+    // 所有流都以 Camera ID 为键；朝向只用于端口、权重和镜像等
+    private final Map<String, Integer> lensFacings = new ConcurrentHashMap<>();
+    private final Set<String> concurrentCameraIds = ConcurrentHashMap.newKeySet();
     private Handler backgroundHandler;
     private HandlerThread backgroundThread;
     private Handler mainHandler;
     private CameraManager cameraManager;
-    private final Map<Integer, Size> previewSizes = new ConcurrentHashMap<>();
+    private final Map<String, Size> previewSizes = new ConcurrentHashMap<>();
     private final IBinder binder = new LocalBinder();
     private ExecutorService connectionExecutor;
     private SharedPreferences sharedPreferences;
-
+    private volatile boolean tileModeEnabled = false;
+    private final Map<String, TileDiff> tileDiffs = new ConcurrentHashMap<>();
+    private final Map<String, int[]> tilePixelBuffers = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastKeyframeTimes = new ConcurrentHashMap<>();
+    private final Map<String, TileStats> tileStats = new ConcurrentHashMap<>();
+    // 存储转发：每路流一个磁盘环形缓冲；断线中的流记录断线时间
+    private final Map<String, FrameRingBuffer> frameBuffers = new ConcurrentHashMap<>();
+    private final Map<String, Long> disconnectedSince = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastBufferedFrameTimes = new ConcurrentHashMap<>();
+    private volatile long bufferCapacityBytes = DEFAULT_BUFFER_CAPACITY_MB * 1024L * 1024L;
+    /** 本次启动选中的流数，各路缓冲平分总容量 */
+    private volatile int bufferStreamCount = 1;
+    private volatile long bufferMaxAgeMs = DEFAULT_BUFFER_MAX_MINUTES * 60_000L;
+    // 光线传感器驱动的采集档位（在独立线程上监听，带滞回切换）
+    private SensorManager sensorManager;
+    private HandlerThread lightSensorThread;
+    private SensorEventListener lightSensorListener;
+    private final LightProfileSelector lightProfileSelector = new LightProfileSelector();
+    private volatile LightProfileSelector.Profile captureProfile = LightProfileSelector.Profile.DAY;
+    private final Map<String, CaptureRequest.Builder> captureRequestBuilders = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastLiveFrameTimes = new ConcurrentHashMap<>();
+    private final Set<String> hardwareMonoCameraIds = ConcurrentHashMap.newKeySet();
+    // 多路流共享的上行带宽预算（0 表示按实际发送测量）
+    private volatile BandwidthAllocator<String> bandwidthAllocator = new BandwidthAllocator<>(0);
+    private volatile long lastBandwidthNotifyTime = 0;
+
+    /** 分块模式的线上字节统计，用于和整帧 JPEG 对比 */
+    private static class TileStats {
+        long frames;
+        long keyframes;
+        long wireBytes;
+        long fullFrameBytesEstimate; // 按最近一次关键帧大小估算的整帧发送字节数
+        int lastKeyframeSize;
+    }
 
     public class LocalBinder extends Binder {
         CameraStreamService getService() {
@@ -122,7 +204,8 @@ public class CameraStreamService extends Service {
             Log.e(TAG, "无法获取 CameraManager！服务可能无法工作。");
             showToast("无法访问传感器管理器");
         }
-        connectionExecutor = Executors.newFixedThreadPool(2);
+        connectionExecutor = Executors.newFixedThreadPool(CONNECTION_THREADS);
+        startLightSensor();
     }
 
     @Override
@@ -175,6 +258,33 @@ public class CameraStreamService extends Service {
             return START_NOT_STICKY;
         }
 
+        // 分块增量模式开关：Intent 中携带时更新保存值，自动重启时沿用上次设置
+        if (intent != null && intent.hasExtra("TILE_MODE")) {
+            sharedPreferences.edit().putBoolean(KEY_TILE_MODE, intent.getBooleanExtra("TILE_MODE", false)).apply();
+        }
+        tileModeEnabled = sharedPreferences.getBoolean(KEY_TILE_MODE, false);
+        Log.i(TAG, "onStartCommand: 分块增量模式 " + (tileModeEnabled ? "开启" : "关闭"));
+
+        // 断线缓冲容量：可按 MB 和/或分钟配置，两者同时生效
+        if (intent != null && intent.hasExtra("BUFFER_CAPACITY_MB")) {
+            sharedPreferences.edit().putInt(KEY_BUFFER_CAPACITY_MB, intent.getIntExtra("BUFFER_CAPACITY_MB", DEFAULT_BUFFER_CAPACITY_MB)).apply();
+        }
+        if (intent != null && intent.hasExtra("BUFFER_MAX_MINUTES")) {
+            sharedPreferences.edit().putInt(KEY_BUFFER_MAX_MINUTES, intent.getIntExtra("BUFFER_MAX_MINUTES", DEFAULT_BUFFER_MAX_MINUTES)).apply();
+        }
+        bufferCapacityBytes = Math.max(1, sharedPreferences.getInt(KEY_BUFFER_CAPACITY_MB, DEFAULT_BUFFER_CAPACITY_MB)) * 1024L * 1024L;
+        bufferMaxAgeMs = sharedPreferences.getInt(KEY_BUFFER_MAX_MINUTES, DEFAULT_BUFFER_MAX_MINUTES) * 60_000L;
+        Log.i(TAG, "onStartCommand: 断线缓冲容量 " + (bufferCapacityBytes >> 20) + " MB, 最长 " + (bufferMaxAgeMs / 60_000L) + " 分钟");
+
+        // 上行带宽预算：配置为 0 时根据实际发送速率测量；各路流在下一帧时重新注册
+        if (intent != null && intent.hasExtra("BANDWIDTH_KBPS")) {
+            sharedPreferences.edit().putInt(KEY_BANDWIDTH_KBPS, intent.getIntExtra("BANDWIDTH_KBPS", 0)).apply();
+        }
+        int bandwidthKbps = Math.max(0, sharedPreferences.getInt(KEY_BANDWIDTH_KBPS, 0));
+        bandwidthAllocator = new BandwidthAllocator<>(bandwidthKbps * 1024L);
+        Log.i(TAG, "onStartCommand: 带宽预算 " + (bandwidthKbps > 0 ? bandwidthKbps + " KB/s" : "自动测量")
+                + ", 权重 后置 " + BACK_STREAM_WEIGHT + " / 外接 " + EXTERNAL_STREAM_WEIGHT + " / 前置 " + FRONT_STREAM_WEIGHT);
+
         //只有在手动启动时才重置计数 ---
         if (isManualStart) {
             Log.d(TAG, "onStartCommand: 手动启动，重置重试计数。");
@@ -185,9 +295,14 @@ public class CameraStreamService extends Service {
 
 
         // 检查是否已有活动流...
-        if (activeStreamCount.compareAndSet(0, 2)) {
-            Log.i(TAG,"onStartCommand: activeStreamCount 为 0，开始连接和打开相机...");
-            connectAndOpenCamerasAsync();
+        List<String> streamCameraIds = activeStreamCount.get() == 0 ? selectStreamCameraIds() : Collections.emptyList();
+        if (!streamCameraIds.isEmpty() && activeStreamCount.compareAndSet(0, streamCameraIds.size())) {
+            Log.i(TAG,"onStartCommand: activeStreamCount 为 0，开始连接和打开 " + streamCameraIds.size() + " 路相机...");
+            connectAndOpenCamerasAsync(streamCameraIds);
+        } else if (activeStreamCount.get() == 0) {
+            Log.e(TAG, "onStartCommand: 没有可用的传感器。停止。");
+            showToast("服务启动失败：未找到可用的传感器");
+            stopSelfSafely();
         } else {
             Log.w(TAG, "onStartCommand: 服务已在运行中 (activeStreamCount=" + activeStreamCount.get() + ")，忽略新的启动请求。");
             // 如果服务已在运行，并且是手动启动，可能需要考虑先停止再启动，或者直接忽略。
@@ -302,12 +417,70 @@ public class CameraStreamService extends Service {
         }
     }
 
+    /**
+     * 枚举要推流的摄像头。
+     * 设备报告了并发组合 (getConcurrentCameraIds) 时，取能同时打开的最大组合（同样大小时优先含后置）；
+     * 否则沿用以前的做法，每个朝向取第一个摄像头，外接 (USB) 摄像头全部加入。
+     * 并发模式下外接摄像头只有在组合内才加入。
+     */
+    private List<String> selectStreamCameraIds() {
+        List<String> selected = new ArrayList<>();
+        if (cameraManager == null) return selected;
+        try {
+            Set<String> bestCombination = Collections.emptySet();
+            for (Set<String> combination : cameraManager.getConcurrentCameraIds()) {
+                if (combination.size() > bestCombination.size()
+                        || (combination.size() == bestCombination.size()
+                        && containsLensFacing(combination, CameraCharacteristics.LENS_FACING_BACK)
+                        && !containsLensFacing(bestCombination, CameraCharacteristics.LENS_FACING_BACK))) {
+                    bestCombination = combination;
+                }
+            }
+            boolean useConcurrent = bestCombination.size() > 1;
+            concurrentCameraIds.clear();
+            if (useConcurrent) {
+                concurrentCameraIds.addAll(bestCombination);
+            }
+            Set<Integer> seenFacings = new HashSet<>();
+            for (String cameraId : cameraManager.getCameraIdList()) {
+                int facing = getLensFacing(cameraId);
+                boolean pick;
+                if (useConcurrent) {
+                    // 组合外的摄像头（包括外接的）不能保证和组合内的同时打开
+                    pick = bestCombination.contains(cameraId);
+                } else if (facing == CameraCharacteristics.LENS_FACING_EXTERNAL) {
+                    pick = true;
+                } else {
+                    pick = facing >= 0 && seenFacings.add(facing);
+                }
+                if (pick) {
+                    selected.add(cameraId);
+                }
+            }
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "selectStreamCameraIds: 枚举传感器出错: " + e.getMessage());
+        }
+        List<String> labels = new ArrayList<>();
+        for (String cameraId : selected) {
+            labels.add(getStreamLabel(cameraId));
+        }
+        Log.i(TAG, "selectStreamCameraIds: 选择 " + labels + (concurrentCameraIds.isEmpty() ? "" : " (并发组合 " + concurrentCameraIds + ")"));
+        return selected;
+    }
+
+    private boolean containsLensFacing(Set<String> cameraIds, int lensFacing) {
+        for (String cameraId : cameraIds) {
+            if (getLensFacing(cameraId) == lensFacing) return true;
+        }
+        return false;
+    }
+
     /**
      * 异步连接 Socket 并尝试打开传感器。
      */
-    private void connectAndOpenCamerasAsync() {
+    private void connectAndOpenCamerasAsync(List<String> cameraIds) {
         if (connectionExecutor == null || connectionExecutor.isShutdown()) {
-            connectionExecutor = Executors.newFixedThreadPool(2);
+            connectionExecutor = Executors.newFixedThreadPool(CONNECTION_THREADS);
         }
         if (TextUtils.isEmpty(ipAddress)) {
             Log.e(TAG, "connectAndOpenCamerasAsync: IP 地址为空，无法启动连接！");
@@ -315,322 +488,382 @@ public class CameraStreamService extends Service {
             stopSelfSafely();
             return;
         }
+        bufferStreamCount = Math.max(1, cameraIds.size());
         Log.i(TAG, "connectAndOpenCamerasAsync: 提交连接任务到线程池，目标 IP: " + ipAddress);
-        connectionExecutor.submit(() -> connectSocketAndTryOpen(CameraCharacteristics.LENS_FACING_BACK, BACK_CAMERA_PORT));
-        connectionExecutor.submit(() -> connectSocketAndTryOpen(CameraCharacteristics.LENS_FACING_FRONT, FRONT_CAMERA_PORT));
+        for (String cameraId : cameraIds) {
+            connectionExecutor.submit(() -> connectSocketAndTryOpen(cameraId, getPortForStream(cameraId)));
+        }
+    }
+
+    /** 建立一条到接收端的流连接 */
+    private Socket openStreamSocket(String ip, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(ip, port), SOCKET_CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(10000);
+            socket.setKeepAlive(true);
+            return socket;
+        } catch (IOException e) {
+            try { socket.close(); } catch (IOException ioException) { /* ignore */ }
+            throw e;
+        }
+    }
+
+    /**
+     * 在连接可被其他线程使用之前写入握手包，告诉接收端这条连接对应的摄像头及其能力。
+     */
+    private void writeHandshake(OutputStream outputStream, String cameraId) throws IOException {
+        int sensorOrientation = 0;
+        float focalLength = 0f;
+        int capabilities = FrameProtocol.CAP_BACKFILL;
+        Size size = null;
+        if (tileModeEnabled) capabilities |= FrameProtocol.CAP_TILE_DELTA;
+        if (concurrentCameraIds.contains(cameraId)) capabilities |= FrameProtocol.CAP_CONCURRENT;
+        try {
+            CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(cameraId);
+            Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            if (orientation != null) sensorOrientation = orientation;
+            float[] focalLengths = characteristics.get(CameraCharacteristics.LENS_INFO_AVAILABLE_FOCAL_LENGTHS);
+            if (focalLengths != null && focalLengths.length > 0) focalLength = focalLengths[0];
+            if (supportsEffect(characteristics, CaptureRequest.CONTROL_EFFECT_MODE_MONO)) capabilities |= FrameProtocol.CAP_HARDWARE_MONO;
+            int[] available = characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+            if (available != null) {
+                for (int capability : available) {
+                    if (capability == CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_LOGICAL_MULTI_CAMERA) {
+                        capabilities |= FrameProtocol.CAP_LOGICAL_MULTI_CAMERA;
+                    }
+                }
+            }
+            StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            if (map != null) size = chooseStreamSize(map.getOutputSizes(ImageFormat.JPEG));
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "writeHandshake: 获取相机参数失败 (" + getStreamLabel(cameraId) + "): " + e.getMessage());
+        }
+        byte[] packet = FrameProtocol.encodeHandshake(cameraId, Math.max(0, getLensFacing(cameraId)), sensorOrientation,
+                size != null ? size.getWidth() : 0, size != null ? size.getHeight() : 0,
+                captureProfile.maxFps, focalLength, capabilities);
+        outputStream.write(ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN).putInt(packet.length).array());
+        outputStream.write(packet);
+        outputStream.flush();
+        Log.d(TAG, "writeHandshake: " + getStreamLabel(cameraId) + " 能力位 0x" + Integer.toHexString(capabilities));
+    }
+
+    /** 前置摄像头连前置端口，后置（含多个后置镜头）和外接摄像头连后置端口，接收端靠握手包区分 */
+    private int getPortForStream(String cameraId) {
+        return getLensFacing(cameraId) == CameraCharacteristics.LENS_FACING_FRONT ? FRONT_CAMERA_PORT : BACK_CAMERA_PORT;
     }
 
 
     /**
      * 尝试连接 Socket，如果成功，则尝试在后台线程打开对应的传感器。
      */
-    private void connectSocketAndTryOpen(int cameraFacing, int port) {
-        String facingStr = getFacingString(cameraFacing);
-        Log.d(TAG, ">>> connectSocketAndTryOpen (" + facingStr + ") 开始...");
+    private void connectSocketAndTryOpen(String cameraId, int port) {
+        String streamLabel = getStreamLabel(cameraId);
+        Log.d(TAG, ">>> connectSocketAndTryOpen (" + streamLabel + ") 开始...");
         Socket socket = null;
         OutputStream outputStream;
         String currentIp = this.ipAddress;
 
         if (TextUtils.isEmpty(currentIp)) {
-            Log.e(TAG, "connectSocketAndTryOpen: IP 地址为空 (" + facingStr + ")，取消。");
+            Log.e(TAG, "connectSocketAndTryOpen: IP 地址为空 (" + streamLabel + ")，取消。");
             decrementActiveStreamCountAndCheckStop();
-            Log.d(TAG, "<<< connectSocketAndTryOpen (" + facingStr + ") 结束 (IP 为空)");
+            Log.d(TAG, "<<< connectSocketAndTryOpen (" + streamLabel + ") 结束 (IP 为空)");
             return;
         }
 
         try {
-            Log.i(TAG, "connectSocketAndTryOpen: 尝试连接 " + facingStr + " 到 " + currentIp + ":" + port);
-            socket = new Socket();
-            socket.connect(new InetSocketAddress(currentIp, port), SOCKET_CONNECT_TIMEOUT_MS);
-            socket.setSoTimeout(10000);
-            socket.setKeepAlive(true);
+            Log.i(TAG, "connectSocketAndTryOpen: 尝试连接 " + streamLabel + " 到 " + currentIp + ":" + port);
+            socket = openStreamSocket(currentIp, port);
             outputStream = socket.getOutputStream();
+            writeHandshake(outputStream, cameraId);
 
-            sockets.put(cameraFacing, socket);
-            outputStreams.put(cameraFacing, outputStream);
-            Log.i(TAG, "connectSocketAndTryOpen: " + facingStr + " Socket 连接成功。");
+            sockets.put(cameraId, socket);
+            outputStreams.put(cameraId, outputStream);
+            Log.i(TAG, "connectSocketAndTryOpen: " + streamLabel + " Socket 连接成功。");
 
             if (backgroundHandler != null) {
                 final Socket finalSocket = socket;
-                Log.d(TAG, "connectSocketAndTryOpen: 提交 tryOpenCameraAfterConnect 到后台线程 (" + facingStr + ")");
-                backgroundHandler.post(() -> tryOpenCameraAfterConnect(cameraFacing, finalSocket));
+                Log.d(TAG, "connectSocketAndTryOpen: 提交 tryOpenCameraAfterConnect 到后台线程 (" + streamLabel + ")");
+                backgroundHandler.post(() -> tryOpenCameraAfterConnect(cameraId, finalSocket));
             } else {
-                Log.e(TAG, "connectSocketAndTryOpen: 后台 Handler 为空，无法打开传感器 (" + facingStr + ")！");
-                closeSocket(cameraFacing); // 关闭刚建立的连接
+                Log.e(TAG, "connectSocketAndTryOpen: 后台 Handler 为空，无法打开传感器 (" + streamLabel + ")！");
+                closeSocket(cameraId); // 关闭刚建立的连接
                 decrementActiveStreamCountAndCheckStop(); // 减少计数
             }
 
         } catch (IOException e) {
-            Log.e(TAG, "connectSocketAndTryOpen: 连接 " + facingStr + " Socket 失败: " + e.getMessage());
+            Log.e(TAG, "connectSocketAndTryOpen: 连接 " + streamLabel + " Socket 失败: " + e.getMessage());
             decrementActiveStreamCountAndCheckStop(); // 连接失败，减少计数
-            if (!socket.isClosed()) {
+            if (socket != null && !socket.isClosed()) {
                 try { socket.close(); } catch (IOException ioException) { /* ignore */ }
             }
         } catch (Exception e) {
-            Log.e(TAG, "connectSocketAndTryOpen: 连接或启动时意外错误 (" + facingStr + "): " + e.getMessage(), e);
+            Log.e(TAG, "connectSocketAndTryOpen: 连接或启动时意外错误 (" + streamLabel + "): " + e.getMessage(), e);
             decrementActiveStreamCountAndCheckStop();
             if (socket != null && !socket.isClosed()) {
                 try { socket.close(); } catch (IOException ioException) { /* ignore */ }
             }
         }
-        Log.d(TAG, "<<< connectSocketAndTryOpen (" + facingStr + ") 结束");
+        Log.d(TAG, "<<< connectSocketAndTryOpen (" + streamLabel + ") 结束");
     }
 
     /**
      * 在 Socket 连接成功后，尝试打开对应的传感器。此方法应在 backgroundHandler 上运行。
      */
-    private void tryOpenCameraAfterConnect(int cameraFacing, Socket connectedSocket) {
-        String facingStr = getFacingString(cameraFacing);
-        Log.d(TAG, ">>> tryOpenCameraAfterConnect (" + facingStr + ") 开始...");
+    private void tryOpenCameraAfterConnect(String cameraId, Socket connectedSocket) {
+        String streamLabel = getStreamLabel(cameraId);
+        Log.d(TAG, ">>> tryOpenCameraAfterConnect (" + streamLabel + ") 开始...");
 
-        Socket currentSocketInMap = sockets.get(cameraFacing);
+        Socket currentSocketInMap = sockets.get(cameraId);
         if (currentSocketInMap == null || currentSocketInMap != connectedSocket || !connectedSocket.isConnected() || connectedSocket.isClosed()) {
-            Log.w(TAG, "tryOpenCameraAfterConnect: " + facingStr + " Socket 无效或已改变。取消。");
-            Log.d(TAG, "<<< tryOpenCameraAfterConnect (" + facingStr + ") 结束 (Socket无效)");
+            Log.w(TAG, "tryOpenCameraAfterConnect: " + streamLabel + " Socket 无效或已改变。取消。");
+            Log.d(TAG, "<<< tryOpenCameraAfterConnect (" + streamLabel + ") 结束 (Socket无效)");
             return;
         }
         if (cameraManager == null) {
-            Log.e(TAG, "tryOpenCameraAfterConnect: CameraManager 不可用 (" + facingStr + ")");
+            Log.e(TAG, "tryOpenCameraAfterConnect: CameraManager 不可用 (" + streamLabel + ")");
             showToast("传感器管理器错误");
-            closeCameraStream(cameraFacing);
+            closeCameraStream(cameraId);
             decrementActiveStreamCountAndCheckStop();
-            Log.d(TAG, "<<< tryOpenCameraAfterConnect (" + facingStr + ") 结束 (无CameraManager)");
-            return;
-        }
-        String cameraId = getCameraIdForFacing(cameraFacing);
-        if (cameraId == null) {
-            Log.e(TAG, "tryOpenCameraAfterConnect: 未找到 Camera ID (" + facingStr + ")");
-            showToast("未找到 " + facingStr + " 传感器");
-            closeCameraStream(cameraFacing);
-            decrementActiveStreamCountAndCheckStop();
-            Log.d(TAG, "<<< tryOpenCameraAfterConnect (" + facingStr + ") 结束 (无CameraID)");
+            Log.d(TAG, "<<< tryOpenCameraAfterConnect (" + streamLabel + ") 结束 (无CameraManager)");
             return;
         }
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
-            Log.e(TAG, "tryOpenCameraAfterConnect: 没有传感器权限 (" + facingStr + ")");
+            Log.e(TAG, "tryOpenCameraAfterConnect: 没有传感器权限 (" + streamLabel + ")");
             showToast("缺少传感器权限");
-            closeCameraStream(cameraFacing);
+            closeCameraStream(cameraId);
             decrementActiveStreamCountAndCheckStop();
-            Log.d(TAG, "<<< tryOpenCameraAfterConnect (" + facingStr + ") 结束 (无权限)");
+            Log.d(TAG, "<<< tryOpenCameraAfterConnect (" + streamLabel + ") 结束 (无权限)");
             return;
         }
 
         try {
-            Log.i(TAG, "tryOpenCameraAfterConnect: 正在打开传感器 (" + facingStr + ", ID: " + cameraId + ")");
-            openCameraForFacing(cameraId, cameraFacing);
+            Log.i(TAG, "tryOpenCameraAfterConnect: 正在打开传感器 (" + streamLabel + ")");
+            openCameraForStream(cameraId);
         } catch (CameraAccessException | IllegalStateException e) { // Catch specific exceptions from openCameraForFacing signature
-            Log.e(TAG, "tryOpenCameraAfterConnect: 打开传感器时出错 (" + facingStr + "): " + e.getMessage());
-            showToast("传感器访问/状态错误 (" + facingStr + ")");
-            closeCameraStream(cameraFacing);
+            Log.e(TAG, "tryOpenCameraAfterConnect: 打开传感器时出错 (" + streamLabel + "): " + e.getMessage());
+            showToast("传感器访问/状态错误 (" + streamLabel + ")");
+            closeCameraStream(cameraId);
             decrementActiveStreamCountAndCheckStop();
         } catch (Exception e) { // Catch other potential runtime exceptions during openCameraForFacing
-            Log.e(TAG, "tryOpenCameraAfterConnect: 打开传感器时意外错误 (" + facingStr + "): " + e.getMessage(), e);
-            closeCameraStream(cameraFacing);
+            Log.e(TAG, "tryOpenCameraAfterConnect: 打开传感器时意外错误 (" + streamLabel + "): " + e.getMessage(), e);
+            closeCameraStream(cameraId);
             decrementActiveStreamCountAndCheckStop();
         }
-        Log.d(TAG, "<<< tryOpenCameraAfterConnect (" + facingStr + ") 结束");
+        Log.d(TAG, "<<< tryOpenCameraAfterConnect (" + streamLabel + ") 结束");
     }
 
     /**
      * 打开指定 ID 和朝向的传感器。此方法必须在 backgroundHandler 上运行。
      */
-    private void openCameraForFacing(String cameraId, int cameraFacing) throws CameraAccessException, IllegalStateException, SecurityException { // Added SecurityException
-        String facingStr = getFacingString(cameraFacing);
-        Log.d(TAG, ">>> openCameraForFacing (" + facingStr + ") 开始...");
+    private void openCameraForStream(String cameraId) throws CameraAccessException, IllegalStateException, SecurityException { // Added SecurityException
+        String streamLabel = getStreamLabel(cameraId);
+        Log.d(TAG, ">>> openCameraForStream (" + streamLabel + ") 开始...");
 
-        Socket associatedSocket = sockets.get(cameraFacing);
+        Socket associatedSocket = sockets.get(cameraId);
         if (associatedSocket == null || !associatedSocket.isConnected() || associatedSocket.isClosed()) {
-            Log.w(TAG, "openCameraForFacing: " + facingStr + " Socket 无效。取消打开。");
-            Log.d(TAG, "<<< openCameraForFacing (" + facingStr + ") 结束 (Socket无效)");
+            Log.w(TAG, "openCameraForStream: " + streamLabel + " Socket 无效。取消打开。");
+            Log.d(TAG, "<<< openCameraForStream (" + streamLabel + ") 结束 (Socket无效)");
             return; // Don't throw exception if socket is already gone
         }
 
         CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(cameraId);
         StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
         if (map == null) {
-            Log.e(TAG, "openCameraForFacing: 无法获取流配置 (" + facingStr + ")");
-            showToast("无法获取传感器配置 (" + facingStr + ")");
-            closeCameraStream(cameraFacing);
+            Log.e(TAG, "openCameraForStream: 无法获取流配置 (" + streamLabel + ")");
+            showToast("无法获取传感器配置 (" + streamLabel + ")");
+            closeCameraStream(cameraId);
             decrementActiveStreamCountAndCheckStop();
-            Log.d(TAG, "<<< openCameraForFacing (" + facingStr + ") 结束 (无流配置)");
+            Log.d(TAG, "<<< openCameraForStream (" + streamLabel + ") 结束 (无流配置)");
             return; // Return instead of throwing
         }
 
         Size[] outputSizes = map.getOutputSizes(ImageFormat.JPEG);
         if (outputSizes == null || outputSizes.length == 0) {
-            Log.e(TAG, "openCameraForFacing: 不支持 JPEG 输出 (" + facingStr + ")");
-            showToast("传感器不支持JPEG (" + facingStr + ")");
-            closeCameraStream(cameraFacing);
+            Log.e(TAG, "openCameraForStream: 不支持 JPEG 输出 (" + streamLabel + ")");
+            showToast("传感器不支持JPEG (" + streamLabel + ")");
+            closeCameraStream(cameraId);
             decrementActiveStreamCountAndCheckStop();
-            Log.d(TAG, "<<< openCameraForFacing (" + facingStr + ") 结束 (不支持JPEG)");
+            Log.d(TAG, "<<< openCameraForStream (" + streamLabel + ") 结束 (不支持JPEG)");
             return;
         }
 
-        Size targetSize = new Size(640, 480);
-        Size selectedSize = Collections.min(Arrays.asList(outputSizes),
-                Comparator.comparingLong((Size s) -> Math.abs((long)s.getWidth() * s.getHeight() - (long)targetSize.getWidth() * targetSize.getHeight()))
-                        .thenComparingInt((Size s) -> Math.abs(s.getWidth() - targetSize.getWidth()))
-        );
-        previewSizes.put(cameraFacing, selectedSize);
-        Log.i(TAG, "openCameraForFacing: 选择预览尺寸 " + selectedSize + " (" + facingStr + ")");
+        Size selectedSize = chooseStreamSize(outputSizes);
+        previewSizes.put(cameraId, selectedSize);
+        Log.i(TAG, "openCameraForStream: 选择预览尺寸 " + selectedSize + " (" + streamLabel + ")");
 
-        closeReader(cameraFacing); // Close existing reader if any
+        closeReader(cameraId); // Close existing reader if any
 
         ImageReader imageReader = ImageReader.newInstance(selectedSize.getWidth(), selectedSize.getHeight(), ImageFormat.JPEG, IMAGE_BUFFER_SIZE);
-        imageReaders.put(cameraFacing, imageReader);
+        imageReaders.put(cameraId, imageReader);
 
-        final int currentFacing = cameraFacing;
         imageReader.setOnImageAvailableListener(reader -> {
             // Log inside listener to see if it's being called
-            // Log.v(TAG, "onImageAvailable called for " + getFacingString(currentFacing));
-            Size currentSize = previewSizes.get(currentFacing);
+            // Log.v(TAG, "onImageAvailable called for " + getStreamLabel(cameraId));
+            Size currentSize = previewSizes.get(cameraId);
             if (currentSize != null) {
-                processImageAvailable(reader, currentFacing, currentSize);
+                processImageAvailable(reader, cameraId, currentSize);
             } else {
-                Log.e(TAG, "onImageAvailable: 无法获取预览尺寸 (" + getFacingString(currentFacing) + ")");
+                Log.e(TAG, "onImageAvailable: 无法获取预览尺寸 (" + getStreamLabel(cameraId) + ")");
                 try (Image img = reader.acquireLatestImage()) {
                     if (img != null) {
                         Size fallbackSize = new Size(img.getWidth(), img.getHeight());
-                        processImageAvailable(reader, currentFacing, fallbackSize);
+                        processImageAvailable(reader, cameraId, fallbackSize);
                     }
                 } catch (IllegalStateException e) {
-                    Log.w(TAG, "onImageAvailable: ImageReader 状态异常 (" + getFacingString(currentFacing) + "): " + e.getMessage());
-                    if (sockets.containsKey(currentFacing)) { closeCameraStream(currentFacing); decrementActiveStreamCountAndCheckStop(); }
+                    Log.w(TAG, "onImageAvailable: ImageReader 状态异常 (" + getStreamLabel(cameraId) + "): " + e.getMessage());
+                    if (isStreamActive(cameraId)) { closeCameraStream(cameraId); decrementActiveStreamCountAndCheckStop(); }
                 }
             }
         }, backgroundHandler);
 
         // Re-check permission just before calling openCamera (though unlikely to change)
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
-            Log.e(TAG, "openCameraForFacing: 打开传感器时权限丢失 (" + facingStr + ")！");
+            Log.e(TAG, "openCameraForStream: 打开传感器时权限丢失 (" + streamLabel + ")！");
             showToast("传感器权限丢失");
-            closeCameraStream(cameraFacing);
+            closeCameraStream(cameraId);
             decrementActiveStreamCountAndCheckStop();
-            Log.d(TAG, "<<< openCameraForFacing (" + facingStr + ") 结束 (无权限)");
+            Log.d(TAG, "<<< openCameraForStream (" + streamLabel + ") 结束 (无权限)");
             return;
         }
 
-        Log.d(TAG, "openCameraForFacing: 正在调用 cameraManager.openCamera (" + facingStr + ")");
+        Log.d(TAG, "openCameraForStream: 正在调用 cameraManager.openCamera (" + streamLabel + ")");
         // This call is asynchronous, result in getCameraStateCallback
         // Throws CameraAccessException, IllegalStateException, SecurityException
-        cameraManager.openCamera(cameraId, getCameraStateCallback(cameraFacing), backgroundHandler);
-        Log.d(TAG, "<<< openCameraForFacing (" + facingStr + ") 结束 (调用 openCamera)");
+        cameraManager.openCamera(cameraId, getCameraStateCallback(cameraId), backgroundHandler);
+        Log.d(TAG, "<<< openCameraForStream (" + streamLabel + ") 结束 (调用 openCamera)");
+    }
+
+    /** 选择最接近 640x480 的 JPEG 输出尺寸（握手包使用同一规则） */
+    @Nullable
+    private static Size chooseStreamSize(Size[] outputSizes) {
+        if (outputSizes == null || outputSizes.length == 0) return null;
+        Size targetSize = new Size(640, 480);
+        return Collections.min(Arrays.asList(outputSizes),
+                Comparator.comparingLong((Size s) -> Math.abs((long)s.getWidth() * s.getHeight() - (long)targetSize.getWidth() * targetSize.getHeight()))
+                        .thenComparingInt((Size s) -> Math.abs(s.getWidth() - targetSize.getWidth()))
+        );
     }
 
     /**
      * 处理 ImageReader 的 onImageAvailable 事件。
      */
-    private void processImageAvailable(ImageReader reader, int cameraFacing, Size previewSize) {
-        // Log.v(TAG, ">>> processImageAvailable (" + getFacingString(cameraFacing) + ")"); // Frequent log, use v
+    private void processImageAvailable(ImageReader reader, String cameraId, Size previewSize) {
+        // Log.v(TAG, ">>> processImageAvailable (" + getStreamLabel(cameraId) + ")"); // Frequent log, use v
         try (Image image = reader.acquireNextImage()) {
             if (image != null) {
-                ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-                byte[] bytes = new byte[buffer.remaining()];
-                buffer.get(bytes);
-
-                Socket currentSocket = sockets.get(cameraFacing);
+                long captureTimeMs = System.currentTimeMillis();
+                Socket currentSocket = sockets.get(cameraId);
                 if (currentSocket != null && currentSocket.isConnected() && !currentSocket.isClosed()) {
-                    processAndSendFrame(bytes, cameraFacing, previewSize.getWidth(), previewSize.getHeight());
+                    // 按当前采集档位和分到的带宽限制帧率，多余的帧直接丢弃，省去解码和压缩
+                    BandwidthAllocator<String> allocator = bandwidthAllocator;
+                    String streamKey = getStreamKey(cameraId);
+                    allocator.register(streamKey, getStreamWeight(cameraId));
+                    long minInterval = allocator.getMinFrameIntervalMs(streamKey, captureProfile.maxFps);
+                    long now = SystemClock.elapsedRealtime();
+                    Long lastLive = lastLiveFrameTimes.get(cameraId);
+                    if (lastLive == null || now - lastLive >= minInterval - FRAME_INTERVAL_TOLERANCE_MS) {
+                        lastLiveFrameTimes.put(cameraId, now);
+                        processAndSendFrame(readJpegBytes(image), cameraId, previewSize.getWidth(), previewSize.getHeight(), captureTimeMs);
+                    }
+                } else if (disconnectedSince.containsKey(cameraId)) {
+                    // 断线期间降低帧率，写入本地环形缓冲，重连后回传
+                    long now = SystemClock.elapsedRealtime();
+                    Long lastBuffered = lastBufferedFrameTimes.get(cameraId);
+                    if (lastBuffered == null || now - lastBuffered >= BUFFER_FRAME_INTERVAL_MS) {
+                        lastBufferedFrameTimes.put(cameraId, now);
+                        processAndSendFrame(readJpegBytes(image), cameraId, previewSize.getWidth(), previewSize.getHeight(), captureTimeMs);
+                    }
                 } else {
-                    Log.w(TAG, "processImageAvailable: Socket 无效，跳过帧处理 (" + getFacingString(cameraFacing) + ")");
-                    if (sockets.containsKey(cameraFacing)) {
-                        closeCameraStream(cameraFacing);
+                    Log.w(TAG, "processImageAvailable: Socket 无效，跳过帧处理 (" + getStreamLabel(cameraId) + ")");
+                    if (sockets.containsKey(cameraId)) {
+                        closeCameraStream(cameraId);
                         decrementActiveStreamCountAndCheckStop();
                     }
                 }
             }
         } catch (IllegalStateException e) {
-            Log.w(TAG, "processImageAvailable: Reader 状态错误 (" + getFacingString(cameraFacing) + "): " + e.getMessage());
-            if (sockets.containsKey(cameraFacing)) {
-                closeCameraStream(cameraFacing);
+            Log.w(TAG, "processImageAvailable: Reader 状态错误 (" + getStreamLabel(cameraId) + "): " + e.getMessage());
+            if (isStreamActive(cameraId)) {
+                closeCameraStream(cameraId);
                 decrementActiveStreamCountAndCheckStop();
             }
         } catch (Exception e) {
-            Log.e(TAG, "processImageAvailable: 意外错误 (" + getFacingString(cameraFacing) + ")", e);
-            if (sockets.containsKey(cameraFacing)) {
-                closeCameraStream(cameraFacing);
+            Log.e(TAG, "processImageAvailable: 意外错误 (" + getStreamLabel(cameraId) + ")", e);
+            if (isStreamActive(cameraId)) {
+                closeCameraStream(cameraId);
                 decrementActiveStreamCountAndCheckStop();
             }
         }
-        // Log.v(TAG, "<<< processImageAvailable (" + getFacingString(cameraFacing) + ")");
+        // Log.v(TAG, "<<< processImageAvailable (" + getStreamLabel(cameraId) + ")");
     }
 
-    @Nullable
-    private String getCameraIdForFacing(int cameraFacing) {
-        if (cameraManager == null) return null;
-        try {
-            for (String cameraId : cameraManager.getCameraIdList()) {
-                CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(cameraId);
-                Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
-                if (facing != null && facing == cameraFacing) {
-                    return cameraId;
-                }
-            }
-        } catch (CameraAccessException e) {
-            Log.e(TAG, "getCameraIdForFacing: 出错: " + e.getMessage());
-        }
-        return null;
+    private static byte[] readJpegBytes(Image image) {
+        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
     }
 
     /**
      * 创建传感器状态回调。
      */
-    private CameraDevice.StateCallback getCameraStateCallback(final int cameraFacing) {
-        String facingStr = getFacingString(cameraFacing);
+    private CameraDevice.StateCallback getCameraStateCallback(final String cameraId) {
+        String streamLabel = getStreamLabel(cameraId);
         return new CameraDevice.StateCallback() {
             @Override
             public void onOpened(@NonNull CameraDevice camera) {
-                Log.i(TAG, ">>> CameraStateCallback.onOpened (" + facingStr + ", ID: " + camera.getId() + ")");
-                boolean exists = cameraDevices.containsKey(cameraFacing);
-                if (!exists || cameraDevices.get(cameraFacing) != camera) {
+                Log.i(TAG, ">>> CameraStateCallback.onOpened (" + streamLabel + ", ID: " + camera.getId() + ")");
+                boolean exists = cameraDevices.containsKey(cameraId);
+                if (!exists || cameraDevices.get(cameraId) != camera) {
                     if (exists) {
-                        Log.w(TAG, "onOpened: " + facingStr + " 已存在不同设备，关闭旧的...");
-                        closeCameraDevice(cameraFacing);
+                        Log.w(TAG, "onOpened: " + streamLabel + " 已存在不同设备，关闭旧的...");
+                        closeCameraDevice(cameraId);
                     }
-                    cameraDevices.put(cameraFacing, camera);
+                    cameraDevices.put(cameraId, camera);
                 } else {
-                    Log.d(TAG, "onOpened: " + facingStr + " 设备已存在且匹配。");
+                    Log.d(TAG, "onOpened: " + streamLabel + " 设备已存在且匹配。");
                 }
 
                 if (backgroundHandler != null) {
-                    Log.d(TAG,"onOpened: 提交 createCameraPreviewSession 到后台线程 (" + facingStr + ")");
-                    backgroundHandler.post(() -> createCameraPreviewSession(cameraFacing));
+                    Log.d(TAG,"onOpened: 提交 createCameraPreviewSession 到后台线程 (" + streamLabel + ")");
+                    backgroundHandler.post(() -> createCameraPreviewSession(cameraId));
                 } else {
-                    Log.e(TAG, "onOpened: 后台 Handler 为空，无法创建会话 (" + facingStr + ")！");
-                    closeCameraStream(cameraFacing);
+                    Log.e(TAG, "onOpened: 后台 Handler 为空，无法创建会话 (" + streamLabel + ")！");
+                    closeCameraStream(cameraId);
                     decrementActiveStreamCountAndCheckStop();
                 }
-                Log.i(TAG, "<<< CameraStateCallback.onOpened (" + facingStr + ")");
+                Log.i(TAG, "<<< CameraStateCallback.onOpened (" + streamLabel + ")");
             }
 
             @Override
             public void onDisconnected(@NonNull CameraDevice camera) {
-                Log.w(TAG, ">>> CameraStateCallback.onDisconnected (" + facingStr + ", ID: " + camera.getId() + ")");
-                if (cameraDevices.get(cameraFacing) == camera) {
-                    Log.w(TAG, "onDisconnected: 清理断开连接的传感器资源 (" + facingStr + ")");
-                    closeCameraStream(cameraFacing);
+                Log.w(TAG, ">>> CameraStateCallback.onDisconnected (" + streamLabel + ", ID: " + camera.getId() + ")");
+                if (cameraDevices.get(cameraId) == camera) {
+                    Log.w(TAG, "onDisconnected: 清理断开连接的传感器资源 (" + streamLabel + ")");
+                    closeCameraStream(cameraId);
                     decrementActiveStreamCountAndCheckStop(); // <--- 触发停止和重试的关键点
-                    showToast(facingStr + " 传感器连接断开");
+                    showToast(streamLabel + " 传感器连接断开");
                 } else {
-                    Log.w(TAG, "onDisconnected: " + facingStr + " 设备不匹配或已移除？");
+                    Log.w(TAG, "onDisconnected: " + streamLabel + " 设备不匹配或已移除？");
                     try { camera.close(); } catch (Exception e) { /* ignore */ }
                 }
-                Log.w(TAG, "<<< CameraStateCallback.onDisconnected (" + facingStr + ")");
+                Log.w(TAG, "<<< CameraStateCallback.onDisconnected (" + streamLabel + ")");
             }
 
             @Override
             public void onError(@NonNull CameraDevice camera, int error) {
-                Log.e(TAG, ">>> CameraStateCallback.onError (" + facingStr + ", ID: " + camera.getId() + ", 错误码: " + error + " - " + errorToString(error) + ")");
-                if (cameraDevices.get(cameraFacing) == camera) {
-                    Log.e(TAG, "onError: 清理出错的传感器资源 (" + facingStr + ")");
-                    closeCameraStream(cameraFacing);
+                Log.e(TAG, ">>> CameraStateCallback.onError (" + streamLabel + ", ID: " + camera.getId() + ", 错误码: " + error + " - " + errorToString(error) + ")");
+                if (cameraDevices.get(cameraId) == camera) {
+                    Log.e(TAG, "onError: 清理出错的传感器资源 (" + streamLabel + ")");
+                    closeCameraStream(cameraId);
                     decrementActiveStreamCountAndCheckStop(); // <--- 触发停止和重试的关键点
-                    showToast(facingStr + " 传感器错误: " + errorToString(error));
+                    showToast(streamLabel + " 传感器错误: " + errorToString(error));
                 } else {
-                    Log.w(TAG, "onError: " + facingStr + " 设备不匹配或已移除？");
+                    Log.w(TAG, "onError: " + streamLabel + " 设备不匹配或已移除？");
                     try { camera.close(); } catch (Exception e) { /* ignore */ }
                 }
-                Log.e(TAG, "<<< CameraStateCallback.onError (" + facingStr + ")");
+                Log.e(TAG, "<<< CameraStateCallback.onError (" + streamLabel + ")");
             }
         };
     }
@@ -638,36 +871,36 @@ public class CameraStreamService extends Service {
     /**
      * 创建预览会话。应在 backgroundHandler 上运行。
      */
-    private void createCameraPreviewSession(int cameraFacing) {
-        String facingStr = getFacingString(cameraFacing);
-        Log.d(TAG, ">>> createCameraPreviewSession (" + facingStr + ") 开始...");
-        CameraDevice cameraDevice = cameraDevices.get(cameraFacing);
-        ImageReader imageReader = imageReaders.get(cameraFacing);
+    private void createCameraPreviewSession(String cameraId) {
+        String streamLabel = getStreamLabel(cameraId);
+        Log.d(TAG, ">>> createCameraPreviewSession (" + streamLabel + ") 开始...");
+        CameraDevice cameraDevice = cameraDevices.get(cameraId);
+        ImageReader imageReader = imageReaders.get(cameraId);
 
         if (cameraDevice == null) {
-            Log.e(TAG, "createCameraPreviewSession: CameraDevice 为空 (" + facingStr + ")");
-            if (sockets.containsKey(cameraFacing)) { closeCameraStream(cameraFacing); decrementActiveStreamCountAndCheckStop(); }
-            Log.d(TAG, "<<< createCameraPreviewSession (" + facingStr + ") 结束 (无设备)");
+            Log.e(TAG, "createCameraPreviewSession: CameraDevice 为空 (" + streamLabel + ")");
+            if (sockets.containsKey(cameraId)) { closeCameraStream(cameraId); decrementActiveStreamCountAndCheckStop(); }
+            Log.d(TAG, "<<< createCameraPreviewSession (" + streamLabel + ") 结束 (无设备)");
             return;
         }
         if (imageReader == null) {
-            Log.e(TAG, "createCameraPreviewSession: ImageReader 为空 (" + facingStr + ")");
-            closeCameraStream(cameraFacing); decrementActiveStreamCountAndCheckStop();
-            Log.d(TAG, "<<< createCameraPreviewSession (" + facingStr + ") 结束 (无Reader)");
+            Log.e(TAG, "createCameraPreviewSession: ImageReader 为空 (" + streamLabel + ")");
+            closeCameraStream(cameraId); decrementActiveStreamCountAndCheckStop();
+            Log.d(TAG, "<<< createCameraPreviewSession (" + streamLabel + ") 结束 (无Reader)");
             return;
         }
         android.view.Surface surface = imageReader.getSurface();
         if(surface == null || !surface.isValid()){
-            Log.e(TAG, "createCameraPreviewSession: Surface 无效 (" + facingStr + ")");
-            closeCameraStream(cameraFacing); decrementActiveStreamCountAndCheckStop();
-            Log.d(TAG, "<<< createCameraPreviewSession (" + facingStr + ") 结束 (Surface无效)");
+            Log.e(TAG, "createCameraPreviewSession: Surface 无效 (" + streamLabel + ")");
+            closeCameraStream(cameraId); decrementActiveStreamCountAndCheckStop();
+            Log.d(TAG, "<<< createCameraPreviewSession (" + streamLabel + ") 结束 (Surface无效)");
             return;
         }
-        Socket associatedSocket = sockets.get(cameraFacing);
+        Socket associatedSocket = sockets.get(cameraId);
         if (associatedSocket == null || !associatedSocket.isConnected() || associatedSocket.isClosed()) {
-            Log.e(TAG, "createCameraPreviewSession: Socket 已断开 (" + facingStr + ")");
-            closeCameraStream(cameraFacing); decrementActiveStreamCountAndCheckStop();
-            Log.d(TAG, "<<< createCameraPreviewSession (" + facingStr + ") 结束 (Socket断开)");
+            Log.e(TAG, "createCameraPreviewSession: Socket 已断开 (" + streamLabel + ")");
+            closeCameraStream(cameraId); decrementActiveStreamCountAndCheckStop();
+            Log.d(TAG, "<<< createCameraPreviewSession (" + streamLabel + ") 结束 (Socket断开)");
             return;
         }
 
@@ -676,72 +909,75 @@ public class CameraStreamService extends Service {
             captureRequestBuilder.addTarget(surface);
             captureRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
             captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+            configureCaptureProfile(captureRequestBuilder, cameraId);
 
-            Log.d(TAG, "createCameraPreviewSession: 正在创建 CaptureSession (" + facingStr + ")");
+            Log.d(TAG, "createCameraPreviewSession: 正在创建 CaptureSession (" + streamLabel + ")");
             List<Surface> outputs = Collections.singletonList(surface);
 
             cameraDevice.createCaptureSession(outputs,
                     new CameraCaptureSession.StateCallback() {
                         @Override
                         public void onConfigured(@NonNull CameraCaptureSession session) {
-                            Log.i(TAG, ">>> CaptureSession.onConfigured (" + facingStr + ")");
-                            CameraDevice currentDevice = cameraDevices.get(cameraFacing);
-                            Socket currentSocket = sockets.get(cameraFacing);
+                            Log.i(TAG, ">>> CaptureSession.onConfigured (" + streamLabel + ")");
+                            CameraDevice currentDevice = cameraDevices.get(cameraId);
+                            Socket currentSocket = sockets.get(cameraId);
                             if (currentDevice == null || currentDevice != cameraDevice) {
-                                Log.w(TAG, "onConfigured: 设备已关闭或改变 (" + facingStr + ")");
+                                Log.w(TAG, "onConfigured: 设备已关闭或改变 (" + streamLabel + ")");
                                 try { session.close(); } catch (Exception e) { /* ignore */ }
-                                Log.i(TAG, "<<< CaptureSession.onConfigured (" + facingStr + ") 结束 (设备无效)");
+                                Log.i(TAG, "<<< CaptureSession.onConfigured (" + streamLabel + ") 结束 (设备无效)");
                                 return;
                             }
                             if (currentSocket == null || !currentSocket.isConnected() || currentSocket.isClosed()) {
-                                Log.w(TAG, "onConfigured: Socket 已断开 (" + facingStr + ")");
+                                Log.w(TAG, "onConfigured: Socket 已断开 (" + streamLabel + ")");
                                 try { session.close(); } catch (Exception e) { /* ignore */ }
-                                if (sockets.containsKey(cameraFacing)){ closeCameraStream(cameraFacing); decrementActiveStreamCountAndCheckStop(); }
-                                Log.i(TAG, "<<< CaptureSession.onConfigured (" + facingStr + ") 结束 (Socket无效)");
+                                if (sockets.containsKey(cameraId)){ closeCameraStream(cameraId); decrementActiveStreamCountAndCheckStop(); }
+                                Log.i(TAG, "<<< CaptureSession.onConfigured (" + streamLabel + ") 结束 (Socket无效)");
                                 return;
                             }
 
-                            Log.i(TAG, "onConfigured: 会话配置成功 (" + facingStr + ")");
-                            cameraCaptureSessions.put(cameraFacing, session);
+                            Log.i(TAG, "onConfigured: 会话配置成功 (" + streamLabel + ")");
+                            cameraCaptureSessions.put(cameraId, session);
+                            captureRequestBuilders.put(cameraId, captureRequestBuilder);
                             try {
                                 captureRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
                                 CaptureRequest previewRequest = captureRequestBuilder.build();
-                                Log.d(TAG, "onConfigured: 设置重复请求 (" + facingStr + ")");
+                                Log.d(TAG, "onConfigured: 设置重复请求 (" + streamLabel + ")");
                                 session.setRepeatingRequest(previewRequest, null, backgroundHandler);
-                                Log.i(TAG, "onConfigured: " + facingStr + " 传感器预览已启动。");
+                                Log.i(TAG, "onConfigured: " + streamLabel + " 传感器预览已启动。");
                             } catch (CameraAccessException | IllegalStateException e) {
-                                Log.e(TAG, "onConfigured: 启动重复请求时出错 (" + facingStr + "): ", e);
-                                closeCameraStream(cameraFacing); decrementActiveStreamCountAndCheckStop();
+                                Log.e(TAG, "onConfigured: 启动重复请求时出错 (" + streamLabel + "): ", e);
+                                closeCameraStream(cameraId); decrementActiveStreamCountAndCheckStop();
                             } catch (Exception e) {
-                                Log.e(TAG, "onConfigured: 启动重复请求时未知错误 (" + facingStr + "): ", e);
-                                closeCameraStream(cameraFacing); decrementActiveStreamCountAndCheckStop();
+                                Log.e(TAG, "onConfigured: 启动重复请求时未知错误 (" + streamLabel + "): ", e);
+                                closeCameraStream(cameraId); decrementActiveStreamCountAndCheckStop();
                             }
-                            Log.i(TAG, "<<< CaptureSession.onConfigured (" + facingStr + ")");
+                            Log.i(TAG, "<<< CaptureSession.onConfigured (" + streamLabel + ")");
                         }
 
                         @Override
                         public void onConfigureFailed(@NonNull CameraCaptureSession session) {
-                            Log.e(TAG, ">>> CaptureSession.onConfigureFailed (" + facingStr + ")");
-                            closeCameraStream(cameraFacing); decrementActiveStreamCountAndCheckStop();
-                            Log.e(TAG, "<<< CaptureSession.onConfigureFailed (" + facingStr + ")");
+                            Log.e(TAG, ">>> CaptureSession.onConfigureFailed (" + streamLabel + ")");
+                            closeCameraStream(cameraId); decrementActiveStreamCountAndCheckStop();
+                            Log.e(TAG, "<<< CaptureSession.onConfigureFailed (" + streamLabel + ")");
                         }
                     }, backgroundHandler
             );
         } catch (CameraAccessException | IllegalStateException | IllegalArgumentException e) {
-            Log.e(TAG, "createCameraPreviewSession: 准备请求时出错 (" + facingStr + "): ", e);
-            closeCameraStream(cameraFacing); decrementActiveStreamCountAndCheckStop();
+            Log.e(TAG, "createCameraPreviewSession: 准备请求时出错 (" + streamLabel + "): ", e);
+            closeCameraStream(cameraId); decrementActiveStreamCountAndCheckStop();
         }
-        Log.d(TAG, "<<< createCameraPreviewSession (" + facingStr + ") 结束");
+        Log.d(TAG, "<<< createCameraPreviewSession (" + streamLabel + ") 结束");
     }
 
     /**
-     * 处理原始 JPEG 数据，旋转并发送。
+     * 处理原始 JPEG 数据，旋转并发送。断线期间改为写入本地环形缓冲。
      */
-    private void processAndSendFrame(byte[] jpegBytes, int cameraFacing, int width, int height) {
-        Socket currentSocket = sockets.get(cameraFacing);
-        if (currentSocket == null || !currentSocket.isConnected() || currentSocket.isClosed()) {
-            Log.w(TAG, "processAndSendFrame: Socket 无效，跳过发送 (" + getFacingString(cameraFacing) + ")");
-            if (sockets.containsKey(cameraFacing)) { closeCameraStream(cameraFacing); decrementActiveStreamCountAndCheckStop(); }
+    private void processAndSendFrame(byte[] jpegBytes, String cameraId, int width, int height, long captureTimeMs) {
+        boolean buffering = disconnectedSince.containsKey(cameraId);
+        Socket currentSocket = sockets.get(cameraId);
+        if (!buffering && (currentSocket == null || !currentSocket.isConnected() || currentSocket.isClosed())) {
+            Log.w(TAG, "processAndSendFrame: Socket 无效，跳过发送 (" + getStreamLabel(cameraId) + ")");
+            if (sockets.containsKey(cameraId)) { closeCameraStream(cameraId); decrementActiveStreamCountAndCheckStop(); }
             return;
         }
 
@@ -752,21 +988,20 @@ public class CameraStreamService extends Service {
             BitmapFactory.Options options = new BitmapFactory.Options();
             options.inPreferredConfig = Bitmap.Config.RGB_565;
             bitmap = BitmapFactory.decodeByteArray(jpegBytes, 0, jpegBytes.length, options);
-            if (bitmap == null) { Log.w(TAG, "processAndSendFrame: 解码失败 (" + getFacingString(cameraFacing) + ")"); return; }
+            if (bitmap == null) { Log.w(TAG, "processAndSendFrame: 解码失败 (" + getStreamLabel(cameraId) + ")"); return; }
 
             Matrix matrix = new Matrix();
             int rotation;
             boolean flip = false;
             Integer sensorOrientation = 0;
-            CameraDevice device = cameraDevices.get(cameraFacing);
-            if (device != null && cameraManager != null) {
+            if (cameraManager != null) {
                 try {
-                    CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(device.getId());
+                    CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(cameraId);
                     sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
                     if (sensorOrientation == null) sensorOrientation = 0;
-                } catch (CameraAccessException e) { Log.e(TAG, "processAndSendFrame: 获取传感器方向失败 (" + getFacingString(cameraFacing) + "): " + e.getMessage()); }
+                } catch (CameraAccessException e) { Log.e(TAG, "processAndSendFrame: 获取传感器方向失败 (" + getStreamLabel(cameraId) + "): " + e.getMessage()); }
             }
-            if (cameraFacing == CameraCharacteristics.LENS_FACING_FRONT) {
+            if (getLensFacing(cameraId) == CameraCharacteristics.LENS_FACING_FRONT) {
                 rotation = (sensorOrientation ) % 360; // Simpler rotation logic
                 flip = true;
             } else {
@@ -776,79 +1011,536 @@ public class CameraStreamService extends Service {
             if (flip) { matrix.postScale(-1, 1, bitmap.getWidth() / 2f, bitmap.getHeight() / 2f); }
 
             rotatedBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-            byteArrayOutputStream = new ByteArrayOutputStream();
-            rotatedBitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, byteArrayOutputStream);
-            byte[] rotatedBytes = byteArrayOutputStream.toByteArray();
+            LightProfileSelector.Profile profile = captureProfile;
+            if (profile.grayscale && !hardwareMonoCameraIds.contains(cameraId)) {
+                // 相机不支持单色特效时用软件转灰度
+                Bitmap grayBitmap = toGrayscale(rotatedBitmap);
+                rotatedBitmap.recycle();
+                rotatedBitmap = grayBitmap;
+            }
+            if (buffering) {
+                byteArrayOutputStream = new ByteArrayOutputStream();
+                rotatedBitmap.compress(Bitmap.CompressFormat.JPEG, profile.jpegQuality, byteArrayOutputStream);
+                bufferFrame(byteArrayOutputStream.toByteArray(), cameraId, captureTimeMs);
+            } else if (tileModeEnabled) {
+                // 分块增量模式：只发送变化的块，定期发送关键帧
+                sendTileFrame(rotatedBitmap, cameraId, getLiveJpegQuality(cameraId, profile));
+            } else {
+                byteArrayOutputStream = new ByteArrayOutputStream();
+                rotatedBitmap.compress(Bitmap.CompressFormat.JPEG, getLiveJpegQuality(cameraId, profile), byteArrayOutputStream);
+                byte[] rotatedBytes = byteArrayOutputStream.toByteArray();
 
-            // 发送数据，内部有异常处理
-            sendFrameData(rotatedBytes, cameraFacing);
+                // 发送数据，内部有异常处理
+                sendFrameData(rotatedBytes, cameraId);
+            }
+            if (!buffering) {
+                // 实时帧优先：每发送一帧实时帧，最多夹带一帧断线期间缓冲的历史帧
+                sendBackfillFrame(cameraId);
+            }
 
         } catch (OutOfMemoryError oom) {
-            Log.e(TAG, "processAndSendFrame: 内存不足 (" + getFacingString(cameraFacing) + ")", oom);
+            Log.e(TAG, "processAndSendFrame: 内存不足 (" + getStreamLabel(cameraId) + ")", oom);
             System.gc();
-            closeCameraStream(cameraFacing); decrementActiveStreamCountAndCheckStop();
+            closeCameraStream(cameraId); decrementActiveStreamCountAndCheckStop();
         } catch (Exception e) {
-            Log.e(TAG, "processAndSendFrame: 处理或发送时出错 (" + getFacingString(cameraFacing) + ")", e);
-            closeCameraStream(cameraFacing); decrementActiveStreamCountAndCheckStop();
+            Log.e(TAG, "processAndSendFrame: 处理或发送时出错 (" + getStreamLabel(cameraId) + ")", e);
+            closeCameraStream(cameraId); decrementActiveStreamCountAndCheckStop();
         } finally {
             if (bitmap != null && !bitmap.isRecycled()) bitmap.recycle();
             if (rotatedBitmap != null && !rotatedBitmap.isRecycled()) rotatedBitmap.recycle();
             if (byteArrayOutputStream != null) { try { byteArrayOutputStream.close(); } catch (IOException e) { /* ignore */ } }
         }
-        // Log.v(TAG, "<<< processAndSendFrame (" + getFacingString(cameraFacing) + ") 结束");
+        // Log.v(TAG, "<<< processAndSendFrame (" + getStreamLabel(cameraId) + ") 结束");
     }
 
 
+    /**
+     * 分块增量模式下发送一帧：与接收端画面比较，只把变化的块编码为小 JPEG 发送。
+     * 首帧、到达关键帧间隔、接收端请求或变化面积过大时发送完整 JPEG 关键帧。
+     */
+    private void sendTileFrame(Bitmap frame, String cameraId, int jpegQuality) throws IOException {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        TileDiff tileDiff = tileDiffs.get(cameraId);
+        if (tileDiff == null || tileDiff.getFrameWidth() != width || tileDiff.getFrameHeight() != height) {
+            tileDiff = new TileDiff(width, height, TILE_GRID_COLS, TILE_GRID_ROWS, TILE_DIFF_THRESHOLD);
+            tileDiffs.put(cameraId, tileDiff);
+        }
+        int[] pixels = tilePixelBuffers.get(cameraId);
+        if (pixels == null || pixels.length < width * height) {
+            pixels = new int[width * height];
+            tilePixelBuffers.put(cameraId, pixels);
+        }
+        frame.getPixels(pixels, 0, width, 0, 0, width, height);
+
+        boolean[] changed = tileDiff.diff(pixels);
+        int changedCount = TileDiff.countChanged(changed);
+        long now = SystemClock.elapsedRealtime();
+        Long lastKeyframe = lastKeyframeTimes.get(cameraId);
+        boolean keyframeRequested = pollKeyframeRequest(cameraId); // 先读取请求，避免残留到下一帧
+        boolean keyframeDue = keyframeRequested
+                || !tileDiff.hasReference()
+                || lastKeyframe == null || now - lastKeyframe >= KEYFRAME_INTERVAL_MS
+                || changedCount > tileDiff.getTileCount() * TILE_KEYFRAME_RATIO;
+
+        TileStats stats = tileStats.get(cameraId);
+        if (stats == null) {
+            stats = new TileStats();
+            tileStats.put(cameraId, stats);
+        }
+
+        if (keyframeDue) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            frame.compress(Bitmap.CompressFormat.JPEG, jpegQuality, bos);
+            byte[] keyframe = bos.toByteArray();
+            if (sendFrameData(keyframe, cameraId)) {
+                tileDiff.commitAll();
+                lastKeyframeTimes.put(cameraId, now);
+                stats.keyframes++;
+                stats.lastKeyframeSize = keyframe.length;
+                recordTileStats(stats, keyframe.length, cameraId);
+            }
+            return;
+        }
+
+        // 没有变化时也发送一个只有包头的增量包，保持接收端的帧节奏
+        int[] indices = new int[changedCount];
+        byte[][] tileJpegs = new byte[changedCount][];
+        int n = 0;
+        ByteArrayOutputStream tileStream = new ByteArrayOutputStream();
+        for (int tile = 0; tile < changed.length; tile++) {
+            if (!changed[tile]) continue;
+            int col = tile % tileDiff.getCols();
+            int row = tile / tileDiff.getCols();
+            Bitmap tileBitmap = Bitmap.createBitmap(frame, tileDiff.tileX(col), tileDiff.tileY(row),
+                    tileDiff.tileWidth(col), tileDiff.tileHeight(row));
+            try {
+                tileStream.reset();
+                tileBitmap.compress(Bitmap.CompressFormat.JPEG, jpegQuality, tileStream);
+            } finally {
+                tileBitmap.recycle();
+            }
+            indices[n] = tile;
+            tileJpegs[n] = tileStream.toByteArray();
+            n++;
+        }
+        byte[] packet = FrameProtocol.encodeTileDelta(width, height, tileDiff.getCols(), tileDiff.getRows(),
+                indices, tileJpegs, n);
+        if (sendFrameData(packet, cameraId)) {
+            tileDiff.commit(changed);
+            recordTileStats(stats, packet.length, cameraId);
+        }
+    }
+
+    /** 累计分块模式字节统计，并定期打印与整帧发送的对比 */
+    private void recordTileStats(TileStats stats, int packetLength, String cameraId) {
+        stats.frames++;
+        stats.wireBytes += packetLength + 4; // 包含长度前缀
+        stats.fullFrameBytesEstimate += stats.lastKeyframeSize + 4;
+        if (stats.frames % TILE_STATS_LOG_INTERVAL == 0 && stats.fullFrameBytesEstimate > 0) {
+            Log.i(TAG, String.format("分块模式统计 (%s): %d 帧 (关键帧 %d), 实际 %d KB, 整帧估算 %d KB, 节省 %.1f%%",
+                    getStreamLabel(cameraId), stats.frames, stats.keyframes,
+                    stats.wireBytes / 1024, stats.fullFrameBytesEstimate / 1024,
+                    100.0 * (1 - (double) stats.wireBytes / stats.fullFrameBytesEstimate)));
+        }
+    }
+
+    /**
+     * 非阻塞地读取接收端发来的控制字节，返回是否请求了关键帧。
+     */
+    private boolean pollKeyframeRequest(String cameraId) {
+        Socket socket = sockets.get(cameraId);
+        if (socket == null || socket.isClosed()) return false;
+        boolean requested = false;
+        try {
+            InputStream in = socket.getInputStream();
+            while (in.available() > 0) {
+                if (in.read() == FrameProtocol.REQUEST_KEYFRAME) {
+                    requested = true;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "pollKeyframeRequest: 读取控制字节失败 (" + getStreamLabel(cameraId) + "): " + e.getMessage());
+        }
+        if (requested) {
+            Log.d(TAG, "pollKeyframeRequest: 接收端请求关键帧 (" + getStreamLabel(cameraId) + ")");
+        }
+        return requested;
+    }
+
     /**
      * 发送带长度前缀的帧数据。
      * 这是检测连接断开的关键点。
+     *
+     * @return 是否发送成功
      */
-    private void sendFrameData(byte[] frameData, int cameraFacing) {
-        OutputStream outputStream = outputStreams.get(cameraFacing);
-        Socket socket = sockets.get(cameraFacing);
-        String facingStr = getFacingString(cameraFacing);
+    private boolean sendFrameData(byte[] frameData, String cameraId) {
+        OutputStream outputStream = outputStreams.get(cameraId);
+        Socket socket = sockets.get(cameraId);
+        String streamLabel = getStreamLabel(cameraId);
 
         // 增加发送前的日志
-        // Log.v(TAG, ">>> sendFrameData: 尝试发送帧 facing=" + facingStr + ", length=" + frameData.length);
+        // Log.v(TAG, ">>> sendFrameData: 尝试发送帧 facing=" + streamLabel + ", length=" + frameData.length);
 
         if (outputStream != null && socket != null && socket.isConnected() && !socket.isClosed()) {
             try {
                 int length = frameData.length;
                 ByteBuffer lengthBuffer = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN).putInt(length);
 
-                // Log.v(TAG, "sendFrameData: Writing length ("+ facingStr +")");
+                long sendStart = System.nanoTime();
+                // Log.v(TAG, "sendFrameData: Writing length ("+ streamLabel +")");
                 outputStream.write(lengthBuffer.array());
-                // Log.v(TAG, "sendFrameData: Writing data ("+ facingStr +")");
+                // Log.v(TAG, "sendFrameData: Writing data ("+ streamLabel +")");
                 outputStream.write(frameData);
-                // Log.v(TAG, "sendFrameData: Flushing ("+ facingStr +")");
+                // Log.v(TAG, "sendFrameData: Flushing ("+ streamLabel +")");
                 outputStream.flush(); // <--- 强制发送，更容易触发 IOException
+                recordBandwidth(cameraId, length + 4, System.nanoTime() - sendStart,
+                        length > 0 && frameData[0] != FrameProtocol.PACKET_BACKFILL && frameData[0] != FrameProtocol.PACKET_HANDSHAKE);
 
-                // Log.v(TAG, "<<< sendFrameData: 成功发送帧 facing=" + facingStr + ", length=" + length);
+                // Log.v(TAG, "<<< sendFrameData: 成功发送帧 facing=" + streamLabel + ", length=" + length);
+                return true;
 
             } catch (IOException e) {
                 // --- 捕获到 IO 异常，这通常意味着连接已断开 ---
-                Log.e(TAG, ">>> sendFrameData: 发送帧时 IO 错误 (" + facingStr + "): " + e.getMessage() + ". 可能已断开连接。");
-                // 关闭此流并减少计数，触发停止和重试逻辑
-                closeCameraStream(cameraFacing);
-                decrementActiveStreamCountAndCheckStop(); // <--- 关键：触发后续流程
-                Log.e(TAG, "<<< sendFrameData: IO 错误处理完毕 (" + facingStr + ")");
+                Log.e(TAG, ">>> sendFrameData: 发送帧时 IO 错误 (" + streamLabel + "): " + e.getMessage() + ". 可能已断开连接。");
+                // 相机保持运行，转入本地缓冲并在后台重连；缓冲不可用时才关闭此流触发重启逻辑
+                handleStreamDisconnect(cameraId);
+                Log.e(TAG, "<<< sendFrameData: IO 错误处理完毕 (" + streamLabel + ")");
             } catch (Exception e) {
-                Log.e(TAG, ">>> sendFrameData: 发送帧时未知错误 (" + facingStr + "): " + e.getMessage(), e);
-                closeCameraStream(cameraFacing);
+                Log.e(TAG, ">>> sendFrameData: 发送帧时未知错误 (" + streamLabel + "): " + e.getMessage(), e);
+                closeCameraStream(cameraId);
                 decrementActiveStreamCountAndCheckStop();
-                Log.e(TAG, "<<< sendFrameData: 未知错误处理完毕 (" + facingStr + ")");
+                Log.e(TAG, "<<< sendFrameData: 未知错误处理完毕 (" + streamLabel + ")");
             }
         } else {
-            Log.w(TAG, "sendFrameData: 无法发送，流/Socket 无效 (" + facingStr + ")");
-            if (sockets.containsKey(cameraFacing)) {
-                closeCameraStream(cameraFacing);
+            Log.w(TAG, "sendFrameData: 无法发送，流/Socket 无效 (" + streamLabel + ")");
+            if (sockets.containsKey(cameraId)) {
+                closeCameraStream(cameraId);
                 decrementActiveStreamCountAndCheckStop();
             }
             // Log.v(TAG, "<<< sendFrameData: 结束 (流/Socket 无效)");
         }
+        return false;
     }
 
 
+    // --- 带宽分配 ---
+
+    private int getStreamWeight(String cameraId) {
+        switch (getLensFacing(cameraId)) {
+            case CameraCharacteristics.LENS_FACING_BACK: return BACK_STREAM_WEIGHT;
+            case CameraCharacteristics.LENS_FACING_EXTERNAL: return EXTERNAL_STREAM_WEIGHT;
+            default: return FRONT_STREAM_WEIGHT;
+        }
+    }
+
+    /** 实时帧的 JPEG 质量：档位质量再由该流的带宽控制器下调 */
+    private int getLiveJpegQuality(String cameraId, LightProfileSelector.Profile profile) {
+        return bandwidthAllocator.getQuality(getStreamKey(cameraId), profile.jpegQuality);
+    }
+
+    /** 把一次发送计入带宽统计；每个统计窗口结束时打印指标并定期刷新通知栏 */
+    private void recordBandwidth(String cameraId, int bytes, long sendNanos, boolean isFrame) {
+        BandwidthAllocator<String> allocator = bandwidthAllocator;
+        long now = SystemClock.elapsedRealtime();
+        if (!allocator.onSent(getStreamKey(cameraId), bytes, sendNanos, now, isFrame)) return;
+        String metrics = allocator.describe();
+        Log.d(TAG, "带宽: " + metrics);
+        if (now - lastBandwidthNotifyTime >= BANDWIDTH_NOTIFY_INTERVAL_MS) {
+            lastBandwidthNotifyTime = now;
+            updateNotification("正在传输传感器画面 · " + metrics);
+        }
+    }
+
+    /** 软件灰度转换（夜间档位且相机不支持单色特效时使用） */
+    private static Bitmap toGrayscale(Bitmap source) {
+        Bitmap gray = Bitmap.createBitmap(source.getWidth(), source.getHeight(), Bitmap.Config.RGB_565);
+        ColorMatrix colorMatrix = new ColorMatrix();
+        colorMatrix.setSaturation(0f);
+        Paint paint = new Paint();
+        paint.setColorFilter(new ColorMatrixColorFilter(colorMatrix));
+        new Canvas(gray).drawBitmap(source, 0, 0, paint);
+        return gray;
+    }
+
+    // --- 光线传感器驱动的采集档位 ---
+
+    /**
+     * 在独立的 HandlerThread 上监听光线传感器，光照跨越滞回阈值并持续一段时间后切换采集档位。
+     */
+    private void startLightSensor() {
+        sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
+        Sensor lightSensor = sensorManager != null ? sensorManager.getDefaultSensor(Sensor.TYPE_LIGHT) : null;
+        if (lightSensor == null) {
+            Log.w(TAG, "startLightSensor: 没有光线传感器，固定使用白天档位");
+            return;
+        }
+        lightSensorThread = new HandlerThread("LightSensor", android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        lightSensorThread.start();
+        lightSensorListener = new SensorEventListener() {
+            @Override
+            public void onSensorChanged(SensorEvent event) {
+                if (event.sensor.getType() != Sensor.TYPE_LIGHT) return;
+                LightProfileSelector.Profile switched =
+                        lightProfileSelector.onLightLevel(event.values[0], SystemClock.elapsedRealtime());
+                if (switched != null) {
+                    onCaptureProfileChanged(switched);
+                }
+            }
+
+            @Override
+            public void onAccuracyChanged(Sensor sensor, int accuracy) {
+            }
+        };
+        sensorManager.registerListener(lightSensorListener, lightSensor, SensorManager.SENSOR_DELAY_NORMAL,
+                new Handler(lightSensorThread.getLooper()));
+        Log.i(TAG, "startLightSensor: 光线传感器监听已启动");
+    }
+
+    private void stopLightSensor() {
+        if (sensorManager != null && lightSensorListener != null) {
+            sensorManager.unregisterListener(lightSensorListener);
+        }
+        lightSensorListener = null;
+        if (lightSensorThread != null) {
+            lightSensorThread.quitSafely();
+            lightSensorThread = null;
+        }
+    }
+
+    /** 档位切换：限帧和画质立即生效，相机请求参数在后台线程上重新下发 */
+    private void onCaptureProfileChanged(LightProfileSelector.Profile profile) {
+        Log.i(TAG, String.format("onCaptureProfileChanged: 光照 %.1f lux，切换到 %s 档位 (最高 %d fps, 质量 %d, 灰度 %b)",
+                lightProfileSelector.getSmoothedLux(), profile, profile.maxFps, profile.jpegQuality, profile.grayscale));
+        captureProfile = profile;
+        Handler handler = backgroundHandler;
+        if (handler != null) {
+            handler.post(this::applyCaptureProfileToSessions);
+        }
+    }
+
+    /** 用当前档位重新设置所有活动会话的重复请求。应在 backgroundHandler 上运行。 */
+    private void applyCaptureProfileToSessions() {
+        for (Map.Entry<String, CaptureRequest.Builder> entry : captureRequestBuilders.entrySet()) {
+            String cameraId = entry.getKey();
+            CameraCaptureSession session = cameraCaptureSessions.get(cameraId);
+            CameraDevice device = cameraDevices.get(cameraId);
+            if (session == null || device == null) continue;
+            try {
+                CaptureRequest.Builder builder = entry.getValue();
+                configureCaptureProfile(builder, cameraId);
+                session.setRepeatingRequest(builder.build(), null, backgroundHandler);
+            } catch (CameraAccessException | IllegalStateException e) {
+                Log.e(TAG, "applyCaptureProfileToSessions: 更新请求失败 (" + getStreamLabel(cameraId) + "): " + e.getMessage());
+            }
+        }
+    }
+
+    /** 按当前档位设置帧率范围和单色特效 */
+    private void configureCaptureProfile(CaptureRequest.Builder builder, String cameraId) {
+        LightProfileSelector.Profile profile = captureProfile;
+        CameraCharacteristics characteristics;
+        try {
+            characteristics = cameraManager.getCameraCharacteristics(cameraId);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "configureCaptureProfile: 获取相机参数失败 (" + getStreamLabel(cameraId) + "): " + e.getMessage());
+            return;
+        }
+        Range<Integer> fpsRange = chooseFpsRange(characteristics, profile);
+        if (fpsRange != null) {
+            builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+        }
+        boolean hardwareMono = profile.grayscale && supportsEffect(characteristics, CaptureRequest.CONTROL_EFFECT_MODE_MONO);
+        builder.set(CaptureRequest.CONTROL_EFFECT_MODE,
+                hardwareMono ? CaptureRequest.CONTROL_EFFECT_MODE_MONO : CaptureRequest.CONTROL_EFFECT_MODE_OFF);
+        if (hardwareMono) {
+            hardwareMonoCameraIds.add(cameraId);
+        } else {
+            hardwareMonoCameraIds.remove(cameraId);
+        }
+        Log.d(TAG, "configureCaptureProfile: " + profile + " 帧率范围 " + fpsRange + ", 硬件单色 " + hardwareMono + " (" + getStreamLabel(cameraId) + ")");
+    }
+
+    /**
+     * 选择 AE 目标帧率范围。
+     * 白天：上限尽量达到档位帧率，下限越高越好（曝光短、帧率稳）；
+     * 夜间：下限越低越好（允许更长曝光），下限相同时上限越接近档位帧率越好。
+     */
+    @Nullable
+    private static Range<Integer> chooseFpsRange(CameraCharacteristics characteristics, LightProfileSelector.Profile profile) {
+        Range<Integer>[] ranges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        if (ranges == null || ranges.length == 0) return null;
+        Range<Integer> best = null;
+        for (Range<Integer> range : ranges) {
+            if (best == null) {
+                best = range;
+            } else if (profile == LightProfileSelector.Profile.NIGHT) {
+                int lowerDiff = range.getLower() - best.getLower();
+                if (lowerDiff < 0 || (lowerDiff == 0
+                        && Math.abs(range.getUpper() - profile.maxFps) < Math.abs(best.getUpper() - profile.maxFps))) {
+                    best = range;
+                }
+            } else {
+                int upper = Math.min(range.getUpper(), profile.maxFps);
+                int bestUpper = Math.min(best.getUpper(), profile.maxFps);
+                if (upper > bestUpper || (upper == bestUpper && range.getLower() > best.getLower())) {
+                    best = range;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static boolean supportsEffect(CameraCharacteristics characteristics, int effect) {
+        int[] effects = characteristics.get(CameraCharacteristics.CONTROL_AVAILABLE_EFFECTS);
+        if (effects == null) return false;
+        for (int available : effects) {
+            if (available == effect) return true;
+        }
+        return false;
+    }
+
+    // --- 断线存储转发 ---
+
+    /**
+     * 连接断开时调用：只关闭 Socket，相机继续以低帧率采集写入本地缓冲，并安排重连。
+     */
+    private void handleStreamDisconnect(String cameraId) {
+        String streamLabel = getStreamLabel(cameraId);
+        if (getFrameBuffer(cameraId) == null) {
+            Log.w(TAG, "handleStreamDisconnect: 本地缓冲不可用，按原逻辑关闭流 (" + streamLabel + ")");
+            closeCameraStream(cameraId);
+            decrementActiveStreamCountAndCheckStop();
+            return;
+        }
+        if (disconnectedSince.putIfAbsent(cameraId, SystemClock.elapsedRealtime()) != null) {
+            return; // 已在断线状态
+        }
+        Log.w(TAG, "handleStreamDisconnect: " + streamLabel + " 连接断开，转入本地缓冲 (每 " + BUFFER_FRAME_INTERVAL_MS + "ms 一帧) 并等待重连");
+        bandwidthAllocator.setActive(getStreamKey(cameraId), false); // 让出带宽份额，重连后的首帧重新注册
+        closeSocket(cameraId);
+        clearTileState(cameraId);
+        showToast(streamLabel + " 连接断开，正在本地缓冲并重连...");
+        scheduleReconnect(cameraId, 0);
+    }
+
+    /** 按指数退避安排一次重连 */
+    private void scheduleReconnect(String cameraId, int attempt) {
+        if (mainHandler == null) return;
+        long delay = Math.min(RECONNECT_MAX_DELAY_MS, RECONNECT_BASE_DELAY_MS << Math.min(attempt, 4));
+        Log.d(TAG, "scheduleReconnect: " + delay + "ms 后第 " + (attempt + 1) + " 次重连 (" + getStreamLabel(cameraId) + ")");
+        mainHandler.postDelayed(() -> {
+            if (!disconnectedSince.containsKey(cameraId)) return;
+            ExecutorService executor = connectionExecutor;
+            if (executor == null || executor.isShutdown()) return;
+            executor.submit(() -> reconnectStream(cameraId, attempt));
+        }, delay);
+    }
+
+    /** 在连接线程池中重连断线的流，成功后恢复实时发送并开始回传缓冲帧 */
+    private void reconnectStream(String cameraId, int attempt) {
+        String streamLabel = getStreamLabel(cameraId);
+        String currentIp = this.ipAddress;
+        if (TextUtils.isEmpty(currentIp) || !disconnectedSince.containsKey(cameraId)) return;
+        try {
+            Socket socket = openStreamSocket(currentIp, getPortForStream(cameraId));
+            try {
+                writeHandshake(socket.getOutputStream(), cameraId);
+            } catch (IOException e) {
+                try { socket.close(); } catch (IOException ioException) { /* ignore */ }
+                throw e;
+            }
+            if (!disconnectedSince.containsKey(cameraId)) {
+                // 重连期间流已被关闭
+                try { socket.close(); } catch (IOException ioException) { /* ignore */ }
+                return;
+            }
+            outputStreams.put(cameraId, socket.getOutputStream());
+            sockets.put(cameraId, socket);
+            Long since = disconnectedSince.remove(cameraId);
+            lastBufferedFrameTimes.remove(cameraId);
+            FrameRingBuffer ring = frameBuffers.get(cameraId);
+            long pendingKb = ring != null ? ring.getPendingBytes() / 1024 : 0;
+            Log.i(TAG, "reconnectStream: " + streamLabel + " 重连成功，断线 "
+                    + (since != null ? (SystemClock.elapsedRealtime() - since) / 1000 : 0) + " 秒，待回传 " + pendingKb + " KB");
+            showToast(streamLabel + " 已重新连接");
+        } catch (IOException e) {
+            Log.w(TAG, "reconnectStream: " + streamLabel + " 重连失败: " + e.getMessage());
+            scheduleReconnect(cameraId, attempt + 1);
+        }
+    }
+
+    /** 懒加载指定流的磁盘环形缓冲，打开时会恢复上次（包括崩溃前）遗留的数据 */
+    @Nullable
+    private FrameRingBuffer getFrameBuffer(String cameraId) {
+        FrameRingBuffer ring = frameBuffers.get(cameraId);
+        if (ring != null) return ring;
+        synchronized (frameBuffers) {
+            ring = frameBuffers.get(cameraId);
+            if (ring != null) return ring;
+            long capacity = bufferCapacityBytes / bufferStreamCount; // 本次启动的各路流平分，合计不超过配置的容量
+            int segmentBytes = (int) Math.max(BUFFER_MIN_SEGMENT_BYTES, Math.min(BUFFER_MAX_SEGMENT_BYTES, capacity / 8));
+            File dir = new File(new File(getFilesDir(), FRAME_BUFFER_DIR), getStreamKey(cameraId));
+            try {
+                ring = new FrameRingBuffer(dir, capacity, bufferMaxAgeMs, segmentBytes);
+                frameBuffers.put(cameraId, ring);
+                Log.i(TAG, "getFrameBuffer: 打开本地缓冲 " + dir + "，遗留待回传 " + ring.getPendingBytes() / 1024 + " KB");
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "getFrameBuffer: 打开本地缓冲失败 (" + getStreamLabel(cameraId) + "): " + e.getMessage());
+                return null;
+            }
+            return ring;
+        }
+    }
+
+    /** 把断线期间的一帧写入本地缓冲，保留原始采集时间 */
+    private void bufferFrame(byte[] jpegBytes, String cameraId, long captureTimeMs) {
+        FrameRingBuffer ring = getFrameBuffer(cameraId);
+        if (ring == null) return;
+        try {
+            if (!ring.append(captureTimeMs, jpegBytes, 0, jpegBytes.length)) {
+                Log.w(TAG, "bufferFrame: 帧过大，无法缓冲 (" + jpegBytes.length + " 字节)");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "bufferFrame: 写入本地缓冲失败 (" + getStreamLabel(cameraId) + "): " + e.getMessage());
+        }
+    }
+
+    /** 回传一帧缓冲的历史帧（带原始时间戳），发送成功才从缓冲中移除 */
+    private void sendBackfillFrame(String cameraId) {
+        if (!sockets.containsKey(cameraId)) return;
+        FrameRingBuffer ring = getFrameBuffer(cameraId);
+        if (ring == null || ring.isEmpty()) return;
+        try {
+            FrameRingBuffer.Record record = ring.peek();
+            if (record == null) return;
+            byte[] packet = FrameProtocol.encodeBackfill(record.timestampMs, record.data);
+            if (sendFrameData(packet, cameraId)) {
+                ring.advance();
+                if (ring.isEmpty()) {
+                    Log.i(TAG, "sendBackfillFrame: " + getStreamLabel(cameraId) + " 缓冲帧已全部回传");
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "sendBackfillFrame: 读取本地缓冲失败 (" + getStreamLabel(cameraId) + "): " + e.getMessage());
+        }
+    }
+
+    /** 关闭所有本地缓冲（数据保留在磁盘上，下次启动继续回传） */
+    private void closeFrameBuffers() {
+        synchronized (frameBuffers) {
+            for (FrameRingBuffer ring : frameBuffers.values()) {
+                try { ring.close(); } catch (Exception e) { Log.e(TAG, "closeFrameBuffers: 关闭缓冲出错", e); }
+            }
+            frameBuffers.clear();
+        }
+    }
+
+    /** 流是否仍在运行（已连接或处于断线缓冲状态） */
+    private boolean isStreamActive(String cameraId) {
+        return sockets.containsKey(cameraId) || disconnectedSince.containsKey(cameraId);
+    }
+
     // --- Helper and Cleanup Methods ---
 
     /**
@@ -897,58 +1589,73 @@ public class CameraStreamService extends Service {
     /**
      * 关闭指定朝向的传感器流相关的所有资源。
      */
-    private void closeCameraStream(int cameraFacing) {
-        String facingStr = getFacingString(cameraFacing);
-        Log.w(TAG, ">>> closeCameraStream (" + facingStr + ") 开始关闭资源..."); // Use warning level for closing events
-        closeSession(cameraFacing);
-        closeCameraDevice(cameraFacing);
-        closeReader(cameraFacing);
-        closeSocket(cameraFacing);
-        previewSizes.remove(cameraFacing);
-        Log.w(TAG, "<<< closeCameraStream (" + facingStr + ") 资源关闭完成。");
+    private void closeCameraStream(String cameraId) {
+        String streamLabel = getStreamLabel(cameraId);
+        Log.w(TAG, ">>> closeCameraStream (" + streamLabel + ") 开始关闭资源..."); // Use warning level for closing events
+        closeSession(cameraId);
+        closeCameraDevice(cameraId);
+        closeReader(cameraId);
+        closeSocket(cameraId);
+        previewSizes.remove(cameraId);
+        clearTileState(cameraId);
+        disconnectedSince.remove(cameraId);
+        lastBufferedFrameTimes.remove(cameraId);
+        bandwidthAllocator.unregister(getStreamKey(cameraId));
+        Log.w(TAG, "<<< closeCameraStream (" + streamLabel + ") 资源关闭完成。");
+    }
+
+    /** 清理指定朝向的分块增量状态，重连后从关键帧重新开始 */
+    private void clearTileState(String cameraId) {
+        tileDiffs.remove(cameraId);
+        tilePixelBuffers.remove(cameraId);
+        lastKeyframeTimes.remove(cameraId);
+        tileStats.remove(cameraId);
     }
 
     /** 关闭指定朝向的预览会话 */
-    private void closeSession(int cameraFacing) {
-        CameraCaptureSession session = cameraCaptureSessions.remove(cameraFacing);
+    private void closeSession(String cameraId) {
+        captureRequestBuilders.remove(cameraId);
+        lastLiveFrameTimes.remove(cameraId);
+        hardwareMonoCameraIds.remove(cameraId);
+        CameraCaptureSession session = cameraCaptureSessions.remove(cameraId);
         if (session != null) {
-            Log.d(TAG, "closeSession: Closing session (" + getFacingString(cameraFacing) + ")");
-            try { session.close(); } catch (Exception e) { Log.e(TAG, "closeSession: Error closing session ("+getFacingString(cameraFacing)+")", e); }
+            Log.d(TAG, "closeSession: Closing session (" + getStreamLabel(cameraId) + ")");
+            try { session.close(); } catch (Exception e) { Log.e(TAG, "closeSession: Error closing session ("+getStreamLabel(cameraId)+")", e); }
         }
     }
 
     /** 关闭指定朝向的传感器设备 */
-    private void closeCameraDevice(int cameraFacing) {
-        CameraDevice device = cameraDevices.remove(cameraFacing);
+    private void closeCameraDevice(String cameraId) {
+        CameraDevice device = cameraDevices.remove(cameraId);
         if (device != null) {
-            Log.d(TAG, "closeCameraDevice: Closing device (" + getFacingString(cameraFacing) + ", ID: " + device.getId() + ")");
-            try { device.close(); } catch (Exception e) { Log.e(TAG, "closeCameraDevice: Error closing device ("+getFacingString(cameraFacing)+")", e); }
+            Log.d(TAG, "closeCameraDevice: Closing device (" + getStreamLabel(cameraId) + ", ID: " + device.getId() + ")");
+            try { device.close(); } catch (Exception e) { Log.e(TAG, "closeCameraDevice: Error closing device ("+getStreamLabel(cameraId)+")", e); }
         }
     }
 
 
     /** 关闭指定朝向的 ImageReader */
-    private void closeReader(int cameraFacing) {
-        ImageReader reader = imageReaders.remove(cameraFacing);
+    private void closeReader(String cameraId) {
+        ImageReader reader = imageReaders.remove(cameraId);
         if (reader != null) {
-            Log.d(TAG, "closeReader: Closing reader (" + getFacingString(cameraFacing) + ")");
-            try { reader.close(); } catch (Exception e) { Log.e(TAG, "closeReader: Error closing reader ("+getFacingString(cameraFacing)+")", e); }
+            Log.d(TAG, "closeReader: Closing reader (" + getStreamLabel(cameraId) + ")");
+            try { reader.close(); } catch (Exception e) { Log.e(TAG, "closeReader: Error closing reader ("+getStreamLabel(cameraId)+")", e); }
         }
     }
 
     /** 关闭指定朝向的 Socket 和输出流 */
-    private void closeSocket(int cameraFacing) {
-        String facingStr = getFacingString(cameraFacing);
-        OutputStream os = outputStreams.remove(cameraFacing);
+    private void closeSocket(String cameraId) {
+        String streamLabel = getStreamLabel(cameraId);
+        OutputStream os = outputStreams.remove(cameraId);
         if (os != null) {
-            Log.d(TAG, "closeSocket: Closing output stream (" + facingStr + ")");
+            Log.d(TAG, "closeSocket: Closing output stream (" + streamLabel + ")");
             try { os.close(); } catch (IOException e) { /* ignore */ }
         }
-        Socket socket = sockets.remove(cameraFacing);
+        Socket socket = sockets.remove(cameraId);
         if (socket != null) {
-            Log.d(TAG, "closeSocket: Closing socket (" + facingStr + ", Remote: " + (socket.isClosed() ? "closed" : socket.getRemoteSocketAddress()) + ")");
+            Log.d(TAG, "closeSocket: Closing socket (" + streamLabel + ", Remote: " + (socket.isClosed() ? "closed" : socket.getRemoteSocketAddress()) + ")");
             if (!socket.isClosed()) {
-                try { socket.close(); } catch (IOException e) { Log.e(TAG, "closeSocket: Error closing socket ("+facingStr+")", e); }
+                try { socket.close(); } catch (IOException e) { Log.e(TAG, "closeSocket: Error closing socket ("+streamLabel+")", e); }
             }
         }
     }
@@ -957,19 +1664,28 @@ public class CameraStreamService extends Service {
     private void stopAllCameraStreams() {
         Log.i(TAG, ">>> stopAllCameraStreams: 开始停止所有流...");
         // Iterate over a copy of keys or use ConcurrentHashMap's safe iterator
-        Object[] keys = sockets.keySet().toArray(); // Simple way to get a snapshot
-        for (Object key : keys) {
-            if (key instanceof Integer) {
-                closeCameraStream((Integer) key);
-            }
+        // 断线缓冲中的流没有 Socket，但相机仍在运行，也要一并关闭
+        Set<String> keys = new HashSet<>(sockets.keySet());
+        keys.addAll(disconnectedSince.keySet());
+        for (String key : keys) {
+            closeCameraStream(key);
         }
         // Ensure maps are cleared
         cameraCaptureSessions.clear();
+        captureRequestBuilders.clear();
+        lastLiveFrameTimes.clear();
+        hardwareMonoCameraIds.clear();
         cameraDevices.clear();
         imageReaders.clear();
         outputStreams.clear();
         sockets.clear();
         previewSizes.clear();
+        tileDiffs.clear();
+        tilePixelBuffers.clear();
+        lastKeyframeTimes.clear();
+        tileStats.clear();
+        disconnectedSince.clear();
+        lastBufferedFrameTimes.clear();
         Log.i(TAG, "<<< stopAllCameraStreams: 所有流停止完成。");
     }
 
@@ -1020,6 +1736,10 @@ public class CameraStreamService extends Service {
             stopAllCameraStreams();
         }
 
+        // 2.5 关闭本地缓冲（未回传的数据留在磁盘上），停止光线传感器监听
+        closeFrameBuffers();
+        stopLightSensor();
+
         // 3. 停止后台线程
         Log.d(TAG,"shutdownAndCleanup: 停止后台线程...");
         stopBackgroundThread();
@@ -1101,9 +1821,38 @@ public class CameraStreamService extends Service {
         }
     }
 
-    // 获取传感器朝向的字符串表示
-    private String getFacingString(int cameraFacing) {
-        return (cameraFacing == CameraCharacteristics.LENS_FACING_BACK) ? "后置" : "前置";
+    // 获取流的稳定标识（用于目录名、带宽统计等）
+    private String getStreamKey(String cameraId) {
+        return "camera-" + cameraId;
+    }
+
+    // 获取流的字符串表示：朝向 + Camera ID
+    private String getStreamLabel(String cameraId) {
+        String facing;
+        switch (getLensFacing(cameraId)) {
+            case CameraCharacteristics.LENS_FACING_BACK: facing = "后置"; break;
+            case CameraCharacteristics.LENS_FACING_FRONT: facing = "前置"; break;
+            case CameraCharacteristics.LENS_FACING_EXTERNAL: facing = "外接"; break;
+            default: facing = "未知";
+        }
+        return facing + "#" + cameraId;
+    }
+
+    /** 查询摄像头朝向，结果缓存；查询失败时返回 -1 */
+    private int getLensFacing(String cameraId) {
+        Integer cached = lensFacings.get(cameraId);
+        if (cached != null) return cached;
+        int facing = -1;
+        if (cameraManager != null) {
+            try {
+                Integer value = cameraManager.getCameraCharacteristics(cameraId).get(CameraCharacteristics.LENS_FACING);
+                if (value != null) facing = value;
+            } catch (CameraAccessException | IllegalArgumentException e) {
+                Log.e(TAG, "getLensFacing: 查询失败 (ID: " + cameraId + "): " + e.getMessage());
+            }
+        }
+        lensFacings.put(cameraId, facing);
+        return facing;
     }
 
     // 将 CameraDevice.StateCallback 的错误代码转换为字符串
@@ -1122,14 +1871,7 @@ public class CameraStreamService extends Service {
     private void startForegroundServiceNotification() {
         // ... (代码保持不变) ...
         createNotificationChannel();
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
-                .setSmallIcon(R.drawable.ic_launcher_foreground)
-                .setContentTitle("传感器流服务")
-                .setContentText("正在传输传感器画面...")
-                .setPriority(NotificationCompat.PRIORITY_LOW)
-                .setOngoing(true);
-
-        Notification notification = builder.build();
+        Notification notification = buildNotification("正在传输传感器画面...");
         try {
             startForeground(NOTIFICATION_ID, notification);
             Log.d(TAG, "前台服务通知已启动。");
@@ -1146,6 +1888,24 @@ public class CameraStreamService extends Service {
         }
     }
 
+    private Notification buildNotification(String text) {
+        return new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_launcher_foreground)
+                .setContentTitle("传感器流服务")
+                .setContentText(text)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setOnlyAlertOnce(true)
+                .setOngoing(true)
+                .build();
+    }
+
+    /** 更新前台通知的文字（例如带宽指标） */
+    private void updateNotification(String text) {
+        NotificationManager manager = getSystemService(NotificationManager.class);
+        if (manager == null) return;
+        try { manager.notify(NOTIFICATION_ID, buildNotification(text)); } catch (Exception e) { Log.w(TAG, "更新通知失败: " + e.getMessage()); }
+    }
+
     private void createNotificationChannel() {
         CharSequence name = "传感器流服务通道";
         String description = "用于传感器流服务的后台运行通知";
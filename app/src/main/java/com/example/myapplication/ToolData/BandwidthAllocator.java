@@ -0,0 +1,265 @@
+package com.example.myapplication.ToolData;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 多路相机流共享上行带宽的分配器。
+ * <p>
+ * 设备总预算可以直接配置，也可以由实际发送测得：按墙钟时间统计每个窗口实际发出去的字节数。
+ * socket 写入只有在发送缓冲满时才会阻塞，所以一个窗口里阻塞在写入上的时间占了一大半时，
+ * 说明发送端一直积压着数据，这个窗口的速率就是链路排空的速率，估计值向它靠拢；
+ * 没有积压的窗口受限于发送端自己（帧率、预算），速率只是下限，只能把估计值往上抬。
+ * 不用 “字节数 / 阻塞时间”：缓冲没满时写入只是一次内存复制，那样算出来的是内存带宽。
+ * 预算按权重分给活跃的流，每路流再由自己的控制器换算成帧间隔和 JPEG 质量。
+ * 流暂停（断线缓冲）或关闭后在下一个统计窗口重新分配。
+ * <p>
+ * 纯 Java 实现，方便本地测试；所有方法线程安全。
+ *
+ * @param <K> 流的标识
+ */
+public class BandwidthAllocator<K> {
+
+    /** 统计窗口长度 */
+    public static final long WINDOW_MS = 1000;
+    /** 控制器允许的最低帧率，低于它就先降质量 */
+    public static final int MIN_FPS = 5;
+    /** 控制器能降到的最低 JPEG 质量 */
+    public static final int MIN_QUALITY = 30;
+    private static final int QUALITY_STEP_DOWN = 10;
+    private static final int QUALITY_STEP_UP = 5;
+    /** 测量模式下预算的初始值和下限 (字节/秒) */
+    private static final long MEASURE_INITIAL_BYTES_PER_SEC = 1024 * 1024;
+    private static final long MEASURE_FLOOR_BYTES_PER_SEC = 64 * 1024;
+    /** 测量模式下预算比估计值多留的探测余量，让预算有机会向上增长 */
+    private static final double PROBE_HEADROOM = 1.25;
+    /** 阻塞在写入上的时间至少占窗口的这个比例，才认为发送端处于积压状态 */
+    private static final double BACKLOGGED_SEND_FRACTION = 0.5;
+    private static final double ESTIMATE_SMOOTHING = 0.3;
+    private static final double FRAME_SIZE_SMOOTHING = 0.2;
+
+    /** 单路流的状态和控制器 */
+    private static final class Stream {
+        final int weight;
+        boolean active = true;
+        long windowBytes;
+        long windowSendNanos;
+        double avgFrameBytes;
+        int qualityPenalty;
+        int lastMaxFps;
+        int lastMaxQuality;
+        long shareBytesPerSec;
+        long sentBytesPerSec;
+
+        Stream(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private final Map<K, Stream> streams = new LinkedHashMap<>();
+    private final long configuredBudgetBytesPerSec;
+    /** 测量模式下的链路速率估计；还没有积压的窗口时从初始预算倒推 */
+    private double estimatedCapacityBytesPerSec = MEASURE_INITIAL_BYTES_PER_SEC / PROBE_HEADROOM;
+    private boolean capacityMeasured;
+    private long budgetBytesPerSec;
+    private long aggregateBytesPerSec;
+    private long windowStartMs = -1;
+
+    /**
+     * @param configuredBudgetBytesPerSec 设备总预算 (字节/秒)，0 或负数表示根据实际发送测量
+     */
+    public BandwidthAllocator(long configuredBudgetBytesPerSec) {
+        this.configuredBudgetBytesPerSec = Math.max(0, configuredBudgetBytesPerSec);
+        this.budgetBytesPerSec = isMeasured() ? MEASURE_INITIAL_BYTES_PER_SEC : this.configuredBudgetBytesPerSec;
+    }
+
+    public boolean isMeasured() {
+        return configuredBudgetBytesPerSec == 0;
+    }
+
+    /** 注册一路流；已注册时只把它重新标记为活跃 */
+    public synchronized void register(K key, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("权重必须为正数: " + weight);
+        }
+        Stream stream = streams.get(key);
+        if (stream == null) {
+            streams.put(key, new Stream(weight));
+            rebalance();
+        } else if (!stream.active) {
+            stream.active = true;
+            rebalance();
+        }
+    }
+
+    /** 流暂停（例如断线期间只写本地缓冲）时让出份额，恢复后重新参与分配 */
+    public synchronized void setActive(K key, boolean active) {
+        Stream stream = streams.get(key);
+        if (stream != null && stream.active != active) {
+            stream.active = active;
+            rebalance();
+        }
+    }
+
+    /** 流关闭后移除，份额分给其余的流 */
+    public synchronized void unregister(K key) {
+        if (streams.remove(key) != null) {
+            rebalance();
+        }
+    }
+
+    /**
+     * 记录一次成功发送。
+     *
+     * @param bytes     发送的字节数（含长度前缀）
+     * @param sendNanos 阻塞在写入和 flush 上的时间，只用来判断发送端是否积压
+     * @param nowMs     单调时钟毫秒
+     * @param isFrame   是否是一帧实时画面（回传的历史帧只计入带宽，不计入帧大小）
+     * @return 本次调用是否结束了一个统计窗口（调用方可据此刷新指标）
+     */
+    public synchronized boolean onSent(K key, int bytes, long sendNanos, long nowMs, boolean isFrame) {
+        Stream stream = streams.get(key);
+        if (stream == null) return false;
+        stream.windowBytes += bytes;
+        stream.windowSendNanos += Math.max(0, sendNanos);
+        if (isFrame) {
+            stream.avgFrameBytes = stream.avgFrameBytes == 0
+                    ? bytes
+                    : stream.avgFrameBytes + FRAME_SIZE_SMOOTHING * (bytes - stream.avgFrameBytes);
+        }
+        if (windowStartMs < 0) {
+            windowStartMs = nowMs;
+            return false;
+        }
+        long elapsed = nowMs - windowStartMs;
+        if (elapsed < WINDOW_MS) return false;
+        closeWindow(elapsed);
+        windowStartMs = nowMs;
+        return true;
+    }
+
+    /** 该流当前分到的带宽 (字节/秒)，未注册或暂停时为 0 */
+    public synchronized long getShare(K key) {
+        Stream stream = streams.get(key);
+        return stream == null || !stream.active ? 0 : stream.shareBytesPerSec;
+    }
+
+    /**
+     * 控制器给出的最小帧间隔：按份额和平均帧大小换算出的帧率，不超过 maxFps。
+     */
+    public synchronized long getMinFrameIntervalMs(K key, int maxFps) {
+        long fpsInterval = 1000L / Math.max(1, maxFps);
+        Stream stream = streams.get(key);
+        if (stream == null) return fpsInterval;
+        stream.lastMaxFps = maxFps;
+        if (!stream.active || stream.shareBytesPerSec <= 0 || stream.avgFrameBytes <= 0) return fpsInterval;
+        long budgetInterval = (long) (1000.0 * stream.avgFrameBytes / stream.shareBytesPerSec);
+        // 质量已降到底时才允许低于 MIN_FPS，否则由降质量来腾出带宽
+        long maxInterval = isQualityFloorReached(stream) ? Long.MAX_VALUE : 1000L / MIN_FPS;
+        return Math.max(fpsInterval, Math.min(budgetInterval, maxInterval));
+    }
+
+    /** 控制器给出的 JPEG 质量：不超过档位质量，也不低于 {@link #MIN_QUALITY} */
+    public synchronized int getQuality(K key, int maxQuality) {
+        Stream stream = streams.get(key);
+        if (stream == null) return maxQuality;
+        stream.lastMaxQuality = maxQuality;
+        return Math.min(maxQuality, Math.max(MIN_QUALITY, maxQuality - stream.qualityPenalty));
+    }
+
+    public synchronized long getBudgetBytesPerSec() {
+        return budgetBytesPerSec;
+    }
+
+    public synchronized long getAggregateBytesPerSec() {
+        return aggregateBytesPerSec;
+    }
+
+    /** 该流上一个窗口实际发送的速率 (字节/秒) */
+    public synchronized long getSentBytesPerSec(K key) {
+        Stream stream = streams.get(key);
+        return stream == null ? 0 : stream.sentBytesPerSec;
+    }
+
+    /** 一行指标摘要，用于日志和通知 */
+    public synchronized String describe() {
+        StringBuilder sb = new StringBuilder(String.format(Locale.US, "总计 %d/%d KB/s%s",
+                aggregateBytesPerSec / 1024, budgetBytesPerSec / 1024, isMeasured() ? " (测量)" : ""));
+        for (Map.Entry<K, Stream> entry : streams.entrySet()) {
+            Stream stream = entry.getValue();
+            sb.append(String.format(Locale.US, ", %s %d/%d KB/s",
+                    entry.getKey(), stream.sentBytesPerSec / 1024, stream.active ? stream.shareBytesPerSec / 1024 : 0));
+            if (!stream.active) {
+                sb.append(" 暂停");
+            }
+        }
+        return sb.toString();
+    }
+
+    private void closeWindow(long elapsedMs) {
+        long totalBytes = 0;
+        long totalSendNanos = 0;
+        for (Stream stream : streams.values()) {
+            stream.sentBytesPerSec = stream.windowBytes * 1000 / elapsedMs;
+            totalBytes += stream.windowBytes;
+            totalSendNanos += stream.windowSendNanos;
+        }
+        aggregateBytesPerSec = totalBytes * 1000 / elapsedMs;
+
+        if (isMeasured() && totalBytes > 0) {
+            // 多路同时阻塞时阻塞时间会重复计入，只会让积压判断偏宽松；速率本身按墙钟时间算
+            double sample = (double) aggregateBytesPerSec;
+            boolean backlogged = totalSendNanos >= elapsedMs * 1_000_000L * BACKLOGGED_SEND_FRACTION;
+            if (backlogged) {
+                estimatedCapacityBytesPerSec = capacityMeasured
+                        ? estimatedCapacityBytesPerSec + ESTIMATE_SMOOTHING * (sample - estimatedCapacityBytesPerSec)
+                        : sample;
+                capacityMeasured = true;
+            } else if (sample > estimatedCapacityBytesPerSec) {
+                // 没有积压却发得比估计值还多：链路至少有这么快，探测余量让预算继续往上试
+                estimatedCapacityBytesPerSec = sample;
+            }
+            budgetBytesPerSec = Math.max(MEASURE_FLOOR_BYTES_PER_SEC, (long) (estimatedCapacityBytesPerSec * PROBE_HEADROOM));
+        }
+        rebalance();
+
+        for (Stream stream : streams.values()) {
+            if (stream.active) {
+                adjustQuality(stream);
+            }
+            stream.windowBytes = 0;
+            stream.windowSendNanos = 0;
+        }
+    }
+
+    /** 份额不够 MIN_FPS 时降质量；余量充足时逐步恢复 */
+    private void adjustQuality(Stream stream) {
+        if (stream.avgFrameBytes <= 0 || stream.shareBytesPerSec <= 0) return;
+        double affordableFps = stream.shareBytesPerSec / stream.avgFrameBytes;
+        int targetFps = stream.lastMaxFps > 0 ? stream.lastMaxFps : MIN_FPS;
+        if (affordableFps < MIN_FPS) {
+            if (!isQualityFloorReached(stream)) {
+                stream.qualityPenalty += QUALITY_STEP_DOWN;
+            }
+        } else if (affordableFps > targetFps * 1.5 && stream.qualityPenalty > 0) {
+            stream.qualityPenalty = Math.max(0, stream.qualityPenalty - QUALITY_STEP_UP);
+        }
+    }
+
+    private static boolean isQualityFloorReached(Stream stream) {
+        return stream.lastMaxQuality > 0 && stream.lastMaxQuality - stream.qualityPenalty <= MIN_QUALITY;
+    }
+
+    private void rebalance() {
+        int totalWeight = 0;
+        for (Stream stream : streams.values()) {
+            if (stream.active) totalWeight += stream.weight;
+        }
+        for (Stream stream : streams.values()) {
+            stream.shareBytesPerSec = stream.active && totalWeight > 0
+                    ? budgetBytesPerSec * stream.weight / totalWeight
+                    : 0;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.myapplication.ToolData;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 手机与接收端之间的帧协议常量和打包工具。
+ * <p>
+ * 每个数据包都以 4 字节大端长度作为前缀，负载的第一个字节决定类型：
+ * <ul>
+ *     <li>0xFF (JPEG SOI 0xFFD8 的首字节)：完整 JPEG 帧，同时也是关键帧</li>
+ *     <li>{@link #PACKET_TILE_DELTA}：分块增量帧，只包含变化的块</li>
+ *     <li>{@link #PACKET_BACKFILL}：断线期间缓冲、重连后回传的历史帧，带原始采集时间</li>
+ *     <li>{@link #PACKET_HANDSHAKE}：连接建立后的第一个包，说明这条连接对应哪个摄像头及其能力</li>
+ * </ul>
+ * 接收端可以向手机写入单字节 {@link #REQUEST_KEYFRAME} 请求立即发送关键帧。
+ */
+public final class FrameProtocol {
+
+    /** 分块增量帧类型 'T' */
+    public static final byte PACKET_TILE_DELTA = 'T';
+    /** 分块增量帧格式版本 */
+    public static final byte TILE_DELTA_VERSION = 1;
+    /** 回传帧类型 'B' */
+    public static final byte PACKET_BACKFILL = 'B';
+    /** 回传帧格式版本 */
+    public static final byte BACKFILL_VERSION = 1;
+    /** 握手包类型 'H' */
+    public static final byte PACKET_HANDSHAKE = 'H';
+    /** 握手包格式版本 */
+    public static final byte HANDSHAKE_VERSION = 1;
+
+    /** 能力位：支持分块增量帧（当前连接已开启） */
+    public static final int CAP_TILE_DELTA = 1;
+    /** 能力位：断线期间本地缓冲，重连后回传 */
+    public static final int CAP_BACKFILL = 1 << 1;
+    /** 能力位：相机支持硬件单色特效 */
+    public static final int CAP_HARDWARE_MONO = 1 << 2;
+    /** 能力位：逻辑多摄（由多个物理镜头组成） */
+    public static final int CAP_LOGICAL_MULTI_CAMERA = 1 << 3;
+    /** 能力位：属于设备报告的并发摄像头组合 */
+    public static final int CAP_CONCURRENT = 1 << 4;
+
+    /** 接收端 -> 手机：请求关键帧 */
+    public static final int REQUEST_KEYFRAME = 'K';
+
+    private FrameProtocol() {
+    }
+
+    /**
+     * 打包分块增量帧：
+     * <pre>
+     * 'T' | 版本(1) | 帧宽(2) | 帧高(2) | 列数(1) | 行数(1) | 块数量(2)
+     *     | { 列(1) | 行(1) | JPEG 长度(4) | JPEG 数据 } * 块数量
+     * </pre>
+     * 块的像素位置由 {@link TileDiff#tileOrigin(int, int, int)} 根据列/行还原。
+     *
+     * @param tileIndices 变化块的下标 (row * cols + col)
+     * @param tileJpegs   与 tileIndices 一一对应的块 JPEG 数据
+     * @param tileCount   有效块数量
+     */
+    public static byte[] encodeTileDelta(int frameWidth, int frameHeight, int cols, int rows,
+                                         int[] tileIndices, byte[][] tileJpegs, int tileCount) throws IOException {
+        int size = 10;
+        for (int i = 0; i < tileCount; i++) {
+            size += 6 + tileJpegs[i].length;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(size);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(PACKET_TILE_DELTA);
+        out.writeByte(TILE_DELTA_VERSION);
+        out.writeShort(frameWidth);
+        out.writeShort(frameHeight);
+        out.writeByte(cols);
+        out.writeByte(rows);
+        out.writeShort(tileCount);
+        for (int i = 0; i < tileCount; i++) {
+            int index = tileIndices[i];
+            out.writeByte(index % cols);
+            out.writeByte(index / cols);
+            out.writeInt(tileJpegs[i].length);
+            out.write(tileJpegs[i]);
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    /**
+     * 打包握手包：
+     * <pre>
+     * 'H' | 版本(1) | Camera ID (writeUTF) | 朝向(1) | 传感器方向(2) | 宽(2) | 高(2)
+     *     | 最高帧率(1) | 焦距 x100 (2) | 能力位(4)
+     * </pre>
+     * 朝向取 CameraCharacteristics.LENS_FACING 的值（0 前置、1 后置、2 外接）。
+     */
+    public static byte[] encodeHandshake(String cameraId, int lensFacing, int sensorOrientation,
+                                         int width, int height, int maxFps, float focalLengthMm,
+                                         int capabilities) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(32 + cameraId.length());
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(PACKET_HANDSHAKE);
+        out.writeByte(HANDSHAKE_VERSION);
+        out.writeUTF(cameraId);
+        out.writeByte(lensFacing);
+        out.writeShort(sensorOrientation);
+        out.writeShort(width);
+        out.writeShort(height);
+        out.writeByte(maxFps);
+        out.writeShort(Math.round(focalLengthMm * 100));
+        out.writeInt(capabilities);
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    /**
+     * 打包回传帧：
+     * <pre>
+     * 'B' | 版本(1) | 采集时间 epoch 毫秒(8) | JPEG 数据
+     * </pre>
+     */
+    public static byte[] encodeBackfill(long captureTimeMs, byte[] jpeg) {
+        ByteBuffer packet = ByteBuffer.allocate(10 + jpeg.length).order(ByteOrder.BIG_ENDIAN);
+        packet.put(PACKET_BACKFILL);
+        packet.put(BACKFILL_VERSION);
+        packet.putLong(captureTimeMs);
+        packet.put(jpeg);
+        return packet.array();
+    }
+}
@@ -0,0 +1,414 @@
+package com.example.myapplication.ToolData;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * 有界磁盘环形缓冲（存储转发）：实时帧发不出去时先落盘，之后按原始时间戳补发。
+ * 不只是接收端断线，链路长时间拥塞、写入出错时也会转入缓冲；打开时还会恢复上次运行（包括崩溃）遗留的帧。
+ * 缓冲本身不关心帧为什么进来，只负责有界保存和按顺序读出。
+ * <p>
+ * 数据写入目录下按序号命名的分段文件 {@code seg-序号.dat}，每个分段固定大小并以内存映射方式写入；
+ * 旁边的 {@code index.dat} 同样是内存映射的小索引，记录读写位置和每个已封存分段的有效长度与时间范围。
+ * 分段写满时 force() 后封存，所以进程崩溃最多丢失当前分段尚未落盘的尾部；
+ * 重新打开时会扫描当前分段，按记录头和 CRC 找回有效前缀。
+ * <p>
+ * 容量按字节（分段数）和时长两种方式限制，超出时从最旧的分段开始丢弃。
+ * 纯 Java 实现，不依赖 Android API。
+ */
+public class FrameRingBuffer implements Closeable {
+
+    /** 读出的一条缓冲帧 */
+    public static class Record {
+        public final long timestampMs;
+        public final byte[] data;
+
+        Record(long timestampMs, byte[] data) {
+            this.timestampMs = timestampMs;
+            this.data = data;
+        }
+    }
+
+    // 记录头: 魔数(4) | 时间戳(8) | 长度(4) | CRC32(4)
+    private static final int RECORD_MAGIC = 0x46524D31; // "FRM1"
+    private static final int RECORD_HEADER_BYTES = 20;
+
+    // 索引头: 魔数(4) | 版本(4) | 分段大小(4) | 最大分段数(4) | readSeq(8) | readOffset(4) | 保留(4) | writeSeq(8)
+    private static final int INDEX_MAGIC = 0x46524958; // "FRIX"
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_BYTES = 64;
+    private static final int OFF_READ_SEQ = 16;
+    private static final int OFF_READ_OFFSET = 24;
+    private static final int OFF_WRITE_SEQ = 32;
+    // 分段槽位: 序号(8) | 有效长度(4) | 保留(4) | 首帧时间(8) | 末帧时间(8)
+    private static final int SLOT_BYTES = 32;
+
+    private static final String INDEX_FILE = "index.dat";
+    private static final String SEGMENT_PREFIX = "seg-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private final File dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final long maxAgeMs;
+
+    private final RandomAccessFile indexFile;
+    private final MappedByteBuffer index;
+
+    private long readSeq;
+    private int readOffset;
+    private long writeSeq;
+    private int writePos;
+    private MappedByteBuffer writeMap;
+
+    private MappedByteBuffer readMap;
+    private long readMapSeq = -1;
+    private int pendingReadOffset = -1;
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * @param dir           缓冲目录（应用私有存储）
+     * @param capacityBytes 最大占用字节数
+     * @param maxAgeMs      最长保留时长，<= 0 表示不限
+     * @param segmentBytes  单个分段大小
+     */
+    public FrameRingBuffer(File dir, long capacityBytes, long maxAgeMs, int segmentBytes) throws IOException {
+        if (segmentBytes <= RECORD_HEADER_BYTES) {
+            throw new IllegalArgumentException("分段过小: " + segmentBytes);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("无法创建缓冲目录: " + dir);
+        }
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.max(2, capacityBytes / segmentBytes);
+        this.maxAgeMs = maxAgeMs;
+
+        indexFile = new RandomAccessFile(new File(dir, INDEX_FILE), "rw");
+        index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                INDEX_HEADER_BYTES + (long) maxSegments * SLOT_BYTES);
+        recover();
+    }
+
+    // --- 写入 ---
+
+    /**
+     * 追加一帧。单帧超过分段大小时拒绝写入。
+     *
+     * @return 是否写入
+     */
+    public synchronized boolean append(long timestampMs, byte[] data, int offset, int length) throws IOException {
+        int recordBytes = RECORD_HEADER_BYTES + length;
+        if (recordBytes > segmentBytes) {
+            return false;
+        }
+        if (writePos + recordBytes > segmentBytes) {
+            rollSegment();
+        }
+        crc.reset();
+        crc.update(data, offset, length);
+        writeMap.position(writePos);
+        writeMap.putInt(RECORD_MAGIC);
+        writeMap.putLong(timestampMs);
+        writeMap.putInt(length);
+        writeMap.putInt((int) crc.getValue());
+        writeMap.put(data, offset, length);
+        boolean firstInSegment = writePos == 0;
+        writePos += recordBytes;
+        updateSlot(writeSeq, writePos, firstInSegment ? timestampMs : -1, timestampMs);
+        enforceLimits(timestampMs);
+        return true;
+    }
+
+    /** 把当前分段和索引刷到磁盘 */
+    public synchronized void flush() {
+        if (writeMap != null) writeMap.force();
+        index.force();
+    }
+
+    // --- 读取 ---
+
+    /** 是否没有待回传的帧 */
+    public synchronized boolean isEmpty() {
+        return readSeq == writeSeq && readOffset >= writePos;
+    }
+
+    /**
+     * 读取最旧的一帧但不移除，确认发送成功后调用 {@link #advance()}。
+     *
+     * @return 没有数据时返回 null
+     */
+    public synchronized Record peek() throws IOException {
+        while (true) {
+            int limit = readSeq == writeSeq ? writePos : slotLength(readSeq);
+            if (readOffset + RECORD_HEADER_BYTES <= limit) {
+                ByteBuffer segment = segmentForRead(readSeq);
+                Record record = readRecord(segment, readOffset, limit);
+                if (record != null) {
+                    pendingReadOffset = readOffset + RECORD_HEADER_BYTES + record.data.length;
+                    return record;
+                }
+                // 记录损坏：放弃该分段剩余部分
+            }
+            if (readSeq == writeSeq) {
+                readOffset = writePos;
+                storeReadPosition();
+                return null;
+            }
+            deleteSegment(readSeq);
+            readSeq++;
+            readOffset = 0;
+            storeReadPosition();
+        }
+    }
+
+    /** 移除 {@link #peek()} 返回的帧 */
+    public synchronized void advance() {
+        if (pendingReadOffset >= 0) {
+            readOffset = pendingReadOffset;
+            pendingReadOffset = -1;
+            storeReadPosition();
+        }
+    }
+
+    /** 待回传数据的大致字节数 */
+    public synchronized long getPendingBytes() {
+        long total = 0;
+        for (long seq = readSeq; seq < writeSeq; seq++) {
+            total += slotLength(seq);
+        }
+        return total + writePos - readOffset;
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+        try {
+            indexFile.close();
+        } catch (IOException e) {
+            // 忽略：映射区已经刷盘
+        }
+        writeMap = null;
+        readMap = null;
+    }
+
+    // --- 内部实现 ---
+
+    private void recover() throws IOException {
+        List<Long> seqs = listSegments();
+        boolean indexValid = index.getInt(0) == INDEX_MAGIC
+                && index.getInt(4) == INDEX_VERSION
+                && index.getInt(8) == segmentBytes
+                && index.getInt(12) == maxSegments;
+        if (indexValid) {
+            readSeq = index.getLong(OFF_READ_SEQ);
+            readOffset = index.getInt(OFF_READ_OFFSET);
+            writeSeq = index.getLong(OFF_WRITE_SEQ);
+            if (!seqs.isEmpty() && seqs.get(seqs.size() - 1) > writeSeq) {
+                writeSeq = seqs.get(seqs.size() - 1);
+            }
+            if (readSeq > writeSeq) {
+                readSeq = writeSeq;
+                readOffset = 0;
+            }
+        } else {
+            // 索引缺失或参数变化：根据现有分段重建
+            for (int i = 0; i < index.capacity(); i++) index.put(i, (byte) 0);
+            index.putInt(0, INDEX_MAGIC);
+            index.putInt(4, INDEX_VERSION);
+            index.putInt(8, segmentBytes);
+            index.putInt(12, maxSegments);
+            readSeq = seqs.isEmpty() ? 0 : seqs.get(0);
+            readOffset = 0;
+            writeSeq = seqs.isEmpty() ? 0 : seqs.get(seqs.size() - 1);
+        }
+        // 已读完的旧分段直接删除；超出容量的最旧分段也丢弃
+        for (long seq : seqs) {
+            if (seq < readSeq || seq <= writeSeq - maxSegments) deleteSegment(seq);
+        }
+        if (readSeq <= writeSeq - maxSegments) {
+            readSeq = writeSeq - maxSegments + 1;
+            readOffset = 0;
+        }
+        // 封存分段的槽位不匹配时重新扫描；重建的索引全是 0，第 0 段的槽位看起来也“匹配”，所以全部扫描
+        for (long seq = readSeq; seq < writeSeq; seq++) {
+            if (!indexValid || index.getLong(slotOffset(seq)) != seq) {
+                scanSegmentIntoSlot(seq);
+            }
+        }
+        // 当前分段总是扫描，截掉崩溃时写了一半的记录
+        writePos = scanSegmentIntoSlot(writeSeq);
+        writeMap = mapSegment(writeSeq, FileChannel.MapMode.READ_WRITE);
+        if (readSeq == writeSeq && readOffset > writePos) {
+            readOffset = writePos;
+        }
+        storeReadPosition();
+        index.putLong(OFF_WRITE_SEQ, writeSeq);
+        index.force();
+    }
+
+    /** 扫描分段得到有效长度和时间范围并写入槽位，返回有效长度 */
+    private int scanSegmentIntoSlot(long seq) throws IOException {
+        File file = segmentFile(seq);
+        int validLength = 0;
+        long firstTs = 0;
+        long lastTs = 0;
+        if (file.exists()) {
+            ByteBuffer segment = mapSegment(seq, FileChannel.MapMode.READ_ONLY);
+            int limit = (int) Math.min(segment.capacity(), segmentBytes);
+            while (validLength + RECORD_HEADER_BYTES <= limit) {
+                Record record = readRecord(segment, validLength, limit);
+                if (record == null) break;
+                if (validLength == 0) firstTs = record.timestampMs;
+                lastTs = record.timestampMs;
+                validLength += RECORD_HEADER_BYTES + record.data.length;
+            }
+        }
+        int slot = slotOffset(seq);
+        index.putLong(slot, seq);
+        index.putInt(slot + 8, validLength);
+        index.putLong(slot + 16, firstTs);
+        index.putLong(slot + 24, lastTs);
+        return validLength;
+    }
+
+    /** 读取并校验一条记录，无效时返回 null */
+    private Record readRecord(ByteBuffer segment, int offset, int limit) {
+        if (segment.getInt(offset) != RECORD_MAGIC) return null;
+        long timestampMs = segment.getLong(offset + 4);
+        int length = segment.getInt(offset + 12);
+        int expectedCrc = segment.getInt(offset + 16);
+        if (length < 0 || offset + RECORD_HEADER_BYTES + length > limit) return null;
+        byte[] data = new byte[length];
+        ByteBuffer view = segment.duplicate();
+        view.position(offset + RECORD_HEADER_BYTES);
+        view.get(data);
+        crc.reset();
+        crc.update(data, 0, length);
+        if ((int) crc.getValue() != expectedCrc) return null;
+        return new Record(timestampMs, data);
+    }
+
+    private void rollSegment() throws IOException {
+        writeMap.force();
+        updateSlot(writeSeq, writePos, -1, -1);
+        writeSeq++;
+        writePos = 0;
+        // 先按容量丢弃最旧分段，再占用新分段的槽位
+        while (writeSeq - readSeq + 1 > maxSegments) {
+            dropOldestSegment();
+        }
+        updateSlot(writeSeq, 0, 0, 0);
+        index.putLong(OFF_WRITE_SEQ, writeSeq);
+        index.force();
+        writeMap = mapSegment(writeSeq, FileChannel.MapMode.READ_WRITE);
+        // 清掉可能残留的旧数据头，避免崩溃恢复时误认
+        writeMap.putInt(0, 0);
+    }
+
+    private void enforceLimits(long newestTimestampMs) {
+        if (maxAgeMs > 0) {
+            while (readSeq < writeSeq && slotLastTimestamp(readSeq) < newestTimestampMs - maxAgeMs) {
+                dropOldestSegment();
+            }
+        }
+    }
+
+    private void dropOldestSegment() {
+        deleteSegment(readSeq);
+        readSeq++;
+        readOffset = 0;
+        pendingReadOffset = -1;
+        storeReadPosition();
+    }
+
+    private ByteBuffer segmentForRead(long seq) throws IOException {
+        if (seq == writeSeq) {
+            return writeMap;
+        }
+        if (readMapSeq != seq || readMap == null) {
+            readMap = mapSegment(seq, FileChannel.MapMode.READ_ONLY);
+            readMapSeq = seq;
+        }
+        return readMap;
+    }
+
+    private MappedByteBuffer mapSegment(long seq, FileChannel.MapMode mode) throws IOException {
+        File file = segmentFile(seq);
+        try (RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw")) {
+            long size = mode == FileChannel.MapMode.READ_ONLY ? Math.min(raf.length(), segmentBytes) : segmentBytes;
+            return raf.getChannel().map(mode, 0, size);
+        }
+    }
+
+    private void deleteSegment(long seq) {
+        if (readMapSeq == seq) {
+            readMap = null;
+            readMapSeq = -1;
+        }
+        File file = segmentFile(seq);
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private List<Long> listSegments() {
+        List<Long> seqs = new ArrayList<>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        seqs.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // 忽略无关文件
+                    }
+                }
+            }
+        }
+        Collections.sort(seqs);
+        return seqs;
+    }
+
+    private File segmentFile(long seq) {
+        return new File(dir, String.format(Locale.US, "%s%016d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+    }
+
+    private int slotOffset(long seq) {
+        return INDEX_HEADER_BYTES + (int) (seq % maxSegments) * SLOT_BYTES;
+    }
+
+    private void updateSlot(long seq, int length, long firstTs, long lastTs) {
+        int slot = slotOffset(seq);
+        index.putLong(slot, seq);
+        index.putInt(slot + 8, length);
+        if (firstTs >= 0) index.putLong(slot + 16, firstTs);
+        if (lastTs >= 0) index.putLong(slot + 24, lastTs);
+    }
+
+    private int slotLength(long seq) {
+        int slot = slotOffset(seq);
+        return index.getLong(slot) == seq ? index.getInt(slot + 8) : 0;
+    }
+
+    private long slotLastTimestamp(long seq) {
+        int slot = slotOffset(seq);
+        return index.getLong(slot) == seq ? index.getLong(slot + 24) : Long.MIN_VALUE;
+    }
+
+    private void storeReadPosition() {
+        index.putLong(OFF_READ_SEQ, readSeq);
+        index.putInt(OFF_READ_OFFSET, readOffset);
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.myapplication.ToolData;
+
+/**
+ * 根据环境光照选择采集档位，带滞回和驻留时间，避免黄昏时在两个档位之间来回抖动。
+ * <p>
+ * 光照先做指数平滑；平滑值低于 {@link #NIGHT_ENTER_LUX} 并持续 {@link #DWELL_MS} 才切到夜间档，
+ * 高于 {@link #DAY_ENTER_LUX} 并持续同样时间才切回白天档。纯 Java 实现，方便本地测试。
+ */
+public class LightProfileSelector {
+
+    /** 采集档位 */
+    public enum Profile {
+        /** 白天：全帧率、正常画质、彩色 */
+        DAY(30, 70, false),
+        /** 夜间：低帧率（允许更长曝光）、更高压缩、灰度 */
+        NIGHT(10, 50, true);
+
+        public final int maxFps;
+        public final int jpegQuality;
+        public final boolean grayscale;
+
+        Profile(int maxFps, int jpegQuality, boolean grayscale) {
+            this.maxFps = maxFps;
+            this.jpegQuality = jpegQuality;
+            this.grayscale = grayscale;
+        }
+    }
+
+    public static final float NIGHT_ENTER_LUX = 10f;
+    public static final float DAY_ENTER_LUX = 30f;
+    public static final long DWELL_MS = 5000;
+    private static final float SMOOTHING = 0.3f;
+
+    private Profile current = Profile.DAY;
+    private float smoothedLux = Float.NaN;
+    private long candidateSince = -1;
+
+    /**
+     * 输入一次光照读数。
+     *
+     * @param lux   光照 (lux)
+     * @param nowMs 单调时钟毫秒
+     * @return 档位发生切换时返回新档位，否则返回 null
+     */
+    public synchronized Profile onLightLevel(float lux, long nowMs) {
+        smoothedLux = Float.isNaN(smoothedLux) ? lux : smoothedLux + SMOOTHING * (lux - smoothedLux);
+        boolean wantsSwitch = current == Profile.DAY
+                ? smoothedLux < NIGHT_ENTER_LUX
+                : smoothedLux > DAY_ENTER_LUX;
+        if (!wantsSwitch) {
+            candidateSince = -1;
+            return null;
+        }
+        if (candidateSince < 0) {
+            candidateSince = nowMs;
+        }
+        if (nowMs - candidateSince < DWELL_MS) {
+            return null;
+        }
+        current = current == Profile.DAY ? Profile.NIGHT : Profile.DAY;
+        candidateSince = -1;
+        return current;
+    }
+
+    public synchronized Profile getCurrent() {
+        return current;
+    }
+
+    public synchronized float getSmoothedLux() {
+        return smoothedLux;
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.myapplication.ToolData;
+
+/**
+ * 分块差分器：把一帧切成固定的 cols x rows 网格，为每块计算亮度签名，
+ * 找出与接收端当前画面相比发生变化的块。
+ * <p>
+ * 纯 Java 实现，不依赖 Android API，方便在本地单元测试。
+ * 签名是每块内 {@link #CELLS} x {@link #CELLS} 个子格的平均亮度，
+ * 只要任一子格亮度变化超过阈值，该块就视为已变化。
+ */
+public class TileDiff {
+
+    /** 每块在每个方向上划分的子格数 */
+    public static final int CELLS = 4;
+    /** 计算签名时的像素采样步长（隔点采样以节省 CPU） */
+    private static final int SAMPLE_STEP = 2;
+
+    private final int frameWidth;
+    private final int frameHeight;
+    private final int cols;
+    private final int rows;
+    private final int threshold;
+
+    // 接收端已拥有的签名（只在块被发送后更新，避免缓慢漂移被永远忽略）
+    private final int[] referenceSignatures;
+    // 当前帧的签名（复用，避免每帧分配）
+    private final int[] currentSignatures;
+    private final boolean[] changedMask;
+    private boolean hasReference = false;
+
+    /**
+     * @param frameWidth  帧宽度（像素）
+     * @param frameHeight 帧高度（像素）
+     * @param cols        网格列数
+     * @param rows        网格行数
+     * @param threshold   子格平均亮度的变化阈值 (0-255)
+     */
+    public TileDiff(int frameWidth, int frameHeight, int cols, int rows, int threshold) {
+        if (frameWidth <= 0 || frameHeight <= 0) {
+            throw new IllegalArgumentException("帧尺寸无效: " + frameWidth + "x" + frameHeight);
+        }
+        if (cols <= 0 || rows <= 0 || cols > 255 || rows > 255) {
+            throw new IllegalArgumentException("网格尺寸无效: " + cols + "x" + rows);
+        }
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        this.cols = cols;
+        this.rows = rows;
+        this.threshold = threshold;
+        int signatureLength = cols * rows * CELLS * CELLS;
+        this.referenceSignatures = new int[signatureLength];
+        this.currentSignatures = new int[signatureLength];
+        this.changedMask = new boolean[cols * rows];
+    }
+
+    public int getFrameWidth() { return frameWidth; }
+
+    public int getFrameHeight() { return frameHeight; }
+
+    public int getCols() { return cols; }
+
+    public int getRows() { return rows; }
+
+    public int getTileCount() { return cols * rows; }
+
+    /** 第 col 列块的起始 x 坐标（接收端使用相同公式还原位置） */
+    public int tileX(int col) { return tileOrigin(col, cols, frameWidth); }
+
+    /** 第 row 行块的起始 y 坐标 */
+    public int tileY(int row) { return tileOrigin(row, rows, frameHeight); }
+
+    public int tileWidth(int col) { return tileX(col + 1) - tileX(col); }
+
+    public int tileHeight(int row) { return tileY(row + 1) - tileY(row); }
+
+    /**
+     * 块的起始坐标。余数均匀分摊到各块，保证所有块拼起来正好覆盖整帧。
+     */
+    public static int tileOrigin(int index, int count, int length) {
+        return (int) ((long) index * length / count);
+    }
+
+    /**
+     * 与接收端画面比较，返回发生变化的块掩码（下标 = row * cols + col）。
+     * 没有参考帧时所有块都标记为变化。
+     * <p>
+     * 注意：本方法不会更新参考签名，调用方在块真正发送出去后应调用
+     * {@link #commit(boolean[])} 或 {@link #commitAll()}。
+     *
+     * @param argbPixels 行优先的 ARGB 像素，长度至少 frameWidth * frameHeight
+     * @return 变化掩码（内部复用的数组，下一次调用会被覆盖）
+     */
+    public boolean[] diff(int[] argbPixels) {
+        computeSignatures(argbPixels, currentSignatures);
+        int perTile = CELLS * CELLS;
+        for (int tile = 0; tile < changedMask.length; tile++) {
+            boolean changed = !hasReference;
+            int base = tile * perTile;
+            for (int i = 0; i < perTile && !changed; i++) {
+                if (Math.abs(currentSignatures[base + i] - referenceSignatures[base + i]) > threshold) {
+                    changed = true;
+                }
+            }
+            changedMask[tile] = changed;
+        }
+        return changedMask;
+    }
+
+    /** 统计掩码中变化块的数量 */
+    public static int countChanged(boolean[] mask) {
+        int count = 0;
+        for (boolean changed : mask) {
+            if (changed) count++;
+        }
+        return count;
+    }
+
+    /**
+     * 把已发送块的当前签名记为参考签名。必须在 {@link #diff(int[])} 之后调用。
+     */
+    public void commit(boolean[] sentMask) {
+        int perTile = CELLS * CELLS;
+        for (int tile = 0; tile < sentMask.length; tile++) {
+            if (sentMask[tile]) {
+                System.arraycopy(currentSignatures, tile * perTile, referenceSignatures, tile * perTile, perTile);
+            }
+        }
+    }
+
+    /** 整帧（关键帧）发送后调用：当前签名全部成为参考签名 */
+    public void commitAll() {
+        System.arraycopy(currentSignatures, 0, referenceSignatures, 0, currentSignatures.length);
+        hasReference = true;
+    }
+
+    /** 丢弃参考签名，下一次 diff 会把所有块标记为变化 */
+    public void reset() {
+        hasReference = false;
+    }
+
+    public boolean hasReference() {
+        return hasReference;
+    }
+
+    /**
+     * 计算整帧所有块的亮度签名。
+     */
+    private void computeSignatures(int[] argbPixels, int[] out) {
+        if (argbPixels.length < frameWidth * frameHeight) {
+            throw new IllegalArgumentException("像素数组长度不足: " + argbPixels.length);
+        }
+        int perTile = CELLS * CELLS;
+        for (int row = 0; row < rows; row++) {
+            int tileTop = tileY(row);
+            int tileH = tileHeight(row);
+            for (int col = 0; col < cols; col++) {
+                int tileLeft = tileX(col);
+                int tileW = tileWidth(col);
+                int base = (row * cols + col) * perTile;
+                for (int cy = 0; cy < CELLS; cy++) {
+                    int y0 = tileTop + tileOrigin(cy, CELLS, tileH);
+                    int y1 = tileTop + tileOrigin(cy + 1, CELLS, tileH);
+                    for (int cx = 0; cx < CELLS; cx++) {
+                        int x0 = tileLeft + tileOrigin(cx, CELLS, tileW);
+                        int x1 = tileLeft + tileOrigin(cx + 1, CELLS, tileW);
+                        out[base + cy * CELLS + cx] = averageLuma(argbPixels, x0, y0, x1, y1);
+                    }
+                }
+            }
+        }
+    }
+
+    private int averageLuma(int[] argbPixels, int x0, int y0, int x1, int y1) {
+        long sum = 0;
+        int samples = 0;
+        for (int y = y0; y < y1; y += SAMPLE_STEP) {
+            int rowOffset = y * frameWidth;
+            for (int x = x0; x < x1; x += SAMPLE_STEP) {
+                sum += luma(argbPixels[rowOffset + x]);
+                samples++;
+            }
+        }
+        return samples == 0 ? 0 : (int) (sum / samples);
+    }
+
+    /** BT.601 亮度的整数近似 */
+    public static int luma(int argb) {
+        int r = (argb >> 16) & 0xFF;
+        int g = (argb >> 8) & 0xFF;
+        int b = argb & 0xFF;
+        return (77 * r + 150 * g + 29 * b) >> 8;
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.myapplication.ToolData;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 多路带宽分配的本地单元测试：按权重分配、流暂停或断开后重新分配、降质量控制和测量模式。
+ */
+public class BandwidthAllocatorTest {
+
+    private static final long BUDGET = 1_200_000;
+
+    @Test
+    public void shares_followWeights() {
+        BandwidthAllocator<String> allocator = new BandwidthAllocator<>(BUDGET);
+        allocator.register("back", 2);
+        allocator.register("front", 1);
+        allocator.register("external", 1);
+        assertEquals(600_000, allocator.getShare("back"));
+        assertEquals(300_000, allocator.getShare("front"));
+        assertEquals(300_000, allocator.getShare("external"));
+        assertEquals(0, allocator.getShare("unknown"));
+    }
+
+    @Test
+    public void deadStream_shareIsRedistributedByWeight() {
+        BandwidthAllocator<String> allocator = new BandwidthAllocator<>(BUDGET);
+        allocator.register("back", 2);
+        allocator.register("front", 1);
+        allocator.register("external", 1);
+
+        allocator.unregister("back");
+        assertEquals(0, allocator.getShare("back"));
+        assertEquals(600_000, allocator.getShare("front"));
+        assertEquals(600_000, allocator.getShare("external"));
+
+        allocator.unregister("external");
+        assertEquals(BUDGET, allocator.getShare("front"));
+    }
+
+    @Test
+    public void pausedStream_yieldsShareUntilResumed() {
+        BandwidthAllocator<String> allocator = new BandwidthAllocator<>(BUDGET);
+        allocator.register("back", 2);
+        allocator.register("front", 1);
+
+        allocator.setActive("back", false);
+        assertEquals(0, allocator.getShare("back"));
+        assertEquals(BUDGET, allocator.getShare("front"));
+
+        allocator.register("back", 2); // 重新注册等同于恢复
+        assertEquals(800_000, allocator.getShare("back"));
+        assertEquals(400_000, allocator.getShare("front"));
+    }
+
+    @Test
+    public void invalidWeight_isRejected() {
+        BandwidthAllocator<String> allocator = new BandwidthAllocator<>(BUDGET);
+        try {
+            allocator.register("back", 0);
+            fail("权重 0 应该被拒绝");
+        } catch (IllegalArgumentException expected) {
+            // 预期
+        }
+    }
+
+    @Test
+    public void frameInterval_followsShareAndFrameSize() {
+        BandwidthAllocator<String> allocator = new BandwidthAllocator<>(100_000);
+        allocator.register("back", 1);
+        // 还不知道帧大小：只按最大帧率限制
+        assertEquals(1000 / 30, allocator.getMinFrameIntervalMs("back", 30));
+
+        allocator.onSent("back", 10_000, 0, 0, true);
+        // 10 KB 一帧、100 KB/s：每 100 ms 一帧
+        assertEquals(100, allocator.getMinFrameIntervalMs("back", 30));
+        // 份额足够时不超过最大帧率
+        assertEquals(200, allocator.getMinFrameIntervalMs("back", 5));
+    }
+
+    @Test
+    public void tightShare_lowersQualityBeforeFrameRate() {
+        BandwidthAllocator<String> allocator = new BandwidthAllocator<>(100_000);
+        allocator.register("back", 1);
+        assertEquals(70, allocator.getQuality("back", 70));
+        allocator.getMinFrameIntervalMs("back", 30);
+
+        // 50 KB 一帧、100 KB/s 只够 2 fps，低于 MIN_FPS：每个窗口降一档质量，帧间隔封顶在 MIN_FPS
+        long now = 0;
+        allocator.onSent("back", 50_000, 0, now, true);
+        int lastQuality = 70;
+        while (lastQuality > BandwidthAllocator.MIN_QUALITY) {
+            assertEquals(1000 / BandwidthAllocator.MIN_FPS, allocator.getMinFrameIntervalMs("back", 30));
+            now += BandwidthAllocator.WINDOW_MS;
+            assertTrue(allocator.onSent("back", 50_000, 0, now, true));
+            int quality = allocator.getQuality("back", 70);
+            assertTrue("质量应该下降: " + quality, quality < lastQuality);
+            lastQuality = quality;
+        }
+        assertEquals(BandwidthAllocator.MIN_QUALITY, lastQuality);
+        // 质量到底之后才允许低于 MIN_FPS
+        assertEquals(500, allocator.getMinFrameIntervalMs("back", 30));
+
+        // 再多几个窗口，质量不会低于下限
+        now += BandwidthAllocator.WINDOW_MS;
+        allocator.onSent("back", 50_000, 0, now, true);
+        assertEquals(BandwidthAllocator.MIN_QUALITY, allocator.getQuality("back", 70));
+    }
+
+    @Test
+    public void ampleShare_restoresQualityGradually() {
+        BandwidthAllocator<String> allocator = new BandwidthAllocator<>(100_000);
+        allocator.register("back", 1);
+        allocator.register("front", 1);
+        allocator.getQuality("back", 70);
+        allocator.getMinFrameIntervalMs("back", 10);
+        long now = 0;
+        allocator.onSent("back", 20_000, 0, now, true);
+        now += BandwidthAllocator.WINDOW_MS;
+        allocator.onSent("back", 20_000, 0, now, true); // 50 KB/s 份额只够 2.5 fps
+        int lowered = allocator.getQuality("back", 70);
+        assertTrue(lowered < 70);
+
+        // 另一路断开，份额翻倍后足够 5 fps 但不到 15 fps：质量保持
+        allocator.unregister("front");
+        now += BandwidthAllocator.WINDOW_MS;
+        allocator.onSent("back", 20_000, 0, now, true);
+        assertEquals(lowered, allocator.getQuality("back", 70));
+
+        // 帧变小到 1 KB：余量远超目标帧率，逐窗口恢复到档位质量
+        for (int i = 0; i < 20; i++) {
+            now += BandwidthAllocator.WINDOW_MS;
+            allocator.onSent("back", 1_000, 0, now, true);
+        }
+        assertEquals(70, allocator.getQuality("back", 70));
+    }
+
+    @Test
+    public void measuredBudget_followsObservedThroughput() {
+        BandwidthAllocator<String> allocator = new BandwidthAllocator<>(0);
+        assertTrue(allocator.isMeasured());
+        allocator.register("back", 1);
+        long initial = allocator.getBudgetBytesPerSec();
+        assertTrue(initial > 0);
+
+        // 1 秒内发了 100 KB，几乎一直阻塞在写入上：发送端积压，链路约 100 KB/s，预算留 25% 探测余量
+        allocator.onSent("back", 50_000, 500_000_000L, 0, true);
+        assertTrue(allocator.onSent("back", 50_000, 500_000_000L, BandwidthAllocator.WINDOW_MS, true));
+        assertEquals(100_000, allocator.getAggregateBytesPerSec());
+        assertEquals(125_000, allocator.getBudgetBytesPerSec());
+        assertEquals(125_000, allocator.getShare("back"));
+        assertEquals(100_000, allocator.getSentBytesPerSec("back"));
+
+        // 没有积压、发得比估计值多：预算跟着往上抬
+        long now = BandwidthAllocator.WINDOW_MS;
+        allocator.onSent("back", 100_000, 1_000_000L, now + 500, true);
+        assertTrue(allocator.onSent("back", 100_000, 1_000_000L, now + BandwidthAllocator.WINDOW_MS, true));
+        assertEquals(250_000, allocator.getBudgetBytesPerSec());
+
+        // 没有积压、发得少：只说明发送端没东西可发，预算不降
+        now += BandwidthAllocator.WINDOW_MS;
+        assertTrue(allocator.onSent("back", 10_000, 1_000_000L, now + BandwidthAllocator.WINDOW_MS, true));
+        assertEquals(250_000, allocator.getBudgetBytesPerSec());
+    }
+
+    @Test
+    public void measuredBudget_ignoresFastWritesIntoSendBuffer() {
+        BandwidthAllocator<String> allocator = new BandwidthAllocator<>(0);
+        allocator.register("back", 1);
+        long initial = allocator.getBudgetBytesPerSec();
+
+        // 写入只花了 1 ms（复制进发送缓冲）：不能当成 100 MB/s 的链路
+        allocator.onSent("back", 50_000, 500_000L, 0, true);
+        assertTrue(allocator.onSent("back", 50_000, 500_000L, BandwidthAllocator.WINDOW_MS, true));
+        assertEquals(initial, allocator.getBudgetBytesPerSec());
+    }
+
+    @Test
+    public void configuredBudget_isNotMeasured() {
+        BandwidthAllocator<String> allocator = new BandwidthAllocator<>(BUDGET);
+        assertFalse(allocator.isMeasured());
+        allocator.register("back", 1);
+        allocator.onSent("back", 50_000, 5_000_000_000L, 0, true);
+        allocator.onSent("back", 50_000, 5_000_000_000L, BandwidthAllocator.WINDOW_MS, true);
+        assertEquals(BUDGET, allocator.getBudgetBytesPerSec());
+    }
+}
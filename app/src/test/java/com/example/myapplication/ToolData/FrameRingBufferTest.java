@@ -0,0 +1,173 @@
+package com.example.myapplication.ToolData;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 断线缓冲的本地单元测试：读写顺序、写满后回绕、关闭重开和崩溃恢复。
+ */
+public class FrameRingBufferTest {
+
+    // 每条记录 20 字节头 + 100 字节数据，一个分段正好放 8 条
+    private static final int SEGMENT_BYTES = 1024;
+    private static final int PAYLOAD_BYTES = 100;
+    private static final int RECORD_BYTES = 20 + PAYLOAD_BYTES;
+    private static final int RECORDS_PER_SEGMENT = SEGMENT_BYTES / RECORD_BYTES;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] payload(int i) {
+        byte[] data = new byte[PAYLOAD_BYTES];
+        for (int j = 0; j < data.length; j++) {
+            data[j] = (byte) (i * 31 + j);
+        }
+        return data;
+    }
+
+    private static void appendAll(FrameRingBuffer buffer, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            assertTrue(buffer.append(i, payload(i), 0, PAYLOAD_BYTES));
+        }
+    }
+
+    /** 按顺序读出并移除所有记录，返回时间戳，同时校验内容 */
+    private static List<Long> drain(FrameRingBuffer buffer) throws IOException {
+        List<Long> timestamps = new ArrayList<>();
+        FrameRingBuffer.Record record;
+        while ((record = buffer.peek()) != null) {
+            assertArrayEquals(payload((int) record.timestampMs), record.data);
+            timestamps.add(record.timestampMs);
+            buffer.advance();
+        }
+        return timestamps;
+    }
+
+    private static List<Long> range(int from, int to) {
+        List<Long> list = new ArrayList<>();
+        for (long i = from; i < to; i++) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    @Test
+    public void appendAndRead_keepsOrderAcrossSegments() throws IOException {
+        File dir = folder.newFolder();
+        try (FrameRingBuffer buffer = new FrameRingBuffer(dir, 16 * SEGMENT_BYTES, 0, SEGMENT_BYTES)) {
+            assertTrue(buffer.isEmpty());
+            appendAll(buffer, 0, 20);
+            assertFalse(buffer.isEmpty());
+            assertEquals(20L * RECORD_BYTES, buffer.getPendingBytes());
+            assertEquals(range(0, 20), drain(buffer));
+            assertTrue(buffer.isEmpty());
+        }
+    }
+
+    @Test
+    public void peekWithoutAdvance_returnsSameRecord() throws IOException {
+        File dir = folder.newFolder();
+        try (FrameRingBuffer buffer = new FrameRingBuffer(dir, 16 * SEGMENT_BYTES, 0, SEGMENT_BYTES)) {
+            appendAll(buffer, 0, 2);
+            assertEquals(0, buffer.peek().timestampMs);
+            assertEquals(0, buffer.peek().timestampMs);
+            buffer.advance();
+            assertEquals(1, buffer.peek().timestampMs);
+        }
+    }
+
+    @Test
+    public void oversizedFrame_isRejected() throws IOException {
+        File dir = folder.newFolder();
+        try (FrameRingBuffer buffer = new FrameRingBuffer(dir, 16 * SEGMENT_BYTES, 0, SEGMENT_BYTES)) {
+            assertFalse(buffer.append(0, new byte[SEGMENT_BYTES], 0, SEGMENT_BYTES));
+            assertTrue(buffer.isEmpty());
+        }
+    }
+
+    @Test
+    public void full_wrapsAndDropsOldestSegments() throws IOException {
+        File dir = folder.newFolder();
+        try (FrameRingBuffer buffer = new FrameRingBuffer(dir, 4 * SEGMENT_BYTES, 0, SEGMENT_BYTES)) {
+            // 写满 10 个分段，容量只有 4 个：最后 4 个分段（第 6~9 段）留下
+            appendAll(buffer, 0, 10 * RECORDS_PER_SEGMENT);
+            assertTrue(buffer.getPendingBytes() <= 4L * SEGMENT_BYTES);
+            assertEquals(range(6 * RECORDS_PER_SEGMENT, 10 * RECORDS_PER_SEGMENT), drain(buffer));
+        }
+        String[] segments = dir.list((d, name) -> name.startsWith("seg-"));
+        assertTrue(segments.length <= 4);
+    }
+
+    @Test
+    public void maxAge_dropsExpiredSegments() throws IOException {
+        File dir = folder.newFolder();
+        try (FrameRingBuffer buffer = new FrameRingBuffer(dir, 16 * SEGMENT_BYTES, 10, SEGMENT_BYTES)) {
+            appendAll(buffer, 0, 4 * RECORDS_PER_SEGMENT);
+            // 最新的时间戳 31，保留 10：末帧早于 21 的分段（第 0、1 段）被丢弃
+            List<Long> left = drain(buffer);
+            assertEquals(Long.valueOf(2 * RECORDS_PER_SEGMENT), left.get(0));
+            assertEquals(Long.valueOf(4 * RECORDS_PER_SEGMENT - 1), left.get(left.size() - 1));
+        }
+    }
+
+    @Test
+    public void reopen_resumesFromReadPosition() throws IOException {
+        File dir = folder.newFolder();
+        try (FrameRingBuffer buffer = new FrameRingBuffer(dir, 16 * SEGMENT_BYTES, 0, SEGMENT_BYTES)) {
+            appendAll(buffer, 0, 20);
+            for (int i = 0; i < 10; i++) {
+                buffer.peek();
+                buffer.advance();
+            }
+        }
+        try (FrameRingBuffer buffer = new FrameRingBuffer(dir, 16 * SEGMENT_BYTES, 0, SEGMENT_BYTES)) {
+            appendAll(buffer, 20, 25);
+            assertEquals(range(10, 25), drain(buffer));
+        }
+    }
+
+    @Test
+    public void tornTail_losesOnlyTheBrokenRecord() throws IOException {
+        File dir = folder.newFolder();
+        try (FrameRingBuffer buffer = new FrameRingBuffer(dir, 16 * SEGMENT_BYTES, 0, SEGMENT_BYTES)) {
+            appendAll(buffer, 0, RECORDS_PER_SEGMENT + 5);
+        }
+        // 模拟崩溃时当前分段（第 1 段）最后一条只写了一半：改坏它的数据，CRC 对不上
+        File current = new File(dir, String.format("seg-%016d.dat", 1));
+        try (RandomAccessFile raf = new RandomAccessFile(current, "rw")) {
+            long position = 4L * RECORD_BYTES + 20 + PAYLOAD_BYTES / 2;
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xFF);
+        }
+        try (FrameRingBuffer buffer = new FrameRingBuffer(dir, 16 * SEGMENT_BYTES, 0, SEGMENT_BYTES)) {
+            // 恢复后从有效前缀之后继续写，坏记录被覆盖
+            appendAll(buffer, 100, 102);
+            List<Long> expected = range(0, RECORDS_PER_SEGMENT + 4);
+            expected.addAll(range(100, 102));
+            assertEquals(expected, drain(buffer));
+        }
+    }
+
+    @Test
+    public void lostIndex_isRebuiltFromSegments() throws IOException {
+        File dir = folder.newFolder();
+        try (FrameRingBuffer buffer = new FrameRingBuffer(dir, 16 * SEGMENT_BYTES, 0, SEGMENT_BYTES)) {
+            appendAll(buffer, 0, 3 * RECORDS_PER_SEGMENT + 3);
+        }
+        assertTrue(new File(dir, "index.dat").delete());
+        try (FrameRingBuffer buffer = new FrameRingBuffer(dir, 16 * SEGMENT_BYTES, 0, SEGMENT_BYTES)) {
+            assertEquals(range(0, 3 * RECORDS_PER_SEGMENT + 3), drain(buffer));
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.myapplication.ToolData;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 光照档位选择的本地单元测试：阈值滞回、驻留时间和平滑。
+ */
+public class LightProfileSelectorTest {
+
+    @Test
+    public void startsInDayProfile() {
+        LightProfileSelector selector = new LightProfileSelector();
+        assertEquals(LightProfileSelector.Profile.DAY, selector.getCurrent());
+        assertNull(selector.onLightLevel(500f, 0));
+        assertEquals(LightProfileSelector.Profile.DAY, selector.getCurrent());
+    }
+
+    @Test
+    public void dark_switchesToNightOnlyAfterDwell() {
+        LightProfileSelector selector = new LightProfileSelector();
+        assertNull(selector.onLightLevel(0f, 1000));
+        assertNull(selector.onLightLevel(0f, 1000 + LightProfileSelector.DWELL_MS - 1));
+        assertEquals(LightProfileSelector.Profile.NIGHT,
+                selector.onLightLevel(0f, 1000 + LightProfileSelector.DWELL_MS));
+        assertEquals(LightProfileSelector.Profile.NIGHT, selector.getCurrent());
+        // 已经在夜间档，不再重复报告切换
+        assertNull(selector.onLightLevel(0f, 1000 + 2 * LightProfileSelector.DWELL_MS));
+    }
+
+    @Test
+    public void betweenThresholds_staysInCurrentProfile() {
+        LightProfileSelector selector = new LightProfileSelector();
+        selector.onLightLevel(0f, 0);
+        selector.onLightLevel(0f, LightProfileSelector.DWELL_MS);
+        assertEquals(LightProfileSelector.Profile.NIGHT, selector.getCurrent());
+
+        // 20 lux 在两个阈值之间：夜间档保持，无论多久
+        long now = LightProfileSelector.DWELL_MS;
+        for (int i = 0; i < 100; i++) {
+            now += 1000;
+            assertNull(selector.onLightLevel(20f, now));
+        }
+        assertEquals(LightProfileSelector.Profile.NIGHT, selector.getCurrent());
+        assertEquals(20f, selector.getSmoothedLux(), 0.01f);
+
+        // 明显变亮后经过驻留时间才切回白天
+        now += 1000;
+        assertNull(selector.onLightLevel(1000f, now));
+        assertNull(selector.onLightLevel(1000f, now + LightProfileSelector.DWELL_MS - 1));
+        assertEquals(LightProfileSelector.Profile.DAY,
+                selector.onLightLevel(1000f, now + LightProfileSelector.DWELL_MS));
+    }
+
+    @Test
+    public void flicker_restartsDwell() {
+        LightProfileSelector selector = new LightProfileSelector();
+        assertNull(selector.onLightLevel(0f, 0));
+        assertNull(selector.onLightLevel(0f, 3000));
+        // 一次亮光（车灯）把平滑值拉回阈值以上，驻留计时清零
+        assertNull(selector.onLightLevel(100f, 3500));   // 平滑后 30
+        assertNull(selector.onLightLevel(0f, 4000));     // 21
+        assertNull(selector.onLightLevel(0f, 4500));     // 14.7
+        assertNull(selector.onLightLevel(0f, 5000));     // 10.3，仍未低于阈值
+        assertNull(selector.onLightLevel(0f, 5500));     // 7.2，重新开始计时
+        assertNull(selector.onLightLevel(0f, 8000));
+        assertNull(selector.onLightLevel(0f, 5500 + LightProfileSelector.DWELL_MS - 1));
+        assertEquals(LightProfileSelector.Profile.NIGHT,
+                selector.onLightLevel(0f, 5500 + LightProfileSelector.DWELL_MS));
+    }
+
+    @Test
+    public void singleDarkReading_isSmoothedAway() {
+        LightProfileSelector selector = new LightProfileSelector();
+        selector.onLightLevel(100f, 0);
+        // 一次 0 lux（手挡住传感器）只把平滑值拉到 70，不开始计时
+        assertNull(selector.onLightLevel(0f, 1000));
+        assertEquals(70f, selector.getSmoothedLux(), 0.01f);
+        assertNull(selector.onLightLevel(100f, 1000 + LightProfileSelector.DWELL_MS));
+        assertEquals(LightProfileSelector.Profile.DAY, selector.getCurrent());
+    }
+
+    @Test
+    public void nightProfile_trimsFrameRateQualityAndColor() {
+        LightProfileSelector.Profile night = LightProfileSelector.Profile.NIGHT;
+        LightProfileSelector.Profile day = LightProfileSelector.Profile.DAY;
+        assertTrue(night.grayscale);
+        assertFalse(day.grayscale);
+        assertTrue(night.maxFps < day.maxFps);
+        assertTrue(night.jpegQuality < day.jpegQuality);
+    }
+}
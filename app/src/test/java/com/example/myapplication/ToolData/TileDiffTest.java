@@ -0,0 +1,117 @@
+package com.example.myapplication.ToolData;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * 分块差分的本地单元测试。
+ */
+public class TileDiffTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    private static int[] solidFrame(int gray) {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        Arrays.fill(pixels, 0xFF000000 | (gray << 16) | (gray << 8) | gray);
+        return pixels;
+    }
+
+    private static void fillRect(int[] pixels, int x0, int y0, int x1, int y1, int gray) {
+        int argb = 0xFF000000 | (gray << 16) | (gray << 8) | gray;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                pixels[y * WIDTH + x] = argb;
+            }
+        }
+    }
+
+    @Test
+    public void firstFrame_marksAllTilesChanged() {
+        TileDiff diff = new TileDiff(WIDTH, HEIGHT, 4, 3, 6);
+        boolean[] changed = diff.diff(solidFrame(100));
+        assertEquals(12, TileDiff.countChanged(changed));
+    }
+
+    @Test
+    public void identicalFrame_afterCommit_hasNoChanges() {
+        TileDiff diff = new TileDiff(WIDTH, HEIGHT, 4, 3, 6);
+        diff.diff(solidFrame(100));
+        diff.commitAll();
+        assertEquals(0, TileDiff.countChanged(diff.diff(solidFrame(100))));
+    }
+
+    @Test
+    public void localChange_marksOnlyThatTile() {
+        TileDiff diff = new TileDiff(WIDTH, HEIGHT, 4, 3, 6);
+        diff.diff(solidFrame(100));
+        diff.commitAll();
+
+        int[] frame = solidFrame(100);
+        // 第 2 列、第 1 行的块是 x∈[32,48), y∈[16,32)
+        fillRect(frame, 36, 20, 44, 28, 250);
+        boolean[] changed = diff.diff(frame);
+        assertEquals(1, TileDiff.countChanged(changed));
+        assertTrue(changed[1 * 4 + 2]);
+    }
+
+    @Test
+    public void changeBelowThreshold_isIgnored() {
+        TileDiff diff = new TileDiff(WIDTH, HEIGHT, 4, 3, 6);
+        diff.diff(solidFrame(100));
+        diff.commitAll();
+        assertEquals(0, TileDiff.countChanged(diff.diff(solidFrame(104))));
+    }
+
+    @Test
+    public void slowDrift_isDetectedAgainstLastSentSignature() {
+        TileDiff diff = new TileDiff(WIDTH, HEIGHT, 4, 3, 6);
+        diff.diff(solidFrame(100));
+        diff.commitAll();
+        // 每帧只变化 4，但参考签名只在发送后更新，累计超过阈值后必须被检测到
+        assertEquals(0, TileDiff.countChanged(diff.diff(solidFrame(104))));
+        assertEquals(12, TileDiff.countChanged(diff.diff(solidFrame(108))));
+    }
+
+    @Test
+    public void commit_updatesOnlySentTiles() {
+        TileDiff diff = new TileDiff(WIDTH, HEIGHT, 4, 3, 6);
+        diff.diff(solidFrame(100));
+        diff.commitAll();
+
+        int[] frame = solidFrame(200);
+        boolean[] changed = diff.diff(frame);
+        boolean[] sent = new boolean[changed.length];
+        sent[0] = true;
+        diff.commit(sent);
+        assertEquals(11, TileDiff.countChanged(diff.diff(frame)));
+    }
+
+    @Test
+    public void reset_forcesFullRefresh() {
+        TileDiff diff = new TileDiff(WIDTH, HEIGHT, 4, 3, 6);
+        diff.diff(solidFrame(100));
+        diff.commitAll();
+        diff.reset();
+        assertEquals(12, TileDiff.countChanged(diff.diff(solidFrame(100))));
+    }
+
+    @Test
+    public void unevenGrid_tilesCoverWholeFrame() {
+        TileDiff diff = new TileDiff(100, 70, 3, 4, 6);
+        int width = 0;
+        for (int col = 0; col < diff.getCols(); col++) {
+            assertEquals(width, diff.tileX(col));
+            width += diff.tileWidth(col);
+        }
+        assertEquals(100, width);
+        int height = 0;
+        for (int row = 0; row < diff.getRows(); row++) {
+            height += diff.tileHeight(row);
+        }
+        assertEquals(70, height);
+    }
+}